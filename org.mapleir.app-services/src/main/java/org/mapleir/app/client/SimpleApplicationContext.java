@@ -1,7 +1,6 @@
 package org.mapleir.app.client;
 
 import java.lang.reflect.Modifier;
-import java.util.Collection;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -29,9 +28,7 @@ public class SimpleApplicationContext extends AbstractApplicationContext {
 		
 		ClassTree tree = app.getClassTree();
 		
-		// TODO: could probably optimise with dfs instead of getAll
-		Collection<ClassNode> parents = tree.getAllParents(m.owner);
-		for(ClassNode cn : parents) {
+		return tree.getSubtypeIndex().anyAncestor(m.owner, cn -> {
 			if(app.isLibraryClass(cn.getName())) {
 				for(MethodNode cnM : cn.getMethods()) {
 					if(!Modifier.isStatic(cnM.node.access) && cnM.getName().equals(m.getName()) && cnM.getDesc().equals(m.getDesc())) {
@@ -39,8 +36,8 @@ public class SimpleApplicationContext extends AbstractApplicationContext {
 					}
 				}
 			}
-		}
-		return false;
+			return false;
+		});
 	}
 	
 	@Override
@@ -5,16 +5,35 @@ import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.mapleir.asm.ClassHelper;
 import org.mapleir.stdlib.collections.itertools.ChainIterator;
 import org.mapleir.asm.ClassNode;
 
+/**
+ * The classes of the application and the libraries they're looked up in.
+ * <p>
+ * Once everything is loaded, the application can be {@link #freeze() frozen},
+ * after which lookups may be made from any number of threads. Classes that
+ * were already found are read without locking. Anything else (misses, lazily
+ * loaded library classes and the tree additions they cause) is done under
+ * this object's lock, which library sources also take when they load classes.
+ */
 public class ApplicationClassSource extends ClassSource {
 
 	private final String name;
 	private final List<LibraryClassSource> libraries;
-	private ClassTree classTree;
+	/* set before the tree is initialised, so the classes it loads are added
+	 * to it. readyTree is only set once it's done. */
+	private volatile ClassTree classTree;
+	private volatile ClassTree readyTree;
+	/* every class that has been looked up, wherever it was found, and the
+	 * names that weren't found anywhere. */
+	private final Map<String, LocateableClassNode> index;
+	private final Set<String> missing;
+	private volatile boolean frozen;
 	
 	public ApplicationClassSource(String name, Collection<ClassNode> classes) {
 		this(name, ClassHelper.convertToMap(classes));
@@ -24,6 +43,19 @@ public class ApplicationClassSource extends ClassSource {
 		super(nodeMap);
 		this.name = (name == null ? "unknown" : name);
 		libraries = new ArrayList<>();
+		index = new ConcurrentHashMap<>();
+		missing = ConcurrentHashMap.newKeySet();
+		reindex();
+	}
+	
+	/* app classes are indexed up front as they come first anyway. library
+	 * classes are added as they're looked up. */
+	private void reindex() {
+		index.clear();
+		missing.clear();
+		for(ClassNode cn : nodeMap.values()) {
+			index.put(cn.getName(), new LocateableClassNode(this, cn, false));
+		}
 	}
 	
 	public List<LibraryClassSource> getLibraries() {
@@ -35,29 +67,68 @@ public class ApplicationClassSource extends ClassSource {
 	}
 	
 	public ClassTree getClassTree() {
-		if (classTree == null) {
-			classTree = new ClassTree(this);
-			classTree.init();
+		ClassTree tree = readyTree;
+		if (tree == null) {
+			synchronized (this) {
+				tree = readyTree;
+				if (tree == null) {
+					tree = classTree = new ClassTree(this);
+					tree.init();
+					readyTree = tree;
+				}
+			}
+		}
+		return tree;
+	}
+	
+	/**
+	 * Makes the set of classes and libraries final and builds the class
+	 * tree if it hasn't been already. Lookups are safe to make from several
+	 * threads after this.
+	 */
+	public void freeze() {
+		synchronized (this) {
+			frozen = true;
+			getClassTree().freeze();
+		}
+	}
+	
+	public boolean isFrozen() {
+		return frozen;
+	}
+	
+	private void checkNotFrozen() {
+		if(frozen) {
+			throw new IllegalStateException(name + " is frozen");
 		}
-		return classTree;
 	}
 	
 	@Override
 	public void rebuildTable() {
+		checkNotFrozen();
 		// rebuild app table
 		super.rebuildTable();
 		// rebuild lib tables
 		for(LibraryClassSource lib : libraries) {
 			lib.rebuildTable();
 		}
+		reindex();
+		ClassTree tree = classTree;
+		if(tree != null) {
+			tree.classesRenamed();
+		}
 	}
 	
 	public void addLibraries(LibraryClassSource... libs) {
+		checkNotFrozen();
 		for(LibraryClassSource cs : libs) {
 			if(!libraries.contains(cs)) {
 				libraries.add(cs);
 			}
 		}
+		/* the new libraries come after the ones we've already searched,
+		 * so only the misses can change. */
+		missing.clear();
 	}
 	
 	public ClassNode findClassNode(String name) {
@@ -77,18 +148,39 @@ public class ApplicationClassSource extends ClassSource {
 			return null;
 		}
 		
-		LocateableClassNode node = findClass0(name);
+		LocateableClassNode node = index.get(name);
+		if(node != null || missing.contains(name)) {
+			return node;
+		}
 		
-		if(node != null) {
+		synchronized (this) {
+			return findClassSlow(name);
+		}
+	}
+	
+	private LocateableClassNode findClassSlow(String name) {
+		/* might have been found while we were waiting. */
+		LocateableClassNode node = index.get(name);
+		if(node != null || missing.contains(name)) {
 			return node;
-		} else {
+		}
+		
+		node = findClass0(name);
+		if(node == null) {
 			for(LibraryClassSource cs : libraries) {
 				if(cs.contains(name)) {
-					return cs.findClass0(name);
+					node = cs.findClass0(name);
+					break;
 				}
 			}
-			return null;
 		}
+		
+		if(node != null) {
+			index.put(name, node);
+		} else {
+			missing.add(name);
+		}
+		return node;
 	}
 
 	public boolean isLibraryClass(String name) {
@@ -96,6 +188,26 @@ public class ApplicationClassSource extends ClassSource {
 			return false;
 		}
 		
+		LocateableClassNode node = index.get(name);
+		if(node != null) {
+			return node.source != this;
+		} else if(missing.contains(name)) {
+			return false;
+		}
+		
+		synchronized (this) {
+			return isLibraryClassSlow(name);
+		}
+	}
+	
+	private boolean isLibraryClassSlow(String name) {
+		LocateableClassNode node = index.get(name);
+		if(node != null) {
+			return node.source != this;
+		} else if(missing.contains(name)) {
+			return false;
+		}
+		
 		/* quick check to see if it's app class instead. 
 		 * (prevents attempted loading by runtime lib). */
 		if(contains(name)) {
@@ -107,6 +219,7 @@ public class ApplicationClassSource extends ClassSource {
 				return true;
 			}
 		}
+		missing.add(name);
 		return false;
 	}
 
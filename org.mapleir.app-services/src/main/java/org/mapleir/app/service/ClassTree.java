@@ -1,7 +1,10 @@
 package org.mapleir.app.service;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 import org.apache.log4j.Logger;
 import org.mapleir.app.service.ClassTree.InheritanceEdge;
@@ -16,6 +19,12 @@ import org.mapleir.asm.ClassNode;
 /**
  * A graph to represent the inheritance tree.
  * The graph follows the convention of anti-arborescence, i.e. edges point towards the root (Object).
+ * <p>
+ * Reads don't lock and may come from any number of threads. Classes that are found after the tree is
+ * built (runtime classes are loaded lazily) are added under the lock of the {@link ApplicationClassSource},
+ * which is also the lock its lookups are made under, so a class is only ever added once and readers never
+ * see it before all of its edges are. Once the application is {@link #freeze() frozen}, vertices can
+ * no longer be removed or replaced.
  * @see <a href=https://en.wikipedia.org/wiki/Tree_(graph_theory)>Wikipedia: Tree</a>
  */
 // nodes point to their super interfaces/classes
@@ -28,6 +37,13 @@ public class ClassTree extends FastDirectedGraph<ClassNode, InheritanceEdge> {
 	private final ApplicationClassSource source;
 	private final ClassNode rootNode;
 	private final boolean allowPhantomClasses;
+	private volatile CommonSuperClassTable commonSuperClasses;
+	private volatile SubtypeIndex subtypes;
+	/* classes that are in the maps but whose edges are still being added. */
+	private final Set<ClassNode> pending;
+	private volatile boolean frozen;
+	/* bumped under the source's lock whenever a class is added, removed or replaced. */
+	private volatile int changes;
 	
 	public ClassTree(ApplicationClassSource source) {
 		this(source, ALLOW_PHANTOM_CLASSES);
@@ -36,6 +52,7 @@ public class ClassTree extends FastDirectedGraph<ClassNode, InheritanceEdge> {
 	public ClassTree(ApplicationClassSource source, boolean allowPhantomClasses) {
 		this.source = source;
 		this.allowPhantomClasses = allowPhantomClasses;
+		pending = ConcurrentHashMap.newKeySet();
 		rootNode = findClass("java/lang/Object");
 		addVertex(rootNode);
 	}
@@ -46,6 +63,27 @@ public class ClassTree extends FastDirectedGraph<ClassNode, InheritanceEdge> {
 		}
 	}
 	
+	/**
+	 * Stops any vertices from being removed or replaced. Classes that are found later can still be
+	 * added, as that never changes the edges of classes already in the tree.
+	 */
+	public void freeze() {
+		frozen = true;
+	}
+	
+	public boolean isFrozen() {
+		return frozen;
+	}
+	
+	/**
+	 * @return a count of the classes that have been added to, removed from or replaced in the tree.
+	 *         The tree is the same as when it was last read as long as it hasn't changed, even if a
+	 *         class was removed and another added in between.
+	 */
+	public int getChangeCount() {
+		return changes;
+	}
+	
 	public ClassNode getRootNode() {
 		return rootNode;
 	}
@@ -96,6 +134,41 @@ public class ClassTree extends FastDirectedGraph<ClassNode, InheritanceEdge> {
 		return set;
 	}
 
+	/**
+	 * @param sub a class.
+	 * @param sup another class.
+	 * @return whether sub is sup, or extends or implements it, directly or not.
+	 * @see SubtypeIndex
+	 */
+	public boolean isSubtype(ClassNode sub, ClassNode sup) {
+		return getSubtypeIndex().isSubtype(sub, sup);
+	}
+
+	/**
+	 * @param sub the internal name of a class.
+	 * @param sup the internal name of another class.
+	 * @return whether sub is sup, or extends or implements it, directly or not. False if either
+	 *         class can't be found.
+	 */
+	public boolean isSubtype(String sub, String sup) {
+		ClassNode subNode = source.findClassNode(sub), supNode = source.findClassNode(sup);
+		return subNode != null && supNode != null && isSubtype(subNode, supNode);
+	}
+
+	public SubtypeIndex getSubtypeIndex() {
+		SubtypeIndex index = subtypes;
+		if (index == null || index.isStale()) {
+			// the numbering needs a tree that classes aren't being added to at the same time
+			synchronized (source) {
+				index = subtypes;
+				if (index == null || index.isStale()) {
+					subtypes = index = new SubtypeIndex(this);
+				}
+			}
+		}
+		return index;
+	}
+
 	// returns a topoorder (supers first) traversal of the graph starting from cn.
 	public List<ClassNode> getAllParents(ClassNode cn) {
 		if(!containsVertex(cn)) {
@@ -120,11 +193,16 @@ public class ClassTree extends FastDirectedGraph<ClassNode, InheritanceEdge> {
 		Collection<ClassNode> results = new HashSet<>();
 		Queue<ClassNode> queue = new LinkedList<>();
 		queue.add(cn);
+		SubtypeIndex index = getSubtypeIndex();
+		Consumer<ClassNode> enqueue = c -> {
+			if (!results.contains(c))
+				queue.add(c);
+		};
 		while (!queue.isEmpty()) {
 			ClassNode next = queue.remove();
 			if (results.add(next) && next != rootNode) {
-				queue.addAll(getAllParents(next));
-				queue.addAll(getAllChildren(next));
+				index.forEachAncestor(next, enqueue);
+				index.forEachDescendant(next, enqueue);
 			}
 		}
 		return results;
@@ -139,6 +217,34 @@ public class ClassTree extends FastDirectedGraph<ClassNode, InheritanceEdge> {
 		throw new IllegalStateException("Couldn't find parent class?");
 	}
 	
+	/**
+	 * Finds the most specific class that both of the given classes extend, by the rules the bytecode
+	 * verifier merges reference types with: interfaces are treated as Object, and so are classes that
+	 * can't be found.
+	 *
+	 * @param type1 internal name of the first class.
+	 * @param type2 internal name of the second class.
+	 * @return the internal name of the common superclass.
+	 * @see CommonSuperClassTable
+	 */
+	public String getCommonSuperClass(String type1, String type2) {
+		return getCommonSuperClassTable().getCommonSuperClass(type1, type2);
+	}
+
+	public CommonSuperClassTable getCommonSuperClassTable() {
+		CommonSuperClassTable table = commonSuperClasses;
+		if (table == null) {
+			// the tour needs a tree that classes aren't being added to at the same time
+			synchronized (source) {
+				table = commonSuperClasses;
+				if (table == null) {
+					commonSuperClasses = table = new CommonSuperClassTable(source, this);
+				}
+			}
+		}
+		return table;
+	}
+
 	protected ClassNode findClass(String name) {
 		LocateableClassNode n = source.findClass(name);
 		if(n != null) {
@@ -168,6 +274,19 @@ public class ClassTree extends FastDirectedGraph<ClassNode, InheritanceEdge> {
 			return false;
 		}
 		
+		synchronized (source) {
+			if (containsVertex(cn))
+				return false;
+			pending.add(cn);
+			try {
+				return addVertex0(cn);
+			} finally {
+				pending.remove(cn);
+			}
+		}
+	}
+	
+	private boolean addVertex0(ClassNode cn) {
 		if (!super.addVertex(cn))
 			return false;
 		
@@ -176,7 +295,7 @@ public class ClassTree extends FastDirectedGraph<ClassNode, InheritanceEdge> {
 			ClassNode sup = cn.node.superName != null ? requestClass0(cn.node.superName, cn.getName()) : rootNode;
 			if(sup == null) {
 				LOGGER.error(String.format("No superclass %s for %s", cn.node.superName, cn.getName()));
-				removeVertex(cn);
+				super.removeVertex(cn);
 				return false;
 			}
 			edges.add(new ExtendsEdge(cn, sup));
@@ -185,7 +304,7 @@ public class ClassTree extends FastDirectedGraph<ClassNode, InheritanceEdge> {
 				ClassNode iface = requestClass0(s, cn.getName());
 				if(iface == null) {
 					LOGGER.error(String.format("No superinterface %s for %s", s, cn.getName()));
-					removeVertex(cn);
+					super.removeVertex(cn);
 					return false;
 				}
 				edges.add(new ImplementsEdge(cn, iface));
@@ -196,9 +315,79 @@ public class ClassTree extends FastDirectedGraph<ClassNode, InheritanceEdge> {
 			}
 		}
 		
+		SubtypeIndex index = subtypes;
+		if (index != null)
+			index.added(cn);
+		changes++;
 		return true;
 	}
 
+	// the concurrent maps don't allow null keys, unlike the HashMaps callers were used to.
+	@Override
+	public boolean containsVertex(ClassNode cn) {
+		return cn != null && super.containsVertex(cn);
+	}
+
+	@Override
+	public void removeVertex(ClassNode cn) {
+		checkNotFrozen();
+		synchronized (source) {
+			super.removeVertex(cn);
+			subtypes = null;
+			commonSuperClasses = null;
+			changes++;
+		}
+	}
+
+	// the new class takes the place of the old one, with its edges.
+	@Override
+	public void replace(ClassNode old, ClassNode n) {
+		checkNotFrozen();
+		synchronized (source) {
+			Set<InheritanceEdge> succs = new HashSet<>(super.getEdges(old));
+			Set<InheritanceEdge> preds = new HashSet<>(super.getReverseEdges(old));
+			super.removeVertex(old);
+			super.addVertex(n);
+			for (InheritanceEdge e : succs) {
+				super.addEdge(clone(e, n, e.dst()));
+			}
+			for (InheritanceEdge e : preds) {
+				super.addEdge(clone(e, e.src(), n));
+			}
+			subtypes = null;
+			commonSuperClasses = null;
+			changes++;
+		}
+	}
+
+	@Override
+	public void clear() {
+		checkNotFrozen();
+		synchronized (source) {
+			super.clear();
+			subtypes = null;
+			commonSuperClasses = null;
+			changes++;
+		}
+	}
+	
+	/* the answers are memoised by name, so they go when classes are renamed. */
+	void classesRenamed() {
+		synchronized (source) {
+			commonSuperClasses = null;
+		}
+	}
+	
+	private void checkNotFrozen() {
+		if (frozen)
+			throw new IllegalStateException("class tree of " + source + " is frozen");
+	}
+
+	@Override
+	public InheritanceEdge clone(InheritanceEdge edge, ClassNode src, ClassNode dst) {
+		return edge instanceof ExtendsEdge ? new ExtendsEdge(src, dst) : new ImplementsEdge(src, dst);
+	}
+
 	@Override
 	public void addEdge(InheritanceEdge e) {
 		throw new UnsupportedOperationException();
@@ -211,22 +400,44 @@ public class ClassTree extends FastDirectedGraph<ClassNode, InheritanceEdge> {
 
 	@Override
 	public Set<InheritanceEdge> getEdges(ClassNode cn) {
-		if(!containsVertex(cn)) {
-			System.err.println("warn: implicit add of " + cn);
-			addVertex(cn);
+		if(!awaitVertex(cn, "warn: implicit add of ")) {
+			return Collections.emptySet();
 		}
 		return super.getEdges(cn);
 	}
 
 	@Override
 	public Set<InheritanceEdge> getReverseEdges(ClassNode cn) {
-		if(!containsVertex(cn)) {
-			System.err.println("warn(2): implicit add of " + cn);
-			addVertex(cn);
+		if(!awaitVertex(cn, "warn(2): implicit add of ")) {
+			return Collections.emptySet();
 		}
 		return super.getReverseEdges(cn);
 	}
 	
+	/**
+	 * Adds the class if it isn't in the tree, or waits for the thread that's adding it.
+	 *
+	 * @return whether the class is in the tree with all of its edges, false for null or for a class
+	 *         whose supertypes can't be found.
+	 */
+	private boolean awaitVertex(ClassNode cn, String warning) {
+		if(cn == null) {
+			return false;
+		}
+		// the vertex is put in the maps before its edges are added, so check pending after.
+		if(containsVertex(cn) && !pending.contains(cn)) {
+			return true;
+		}
+		/* slow path: either the class isn't in the tree, or another thread is adding it. */
+		synchronized (source) {
+			if(!containsVertex(cn)) {
+				System.err.println(warning + cn);
+				return addVertex(cn);
+			}
+			return true;
+		}
+	}
+	
 	@Override
 	public String toString() {
 		TabbedStringWriter sw = new TabbedStringWriter();
@@ -274,10 +485,16 @@ public class ClassTree extends FastDirectedGraph<ClassNode, InheritanceEdge> {
 		}
 	}
 
+	// Called from the super constructor, before any of our fields are set.
+	@Override
+	public Map<ClassNode, Set<InheritanceEdge>> createMap() {
+		return new ConcurrentHashMap<>();
+	}
+
 	// Ensure extends edges are traversed first.
 	@Override
 	public Set<InheritanceEdge> createSet() {
-		return new TreeSet<>((e1, e2) -> {
+		return new ConcurrentSkipListSet<>((e1, e2) -> {
 			int result = Boolean.compare(!(e1 instanceof ExtendsEdge), !(e2 instanceof ExtendsEdge));
 			return result == 0 ? GraphUtils.compareEdgesById(e1, e2) : result;
 		});
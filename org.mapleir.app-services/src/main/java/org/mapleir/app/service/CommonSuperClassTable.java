@@ -0,0 +1,175 @@
+package org.mapleir.app.service;
+
+import java.lang.reflect.Modifier;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.mapleir.app.service.ClassTree.ExtendsEdge;
+import org.mapleir.app.service.ClassTree.InheritanceEdge;
+import org.mapleir.asm.ClassNode;
+
+/**
+ * Answers common superclass queries for a {@link ClassTree}, as needed whenever two reference types
+ * are merged in a frame.
+ * <p>
+ * The superclass relation forms a tree rooted at Object, so the common superclass of two classes
+ * is their lowest common ancestor in it. On creation, an Euler tour of the classes that are in the
+ * tree is taken along with their depths, and a sparse table over the tour lets the shallowest class
+ * between two positions, i.e. the ancestor, be found in constant time. Classes which are added to
+ * the tree later on (e.g. runtime classes that get loaded lazily) aren't in the tour; their
+ * superclass chains are walked until a class that is, which is fine as there are few of them.
+ * <p>
+ * Answers are memoised by type pair, since the same pairs come up over and over when a jar is
+ * written. The table can be queried from several threads at once.
+ */
+public class CommonSuperClassTable {
+	private static final String OBJECT = "java/lang/Object";
+
+	private final ApplicationClassSource source;
+	private final Map<ClassNode, Integer> index;
+	private final ClassNode[] tour;
+	private final int[] depths;
+	private final int[] firsts;
+	// sparse[k][i] is the position of the shallowest class in tour[i .. i + 2^k)
+	private final int[][] sparse;
+	private final Map<String, String> cache;
+
+	public CommonSuperClassTable(ApplicationClassSource source, ClassTree tree) {
+		this.source = source;
+		index = new HashMap<>();
+		cache = new ConcurrentHashMap<>();
+
+		ClassNode root = tree.getRootNode();
+		int size = tree.size();
+		int tourLength = Math.max(1, size * 2 - 1);
+		tour = new ClassNode[tourLength];
+		depths = new int[tourLength];
+		firsts = new int[size];
+		int pos = 0;
+
+		// iterative so that deep hierarchies can't overflow the stack
+		Deque<ClassNode> stack = new ArrayDeque<>();
+		Deque<Iterator<InheritanceEdge>> children = new ArrayDeque<>();
+		stack.push(root);
+		children.push(tree.getReverseEdges(root).iterator());
+		index.put(root, 0);
+		tour[pos] = root;
+		depths[pos++] = 0;
+		while (!stack.isEmpty()) {
+			Iterator<InheritanceEdge> it = children.peek();
+			ClassNode child = null;
+			while (it.hasNext()) {
+				InheritanceEdge e = it.next();
+				if (e instanceof ExtendsEdge) {
+					child = e.src();
+					break;
+				}
+			}
+			if (child != null) {
+				stack.push(child);
+				children.push(tree.getReverseEdges(child).iterator());
+				firsts[index.size()] = pos;
+				index.put(child, index.size());
+				tour[pos] = child;
+				depths[pos++] = stack.size() - 1;
+			} else {
+				stack.pop();
+				children.pop();
+				if (!stack.isEmpty()) {
+					tour[pos] = stack.peek();
+					depths[pos++] = stack.size() - 1;
+				}
+			}
+		}
+
+		int levels = 1;
+		while ((1 << levels) <= pos) {
+			levels++;
+		}
+		sparse = new int[levels][];
+		sparse[0] = new int[pos];
+		for (int i = 0; i < pos; i++) {
+			sparse[0][i] = i;
+		}
+		for (int k = 1; k < levels; k++) {
+			int half = 1 << (k - 1);
+			int[] prev = sparse[k - 1];
+			int[] cur = sparse[k] = new int[pos - (1 << k) + 1];
+			for (int i = 0; i < cur.length; i++) {
+				int a = prev[i], b = prev[i + half];
+				cur[i] = depths[a] <= depths[b] ? a : b;
+			}
+		}
+	}
+
+	/**
+	 * Finds the most specific class that both of the given classes extend, by the rules the bytecode
+	 * verifier merges reference types with: interfaces are treated as Object, and so are classes that
+	 * can't be found.
+	 *
+	 * @param type1 internal name of the first class.
+	 * @param type2 internal name of the second class.
+	 * @return the internal name of the common superclass.
+	 */
+	public String getCommonSuperClass(String type1, String type2) {
+		if (type1.equals(type2)) {
+			return type1;
+		}
+		// the answer doesn't depend on the order
+		String key = type1.compareTo(type2) < 0 ? type1 + ';' + type2 : type2 + ';' + type1;
+		String res = cache.get(key);
+		if (res == null) {
+			res = compute(type1, type2);
+			cache.put(key, res);
+		}
+		return res;
+	}
+
+	private String compute(String type1, String type2) {
+		ClassNode ccn = source.findClassNode(type1);
+		ClassNode dcn = source.findClassNode(type2);
+		if (ccn == null || dcn == null || Modifier.isInterface(ccn.node.access) || Modifier.isInterface(dcn.node.access)) {
+			return OBJECT;
+		}
+
+		// climb out of the classes the tour doesn't know about first
+		Set<ClassNode> unindexed = null;
+		while (!index.containsKey(ccn)) {
+			if (unindexed == null) {
+				unindexed = new HashSet<>();
+			}
+			unindexed.add(ccn);
+			ccn = superOf(ccn);
+			if (ccn == null) {
+				return OBJECT;
+			}
+		}
+		while (!index.containsKey(dcn)) {
+			if (unindexed != null && unindexed.contains(dcn)) {
+				return dcn.getName();
+			}
+			dcn = superOf(dcn);
+			if (dcn == null) {
+				return OBJECT;
+			}
+		}
+		return lowestCommonAncestor(ccn, dcn).getName();
+	}
+
+	private ClassNode superOf(ClassNode cn) {
+		return cn.node.superName != null ? source.findClassNode(cn.node.superName) : null;
+	}
+
+	private ClassNode lowestCommonAncestor(ClassNode c, ClassNode d) {
+		int i = firsts[index.get(c)];
+		int j = firsts[index.get(d)];
+		if (i > j) {
+			int t = i;
+			i = j;
+			j = t;
+		}
+		int k = 31 - Integer.numberOfLeadingZeros(j - i + 1);
+		int a = sparse[k][i], b = sparse[k][j - (1 << k) + 1];
+		return tour[depths[a] <= depths[b] ? a : b];
+	}
+}
@@ -1,21 +1,52 @@
 package org.mapleir.app.service;
 
-import org.mapleir.asm.ClassHelper;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FrameNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
 import org.mapleir.asm.ClassNode;
 import org.mapleir.asm.MethodNode;
 import org.topdank.byteengineer.commons.data.JarContents;
 import org.topdank.byteengineer.commons.data.JarResource;
+import org.topdank.byteengineer.commons.data.LocateableJarContents;
+import org.topdank.byteengineer.commons.data.RawZipEntry;
+import org.topdank.byteio.in.RawZipReader;
 import org.topdank.byteio.out.JarDumper;
+import org.topdank.byteio.out.RawZipWriter;
 import org.topdank.byteio.util.Debug;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.lang.reflect.Modifier;
-import java.util.Collection;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 import java.util.jar.JarEntry;
 import java.util.jar.JarOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 
 /**
  * Dumps ClassNodes and JarResources back into a file on the local system.
@@ -25,20 +56,46 @@ import java.util.jar.JarOutputStream;
  */
 public class CompleteResolvingJarDumper implements JarDumper {
 
+	/* the manifest has to come first for JarInputStream to find it */
+	private static final Comparator<String> ENTRY_ORDER = Comparator.<String, Boolean>comparing(n -> !n.equals("META-INF/"))
+			.thenComparing(n -> !n.equals("META-INF/MANIFEST.MF")).thenComparing(Comparator.naturalOrder());
+
 	private final JarContents<?> contents;
 	private final ApplicationClassSource source;
+	private final Predicate<ClassNode> modified;
+	private int threads = Runtime.getRuntime().availableProcessors();
 	/**
-	 * Creates a new JarDumper.
+	 * Creates a new JarDumper which writes every class out from its ClassNode.
 	 *
 	 * @param contents Contents of jar.
 	 */
 	public CompleteResolvingJarDumper(JarContents<ClassNode> contents, ApplicationClassSource source) {
+		this(contents, source, cn -> true);
+	}
+
+	/**
+	 * Creates a new JarDumper.
+	 *
+	 * @param contents Contents of jar.
+	 * @param modified Whether a class has been changed since it was loaded. Classes it rejects are
+	 *            copied from the jar they were loaded from.
+	 */
+	public CompleteResolvingJarDumper(JarContents<ClassNode> contents, ApplicationClassSource source, Predicate<ClassNode> modified) {
 		this.contents = contents;
 		this.source = source;
+		this.modified = modified;
 	}
 
 	/**
 	 * Dumps the jars contents.
+	 * <p>
+	 * Modified classes go through {@link #dumpClass(JarOutputStream, String, ClassNode)} on a pool of
+	 * {@link #setThreads(int) worker threads}, and resources through
+	 * {@link #dumpResource(JarOutputStream, String, byte[])}. What they write is compressed on the
+	 * pool and written in order of the entry names (with the manifest first) so that the same
+	 * contents always give the same jar. Unmodified classes, and entries the hooks write exactly as
+	 * they were read, are copied from the jar they were loaded from as they're stored in it, i.e.
+	 * without being compressed again.
 	 *
 	 * @param file File to dump it to.
 	 */
@@ -47,23 +104,183 @@ public class CompleteResolvingJarDumper implements JarDumper {
 		if (file.exists())
 			file.delete();
 		file.createNewFile();
-		JarOutputStream jos = new JarOutputStream(new FileOutputStream(file));
-		int classesDumped = 0;
+
+		// built here so the writer threads don't all try to build it at once
+		source.getClassTree();
+		RawZipReader original = openOriginal();
+		Map<String, Callable<List<RawZipEntry>>> tasks = new TreeMap<>(ENTRY_ORDER);
+		AtomicInteger classesDumped = new AtomicInteger();
 		int resourcesDumped = 0;
+		int copied = 0;
 		for (ClassNode cn : contents.getClassContents()) {
-			classesDumped += dumpClass(jos, cn.getName(), cn);
+			String name = cn.getName() + ".class";
+			if (original != null && original.getEntry(name) != null && !modified.test(cn)) {
+				tasks.put(name, () -> Collections.singletonList(original.read(name)));
+				classesDumped.incrementAndGet();
+				copied++;
+			} else {
+				tasks.put(name, () -> {
+					try (EntryCollector out = new EntryCollector()) {
+						classesDumped.addAndGet(dumpClass(out, cn.getName(), cn));
+						return out.toEntries(original);
+					}
+				});
+			}
 		}
 		for (JarResource res : contents.getResourceContents()) {
-			resourcesDumped += dumpResource(jos, res.getName(), res.getData());
+			if (tasks.containsKey(res.getName())) {
+				continue;
+			}
+			EntryCollector out = new EntryCollector();
+			resourcesDumped += dumpResource(out, res.getName(), res.getData());
+			out.close();
+			tasks.put(res.getName(), () -> out.toEntries(original));
 		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try (RawZipWriter out = new RawZipWriter(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+			List<Future<List<RawZipEntry>>> futures = new ArrayList<>();
+			for (Callable<List<RawZipEntry>> task : tasks.values()) {
+				futures.add(pool.submit(task));
+			}
+			// written in order as they become ready, while the rest are still being worked on
+			for (Future<List<RawZipEntry>> f : futures) {
+				for (RawZipEntry e : f.get()) {
+					out.write(e);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			else if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new IOException(cause);
+		} finally {
+			pool.shutdownNow();
+			if (original != null)
+				original.close();
+		}
+
 		if(!Debug.debugging)
-			System.out.println("Dumped " + classesDumped + " classes and " + resourcesDumped + " resources to " + file.getAbsolutePath());
-		
-		jos.close();
+			System.out.println("Dumped " + classesDumped + " classes and " + resourcesDumped + " resources (" + copied + " classes copied as they were) to " + file.getAbsolutePath());
+	}
+
+	/**
+	 * Collects the entries the dump hooks write, so they can be compressed or copied later on the
+	 * pool rather than deflated as they're written.
+	 */
+	private static class EntryCollector extends JarOutputStream {
+		private final Map<String, ByteArrayOutputStream> entries = new LinkedHashMap<>();
+		private ByteArrayOutputStream current;
+
+		EntryCollector() throws IOException {
+			super(new ByteArrayOutputStream());
+		}
+
+		@Override
+		public void putNextEntry(ZipEntry e) throws IOException {
+			if (entries.containsKey(e.getName()))
+				throw new ZipException("duplicate entry: " + e.getName());
+			current = new ByteArrayOutputStream();
+			entries.put(e.getName(), current);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (current == null)
+				throw new ZipException("no current ZIP entry");
+			current.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (current == null)
+				throw new ZipException("no current ZIP entry");
+			current.write(b, off, len);
+		}
+
+		@Override
+		public void closeEntry() {
+			current = null;
+		}
+
+		@Override
+		public void finish() {
+		}
+
+		@Override
+		public void close() {
+			current = null;
+			def.end();
+		}
+
+		/* entries that are the same as in the original jar are read from it as they're stored. */
+		List<RawZipEntry> toEntries(RawZipReader original) throws IOException {
+			List<RawZipEntry> res = new ArrayList<>(entries.size());
+			for (Map.Entry<String, ByteArrayOutputStream> e : entries.entrySet()) {
+				String name = e.getKey();
+				byte[] data = e.getValue().toByteArray();
+				RawZipEntry orig = original != null ? original.getEntry(name) : null;
+				if (orig == null) {
+					res.add(RawZipEntry.compress(name, data, RawZipEntry.DEFAULT_DOS_TIME));
+					continue;
+				}
+				if (orig.getSize() == data.length) {
+					CRC32 crc = new CRC32();
+					crc.update(data);
+					if (crc.getValue() == orig.getCrc()) {
+						res.add(original.read(name));
+						continue;
+					}
+				}
+				res.add(RawZipEntry.compress(name, data, orig.getDosTime()));
+			}
+			return res;
+		}
+	}
+
+	/* the jar the contents were loaded from, if there was only one and it's a local file. */
+	private RawZipReader openOriginal() throws IOException {
+		if (!(contents instanceof LocateableJarContents))
+			return null;
+		URL[] urls = ((LocateableJarContents<?>) contents).getJarUrls();
+		if (urls == null || urls.length != 1)
+			return null;
+		String url = urls[0].toExternalForm();
+		if (url.startsWith("jar:"))
+			url = url.substring(4);
+		if (url.endsWith("!/"))
+			url = url.substring(0, url.length() - 2);
+		if (!url.startsWith("file:"))
+			return null;
+		File file;
+		try {
+			file = new File(new URI(url));
+		} catch (URISyntaxException | IllegalArgumentException e) {
+			file = new File(url.substring(5));
+		}
+		return file.isFile() ? new RawZipReader(file) : null;
 	}
 
 	/**
-	 * Writes the {@link ClassNode} to the Jar.
+	 * Sets the number of threads classes are serialised and compressed on, which is the number of
+	 * available processors by default.
+	 *
+	 * @param threads The number of threads.
+	 */
+	public void setThreads(int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException(String.valueOf(threads));
+		this.threads = threads;
+	}
+
+	/**
+	 * Writes the {@link ClassNode} to the Jar. {@link #dump(File)} calls this from several threads
+	 * at once.
 	 *
 	 * @param out The {@link JarOutputStream}.
 	 * @param cn The ClassNode.
@@ -75,9 +292,23 @@ public class CompleteResolvingJarDumper implements JarDumper {
 	public int dumpClass(JarOutputStream out, String name, ClassNode cn) throws IOException {
 		JarEntry entry = new JarEntry(cn.getName() + ".class");
 		out.putNextEntry(entry);
+		out.write(toByteArray(cn));
+		return 1;
+	}
+
+	/**
+	 * Serialises a class. This may be called from several threads at once.
+	 *
+	 * @param cn The ClassNode.
+	 * @return The class file.
+	 */
+	protected byte[] toByteArray(ClassNode cn) {
 		ClassTree tree = source.getClassTree();
 		
-		ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES) {
+		// classes whose code was all dumped from the IR already have their frames and maxs, so
+		// they can be written as they are instead of having ASM analyse every method again.
+		int flags = hasFrames(cn) ? 0 : ClassWriter.COMPUTE_FRAMES;
+		ClassWriter writer = new ClassWriter(flags) {
 			// this method in ClassWriter uses the systemclassloader as
 			// a stream location to load the super class, however, most of
 			// the time the class is loaded/read and parsed by us so it
@@ -85,67 +316,11 @@ public class CompleteResolvingJarDumper implements JarDumper {
 			// we may not even want it to be loaded/resolved and we can
 			// bypass this by implementing the hierarchy scanning algorithm
 			// with ClassNodes rather than Classes.
-		    @Override
+			@Override
 			protected String getCommonSuperClass(String type1, String type2) {
-		    	ClassNode ccn = source.findClassNode(type1);
-		    	ClassNode dcn = source.findClassNode(type2);
-		    	
-		    	if(ccn == null) {
-//		    		return "java/lang/Object";
-					ClassNode c;
-					try {
-						c = ClassHelper.create(type1);
-					} catch (IOException e) {
-						return "java/lang/Object";
-					}
-					if(c == null) {
-		    			return "java/lang/Object";
-		    		}
-		    		throw new UnsupportedOperationException(c.toString());
-		    		// classTree.build(c);
-		    		// return getCommonSuperClass(type1, type2);
-		    	}
-		    	
-		    	if(dcn == null) {
-
-//		    		return "java/lang/Object";
-					ClassNode c;
-					try {
-						c = ClassHelper.create(type2);
-					} catch (IOException e) {
-						return "java/lang/Object";
-					}
-					if(c == null) {
-		    			return "java/lang/Object";
-		    		}
-		    		throw new UnsupportedOperationException(c.toString());
-		    		// classTree.build(c);
-		    		// return getCommonSuperClass(type1, type2);
-		    	}
-		    	
-		    	Collection<ClassNode> c = tree.getAllParents(ccn);
-		    	Collection<ClassNode> d = tree.getAllParents(dcn);
-		        
-		        if(c.contains(dcn))
-		        	return type1;
-		        
-		        if(d.contains(ccn))
-		        	return type2;
-		        
-		        if(Modifier.isInterface(ccn.node.access) || Modifier.isInterface(dcn.node.access)) {
-		        	// enums as well?
-		        	return "java/lang/Object";
-		        } else {
-		        	do {
-		        		ClassNode nccn = source.findClassNode(ccn.node.superName);
-		        		if(nccn == null)
-		        			break;
-		        		ccn = nccn;
-		        		c = tree.getAllParents(ccn);
-		        	} while(!c.contains(dcn));
-		        	return ccn.getName();
-		        }
-		    }
+				// safe to call from the dump threads, library classes are loaded under the source's lock
+				return tree.getCommonSuperClass(type1, type2);
+			}
 		};
 		
 		for(MethodNode m : cn.getMethods()) {
@@ -156,12 +331,37 @@ public class CompleteResolvingJarDumper implements JarDumper {
 
 		try {
 			cn.node.accept(writer); // must use custom writer which overrides getCommonSuperclass
-			out.write(writer.toByteArray());
-		} catch (Exception e) {
+			return writer.toByteArray();
+		} catch (RuntimeException e) {
 			System.err.println("Failed to write " + cn.getName());
 			throw e;
 		}
-		return 1;
+	}
+
+	/**
+	 * @param cn The ClassNode.
+	 * @return Whether every method of the class that needs StackMapTable frames already has them.
+	 */
+	public static boolean hasFrames(ClassNode cn) {
+		if ((cn.node.version & 0xFFFF) < Opcodes.V1_6) {
+			return true;
+		}
+		for (MethodNode m : cn.getMethods()) {
+			InsnList insns = m.node.instructions;
+			boolean branches = !m.node.tryCatchBlocks.isEmpty();
+			for (AbstractInsnNode ain = insns.getFirst(); ain != null; ain = ain.getNext()) {
+				if (ain instanceof FrameNode) {
+					branches = false;
+					break;
+				} else if (ain instanceof JumpInsnNode || ain instanceof TableSwitchInsnNode || ain instanceof LookupSwitchInsnNode) {
+					branches = true;
+				}
+			}
+			if (branches) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	/**
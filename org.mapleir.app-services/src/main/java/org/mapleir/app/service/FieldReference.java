@@ -0,0 +1,16 @@
+package org.mapleir.app.service;
+
+/**
+ * A use of a field in code, e.g. a getfield or putstatic, which an {@link InvocationResolver} can
+ * resolve to the field it refers to.
+ */
+public interface FieldReference {
+
+	String getOwner();
+
+	String getName();
+
+	String getDesc();
+
+	boolean isStatic();
+}
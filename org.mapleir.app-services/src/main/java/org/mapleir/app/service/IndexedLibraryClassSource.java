@@ -0,0 +1,217 @@
+package org.mapleir.app.service;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.mapleir.asm.ClassHelper;
+import org.mapleir.asm.ClassNode;
+import org.objectweb.asm.ClassReader;
+import org.topdank.byteengineer.commons.data.RawZipEntry;
+import org.topdank.byteio.in.RawZipReader;
+
+/**
+ * A library backed by a memory-mapped jar that isn't parsed up front. Opening it only indexes the
+ * names of its classes by the jar entries they're in, from the jar's central directory, and a class
+ * is parsed into a {@link ClassNode}, without code, the first time it's looked up.
+ * <p>
+ * Like the {@link InstalledRuntimeClassSource}, only the classes that have been loaded are iterated
+ * over, so the {@link ClassTree} only ever holds the part of the library the application uses.
+ * Libraries {@link #open(ApplicationClassSource, File, File) opened} with a {@link LibrarySnapshot}
+ * keep the vtables computed for them in it, along with the supertypes of every class in the jar, so
+ * that later runs can walk the library's hierarchy without parsing the classes.
+ */
+public class IndexedLibraryClassSource extends LibraryClassSource implements Closeable {
+	private static final Logger LOGGER = Logger.getLogger(IndexedLibraryClassSource.class);
+	private static final String VERSIONS_PREFIX = "META-INF/versions/";
+	private static final int LOAD_FLAGS = ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES;
+
+	private final File file;
+	private final RawZipReader zip;
+	/* internal class names to the entries they're in. */
+	private final Map<String, String> index;
+	private final LibrarySnapshot snapshot;
+	private final File snapshotFile;
+
+	public IndexedLibraryClassSource(ApplicationClassSource parent, File file) throws IOException {
+		this(parent, file, null, null);
+	}
+
+	protected IndexedLibraryClassSource(ApplicationClassSource parent, File file, LibrarySnapshot snapshot, File snapshotFile) throws IOException {
+		super(parent);
+		this.file = file;
+		this.snapshotFile = snapshotFile;
+		zip = new RawZipReader(file);
+		index = buildIndex(zip);
+		this.snapshot = snapshot;
+	}
+
+	/**
+	 * Opens a library using the snapshot of it in the given directory, if there is one for the same
+	 * version of the jar, or else with a new snapshot which is saved there by {@link #saveSnapshot()}.
+	 *
+	 * @param parent The application.
+	 * @param file The library jar.
+	 * @param snapshotDir The directory snapshots are kept in.
+	 * @return The library.
+	 * @throws IOException If the jar or the snapshot can't be read.
+	 */
+	public static IndexedLibraryClassSource open(ApplicationClassSource parent, File file, File snapshotDir) throws IOException {
+		byte[] hash = LibrarySnapshot.hash(file);
+		File snapshotFile = new File(snapshotDir, LibrarySnapshot.getFileName(file, hash));
+		LibrarySnapshot snapshot = LibrarySnapshot.read(snapshotFile, hash);
+		if (snapshot == null) {
+			snapshot = new LibrarySnapshot(hash);
+		} else {
+			LOGGER.info(String.format("Loaded the snapshot of %s from %s", file.getName(), snapshotFile));
+		}
+		return new IndexedLibraryClassSource(parent, file, snapshot, snapshotFile);
+	}
+
+	private static Map<String, String> buildIndex(RawZipReader zip) {
+		Map<String, String> index = new LinkedHashMap<>();
+		for (RawZipEntry e : zip.getEntries()) {
+			String entry = e.getName();
+			if (!entry.endsWith(".class") || entry.startsWith(VERSIONS_PREFIX) || entry.endsWith("module-info.class")) {
+				continue;
+			}
+			// a class can only be loaded from the entry its name says it's in
+			index.putIfAbsent(entry.substring(0, entry.length() - ".class".length()), entry);
+		}
+		return index;
+	}
+
+	@Override
+	public boolean contains(String name) {
+		return super.contains(name) || (name != null && index.containsKey(name));
+	}
+
+	@Override
+	protected LocateableClassNode findClass0(String name) {
+		LocateableClassNode node = super.findClass0(name);
+		if (node != null) {
+			return node;
+		}
+
+		String entry = index.get(name);
+		return entry != null ? load(name, entry) : null;
+	}
+
+	private LocateableClassNode load(String name, String entry) {
+		/* loads are made under the same lock as the tree additions, so a class is only parsed once. */
+		synchronized (parent) {
+			LocateableClassNode node = super.findClass0(name);
+			if (node != null) {
+				return node;
+			}
+
+			ClassNode cn;
+			try {
+				cn = ClassHelper.create(zip.inflate(entry), LOAD_FLAGS);
+			} catch (IOException e) {
+				LOGGER.error(String.format("Could not load %s from %s", name, file));
+				LOGGER.error(e);
+				return null;
+			}
+			if (!cn.getName().equals(name)) {
+				LOGGER.error(String.format("%s in %s is %s", entry, file, cn.getName()));
+				return null;
+			}
+			nodeMap.put(cn.getName(), cn);
+
+			/* the tree only knows about the classes that were loaded when it was built. */
+			ClassTree tree = parent._getClassTree();
+			if (tree != null && !tree.containsVertex(cn)) {
+				tree.addVertex(cn);
+			}
+			return new LocateableClassNode(this, cn, false);
+		}
+	}
+
+	/**
+	 * @return The internal names of every class in this library, whether or not they have been loaded.
+	 */
+	public Set<String> getClassNames() {
+		return Collections.unmodifiableSet(index.keySet());
+	}
+
+	/**
+	 * @param name The internal name of a class in this library.
+	 * @return The direct supertypes of the class, from the snapshot if it has them, or else from
+	 *         the class file's header, or null if the class isn't in this library.
+	 */
+	public LibrarySnapshot.SuperTypes getSuperTypes(String name) {
+		if (snapshot != null) {
+			LibrarySnapshot.SuperTypes supers = snapshot.getSuperTypes(name);
+			if (supers != null) {
+				return supers;
+			}
+		}
+		LocateableClassNode node = super.findClass0(name);
+		if (node != null) {
+			org.objectweb.asm.tree.ClassNode cn = node.node.node;
+			return new LibrarySnapshot.SuperTypes(cn.access, cn.superName, cn.interfaces.toArray(new String[0]));
+		}
+		String entry = index.get(name);
+		if (entry == null) {
+			return null;
+		}
+		try {
+			return readSuperTypes(entry);
+		} catch (IOException e) {
+			LOGGER.error(String.format("Could not read %s from %s", name, file));
+			LOGGER.error(e);
+			return null;
+		}
+	}
+
+	private LibrarySnapshot.SuperTypes readSuperTypes(String entry) throws IOException {
+		ClassReader cr = new ClassReader(zip.inflate(entry));
+		return new LibrarySnapshot.SuperTypes(cr.getAccess(), cr.getSuperName(), cr.getInterfaces());
+	}
+
+	/**
+	 * @return The snapshot this library was opened with, or null if it wasn't {@link #open(ApplicationClassSource, File, File) opened} with one.
+	 */
+	public LibrarySnapshot getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Saves the snapshot again, e.g. after vtables have been added to it. The first time, the
+	 * supertypes of every class in the jar are read in and saved with it.
+	 *
+	 * @throws IOException If the snapshot can't be written.
+	 */
+	public void saveSnapshot() throws IOException {
+		if (snapshot == null) {
+			throw new IllegalStateException("No snapshot for " + file);
+		}
+		if (!snapshot.hasHierarchy()) {
+			for (Map.Entry<String, String> e : index.entrySet()) {
+				snapshot.putSuperTypes(e.getKey(), readSuperTypes(e.getValue()));
+			}
+		}
+		snapshot.write(snapshotFile);
+	}
+
+	@Override
+	public boolean isIterable() {
+		return false;
+	}
+
+	@Override
+	public void close() throws IOException {
+		zip.close();
+	}
+
+	@Override
+	public String toString() {
+		return file.getName();
+	}
+}
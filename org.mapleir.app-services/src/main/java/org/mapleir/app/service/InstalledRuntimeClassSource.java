@@ -1,7 +1,8 @@
 package org.mapleir.app.service;
 
 import java.io.IOException;
-import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 import org.mapleir.asm.ClassHelper;
@@ -11,11 +12,11 @@ import org.mapleir.asm.ClassNode;
 public class InstalledRuntimeClassSource extends LibraryClassSource {
 	protected final Logger LOGGER = Logger.getLogger(InstalledRuntimeClassSource.class);
 
-	private final HashSet<String> notContains;
+	private final Set<String> notContains;
 	
 	public InstalledRuntimeClassSource(ApplicationClassSource parent) {
 		super(parent);
-		notContains = new HashSet<>();
+		notContains = ConcurrentHashMap.newKeySet();
 	}
 	
 	@Override
@@ -40,9 +41,22 @@ public class InstalledRuntimeClassSource extends LibraryClassSource {
 		return __resolve(name);
 	}
 	
-	/* (very) internal class loading method. doesn't
-	 * poll cache at all. */
+	/* (very) internal class loading method. only polls
+	 * the cache once it has the lock, in case another
+	 * thread loaded the class while we waited. */
 	private LocateableClassNode __resolve(String name) {
+		synchronized(parent) {
+			ClassNode cn = nodeMap.get(name);
+			if(cn != null) {
+				return new LocateableClassNode(this, cn, false);
+			} else if(notContains.contains(name)) {
+				return null;
+			}
+			return __resolve0(name);
+		}
+	}
+	
+	private LocateableClassNode __resolve0(String name) {
 		if(name.startsWith("[")) {
 			/* calling Object methods. (clone() etc)
 			 * that we haven't already resolved.
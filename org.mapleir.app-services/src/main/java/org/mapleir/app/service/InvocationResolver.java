@@ -1,5 +1,8 @@
 package org.mapleir.app.service;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Set;
 
 import org.mapleir.asm.ClassNode;
@@ -18,6 +21,18 @@ public interface InvocationResolver {
 		return resolveVirtualCalls(m.getOwner(), m.getName(), m.getDesc(), strict);
 	}
 	
+	/**
+	 * Finds the method a virtual call dispatches to when the receiver is an instance of exactly the
+	 * given class.
+	 * @param receiver the runtime class of the receiver
+	 * @param name method name
+	 * @param desc method descriptor
+	 * @param strict if true, throw if the call would fail at runtime rather than return the abstract
+	 *        method or null
+	 * @return the target method, or null if there isn't one
+	 */
+	MethodNode resolve(ClassNode receiver, String name, String desc, boolean strict);
+	
 	FieldNode findStaticField(String owner, String name, String desc);
 	
 	FieldNode findVirtualField(String owner, String name, String desc);
@@ -29,7 +44,24 @@ public interface InvocationResolver {
 			return findVirtualField(owner, name, desc);
 		}
 	}
-
+	
+	default FieldNode findField(FieldReference ref) {
+		return findField(ref.getOwner(), ref.getName(), ref.getDesc(), ref.isStatic());
+	}
+	
+	/**
+	 * Resolves a batch of field uses, e.g. every field load and store in a method, at once.
+	 * @param refs the field uses
+	 * @return the field each use refers to, in the same order, or null where it couldn't be resolved
+	 */
+	default List<FieldNode> findFields(List<? extends FieldReference> refs) {
+		List<FieldNode> fields = new ArrayList<>(refs.size());
+		for(FieldReference ref : refs) {
+			fields.add(findField(ref));
+		}
+		return fields;
+	}
+	
 	// FIXME: revise
 	/**
 	 * Find methods matching the name and desc in all branches related to the class. Note this is much broader
@@ -41,4 +73,29 @@ public interface InvocationResolver {
 	 * @return all matching methods
 	 */
 	Set<MethodNode> getHierarchyMethodChain(ClassNode cn, String name, String desc, boolean exact);
+
+	/**
+	 * Called by passes that change the hierarchy or the methods in it, e.g. by renaming or removing
+	 * them, so that anything the resolver has cached about them is computed again.
+	 */
+	default void invalidate() {
+	}
+
+	/**
+	 * Like {@link #invalidate()}, for passes that only changed the methods or fields of the given
+	 * classes. Resolvers that can't tell what depends on them forget everything.
+	 *
+	 * @param classes the classes that were changed.
+	 */
+	default void invalidate(Collection<ClassNode> classes) {
+		invalidate();
+	}
+
+	/**
+	 * Like {@link #invalidate()}, for passes that only renamed or removed fields, so that the fields
+	 * that were resolved are looked up again but the methods are kept.
+	 */
+	default void invalidateFields() {
+		invalidate();
+	}
 }
@@ -0,0 +1,276 @@
+package org.mapleir.app.service;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.ProviderNotFoundException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+import org.mapleir.asm.ClassHelper;
+import org.mapleir.asm.ClassNode;
+import org.objectweb.asm.ClassReader;
+import org.topdank.byteengineer.commons.data.RawZipEntry;
+import org.topdank.byteio.in.RawZipReader;
+
+/**
+ * The platform classes of a Java 9+ runtime, read from its {@code jrt:/} filesystem or from its
+ * jmod files. Only the packages of each module are listed up front, and classes are parsed, without
+ * code, when they're first looked up. Lookups may come from several threads.
+ */
+public class JrtClassSource extends LibraryClassSource implements Closeable {
+	private static final Logger LOGGER = Logger.getLogger(JrtClassSource.class);
+	private static final int HEADER_FLAGS = ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES;
+
+	private final String description;
+	/* package (internal name) -> the modules it's in. the jrt filesystem also lists the parents of
+	 * a module's packages under it, e.g. java/awt under java.datatransfer. */
+	private final Map<String, List<Module>> packages;
+	/* names we already know aren't in any module */
+	private final Set<String> missing;
+	/* jmods or filesystems we opened ourselves */
+	private final List<Closeable> resources;
+
+	private JrtClassSource(ApplicationClassSource parent, String description, Map<String, List<Module>> packages, List<Closeable> resources) {
+		super(parent, new ConcurrentHashMap<>());
+		this.description = description;
+		this.packages = packages;
+		this.resources = resources;
+		missing = ConcurrentHashMap.newKeySet();
+	}
+
+	/**
+	 * @param parent The application.
+	 * @return The platform classes of the runtime we're running on.
+	 * @throws IOException If we're not running on Java 9 or later.
+	 */
+	public static JrtClassSource forRuntime(ApplicationClassSource parent) throws IOException {
+		FileSystem fs;
+		try {
+			fs = FileSystems.getFileSystem(URI.create("jrt:/"));
+		} catch (FileSystemNotFoundException | ProviderNotFoundException e) {
+			throw new IOException("No jrt filesystem in Java " + System.getProperty("java.version"), e);
+		}
+		return new JrtClassSource(parent, "jrt " + System.getProperty("java.version"), indexJrt(fs), Collections.emptyList());
+	}
+
+	/**
+	 * @param parent The application.
+	 * @param javaHome The home directory of a Java 9+ installation.
+	 * @return The platform classes of that installation, read through its own {@code jrt:/} filesystem.
+	 * @throws IOException If the installation has no jrt filesystem, or we're not running on Java 9 or later.
+	 */
+	public static JrtClassSource forJavaHome(ApplicationClassSource parent, File javaHome) throws IOException {
+		FileSystem fs;
+		try {
+			fs = FileSystems.newFileSystem(URI.create("jrt:/"), Collections.singletonMap("java.home", javaHome.getAbsolutePath()));
+		} catch (ProviderNotFoundException | UnsupportedOperationException e) {
+			throw new IOException("Can't open the jrt filesystem of " + javaHome, e);
+		}
+		return new JrtClassSource(parent, "jrt " + javaHome, indexJrt(fs), Collections.singletonList(fs));
+	}
+
+	/**
+	 * @param parent The application.
+	 * @param jmodsDir A directory of jmod files, e.g. the {@code jmods} directory of a JDK.
+	 * @return The classes in the jmods.
+	 * @throws IOException If a jmod can't be read.
+	 */
+	public static JrtClassSource forJmods(ApplicationClassSource parent, File jmodsDir) throws IOException {
+		File[] jmods = jmodsDir.listFiles((dir, name) -> name.endsWith(".jmod"));
+		if (jmods == null) {
+			throw new IOException("Not a directory: " + jmodsDir);
+		}
+		Map<String, List<Module>> packages = new HashMap<>();
+		List<Closeable> resources = new ArrayList<>();
+		for (File jmod : jmods) {
+			JmodModule module = new JmodModule(new RawZipReader(jmod));
+			resources.add(module.zip);
+			for (RawZipEntry e : module.zip.getEntries()) {
+				String name = e.getName();
+				if (name.startsWith(JmodModule.PREFIX) && name.endsWith(".class") && name.indexOf('/', JmodModule.PREFIX.length()) != -1) {
+					List<Module> modules = packages.computeIfAbsent(packageOf(name.substring(JmodModule.PREFIX.length())), p -> new ArrayList<>(1));
+					if (!modules.contains(module)) {
+						modules.add(module);
+					}
+				}
+			}
+		}
+		return new JrtClassSource(parent, "jmods " + jmodsDir, packages, resources);
+	}
+
+	/* the jrt filesystem lists the module of each package under /packages. */
+	private static Map<String, List<Module>> indexJrt(FileSystem fs) throws IOException {
+		Map<String, Module> modules = new HashMap<>();
+		Map<String, List<Module>> packages = new HashMap<>();
+		try (DirectoryStream<Path> pkgs = Files.newDirectoryStream(fs.getPath("/packages"))) {
+			for (Path pkg : pkgs) {
+				try (DirectoryStream<Path> mods = Files.newDirectoryStream(pkg)) {
+					for (Path mod : mods) {
+						String moduleName = mod.getFileName().toString();
+						Module module = modules.computeIfAbsent(moduleName, m -> new JrtModule(fs.getPath("/modules", m)));
+						packages.computeIfAbsent(pkg.getFileName().toString().replace('.', '/'), p -> new ArrayList<>(1)).add(module);
+					}
+				}
+			}
+		}
+		return packages;
+	}
+
+	private static String packageOf(String name) {
+		int i = name.lastIndexOf('/');
+		return i == -1 ? "" : name.substring(0, i);
+	}
+
+	private List<Module> modulesOf(String name) {
+		List<Module> modules = packages.get(packageOf(name));
+		return modules != null ? modules : Collections.emptyList();
+	}
+
+	@Override
+	public boolean contains(String name) {
+		if (name == null) {
+			return false;
+		} else if (super.contains(name) || name.startsWith("[")) {
+			return true;
+		} else if (missing.contains(name)) {
+			return false;
+		}
+
+		for (Module module : modulesOf(name)) {
+			if (module.exists(name)) {
+				return true;
+			}
+		}
+		missing.add(name);
+		return false;
+	}
+
+	@Override
+	protected LocateableClassNode findClass0(String name) {
+		LocateableClassNode node = super.findClass0(name);
+		if (node != null) {
+			return node;
+		} else if (name.startsWith("[")) {
+			/* calls to Object methods (clone() etc) on arrays, as in
+			 * InstalledRuntimeClassSource. */
+			node = findClass0("java/lang/Object");
+			if (node != null) {
+				nodeMap.putIfAbsent(name, node.node);
+			}
+			return node;
+		} else if (missing.contains(name)) {
+			return null;
+		}
+
+		/* loads are made under the same lock as the tree additions, so a class is only parsed once. */
+		synchronized (parent) {
+			node = super.findClass0(name);
+			if (node != null) {
+				return node;
+			}
+
+			byte[] bytes = null;
+			try {
+				for (Module module : modulesOf(name)) {
+					if ((bytes = module.read(name)) != null) {
+						break;
+					}
+				}
+			} catch (IOException e) {
+				LOGGER.error(String.format("Could not load %s from %s", name, description));
+				LOGGER.error(e);
+			}
+			if (bytes == null) {
+				missing.add(name);
+				return null;
+			}
+
+			ClassNode cn = ClassHelper.create(bytes, HEADER_FLAGS);
+			nodeMap.put(cn.getName(), cn);
+
+			/* the tree only knows about the classes that were loaded when it was built. */
+			ClassTree tree = parent._getClassTree();
+			if (tree != null && !tree.containsVertex(cn)) {
+				tree.addVertex(cn);
+			}
+			return new LocateableClassNode(this, cn, true);
+		}
+	}
+
+	@Override
+	public boolean isIterable() {
+		return false;
+	}
+
+	@Override
+	public void close() throws IOException {
+		for (Closeable c : resources) {
+			c.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return description;
+	}
+
+	private static abstract class Module {
+		abstract boolean exists(String name);
+
+		/* returns null if there is no such class. */
+		abstract byte[] read(String name) throws IOException;
+	}
+
+	private static class JrtModule extends Module {
+		private final Path root;
+
+		JrtModule(Path root) {
+			this.root = root;
+		}
+
+		@Override
+		boolean exists(String name) {
+			return Files.isRegularFile(root.resolve(name + ".class"));
+		}
+
+		@Override
+		byte[] read(String name) throws IOException {
+			Path path = root.resolve(name + ".class");
+			return Files.isRegularFile(path) ? Files.readAllBytes(path) : null;
+		}
+	}
+
+	private static class JmodModule extends Module {
+		static final String PREFIX = "classes/";
+
+		private final RawZipReader zip;
+
+		JmodModule(RawZipReader zip) {
+			this.zip = zip;
+		}
+
+		@Override
+		boolean exists(String name) {
+			return zip.getEntry(PREFIX + name + ".class") != null;
+		}
+
+		@Override
+		byte[] read(String name) throws IOException {
+			return zip.inflate(PREFIX + name + ".class");
+		}
+	}
+}
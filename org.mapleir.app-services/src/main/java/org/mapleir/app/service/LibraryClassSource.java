@@ -1,8 +1,8 @@
 package org.mapleir.app.service;
 
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.mapleir.asm.ClassHelper;
 import org.mapleir.asm.ClassNode;
@@ -12,7 +12,7 @@ public class LibraryClassSource extends ClassSource {
 	protected final ApplicationClassSource parent;
 	
 	protected LibraryClassSource(ApplicationClassSource parent) {
-		this(parent, new HashMap<>());
+		this(parent, new ConcurrentHashMap<>());
 	}
 		
 	public LibraryClassSource(ApplicationClassSource parent, Collection<ClassNode> classes) {
@@ -0,0 +1,324 @@
+package org.mapleir.app.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The precomputed parts of a library that don't change between runs: the library's part of the
+ * class hierarchy, i.e. the direct supertypes of every class in it, and, once they've been computed,
+ * the virtual method tables of its classes. Snapshots are saved in a versioned binary format and are
+ * only loaded back for a jar with the same hash.
+ * <p>
+ * Vtable entries are stored by name, and refer to methods in the classes they were inherited from,
+ * which may be in other libraries. A snapshot is only valid for as long as those don't change either.
+ */
+public class LibrarySnapshot {
+	private static final int MAGIC = 0x4D495253; // MIRS
+	private static final int VERSION = 3;
+
+	private final byte[] jarHash;
+	private final Map<String, SuperTypes> hierarchy;
+	private final Map<String, VTableEntry[]> vtables;
+
+	public LibrarySnapshot(byte[] jarHash) {
+		this.jarHash = jarHash.clone();
+		hierarchy = new LinkedHashMap<>();
+		vtables = new HashMap<>();
+	}
+
+	public byte[] getJarHash() {
+		return jarHash.clone();
+	}
+
+	public boolean hasHierarchy() {
+		return !hierarchy.isEmpty();
+	}
+
+	/**
+	 * @param name The internal name of a class in the library.
+	 * @return The direct supertypes of the class, or null if they weren't saved.
+	 */
+	public SuperTypes getSuperTypes(String name) {
+		return hierarchy.get(name);
+	}
+
+	public void putSuperTypes(String name, SuperTypes supers) {
+		hierarchy.put(name, supers);
+	}
+
+	public boolean hasVTables() {
+		return !vtables.isEmpty();
+	}
+
+	/**
+	 * @param name The internal name of a class in the library.
+	 * @return The concrete and abstract vtable entries of the class, or null if they weren't saved.
+	 */
+	public VTableEntry[] getVTable(String name) {
+		return vtables.get(name);
+	}
+
+	public void putVTable(String name, VTableEntry[] entries) {
+		vtables.put(name, entries);
+	}
+
+	/**
+	 * @param jar The jar.
+	 * @return The SHA-256 of the jar.
+	 * @throws IOException If the jar can't be read.
+	 */
+	public static byte[] hash(File jar) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		try (InputStream in = new DigestInputStream(new FileInputStream(jar), digest)) {
+			byte[] buffer = new byte[1 << 16];
+			while (in.read(buffer) != -1) {
+			}
+		}
+		return digest.digest();
+	}
+
+	/**
+	 * @param jar The jar.
+	 * @param hash The hash of the jar.
+	 * @return The name of the file the snapshot of the jar is saved in.
+	 */
+	public static String getFileName(File jar, byte[] hash) {
+		StringBuilder sb = new StringBuilder(jar.getName()).append('-');
+		for (int i = 0; i < 8; i++) {
+			sb.append(String.format("%02x", hash[i] & 0xFF));
+		}
+		return sb.append(".snapshot").toString();
+	}
+
+	/**
+	 * Loads a snapshot.
+	 *
+	 * @param file The snapshot file.
+	 * @param jarHash The hash of the jar the snapshot is wanted for.
+	 * @return The snapshot, or null if there isn't one, or it's for another version of the jar or
+	 *         of the format.
+	 * @throws IOException If the snapshot can't be read.
+	 */
+	public static LibrarySnapshot read(File file, byte[] jarHash) throws IOException {
+		if (!file.isFile()) {
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				return null;
+			}
+			byte[] hash = new byte[jarHash.length];
+			in.readFully(hash);
+			if (!Arrays.equals(hash, jarHash)) {
+				return null;
+			}
+
+			String[] strings = new String[in.readInt()];
+			for (int i = 0; i < strings.length; i++) {
+				strings[i] = in.readUTF();
+			}
+
+			LibrarySnapshot snapshot = new LibrarySnapshot(jarHash);
+			int classCount = in.readInt();
+			for (int i = 0; i < classCount; i++) {
+				String name = string(strings, in.readInt());
+				snapshot.hierarchy.put(name, SuperTypes.read(in, strings));
+			}
+			int vtableCount = in.readInt();
+			for (int i = 0; i < vtableCount; i++) {
+				String name = string(strings, in.readInt());
+				VTableEntry[] entries = new VTableEntry[in.readInt()];
+				for (int j = 0; j < entries.length; j++) {
+					entries[j] = VTableEntry.read(in, strings);
+				}
+				snapshot.vtables.put(name, entries);
+			}
+			return snapshot;
+		} catch (EOFException e) {
+			// truncated, e.g. by a run that was killed while saving it
+			return null;
+		}
+	}
+
+	/**
+	 * Saves the snapshot, replacing the file only once it has been written in full.
+	 *
+	 * @param file The snapshot file.
+	 * @throws IOException If the snapshot can't be written.
+	 */
+	public void write(File file) throws IOException {
+		Map<String, Integer> strings = new LinkedHashMap<>();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(body);
+		out.writeInt(hierarchy.size());
+		for (Map.Entry<String, SuperTypes> e : hierarchy.entrySet()) {
+			out.writeInt(index(strings, e.getKey()));
+			e.getValue().write(out, strings);
+		}
+		out.writeInt(vtables.size());
+		for (Map.Entry<String, VTableEntry[]> e : vtables.entrySet()) {
+			out.writeInt(index(strings, e.getKey()));
+			out.writeInt(e.getValue().length);
+			for (VTableEntry entry : e.getValue()) {
+				entry.write(out, strings);
+			}
+		}
+		out.flush();
+
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null && !parent.exists()) {
+			parent.mkdirs();
+		}
+		File tmp = new File(file.getPath() + ".tmp");
+		boolean saved = false;
+		try {
+			try (DataOutputStream fout = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+				fout.writeInt(MAGIC);
+				fout.writeInt(VERSION);
+				fout.write(jarHash);
+				fout.writeInt(strings.size());
+				for (String s : strings.keySet()) {
+					fout.writeUTF(s);
+				}
+				body.writeTo(fout);
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			saved = true;
+		} finally {
+			if (!saved) {
+				tmp.delete();
+			}
+		}
+	}
+
+	static int index(Map<String, Integer> strings, String s) {
+		if (s == null) {
+			return -1;
+		}
+		Integer i = strings.get(s);
+		if (i == null) {
+			strings.put(s, i = strings.size());
+		}
+		return i;
+	}
+
+	static String string(String[] strings, int i) {
+		return i == -1 ? null : strings[i];
+	}
+
+	/**
+	 * The access flags of a class and the names of the types it directly extends and implements, as
+	 * they are in its class file.
+	 */
+	public static final class SuperTypes {
+		public final int access;
+		public final String superName;
+		public final String[] interfaces;
+
+		public SuperTypes(int access, String superName, String[] interfaces) {
+			this.access = access;
+			this.superName = superName;
+			this.interfaces = interfaces;
+		}
+
+		void write(DataOutputStream out, Map<String, Integer> strings) throws IOException {
+			out.writeInt(access);
+			out.writeInt(index(strings, superName));
+			out.writeInt(interfaces.length);
+			for (String i : interfaces) {
+				out.writeInt(index(strings, i));
+			}
+		}
+
+		static SuperTypes read(DataInputStream in, String[] strings) throws IOException {
+			int access = in.readInt();
+			String superName = string(strings, in.readInt());
+			String[] interfaces = new String[in.readInt()];
+			for (int i = 0; i < interfaces.length; i++) {
+				interfaces[i] = string(strings, in.readInt());
+			}
+			return new SuperTypes(access, superName, interfaces);
+		}
+	}
+
+	/**
+	 * A method reachable through a class's vtable, by the selector it's looked up with and the class
+	 * it was declared in. Mirandas are methods that were made up for the vtable and aren't in the
+	 * class file, so they carry the exceptions to make them with again.
+	 */
+	public static final class VTableEntry {
+		public final String name;
+		public final String desc;
+		public final String owner;
+		public final boolean isAbstract;
+		public final String[] mirandaExceptions;
+
+		public VTableEntry(String name, String desc, String owner, boolean isAbstract, String[] mirandaExceptions) {
+			this.name = name;
+			this.desc = desc;
+			this.owner = owner;
+			this.isAbstract = isAbstract;
+			this.mirandaExceptions = mirandaExceptions;
+		}
+
+		public boolean isMiranda() {
+			return mirandaExceptions != null;
+		}
+
+		void write(DataOutputStream out, Map<String, Integer> strings) throws IOException {
+			out.writeInt(index(strings, name));
+			out.writeInt(index(strings, desc));
+			out.writeInt(index(strings, owner));
+			out.writeByte((isAbstract ? 1 : 0) | (isMiranda() ? 2 : 0));
+			if (isMiranda()) {
+				out.writeInt(mirandaExceptions.length);
+				for (String e : mirandaExceptions) {
+					out.writeInt(index(strings, e));
+				}
+			}
+		}
+
+		static VTableEntry read(DataInputStream in, String[] strings) throws IOException {
+			String name = string(strings, in.readInt());
+			String desc = string(strings, in.readInt());
+			String owner = string(strings, in.readInt());
+			int flags = in.readByte();
+			String[] exceptions = null;
+			if ((flags & 2) != 0) {
+				exceptions = new String[in.readInt()];
+				for (int i = 0; i < exceptions.length; i++) {
+					exceptions[i] = string(strings, in.readInt());
+				}
+			}
+			return new VTableEntry(name, desc, owner, (flags & 1) != 0, exceptions);
+		}
+
+		@Override
+		public String toString() {
+			return owner + "." + name + desc;
+		}
+	}
+}
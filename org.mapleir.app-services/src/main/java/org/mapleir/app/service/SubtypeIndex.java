@@ -0,0 +1,397 @@
+package org.mapleir.app.service;
+
+import java.lang.reflect.Modifier;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import org.mapleir.app.service.ClassTree.ExtendsEdge;
+import org.mapleir.app.service.ClassTree.ImplementsEdge;
+import org.mapleir.app.service.ClassTree.InheritanceEdge;
+import org.mapleir.asm.ClassNode;
+
+/**
+ * Answers subtype queries for a {@link ClassTree} without searching it.
+ * <p>
+ * The superclass relation is a tree rooted at Object, so the classes are numbered in a preorder
+ * walk of it: the subclasses of a class are then exactly the classes numbered from it to the end of
+ * its subtree. Interfaces don't fit into one tree, so each class also has the set of interfaces it
+ * implements, directly or not, as a bitset. Interfaces are numbered by how many classes implement
+ * them, so that the common ones (Serializable, Comparable and such) are in the first few words and
+ * most sets are short, and classes that implement the same interfaces share the same set. The
+ * implementors of an interface are a union of subtrees, which are kept as preorder ranges.
+ * <p>
+ * Classes which are added to the tree later on (e.g. runtime classes that get loaded lazily) aren't
+ * numbered. They're checked by walking their supertypes until a class that is, and are kept on the
+ * side for descendant queries until there are enough of them for the tree to build a new index.
+ * Queries may be made from several threads at once.
+ */
+public class SubtypeIndex {
+	private static final long[] NO_INTERFACES = new long[0];
+
+	private final ClassTree tree;
+	private final Map<ClassNode, Integer> index;
+	// by preorder number
+	private final ClassNode[] order;
+	private final int[] ends;
+	private final int[] supers;
+	private final int[] interfaceIds;
+	private final long[][] interfaces;
+	// by interface number
+	private final ClassNode[] interfacesById;
+	// start and end pairs of preorder ranges
+	private final int[][] implementors;
+	private final List<ClassNode> added;
+
+	public SubtypeIndex(ClassTree tree) {
+		this.tree = tree;
+		index = new HashMap<>();
+		added = new CopyOnWriteArrayList<>();
+
+		int size = tree.size();
+		order = new ClassNode[size];
+		ends = new int[size];
+		supers = new int[size];
+		interfaceIds = new int[size];
+
+		// iterative so that deep hierarchies can't overflow the stack
+		int pos = 0;
+		Deque<Integer> stack = new ArrayDeque<>();
+		Deque<Iterator<InheritanceEdge>> children = new ArrayDeque<>();
+		ClassNode root = tree.getRootNode();
+		index.put(root, pos);
+		order[pos] = root;
+		supers[pos] = -1;
+		stack.push(pos++);
+		children.push(tree.getReverseEdges(root).iterator());
+		while (!stack.isEmpty()) {
+			Iterator<InheritanceEdge> it = children.peek();
+			ClassNode child = null;
+			while (it.hasNext()) {
+				InheritanceEdge e = it.next();
+				if (e instanceof ExtendsEdge) {
+					child = e.src();
+					break;
+				}
+			}
+			if (child != null) {
+				index.put(child, pos);
+				order[pos] = child;
+				supers[pos] = stack.peek();
+				stack.push(pos++);
+				children.push(tree.getReverseEdges(child).iterator());
+			} else {
+				ends[stack.pop()] = pos - 1;
+				children.pop();
+			}
+		}
+
+		// number the interfaces in preorder for now, and find everything each class implements
+		List<ClassNode> ifaces = new ArrayList<>();
+		for (int i = 0; i < pos; i++) {
+			interfaceIds[i] = Modifier.isInterface(order[i].node.access) ? ifaces.size() : -1;
+			if (interfaceIds[i] != -1) {
+				ifaces.add(order[i]);
+			}
+		}
+		BitSet[] closures = new BitSet[pos];
+		for (int i = 0; i < pos; i++) {
+			closures[i] = closure(i, closures);
+		}
+
+		// the implementors of each interface, as the subtrees of the classes that first implement it
+		int[][] ranges = new int[ifaces.size()][];
+		int[] rangeCounts = new int[ifaces.size()];
+		long[] popularity = new long[ifaces.size()];
+		for (int i = 0; i < pos; i++) {
+			if (supers[i] != -1 && closures[i] == closures[supers[i]]) {
+				continue; // nothing new, the superclass's ranges cover this
+			}
+			BitSet closure = closures[i];
+			for (int id = closure.nextSetBit(0); id >= 0; id = closure.nextSetBit(id + 1)) {
+				int n = rangeCounts[id];
+				if (n != 0 && ranges[id][n - 1] >= i) {
+					continue;
+				}
+				if (ranges[id] == null) {
+					ranges[id] = new int[4];
+				} else if (n + 2 > ranges[id].length) {
+					ranges[id] = Arrays.copyOf(ranges[id], ranges[id].length * 2);
+				}
+				ranges[id][n] = i;
+				ranges[id][n + 1] = ends[i];
+				rangeCounts[id] = n + 2;
+				popularity[id] += ends[i] - i + 1;
+			}
+		}
+
+		// renumber by popularity
+		Integer[] byPopularity = new Integer[ifaces.size()];
+		for (int id = 0; id < byPopularity.length; id++) {
+			byPopularity[id] = id;
+		}
+		Arrays.sort(byPopularity, (a, b) -> Long.compare(popularity[b], popularity[a]));
+		int[] renumber = new int[ifaces.size()];
+		interfacesById = new ClassNode[ifaces.size()];
+		implementors = new int[ifaces.size()][];
+		for (int newId = 0; newId < byPopularity.length; newId++) {
+			int id = byPopularity[newId];
+			renumber[id] = newId;
+			interfacesById[newId] = ifaces.get(id);
+			implementors[newId] = ranges[id] == null ? new int[0] : Arrays.copyOf(ranges[id], rangeCounts[id]);
+		}
+		interfaces = new long[pos][];
+		Map<BitSet, long[]> shared = new HashMap<>();
+		for (int i = 0; i < pos; i++) {
+			if (interfaceIds[i] != -1) {
+				interfaceIds[i] = renumber[interfaceIds[i]];
+			}
+			interfaces[i] = shared.computeIfAbsent(closures[i], closure -> {
+				if (closure.isEmpty()) {
+					return NO_INTERFACES;
+				}
+				BitSet renumbered = new BitSet();
+				for (int id = closure.nextSetBit(0); id >= 0; id = closure.nextSetBit(id + 1)) {
+					renumbered.set(renumber[id]);
+				}
+				return renumbered.toLongArray();
+			});
+		}
+	}
+
+	/* the interfaces the class numbered i implements, itself included. shares its superclass's set if
+	 * it adds nothing to it. interfaces are leaves of the preorder walk, so they may come after
+	 * the classes that implement them and are computed on demand. */
+	private BitSet closure(int i, BitSet[] closures) {
+		if (closures[i] != null) {
+			return closures[i];
+		}
+		// marks it as in progress, in case of a (malformed) cycle
+		closures[i] = new BitSet();
+		BitSet closure = supers[i] == -1 ? new BitSet() : closure(supers[i], closures);
+		boolean copied = false;
+		for (InheritanceEdge e : tree.getEdges(order[i])) {
+			Integer sup = e instanceof ImplementsEdge ? index.get(e.dst()) : null;
+			if (sup == null) {
+				continue;
+			}
+			BitSet other = closure(sup, closures);
+			if (!contains(closure, other)) {
+				if (!copied) {
+					closure = (BitSet) closure.clone();
+					copied = true;
+				}
+				closure.or(other);
+			}
+		}
+		if (interfaceIds[i] != -1 && !closure.get(interfaceIds[i])) {
+			if (!copied) {
+				closure = (BitSet) closure.clone();
+			}
+			closure.set(interfaceIds[i]);
+		}
+		return closures[i] = closure;
+	}
+
+	private static boolean contains(BitSet set, BitSet subset) {
+		BitSet missing = (BitSet) subset.clone();
+		missing.andNot(set);
+		return missing.isEmpty();
+	}
+
+	/* called by the tree, with its lock held. */
+	void added(ClassNode cn) {
+		added.add(cn);
+	}
+
+	/**
+	 * @return whether enough classes have been added to the tree since this was built that the tree
+	 *         should build a new one.
+	 */
+	public boolean isStale() {
+		return added.size() > Math.max(64, order.length / 16);
+	}
+
+	/**
+	 * @param sub A class.
+	 * @param sup Another class.
+	 * @return whether sub is sup, or extends or implements it, directly or not.
+	 */
+	public boolean isSubtype(ClassNode sub, ClassNode sup) {
+		if (sub == null || sup == null) {
+			return false;
+		}
+		Integer i = index.get(sub);
+		if (i == null) {
+			return isSubtypeUnindexed(sub, sup);
+		}
+		Integer j = index.get(sup);
+		if (j == null) {
+			// the supertypes of a class were all in the tree before it was
+			return false;
+		}
+		return isSubtype(i, j);
+	}
+
+	private boolean isSubtype(int i, int j) {
+		int id = interfaceIds[j];
+		if (id == -1) {
+			return j <= i && i <= ends[j];
+		}
+		long[] bits = interfaces[i];
+		int word = id >>> 6;
+		return word < bits.length && (bits[word] & (1L << id)) != 0;
+	}
+
+	private boolean isSubtypeUnindexed(ClassNode sub, ClassNode sup) {
+		if (!tree.containsVertex(sub)) {
+			return false;
+		} else if (sub == sup) {
+			return true;
+		}
+		for (InheritanceEdge e : tree.getEdges(sub)) {
+			if (isSubtype(e.dst(), sup)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Calls the action for the class and each of its superclasses and interfaces, in no particular
+	 * order.
+	 *
+	 * @param cn The class.
+	 * @param action The action.
+	 */
+	public void forEachAncestor(ClassNode cn, Consumer<ClassNode> action) {
+		anyAncestor(cn, c -> {
+			action.accept(c);
+			return false;
+		});
+	}
+
+	/**
+	 * Tests the class and each of its superclasses and interfaces until one matches, in no particular
+	 * order.
+	 *
+	 * @param cn The class.
+	 * @param predicate The test.
+	 * @return whether any matched.
+	 */
+	public boolean anyAncestor(ClassNode cn, Predicate<ClassNode> predicate) {
+		Integer i = index.get(cn);
+		if (i == null) {
+			return anyAncestorUnindexed(cn, predicate);
+		}
+		for (int j = i; j != -1; j = supers[j]) {
+			if (predicate.test(order[j])) {
+				return true;
+			}
+		}
+		long[] bits = interfaces[i];
+		int self = interfaceIds[i];
+		for (int word = 0; word < bits.length; word++) {
+			for (long w = bits[word]; w != 0; w &= w - 1) {
+				int id = (word << 6) + Long.numberOfTrailingZeros(w);
+				if (id != self && predicate.test(interfacesById[id])) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private boolean anyAncestorUnindexed(ClassNode cn, Predicate<ClassNode> predicate) {
+		if (!tree.containsVertex(cn)) {
+			return false;
+		}
+		Set<ClassNode> visited = new HashSet<>();
+		Deque<ClassNode> stack = new ArrayDeque<>();
+		stack.push(cn);
+		while (!stack.isEmpty()) {
+			ClassNode next = stack.pop();
+			if (index.containsKey(next)) {
+				// its supertypes are all numbered, skip the ones another path went through
+				if (anyAncestor(next, c -> visited.add(c) && predicate.test(c))) {
+					return true;
+				}
+			} else if (visited.add(next)) {
+				if (predicate.test(next)) {
+					return true;
+				}
+				for (InheritanceEdge e : tree.getEdges(next)) {
+					stack.push(e.dst());
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Calls the action for the class and each class that extends or implements it, directly or not,
+	 * in no particular order.
+	 *
+	 * @param cn The class.
+	 * @param action The action.
+	 */
+	public void forEachDescendant(ClassNode cn, Consumer<ClassNode> action) {
+		anyDescendant(cn, c -> {
+			action.accept(c);
+			return false;
+		});
+	}
+
+	/**
+	 * Tests the class and each class that extends or implements it, directly or not, until one
+	 * matches, in no particular order.
+	 *
+	 * @param cn The class.
+	 * @param predicate The test.
+	 * @return whether any matched.
+	 */
+	public boolean anyDescendant(ClassNode cn, Predicate<ClassNode> predicate) {
+		Integer i = index.get(cn);
+		if (i == null) {
+			if (!tree.containsVertex(cn)) {
+				return false;
+			}
+			for (ClassNode c : added) {
+				if (isSubtypeUnindexed(c, cn) && predicate.test(c)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		int id = interfaceIds[i];
+		if (id == -1) {
+			if (anyInRange(i, ends[i], predicate)) {
+				return true;
+			}
+		} else {
+			int[] ranges = implementors[id];
+			for (int r = 0; r < ranges.length; r += 2) {
+				if (anyInRange(ranges[r], ranges[r + 1], predicate)) {
+					return true;
+				}
+			}
+		}
+		for (ClassNode c : added) {
+			if (isSubtype(c, cn) && predicate.test(c)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean anyInRange(int start, int end, Predicate<ClassNode> predicate) {
+		for (int j = start; j <= end; j++) {
+			if (predicate.test(order[j])) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,137 @@
+package org.mapleir.app.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import org.mapleir.asm.ClassNode;
+
+import static org.mapleir.app.service.TestClasses.klass;
+
+public class ClassSourceConcurrencyTest extends TestCase {
+
+	private static final int THREADS = 8;
+	private static final int CHAIN = 20;
+
+	/* none of these are loaded before the lookups start. */
+	private static final String[] RUNTIME = {
+			"java/util/ArrayList", "java/util/LinkedList", "java/util/AbstractList", "java/util/HashMap",
+			"java/util/TreeMap", "java/util/concurrent/ConcurrentSkipListMap", "java/util/ArrayDeque",
+			"java/lang/StringBuilder", "java/lang/Integer", "java/io/BufferedReader"
+	};
+
+	private ApplicationClassSource app;
+
+	/* A0 <- A1 <- ... <- A19, with every third class implementing a runtime interface. */
+	@Override
+	protected void setUp() {
+		List<ClassNode> classes = new ArrayList<>();
+		for (int i = 0; i < CHAIN; i++) {
+			String sup = i == 0 ? "java/lang/Object" : "test/A" + (i - 1);
+			classes.add(i % 3 == 0 ? klass("test/A" + i, sup, "java/lang/Runnable") : klass("test/A" + i, sup));
+		}
+		classes.add(klass("test/B", "java/util/AbstractList"));
+		app = new ApplicationClassSource("test", classes);
+		app.addLibraries(new InstalledRuntimeClassSource(app));
+		app.freeze();
+	}
+
+	public void testFrozen() {
+		assertTrue(app.isFrozen());
+		assertTrue(app.getClassTree().isFrozen());
+		try {
+			app.addLibraries(new InstalledRuntimeClassSource(app));
+			fail();
+		} catch (IllegalStateException e) {
+		}
+		try {
+			app.getClassTree().removeVertex(app.findClassNode("test/A1"));
+			fail();
+		} catch (IllegalStateException e) {
+		}
+		assertNotNull(app.findClassNode("test/A1"));
+	}
+
+	public void testEdgesOfMissingClasses() {
+		ClassTree tree = app.getClassTree();
+		assertTrue(tree.getEdges(null).isEmpty());
+		assertTrue(tree.getReverseEdges(null).isEmpty());
+		assertTrue(tree.getParents(null).isEmpty());
+
+		/* its super class can't be found, so it can't be added. */
+		ClassNode orphan = klass("test/Orphan", "test/Missing");
+		assertTrue(tree.getEdges(orphan).isEmpty());
+		assertTrue(tree.getReverseEdges(orphan).isEmpty());
+		assertFalse(tree.containsVertex(orphan));
+
+		/* but one that can is added on the way. */
+		ClassNode late = klass("test/Late", "test/A0");
+		assertEquals(1, tree.getEdges(late).size());
+		assertTrue(tree.containsVertex(late));
+	}
+
+	public void testParallelLookups() throws Exception {
+		List<String> names = new ArrayList<>();
+		for (int i = 0; i < CHAIN; i++) {
+			names.add("test/A" + i);
+		}
+		names.add("test/B");
+		Collections.addAll(names, RUNTIME);
+		names.add("test/Missing");
+
+		Map<String, ClassNode> seen = new ConcurrentHashMap<>();
+		ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int t = 0; t < THREADS; t++) {
+				long seed = t;
+				futures.add(pool.submit(() -> {
+					List<String> order = new ArrayList<>(names);
+					Collections.shuffle(order, new Random(seed));
+					ClassTree tree = app.getClassTree();
+					for (String name : order) {
+						ClassNode cn = app.findClassNode(name);
+						if (name.equals("test/Missing")) {
+							assertNull(cn);
+							assertFalse(app.isLibraryClass(name));
+							continue;
+						}
+						assertNotNull(name, cn);
+						ClassNode prev = seen.putIfAbsent(name, cn);
+						assertTrue(name, prev == null || prev == cn);
+						assertEquals(name, !name.startsWith("test/"), app.isLibraryClass(name));
+
+						List<ClassNode> parents = tree.getAllParents(cn);
+						assertTrue(name, parents.contains(tree.getRootNode()));
+						assertEquals("java/lang/Object", tree.getCommonSuperClass(name, "java/lang/Object"));
+					}
+					return null;
+				}));
+			}
+			for (Future<?> f : futures) {
+				f.get();
+			}
+		} finally {
+			pool.shutdown();
+			pool.awaitTermination(1, TimeUnit.MINUTES);
+		}
+
+		ClassTree tree = app.getClassTree();
+		assertEquals("test/A3", tree.getCommonSuperClass("test/A3", "test/A17"));
+		assertEquals("java/util/AbstractList", tree.getCommonSuperClass("test/B", "java/util/ArrayList"));
+		assertEquals("java/lang/Object", tree.getCommonSuperClass("test/A5", "java/util/HashMap"));
+		// the chain itself, Object and Runnable
+		assertEquals(CHAIN + 2, tree.getAllParents(seen.get("test/A" + (CHAIN - 1))).size());
+		for (String name : RUNTIME) {
+			assertTrue(name, tree.containsVertex(seen.get(name)));
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package org.mapleir.app.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import org.mapleir.asm.ClassNode;
+
+import static org.mapleir.app.service.TestClasses.klass;
+import static org.mapleir.app.service.TestClasses.iface;
+
+public class CommonSuperClassTableTest extends TestCase {
+
+	private ApplicationClassSource app;
+	private ClassTree tree;
+
+	/* B and C extend A, E extends D and I is an interface B implements. */
+	@Override
+	protected void setUp() {
+		List<ClassNode> classes = new ArrayList<>();
+		classes.add(iface("test/I"));
+		classes.add(klass("test/A", "java/lang/Object"));
+		classes.add(klass("test/B", "test/A", "test/I"));
+		classes.add(klass("test/C", "test/A"));
+		classes.add(klass("test/D", "java/lang/Object"));
+		classes.add(klass("test/E", "test/D"));
+		app = new ApplicationClassSource("test", classes);
+		app.addLibraries(new InstalledRuntimeClassSource(app));
+		tree = app.getClassTree();
+	}
+
+	public void testCommonSuperClass() {
+		assertEquals("test/A", tree.getCommonSuperClass("test/B", "test/C"));
+		assertEquals("test/A", tree.getCommonSuperClass("test/C", "test/B"));
+		assertEquals("test/A", tree.getCommonSuperClass("test/B", "test/A"));
+		assertEquals("java/lang/Object", tree.getCommonSuperClass("test/B", "test/E"));
+		assertEquals("java/lang/Object", tree.getCommonSuperClass("test/B", "test/I"));
+		assertEquals("java/lang/Object", tree.getCommonSuperClass("test/B", "test/Missing"));
+		/* loaded after the table was built. */
+		assertEquals("java/util/AbstractList", tree.getCommonSuperClass("java/util/ArrayList", "java/util/AbstractSequentialList"));
+	}
+
+	public void testReplace() {
+		CommonSuperClassTable table = tree.getCommonSuperClassTable();
+		assertEquals("test/A", tree.getCommonSuperClass("test/B", "test/C"));
+
+		/* C is swapped for a copy named X, as a renamer that makes new nodes would. */
+		ClassNode c = app.findClassNode("test/C");
+		ClassNode x = klass("test/X", "test/A");
+		app.nodeMap.remove("test/C");
+		app.nodeMap.put("test/X", x);
+		tree.replace(c, x);
+		app.rebuildTable();
+
+		assertNotSame(table, tree.getCommonSuperClassTable());
+		assertEquals("java/lang/Object", tree.getCommonSuperClass("test/B", "test/C"));
+		assertEquals("test/A", tree.getCommonSuperClass("test/B", "test/X"));
+	}
+
+	public void testReplaceWithoutRename() {
+		CommonSuperClassTable table = tree.getCommonSuperClassTable();
+		ClassNode c = app.findClassNode("test/C");
+		tree.replace(c, klass("test/C", "test/A"));
+		assertNotSame(table, tree.getCommonSuperClassTable());
+	}
+
+	public void testRemove() {
+		CommonSuperClassTable table = tree.getCommonSuperClassTable();
+		tree.removeVertex(app.findClassNode("test/C"));
+		assertNotSame(table, tree.getCommonSuperClassTable());
+	}
+
+	public void testRenameInPlace() {
+		assertEquals("test/A", tree.getCommonSuperClass("test/B", "test/C"));
+		assertEquals("java/lang/Object", tree.getCommonSuperClass("test/B", "test/E"));
+
+		/* C and E swap names. */
+		ClassNode c = app.findClassNode("test/C"), e = app.findClassNode("test/E");
+		c.node.name = "test/E";
+		e.node.name = "test/C";
+		app.rebuildTable();
+
+		assertEquals("java/lang/Object", tree.getCommonSuperClass("test/B", "test/C"));
+		assertEquals("test/A", tree.getCommonSuperClass("test/B", "test/E"));
+	}
+}
@@ -0,0 +1,140 @@
+package org.mapleir.app.service;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+import junit.framework.TestCase;
+import org.mapleir.asm.ClassNode;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.FieldNode;
+import org.topdank.byteengineer.commons.data.JarInfo;
+import org.topdank.byteengineer.commons.data.RawZipEntry;
+import org.topdank.byteio.in.RawZipReader;
+import org.topdank.byteio.in.SingleJarDownloader;
+
+public class CompleteResolvingJarDumperTest extends TestCase {
+
+	private File in;
+	private File out;
+	private SingleJarDownloader<ClassNode> dl;
+	private ApplicationClassSource app;
+
+	private static byte[] klass(String name) {
+		ClassWriter cw = new ClassWriter(0);
+		cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, name, null, "java/lang/Object", null);
+		cw.visitField(Opcodes.ACC_PUBLIC, "f", "I", null, null).visitEnd();
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	private static void store(JarOutputStream jos, String name, byte[] data) throws IOException {
+		JarEntry e = new JarEntry(name);
+		e.setMethod(ZipEntry.STORED);
+		e.setSize(data.length);
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		e.setCrc(crc.getValue());
+		jos.putNextEntry(e);
+		jos.write(data);
+	}
+
+	@Override
+	protected void setUp() throws IOException {
+		in = File.createTempFile("dumper-in", ".jar");
+		out = File.createTempFile("dumper-out", ".jar");
+		/* stored, where the dumper would compress, so a raw copy can be told from a rewrite. */
+		try (JarOutputStream jos = new JarOutputStream(new FileOutputStream(in))) {
+			for (String name : new String[] { "test/A", "test/B" }) {
+				store(jos, name + ".class", klass(name));
+			}
+			store(jos, "kept.txt", "kept".getBytes(StandardCharsets.UTF_8));
+			store(jos, "dropped.txt", "dropped".getBytes(StandardCharsets.UTF_8));
+		}
+
+		dl = new SingleJarDownloader<>(new JarInfo(in));
+		dl.download();
+		app = new ApplicationClassSource("test", dl.getJarContents().getClassContents());
+		app.addLibraries(new InstalledRuntimeClassSource(app));
+	}
+
+	@Override
+	protected void tearDown() {
+		in.delete();
+		out.delete();
+	}
+
+	private static void assertCopied(RawZipReader original, RawZipReader dumped, String name) throws IOException {
+		RawZipEntry e = dumped.read(name);
+		assertEquals(name, ZipEntry.STORED, e.getMethod());
+		assertTrue(name, Arrays.equals(original.read(name).getData(), e.getData()));
+	}
+
+	public void testUnmodifiedClassesAreCopied() throws IOException {
+		app.findClassNode("test/B").node.fields.add(new FieldNode(Opcodes.ACC_PUBLIC, "g", "J", null, null));
+		List<String> classes = new ArrayList<>();
+		List<String> resources = new ArrayList<>();
+		new CompleteResolvingJarDumper(dl.getJarContents(), app, cn -> cn.getName().equals("test/B")) {
+			@Override
+			public int dumpClass(JarOutputStream out, String name, ClassNode cn) throws IOException {
+				synchronized (classes) {
+					classes.add(name);
+				}
+				return super.dumpClass(out, name, cn);
+			}
+
+			@Override
+			public int dumpResource(JarOutputStream out, String name, byte[] file) throws IOException {
+				resources.add(name);
+				return name.equals("dropped.txt") ? 0 : super.dumpResource(out, name, file);
+			}
+		}.dump(out);
+
+		try (RawZipReader original = new RawZipReader(in); RawZipReader dumped = new RawZipReader(out)) {
+			assertCopied(original, dumped, "test/A.class");
+			assertCopied(original, dumped, "kept.txt");
+			assertEquals(ZipEntry.DEFLATED, dumped.getEntry("test/B.class").getMethod());
+			assertNull(dumped.getEntry("dropped.txt"));
+
+			org.objectweb.asm.tree.ClassNode b = new org.objectweb.asm.tree.ClassNode();
+			new ClassReader(dumped.inflate("test/B.class")).accept(b, 0);
+			assertEquals(2, b.fields.size());
+			assertEquals("g", b.fields.get(1).name);
+		}
+		assertEquals(Arrays.asList("test/B"), classes);
+		assertTrue(resources.contains("kept.txt"));
+		assertTrue(resources.contains("dropped.txt"));
+	}
+
+	public void testEveryClassIsWrittenByDefault() throws IOException {
+		List<String> classes = new ArrayList<>();
+		new CompleteResolvingJarDumper(dl.getJarContents(), app) {
+			@Override
+			public int dumpClass(JarOutputStream out, String name, ClassNode cn) throws IOException {
+				synchronized (classes) {
+					classes.add(name);
+				}
+				return super.dumpClass(out, name, cn);
+			}
+		}.dump(out);
+
+		assertEquals(2, classes.size());
+		assertTrue(classes.contains("test/A"));
+		try (RawZipReader original = new RawZipReader(in); RawZipReader dumped = new RawZipReader(out)) {
+			for (String name : new String[] { "test/A.class", "test/B.class" }) {
+				/* written the same as they were read, so still copied. */
+				assertCopied(original, dumped, name);
+			}
+		}
+	}
+}
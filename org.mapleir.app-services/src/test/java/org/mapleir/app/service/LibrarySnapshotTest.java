@@ -0,0 +1,178 @@
+package org.mapleir.app.service;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import junit.framework.TestCase;
+import org.mapleir.app.service.LibrarySnapshot.SuperTypes;
+import org.mapleir.app.service.LibrarySnapshot.VTableEntry;
+import org.mapleir.asm.ClassNode;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+import static org.mapleir.app.service.TestClasses.klass;
+import static org.mapleir.app.service.TestClasses.iface;
+
+public class LibrarySnapshotTest extends TestCase {
+
+	private static final byte[] HASH = new byte[32];
+	private static final byte[] OTHER_HASH = new byte[32];
+
+	static {
+		HASH[0] = 1;
+		OTHER_HASH[0] = 2;
+	}
+
+	private File dir;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = File.createTempFile("snapshot", "");
+		dir.delete();
+		dir.mkdir();
+	}
+
+	@Override
+	protected void tearDown() {
+		delete(dir);
+	}
+
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File c : children) {
+				delete(c);
+			}
+		}
+		f.delete();
+	}
+
+	/* B extends A and implements I, with a vtable that has a miranda. */
+	private static LibrarySnapshot snapshot() {
+		LibrarySnapshot snapshot = new LibrarySnapshot(HASH);
+		snapshot.putSuperTypes("test/I", new SuperTypes(Opcodes.ACC_INTERFACE | Opcodes.ACC_ABSTRACT, "java/lang/Object", new String[0]));
+		snapshot.putSuperTypes("test/A", new SuperTypes(Opcodes.ACC_PUBLIC, "java/lang/Object", new String[0]));
+		snapshot.putSuperTypes("test/B", new SuperTypes(Opcodes.ACC_PUBLIC, "test/A", new String[] { "test/I" }));
+		snapshot.putVTable("test/B", new VTableEntry[] {
+				new VTableEntry("f", "()V", "test/A", false, null),
+				new VTableEntry("g", "()V", "test/I", true, new String[] { "java/io/IOException" }) });
+		return snapshot;
+	}
+
+	public void testRoundTrip() throws IOException {
+		File file = new File(dir, "lib.snapshot");
+		snapshot().write(file);
+		assertFalse(new File(dir, "lib.snapshot.tmp").exists());
+
+		LibrarySnapshot read = LibrarySnapshot.read(file, HASH);
+		assertNotNull(read);
+		assertTrue(read.hasHierarchy());
+		SuperTypes b = read.getSuperTypes("test/B");
+		assertEquals(Opcodes.ACC_PUBLIC, b.access);
+		assertEquals("test/A", b.superName);
+		assertEquals(Collections.singletonList("test/I"), Arrays.asList(b.interfaces));
+		assertEquals(0, read.getSuperTypes("test/A").interfaces.length);
+		assertTrue((read.getSuperTypes("test/I").access & Opcodes.ACC_INTERFACE) != 0);
+		assertNull(read.getSuperTypes("test/C"));
+
+		assertTrue(read.hasVTables());
+		VTableEntry[] vtable = read.getVTable("test/B");
+		assertEquals(2, vtable.length);
+		assertEquals("test/A.f()V", vtable[0].toString());
+		assertFalse(vtable[0].isAbstract);
+		assertFalse(vtable[0].isMiranda());
+		assertEquals("test/I.g()V", vtable[1].toString());
+		assertTrue(vtable[1].isAbstract);
+		assertEquals(Collections.singletonList("java/io/IOException"), Arrays.asList(vtable[1].mirandaExceptions));
+		assertNull(read.getVTable("test/A"));
+	}
+
+	public void testOtherJarHash() throws IOException {
+		File file = new File(dir, "lib.snapshot");
+		snapshot().write(file);
+		assertNull(LibrarySnapshot.read(file, OTHER_HASH));
+	}
+
+	public void testOtherVersion() throws IOException {
+		File file = new File(dir, "lib.snapshot");
+		snapshot().write(file);
+		/* the version follows the magic. */
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(4);
+			int version = raf.readInt();
+			raf.seek(4);
+			raf.writeInt(version - 1);
+		}
+		assertNull(LibrarySnapshot.read(file, HASH));
+	}
+
+	public void testTruncated() throws IOException {
+		File file = new File(dir, "lib.snapshot");
+		snapshot().write(file);
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(raf.length() - 4);
+		}
+		assertNull(LibrarySnapshot.read(file, HASH));
+		assertNull(LibrarySnapshot.read(new File(dir, "missing.snapshot"), HASH));
+	}
+
+	public void testFailedWriteRemovesTempFile() throws IOException {
+		/* a directory with something in it can't be replaced by the move. */
+		File file = new File(dir, "lib.snapshot");
+		file.mkdir();
+		new File(file, "child").createNewFile();
+		try {
+			snapshot().write(file);
+			fail();
+		} catch (IOException e) {
+			assertFalse(new File(dir, "lib.snapshot.tmp").exists());
+		}
+	}
+
+	private static void store(JarOutputStream jos, ClassNode cn) throws IOException {
+		ClassWriter cw = new ClassWriter(0);
+		cn.node.accept(cw);
+		jos.putNextEntry(new JarEntry(cn.getName() + ".class"));
+		jos.write(cw.toByteArray());
+	}
+
+	public void testLibraryHierarchy() throws IOException {
+		File jar = new File(dir, "lib.jar");
+		try (JarOutputStream jos = new JarOutputStream(new FileOutputStream(jar))) {
+			store(jos, iface("test/I"));
+			store(jos, klass("test/A", "java/lang/Object"));
+			store(jos, klass("test/B", "test/A", "test/I"));
+		}
+		File snapshots = new File(dir, "snapshots");
+		ApplicationClassSource app = new ApplicationClassSource("test", Collections.emptyList());
+
+		try (IndexedLibraryClassSource lib = IndexedLibraryClassSource.open(app, jar, snapshots)) {
+			assertFalse(lib.getSnapshot().hasHierarchy());
+			/* read from the class file before there's a snapshot. */
+			assertEquals("test/A", lib.getSuperTypes("test/B").superName);
+			lib.saveSnapshot();
+		}
+
+		try (IndexedLibraryClassSource lib = IndexedLibraryClassSource.open(app, jar, snapshots)) {
+			LibrarySnapshot snapshot = lib.getSnapshot();
+			assertTrue(snapshot.hasHierarchy());
+			assertEquals(3, lib.getClassNames().size());
+			for (String name : lib.getClassNames()) {
+				assertNotNull(name, snapshot.getSuperTypes(name));
+			}
+			SuperTypes b = lib.getSuperTypes("test/B");
+			assertEquals("test/A", b.superName);
+			assertEquals(Collections.singletonList("test/I"), Arrays.asList(b.interfaces));
+			assertTrue((lib.getSuperTypes("test/I").access & Opcodes.ACC_INTERFACE) != 0);
+			assertNull(lib.getSuperTypes("test/Missing"));
+			/* none of it needed the classes to be loaded. */
+			assertTrue(lib.nodeMap.isEmpty());
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package org.mapleir.app.service;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import org.mapleir.asm.ClassNode;
+
+import static org.mapleir.app.service.TestClasses.klass;
+import static org.mapleir.app.service.TestClasses.iface;
+
+public class SubtypeIndexTest extends TestCase {
+
+	private ApplicationClassSource app;
+	private ClassTree tree;
+
+	@Override
+	protected void setUp() {
+		List<ClassNode> classes = new ArrayList<>();
+		classes.add(iface("test/I"));
+		classes.add(iface("test/J", "test/I"));
+		classes.add(iface("test/K"));
+		classes.add(iface("test/L", "test/J", "test/K"));
+		classes.add(klass("test/A", "java/lang/Object"));
+		classes.add(klass("test/B", "test/A", "test/J"));
+		classes.add(klass("test/C", "test/B"));
+		classes.add(klass("test/D", "test/C", "test/K", "java/lang/Runnable"));
+		classes.add(klass("test/E", "test/A", "test/L"));
+		classes.add(klass("test/F", "java/lang/Object", "test/I"));
+		classes.add(klass("test/G", "java/util/AbstractList", "test/K"));
+		app = new ApplicationClassSource("test", classes);
+		app.addLibraries(new InstalledRuntimeClassSource(app));
+		tree = app.getClassTree();
+	}
+
+	private void assertMatchesSearch() {
+		SubtypeIndex index = tree.getSubtypeIndex();
+		for (ClassNode a : tree.vertices()) {
+			Set<ClassNode> parents = new HashSet<>(tree.getAllParents(a));
+			Set<ClassNode> children = new HashSet<>(tree.getAllChildren(a));
+			for (ClassNode b : tree.vertices()) {
+				assertEquals(a + " <: " + b, parents.contains(b), index.isSubtype(a, b));
+			}
+
+			Set<ClassNode> ancestors = new HashSet<>();
+			index.forEachAncestor(a, c -> assertTrue(a + " ancestor " + c, ancestors.add(c)));
+			assertEquals(a.toString(), parents, ancestors);
+
+			Set<ClassNode> descendants = new HashSet<>();
+			index.forEachDescendant(a, c -> assertTrue(a + " descendant " + c, descendants.add(c)));
+			assertEquals(a.toString(), children, descendants);
+		}
+	}
+
+	public void testMatchesSearch() {
+		assertMatchesSearch();
+		assertTrue(tree.isSubtype(app.findClassNode("test/E"), app.findClassNode("test/I")));
+		assertTrue(tree.isSubtype(app.findClassNode("test/D"), app.findClassNode("test/I")));
+		assertFalse(tree.isSubtype(app.findClassNode("test/F"), app.findClassNode("test/J")));
+		assertTrue(tree.isSubtype(app.findClassNode("test/K"), tree.getRootNode()));
+		assertFalse(tree.isSubtype(tree.getRootNode(), app.findClassNode("test/K")));
+		assertFalse(tree.isSubtype(null, tree.getRootNode()));
+	}
+
+	public void testLateClasses() {
+		SubtypeIndex index = tree.getSubtypeIndex();
+		// loaded after the index was built
+		ClassNode arrayList = app.findClassNode("java/util/ArrayList");
+		ClassNode linkedList = app.findClassNode("java/util/LinkedList");
+		assertSame(index, tree.getSubtypeIndex());
+
+		ClassNode list = app.findClassNode("java/util/List");
+		assertTrue(tree.isSubtype(arrayList, list));
+		assertTrue(tree.isSubtype(linkedList, app.findClassNode("java/util/AbstractList")));
+		assertFalse(tree.isSubtype(arrayList, linkedList));
+		assertTrue(index.anyDescendant(list, c -> c == linkedList));
+		assertTrue(index.anyAncestor(arrayList, c -> c.getName().equals("java/util/Collection")));
+		assertMatchesSearch();
+	}
+
+	public void testStale() {
+		SubtypeIndex index = tree.getSubtypeIndex();
+		for (int i = 0; i < 100 && !index.isStale(); i++) {
+			assertTrue(tree.addVertex(klass("test/Late" + i, i % 2 == 0 ? "test/C" : "test/F", "test/L")));
+		}
+		assertTrue(index.isStale());
+		assertNotSame(index, tree.getSubtypeIndex());
+		assertFalse(tree.getSubtypeIndex().isStale());
+		assertMatchesSearch();
+	}
+}
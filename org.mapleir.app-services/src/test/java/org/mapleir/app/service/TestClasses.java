@@ -0,0 +1,26 @@
+package org.mapleir.app.service;
+
+import org.mapleir.asm.ClassHelper;
+import org.mapleir.asm.ClassNode;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Empty classes and interfaces shared by the class source and hierarchy tests.
+ */
+public final class TestClasses {
+
+	private TestClasses() {
+	}
+
+	public static ClassNode klass(String name, String superName, String... interfaces) {
+		org.objectweb.asm.tree.ClassNode cn = new org.objectweb.asm.tree.ClassNode();
+		cn.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, name, null, superName, interfaces);
+		return ClassHelper.create(cn);
+	}
+
+	public static ClassNode iface(String name, String... interfaces) {
+		org.objectweb.asm.tree.ClassNode cn = new org.objectweb.asm.tree.ClassNode();
+		cn.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_INTERFACE | Opcodes.ACC_ABSTRACT, name, null, "java/lang/Object", interfaces);
+		return ClassHelper.create(cn);
+	}
+}
@@ -50,6 +50,7 @@ public class BoissinotDestructor {
 	private final BasicBlock entry;
 
 	private final DominanceLivenessAnalyser resolver;
+	private final LivenessQueryService liveness;
 	private final NullPermeableHashMap<Local, LinkedHashSet<Local>> values;
 	private final SimpleDfs<BasicBlock> dom_dfs;
 	private final SSADefUseMap defuse;
@@ -93,6 +94,7 @@ public class BoissinotDestructor {
 		defuse = createDuChains();
 		// this is bad.
 		resolver.setDefuse(defuse);
+		liveness = new LivenessQueryService(resolver);
 
 		computeValueInterference();
 
@@ -632,9 +634,20 @@ public class BoissinotDestructor {
 		if (dominates(a, b))
 			throw new IllegalArgumentException("b should dom a");
 
-		Local tmp = b;
-		while (tmp != null && !intersect(a, tmp)) {
-			tmp = equalAncIn.get(tmp);
+		// the equal ancestors are all asked about at a's def, so ask once for the chain.
+		List<Local> chain = new ArrayList<>();
+		for (Local c = b; c != null; c = equalAncIn.get(c)) {
+			chain.add(c);
+		}
+		BitSet liveOut = liveness.liveOut(defuse.defs.get(a), chain);
+		Local tmp = null;
+		for (int i = 0; i < chain.size(); i++) {
+			Local c = chain.get(i);
+			checkIntersectOrder(a, c);
+			if (liveOut.get(i) || intersectLiveIn(a, c)) {
+				tmp = c;
+				break;
+			}
 		}
 		if (values.getNonNull(a) != values.getNonNull(b)) {
 			// chain_intersect
@@ -647,6 +660,12 @@ public class BoissinotDestructor {
 	}
 
 	private boolean intersect(Local a, Local b) {
+		checkIntersectOrder(a, b);
+		// if it's liveOut it definitely intersects
+		return liveness.isLiveOut(defuse.defs.get(a), b) || intersectLiveIn(a, b);
+	}
+
+	private void checkIntersectOrder(Local a, Local b) {
 		if (a == b) {
 			for (Entry<Local, CongruenceClass> e : congruenceClasses.entrySet()) {
 				System.err.println(e.getKey() + " in " + e.getValue());
@@ -656,13 +675,13 @@ public class BoissinotDestructor {
 		
 		if (dominates(a, b))
 			throw new IllegalArgumentException("b should dom a");
+	}
 
+	// whether a and b intersect, given b isn't live-out at a's def.
+	private boolean intersectLiveIn(Local a, Local b) {
 		BasicBlock defA = defuse.defs.get(a);
-		// if it's liveOut it definitely intersects
-		if (resolver.isLiveOut(defA, b))
-			return true;
 		// defA == defB or liveIn to intersect{
-		if (!resolver.isLiveIn(defA, b) && defA != defuse.defs.get(b))
+		if (defA != defuse.defs.get(b) && !liveness.isLiveIn(defA, b))
 			return false;
 		// ambiguous case. we need to check if use(dom) occurs after def(def), n that case it interferes. otherwise no
 		int domUseIndex = defuse.lastUseIndex.getNonNull(b).getOrDefault(defA, -1);
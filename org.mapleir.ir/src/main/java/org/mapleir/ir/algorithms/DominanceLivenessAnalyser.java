@@ -120,10 +120,10 @@ public class DominanceLivenessAnalyser {
 			return true;
 		}
 
+		GenericBitSet<BasicBlock> uses = defuse.uses.get(l);
 		GenericBitSet<BasicBlock> tqa = tq.get(b).intersect(sdoms.getNonNull(defBlock));
 		for (BasicBlock t : tqa) {
-			GenericBitSet<BasicBlock> rt = rv.get(t).intersect(defuse.uses.get(l));
-			if (!rt.isEmpty())
+			if (rv.get(t).containsAny(uses))
 				return true;
 		}
 
@@ -145,12 +145,11 @@ public class DominanceLivenessAnalyser {
 			GenericBitSet<BasicBlock> tqa = tq.get(q).intersect(sdomdef);
 
 			for (BasicBlock t : tqa) {
-				GenericBitSet<BasicBlock> u = uses.copy();
-				if (t == q && targ)
-					u.remove(q);
+				GenericBitSet<BasicBlock> u = uses;
+				if (t == q && targ && uses.contains(q))
+					u = uses.relativeComplement(q);
 
-				GenericBitSet<BasicBlock> rtt = rv.getNonNull(t).intersect(u);
-				if (!rtt.isEmpty())
+				if (rv.getNonNull(t).containsAny(u))
 					return true;
 			}
 		}
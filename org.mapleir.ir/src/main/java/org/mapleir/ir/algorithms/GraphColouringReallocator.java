@@ -0,0 +1,421 @@
+package org.mapleir.ir.algorithms;
+
+import org.mapleir.flowgraph.edges.FlowEdge;
+import org.mapleir.flowgraph.edges.TryCatchEdge;
+import org.mapleir.ir.cfg.BasicBlock;
+import org.mapleir.ir.cfg.ControlFlowGraph;
+import org.mapleir.ir.code.Expr;
+import org.mapleir.ir.code.Opcode;
+import org.mapleir.ir.code.Stmt;
+import org.mapleir.ir.code.expr.VarExpr;
+import org.mapleir.ir.code.stmt.copy.CopyVarStmt;
+import org.mapleir.ir.locals.Local;
+import org.mapleir.ir.locals.LocalsPool;
+import org.mapleir.stdlib.collections.bitset.GenericBitSet;
+import org.mapleir.stdlib.collections.map.NullPermeableHashMap;
+
+import java.util.*;
+
+/**
+ * Assigns the locals of a graph that has been taken out of SSA to local variable slots, as an
+ * alternative to {@link LocalsReallocator}, which gives every local a slot of its own.
+ * <p>
+ * An interference graph is built from the liveness of the locals, where two locals interfere when
+ * one is defined while the other is live, except that the two sides of a copy don't interfere
+ * through the copy. A value that's live in an exception handler is kept live throughout the blocks
+ * the handler protects, as the handler can be entered from any point in them. The locals on either
+ * side of a copy are then coalesced whenever they don't interfere and have the same size, after
+ * which the copy does nothing and is removed. Finally, the coalesced locals are coloured greedily in
+ * the order of their first definitions, a category 2 local taking up two adjacent slots, with a
+ * local preferring the slot of a local it's copied to or from if that's free.
+ * <p>
+ * Parameters are kept in the slots they're passed in, and a {@link LocalsPool#isReservedRegister(Local)
+ * reserved register} keeps its slot to itself for the whole method.
+ * <p>
+ * The slots and copies that would have been used without colouring and the ones that are used
+ * are totalled over every method reallocated.
+ */
+public class GraphColouringReallocator {
+	private int methods;
+	private long maxLocalsBefore;
+	private long maxLocalsAfter;
+	private long copiesBefore;
+	private long copiesAfter;
+
+	/**
+	 * Reallocates the locals of the given graph.
+	 *
+	 * @param cfg a graph that's been taken out of SSA.
+	 * @return the number of local slots used.
+	 */
+	public int realloc(ControlFlowGraph cfg) {
+		Colouring c = new Colouring(cfg);
+		c.computeLiveness();
+		c.buildInterference();
+		c.coalesce();
+		int maxLocals = c.colour();
+		int copies = c.apply();
+
+		methods++;
+		maxLocalsBefore += c.uncolouredSize;
+		maxLocalsAfter += maxLocals;
+		copiesBefore += c.copies.size();
+		copiesAfter += copies;
+		return maxLocals;
+	}
+
+	public int getMethodCount() {
+		return methods;
+	}
+
+	/**
+	 * @return the total number of slots the methods would have used with a slot per local.
+	 */
+	public long getMaxLocalsBefore() {
+		return maxLocalsBefore;
+	}
+
+	public long getMaxLocalsAfter() {
+		return maxLocalsAfter;
+	}
+
+	/**
+	 * @return the total number of copies between locals left in the methods by SSA destruction.
+	 */
+	public long getCopiesBefore() {
+		return copiesBefore;
+	}
+
+	public long getCopiesAfter() {
+		return copiesAfter;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d methods, max locals %d -> %d, copies %d -> %d", methods, maxLocalsBefore, maxLocalsAfter,
+				copiesBefore, copiesAfter);
+	}
+
+	private static class Colouring {
+		private final ControlFlowGraph cfg;
+		private final LocalsPool pool;
+		private final BasicBlock entry;
+
+		/* locals in the order they're first defined in, and the number of slots they take. */
+		private final Map<Local, Integer> sizes;
+		private final Map<Local, Integer> precoloured;
+		private final Set<Local> reserved;
+		/* (dst, src) pairs. */
+		private final List<Local[]> copies;
+		private int uncolouredSize;
+
+		private final Map<BasicBlock, GenericBitSet<Local>> use;
+		private final Map<BasicBlock, GenericBitSet<Local>> def;
+		private final Map<BasicBlock, GenericBitSet<Local>> in;
+		private final Map<BasicBlock, GenericBitSet<Local>> out;
+
+		private final NullPermeableHashMap<Local, Set<Local>> interference;
+		private final Map<Local, Local> coalesced;
+		private final Map<Local, Integer> colours;
+
+		Colouring(ControlFlowGraph cfg) {
+			this.cfg = cfg;
+			pool = cfg.getLocals();
+			entry = cfg.getEntries().iterator().next();
+			sizes = new LinkedHashMap<>();
+			precoloured = new HashMap<>();
+			reserved = new HashSet<>();
+			copies = new ArrayList<>();
+			use = new HashMap<>();
+			def = new HashMap<>();
+			in = new HashMap<>();
+			out = new HashMap<>();
+			interference = new NullPermeableHashMap<>(HashSet::new);
+			coalesced = new HashMap<>();
+			colours = new HashMap<>();
+
+			List<BasicBlock> order = new ArrayList<>(cfg.verticesInOrder());
+			for (BasicBlock b : cfg.vertices()) {
+				if (!order.contains(b)) {
+					order.add(b);
+				}
+			}
+			for (BasicBlock b : order) {
+				scan(b);
+			}
+			for (Map.Entry<Local, Integer> e : sizes.entrySet()) {
+				uncolouredSize += e.getValue();
+			}
+		}
+
+		private void scan(BasicBlock b) {
+			GenericBitSet<Local> use = pool.createBitSet();
+			GenericBitSet<Local> def = pool.createBitSet();
+			for (Stmt stmt : b) {
+				for (Expr e : stmt.enumerateOnlyChildren()) {
+					if (e.getOpcode() == Opcode.LOCAL_LOAD) {
+						VarExpr v = (VarExpr) e;
+						addLocal(v);
+						if (!def.contains(v.getLocal())) {
+							use.add(v.getLocal());
+						}
+					}
+				}
+				if (stmt.getOpcode() == Opcode.LOCAL_STORE) {
+					CopyVarStmt copy = (CopyVarStmt) stmt;
+					VarExpr v = copy.getVariable();
+					Local l = v.getLocal();
+					addLocal(v);
+					def.add(l);
+					if (copy.isSynthetic()) {
+						if (b == entry) {
+							precoloured.put(l, l.getIndex());
+						}
+					} else if (isCopy(copy)) {
+						copies.add(new Local[] { l, ((VarExpr) copy.getExpression()).getLocal() });
+					}
+				}
+			}
+			this.use.put(b, use);
+			this.def.put(b, def);
+			in.put(b, pool.createBitSet());
+			out.put(b, pool.createBitSet());
+		}
+
+		private void addLocal(VarExpr v) {
+			Local l = v.getLocal();
+			int size = v.getType().getSize();
+			Integer old = sizes.get(l);
+			if (old == null || old < size) {
+				sizes.put(l, size);
+			}
+			if (pool.isReservedRegister(l)) {
+				reserved.add(l);
+				precoloured.put(l, l.getIndex());
+			}
+		}
+
+		private static boolean isCopy(CopyVarStmt copy) {
+			Expr e = copy.getExpression();
+			return e.getOpcode() == Opcode.LOCAL_LOAD && ((VarExpr) e).getLocal() != copy.getVariable().getLocal();
+		}
+
+		private GenericBitSet<Local> handlerLiveIn(BasicBlock b) {
+			GenericBitSet<Local> live = pool.createBitSet();
+			for (FlowEdge<BasicBlock> e : cfg.getEdges(b)) {
+				if (e instanceof TryCatchEdge) {
+					live.addAll(in.get(e.dst()));
+				}
+			}
+			return live;
+		}
+
+		void computeLiveness() {
+			Deque<BasicBlock> worklist = new ArrayDeque<>(cfg.verticesInOrder());
+			Set<BasicBlock> queued = new HashSet<>(worklist);
+			for (BasicBlock b : cfg.vertices()) {
+				if (queued.add(b)) {
+					worklist.add(b);
+				}
+			}
+			// backwards problem, so start from the end of the topological order
+			while (!worklist.isEmpty()) {
+				BasicBlock b = worklist.pollLast();
+				queued.remove(b);
+
+				GenericBitSet<Local> out = this.out.get(b);
+				for (FlowEdge<BasicBlock> e : cfg.getEdges(b)) {
+					out.addAll(in.get(e.dst()));
+				}
+				GenericBitSet<Local> newIn = out.copy();
+				newIn.removeAll(def.get(b));
+				newIn.addAll(use.get(b));
+				// the handler may be entered before any of the block's defs happen
+				newIn.addAll(handlerLiveIn(b));
+
+				if (!newIn.equals(in.get(b))) {
+					in.put(b, newIn);
+					for (FlowEdge<BasicBlock> e : cfg.getReverseEdges(b)) {
+						if (queued.add(e.src())) {
+							worklist.addFirst(e.src());
+						}
+					}
+				}
+			}
+		}
+
+		void buildInterference() {
+			for (BasicBlock b : cfg.vertices()) {
+				GenericBitSet<Local> handlerLive = handlerLiveIn(b);
+				GenericBitSet<Local> live = out.get(b).copy();
+				ListIterator<Stmt> it = b.listIterator(b.size());
+				while (it.hasPrevious()) {
+					Stmt stmt = it.previous();
+					if (stmt.getOpcode() == Opcode.LOCAL_STORE) {
+						CopyVarStmt copy = (CopyVarStmt) stmt;
+						Local l = copy.getVariable().getLocal();
+						Local src = isCopy(copy) ? ((VarExpr) copy.getExpression()).getLocal() : null;
+						for (Local o : live) {
+							if (o != l && o != src) {
+								interfere(l, o);
+							}
+						}
+						live.remove(l);
+					}
+					for (Expr e : stmt.enumerateOnlyChildren()) {
+						if (e.getOpcode() == Opcode.LOCAL_LOAD) {
+							live.add(((VarExpr) e).getLocal());
+						}
+					}
+					live.addAll(handlerLive);
+				}
+			}
+			// nothing is defined before these, so they interfere with each other from the start
+			List<Local> entryLive = new ArrayList<>();
+			for (Local l : in.get(entry)) {
+				entryLive.add(l);
+			}
+			for (int i = 0; i < entryLive.size(); i++) {
+				for (int j = i + 1; j < entryLive.size(); j++) {
+					interfere(entryLive.get(i), entryLive.get(j));
+				}
+			}
+		}
+
+		private void interfere(Local a, Local b) {
+			interference.getNonNull(a).add(b);
+			interference.getNonNull(b).add(a);
+		}
+
+		private Local find(Local l) {
+			Local r = l;
+			while (coalesced.containsKey(r)) {
+				r = coalesced.get(r);
+			}
+			return r;
+		}
+
+		void coalesce() {
+			for (Local[] copy : copies) {
+				Local a = find(copy[0]), b = find(copy[1]);
+				if (a == b || reserved.contains(a) || reserved.contains(b) || !sizes.get(a).equals(sizes.get(b))) {
+					continue;
+				}
+				if (precoloured.containsKey(a) && precoloured.containsKey(b)) {
+					continue;
+				}
+				Set<Local> aAdj = interference.getNonNull(a);
+				if (aAdj.contains(b)) {
+					continue;
+				}
+				// keep the precoloured one as the representative
+				if (precoloured.containsKey(b)) {
+					Local t = a;
+					a = b;
+					b = t;
+					aAdj = interference.getNonNull(a);
+				}
+				coalesced.put(b, a);
+				for (Local n : interference.getNonNull(b)) {
+					Set<Local> nAdj = interference.getNonNull(n);
+					nAdj.remove(b);
+					nAdj.add(a);
+					aAdj.add(n);
+				}
+				interference.remove(b);
+			}
+		}
+
+		int colour() {
+			List<Local> order = new ArrayList<>();
+			for (Local l : sizes.keySet()) {
+				if (find(l) == l) {
+					order.add(l);
+				}
+			}
+			order.sort(Comparator.comparing(l -> !precoloured.containsKey(l)));
+
+			NullPermeableHashMap<Local, Set<Local>> partners = new NullPermeableHashMap<>(LinkedHashSet::new);
+			for (Local[] copy : copies) {
+				Local a = find(copy[0]), b = find(copy[1]);
+				if (a != b) {
+					partners.getNonNull(a).add(b);
+					partners.getNonNull(b).add(a);
+				}
+			}
+
+			BitSet reservedSlots = new BitSet();
+			for (Local l : reserved) {
+				reservedSlots.set(l.getIndex(), l.getIndex() + sizes.get(l));
+			}
+
+			int maxLocals = 0;
+			for (Local l : order) {
+				int size = sizes.get(l);
+				int slot;
+				if (precoloured.containsKey(l)) {
+					slot = precoloured.get(l);
+				} else {
+					BitSet taken = (BitSet) reservedSlots.clone();
+					for (Local n : interference.getNonNull(l)) {
+						Integer c = colours.get(n);
+						if (c != null) {
+							taken.set(c, c + sizes.get(n));
+						}
+					}
+					slot = -1;
+					for (Local p : partners.getNonNull(l)) {
+						Integer c = colours.get(p);
+						if (c != null && fits(taken, c, size)) {
+							slot = c;
+							break;
+						}
+					}
+					if (slot == -1) {
+						slot = taken.nextClearBit(0);
+						while (!fits(taken, slot, size)) {
+							slot = taken.nextClearBit(slot + 1);
+						}
+					}
+				}
+				colours.put(l, slot);
+				maxLocals = Math.max(maxLocals, slot + size);
+			}
+			return maxLocals;
+		}
+
+		private static boolean fits(BitSet taken, int slot, int size) {
+			return taken.nextSetBit(slot) == -1 || taken.nextSetBit(slot) >= slot + size;
+		}
+
+		/* rewrites the locals to their slots and drops the copies that became no-ops, returning the
+		 * number of copies that are left. */
+		int apply() {
+			Map<Local, Local> remap = new HashMap<>();
+			for (Local l : sizes.keySet()) {
+				remap.put(l, pool.get(colours.get(find(l)), false));
+			}
+			LocalsReallocator.remap(cfg, remap);
+
+			int left = 0;
+			for (BasicBlock b : cfg.vertices()) {
+				for (Iterator<Stmt> it = b.iterator(); it.hasNext();) {
+					Stmt stmt = it.next();
+					if (stmt.getOpcode() == Opcode.LOCAL_STORE) {
+						CopyVarStmt copy = (CopyVarStmt) stmt;
+						Expr e = copy.getExpression();
+						if (copy.isSynthetic() || e.getOpcode() != Opcode.LOCAL_LOAD) {
+							continue;
+						}
+						if (((VarExpr) e).getLocal() == copy.getVariable().getLocal()) {
+							it.remove();
+						} else {
+							left++;
+						}
+					}
+				}
+			}
+			return left;
+		}
+	}
+}
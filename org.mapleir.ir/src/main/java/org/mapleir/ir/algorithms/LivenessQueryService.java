@@ -0,0 +1,190 @@
+package org.mapleir.ir.algorithms;
+
+import org.mapleir.ir.cfg.BasicBlock;
+import org.mapleir.ir.locals.Local;
+import org.mapleir.ir.locals.impl.VersionedLocal;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Answers live-in/live-out queries for an SSA-form graph through a {@link DominanceLivenessAnalyser},
+ * remembering the answers for the (value, block) pairs that have been queried. Coalescing asks the
+ * same questions for the same pairs many times over while walking congruence classes, and the def-use
+ * information doesn't change until the locals are remapped, so the answers can be reused for as long
+ * as this service is.
+ * <p>
+ * Several values can be asked about at one block at once, e.g. the chain of equal ancestors of a
+ * value in its congruence class.
+ * <p>
+ * The answers are kept in an open addressing table keyed by the local's index, subscript and kind
+ * and the block's id, so that a query doesn't allocate. The table is bounded and is emptied when it
+ * fills up. Query volume and how well the table does are tracked in counters which can be read with
+ * {@link #getQueryCount()}, {@link #getHitCount()} and {@link #getClearCount()}.
+ */
+public class LivenessQueryService {
+
+	public static final int DEFAULT_CAPACITY = 1 << 16;
+
+	/* answer bits per pair, each query fills in its half lazily. an empty slot has no bits set. */
+	private static final byte IN_KNOWN = 0x1, IN = 0x2, OUT_KNOWN = 0x4, OUT = 0x8;
+
+	private final DominanceLivenessAnalyser resolver;
+	private final int capacity;
+
+	private long[] locals;
+	private int[] blocks;
+	private byte[] states;
+	private int size;
+	private long queries;
+	private long hits;
+	private long clears;
+
+	public LivenessQueryService(DominanceLivenessAnalyser resolver) {
+		this(resolver, DEFAULT_CAPACITY);
+	}
+
+	public LivenessQueryService(DominanceLivenessAnalyser resolver, int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException(String.valueOf(capacity));
+		}
+		this.resolver = resolver;
+		this.capacity = capacity;
+		allocate(16);
+	}
+
+	public boolean isLiveIn(BasicBlock b, Local l) {
+		return query(b, l, IN_KNOWN, IN);
+	}
+
+	public boolean isLiveOut(BasicBlock b, Local l) {
+		return query(b, l, OUT_KNOWN, OUT);
+	}
+
+	/**
+	 * @return the positions in the list of the values that are live-in at the block.
+	 */
+	public BitSet liveIn(BasicBlock b, List<? extends Local> values) {
+		return query(b, values, IN_KNOWN, IN);
+	}
+
+	/**
+	 * @return the positions in the list of the values that are live-out at the block.
+	 */
+	public BitSet liveOut(BasicBlock b, List<? extends Local> values) {
+		return query(b, values, OUT_KNOWN, OUT);
+	}
+
+	private BitSet query(BasicBlock b, List<? extends Local> values, byte known, byte live) {
+		BitSet res = new BitSet(values.size());
+		for (int i = 0; i < values.size(); i++) {
+			if (query(b, values.get(i), known, live)) {
+				res.set(i);
+			}
+		}
+		return res;
+	}
+
+	private boolean query(BasicBlock b, Local l, byte known, byte live) {
+		queries++;
+		long local = key(l);
+		int block = b.getNumericId();
+		int slot = find(local, block);
+		byte state = states[slot];
+		if ((state & known) != 0) {
+			hits++;
+			return (state & live) != 0;
+		}
+
+		boolean res = known == IN_KNOWN ? resolver.isLiveIn(b, l) : resolver.isLiveOut(b, l);
+		byte newState = (byte) (state | known | (res ? live : 0));
+		if (state == 0) {
+			if (size == capacity) {
+				invalidate();
+				clears++;
+			} else if ((size + 1) * 2 > states.length) {
+				allocate(states.length * 2);
+			}
+			slot = find(local, block);
+			locals[slot] = local;
+			blocks[slot] = block;
+			size++;
+		}
+		states[slot] = newState;
+		return res;
+	}
+
+	/* the slot holding the pair, or the empty slot it would go in. */
+	private int find(long local, int block) {
+		int mask = states.length - 1;
+		int h = (int) (local ^ (local >>> 32)) * 31 + block;
+		int slot = (h ^ (h >>> 16)) & mask;
+		while (states[slot] != 0 && (locals[slot] != local || blocks[slot] != block)) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void allocate(int length) {
+		long[] oldLocals = locals;
+		int[] oldBlocks = blocks;
+		byte[] oldStates = states;
+		locals = new long[length];
+		blocks = new int[length];
+		states = new byte[length];
+		if (oldStates != null) {
+			for (int i = 0; i < oldStates.length; i++) {
+				if (oldStates[i] != 0) {
+					int slot = find(oldLocals[i], oldBlocks[i]);
+					locals[slot] = oldLocals[i];
+					blocks[slot] = oldBlocks[i];
+					states[slot] = oldStates[i];
+				}
+			}
+		}
+	}
+
+	/* the subscript (0 for an unversioned local) in the high word, the index and kind in the low. */
+	private static long key(Local l) {
+		long version = l instanceof VersionedLocal ? ((VersionedLocal) l).getSubscript() + 1L : 0L;
+		return version << 32 | (long) l.getIndex() << 1 | (l.isStack() ? 1 : 0);
+	}
+
+	/**
+	 * Drops all remembered answers, for when the def-use information the resolver works from has
+	 * changed.
+	 */
+	public void invalidate() {
+		Arrays.fill(states, (byte) 0);
+		size = 0;
+	}
+
+	public DominanceLivenessAnalyser getResolver() {
+		return resolver;
+	}
+
+	public long getQueryCount() {
+		return queries;
+	}
+
+	public long getHitCount() {
+		return hits;
+	}
+
+	public long getMissCount() {
+		return queries - hits;
+	}
+
+	/**
+	 * @return how many times the table filled up and was emptied.
+	 */
+	public long getClearCount() {
+		return clears;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("queries=%d, hits=%d, misses=%d, clears=%d", queries, hits, getMissCount(), clears);
+	}
+}
@@ -0,0 +1,344 @@
+package org.mapleir.ir.algorithms;
+
+import java.util.*;
+
+import org.mapleir.flowgraph.edges.FlowEdge;
+import org.mapleir.ir.cfg.BasicBlock;
+import org.mapleir.ir.cfg.ControlFlowGraph;
+import org.mapleir.ir.code.Expr;
+import org.mapleir.ir.code.Opcode;
+import org.mapleir.ir.code.Stmt;
+import org.mapleir.ir.code.expr.VarExpr;
+import org.mapleir.ir.code.stmt.copy.CopyPhiStmt;
+import org.mapleir.ir.code.stmt.copy.CopyVarStmt;
+import org.mapleir.ir.locals.Local;
+import org.mapleir.ir.locals.LocalsPool;
+import org.mapleir.stdlib.collections.bitset.GenericBitSet;
+
+/**
+ * Non-iterative liveness analysis using the loop-nesting forest, as described by Boissinot et al. in
+ * "Computing Liveness Sets for SSA-Form Programs" (2008).
+ * <p>
+ * The first pass computes partial liveness with a single post-order traversal of the graph with the
+ * loop back edges removed. The second pass then makes every value that is live-in at a loop header
+ * live throughout the loop body, visiting outer loops before the loops nested inside them. For strict
+ * SSA on a reducible graph these two passes give exact liveness.
+ * <p>
+ * The loop propagation step is only valid for a value that isn't redefined inside the loop, which
+ * always holds in SSA form but not for the locals of a graph which is yet to be renamed. Loops where
+ * such a local was held back, and loops with more than one entry, are finished off with a worklist
+ * over the whole graph that is seeded with the (already mostly complete) results of the two passes,
+ * so the analyser is also exact for non-SSA and irreducible graphs.
+ * {@link org.mapleir.ir.cfg.builder.SSAGenPass} runs it before the locals are renamed, so there any
+ * loop that redefines a local goes through the worklist.
+ * <p>
+ * On non-SSA graphs it gives the same sets as {@link SSABlockLivenessAnalyser}. On SSA graphs they
+ * differ where a block has a phi and is also its own successor: a phi result that is used after
+ * the loop is live-out of that block here, whereas {@link SSABlockLivenessAnalyser} drops it, as it
+ * takes the phi definitions of the successors away from the union of all their live-in sets rather
+ * than per edge.
+ */
+public class LoopNestingLivenessAnalyser implements Liveness<BasicBlock> {
+
+	private final ControlFlowGraph cfg;
+	private final LocalsPool locals;
+
+	/* dense per block state, indexed by post order index. */
+	private final List<BasicBlock> postOrder;
+	private final Map<BasicBlock, Integer> index;
+	private final int[] pre;
+	private final int[] last;
+
+	private final GenericBitSet<Local>[] use;
+	private final GenericBitSet<Local>[] def;
+	private final GenericBitSet<Local>[] phiDef;
+	private final GenericBitSet<Local>[] phiUse;
+	private final GenericBitSet<Local>[] in;
+	private final GenericBitSet<Local>[] out;
+
+	private boolean iterated;
+
+	@SuppressWarnings("unchecked")
+	public LoopNestingLivenessAnalyser(ControlFlowGraph cfg) {
+		this.cfg = cfg;
+		locals = cfg.getLocals();
+
+		postOrder = new ArrayList<>();
+		index = new HashMap<>();
+		int n = cfg.size();
+		pre = new int[n];
+		last = new int[n];
+
+		use = new GenericBitSet[n];
+		def = new GenericBitSet[n];
+		phiDef = new GenericBitSet[n];
+		phiUse = new GenericBitSet[n];
+		in = new GenericBitSet[n];
+		out = new GenericBitSet[n];
+
+		order();
+		for (int i = 0; i < n; i++) {
+			use[i] = locals.createBitSet();
+			def[i] = locals.createBitSet();
+			phiDef[i] = locals.createBitSet();
+			phiUse[i] = locals.createBitSet();
+			in[i] = locals.createBitSet();
+			out[i] = locals.createBitSet();
+		}
+		for (BasicBlock b : postOrder) {
+			precomputeBlock(b);
+		}
+	}
+
+	/* iterative dfs numbering every block with its pre order number, the last pre order number in
+	 * its dfs subtree (for O(1) ancestor checks) and its post order index. */
+	private void order() {
+		Map<BasicBlock, Integer> preNumbers = new HashMap<>();
+		Map<BasicBlock, Integer> lastNumbers = new HashMap<>();
+		int preCounter = 0;
+
+		/* unreachable blocks are numbered as their own trees after the entry's. */
+		List<BasicBlock> roots = new ArrayList<>(cfg.getEntries());
+		roots.addAll(cfg.vertices());
+		for (BasicBlock root : roots) {
+			if (preNumbers.containsKey(root)) {
+				continue;
+			}
+			Deque<BasicBlock> stack = new ArrayDeque<>();
+			Deque<Iterator<FlowEdge<BasicBlock>>> iterators = new ArrayDeque<>();
+			preNumbers.put(root, preCounter++);
+			stack.push(root);
+			iterators.push(cfg.getEdges(root).iterator());
+
+			while (!stack.isEmpty()) {
+				Iterator<FlowEdge<BasicBlock>> it = iterators.peek();
+				if (it.hasNext()) {
+					BasicBlock succ = it.next().dst();
+					if (!preNumbers.containsKey(succ)) {
+						preNumbers.put(succ, preCounter++);
+						stack.push(succ);
+						iterators.push(cfg.getEdges(succ).iterator());
+					}
+				} else {
+					BasicBlock b = stack.pop();
+					iterators.pop();
+					lastNumbers.put(b, preCounter - 1);
+					index.put(b, postOrder.size());
+					postOrder.add(b);
+				}
+			}
+		}
+
+		for (BasicBlock b : postOrder) {
+			int i = index.get(b);
+			pre[i] = preNumbers.get(b);
+			last[i] = lastNumbers.get(b);
+		}
+	}
+
+	private boolean isAncestor(int a, int d) {
+		return pre[a] <= pre[d] && pre[d] <= last[a];
+	}
+
+	private boolean isBackEdge(FlowEdge<BasicBlock> e) {
+		return isAncestor(index.get(e.dst()), index.get(e.src()));
+	}
+
+	// compute def, use, and phi for given block
+	private void precomputeBlock(BasicBlock b) {
+		int i = index.get(b);
+		GenericBitSet<Local> use = this.use[i];
+		GenericBitSet<Local> def = this.def[i];
+		GenericBitSet<Local> phiDef = this.phiDef[i];
+
+		// reverse order so that a def kills the uses after it in the same block.
+		ListIterator<Stmt> it = b.listIterator(b.size());
+		while (it.hasPrevious()) {
+			Stmt stmt = it.previous();
+			int opcode = stmt.getOpcode();
+			if (opcode == Opcode.PHI_STORE) {
+				CopyPhiStmt copy = (CopyPhiStmt) stmt;
+				phiDef.add(copy.getVariable().getLocal());
+				/* phi arguments are uses at the end of the predecessor they flow in from. */
+				for (Map.Entry<BasicBlock, Expr> e : copy.getExpression().getArguments().entrySet()) {
+					Integer pred = index.get(e.getKey());
+					if (pred == null) {
+						continue;
+					}
+					GenericBitSet<Local> useSet = phiUse[pred];
+					for (Expr child : e.getValue().enumerateWithSelf()) {
+						if (child.getOpcode() == Opcode.LOCAL_LOAD) {
+							useSet.add(((VarExpr) child).getLocal());
+						}
+					}
+				}
+			} else {
+				if (opcode == Opcode.LOCAL_STORE) {
+					Local l = ((CopyVarStmt) stmt).getVariable().getLocal();
+					def.add(l);
+					use.remove(l);
+				}
+				for (Expr c : stmt.enumerateOnlyChildren()) {
+					if (c.getOpcode() == Opcode.LOCAL_LOAD) {
+						use.add(((VarExpr) c).getLocal());
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public GenericBitSet<Local> in(BasicBlock b) {
+		return in[index.get(b)];
+	}
+
+	@Override
+	public GenericBitSet<Local> out(BasicBlock b) {
+		return out[index.get(b)];
+	}
+
+	/**
+	 * @return whether the loop propagation alone wasn't exact for this graph and the final worklist
+	 *         pass had to be run.
+	 */
+	public boolean isIterated() {
+		return iterated;
+	}
+
+	public void compute() {
+		computeDagLiveness();
+		if (!propagateLoops()) {
+			iterated = true;
+			fixpoint();
+		}
+	}
+
+	private void computeDagLiveness() {
+		/* post order: every successor along a forward edge is done before the block itself. */
+		for (int i = 0; i < postOrder.size(); i++) {
+			BasicBlock b = postOrder.get(i);
+			GenericBitSet<Local> liveOut = out[i];
+			liveOut.addAll(phiUse[i]);
+			for (FlowEdge<BasicBlock> e : cfg.getEdges(b)) {
+				if (!isBackEdge(e)) {
+					int s = index.get(e.dst());
+					liveOut.addAll(in[s].relativeComplement(phiDef[s]));
+				}
+			}
+			GenericBitSet<Local> liveIn = in[i];
+			liveIn.addAll(use[i]);
+			liveIn.addAll(phiDef[i]);
+			liveIn.addAll(liveOut.relativeComplement(def[i]));
+		}
+	}
+
+	/* returns whether the result is exact without iterating. */
+	private boolean propagateLoops() {
+		/* collect the loop bodies: everything that reaches a latch without going through the header
+		 * and is below the header in the dfs tree. */
+		Map<Integer, List<Integer>> bodies = new TreeMap<>(Comparator.comparingInt(h -> pre[h]));
+		for (int i = 0; i < postOrder.size(); i++) {
+			for (FlowEdge<BasicBlock> e : cfg.getEdges(postOrder.get(i))) {
+				if (isBackEdge(e)) {
+					bodies.computeIfAbsent(index.get(e.dst()), k -> new ArrayList<>());
+				}
+			}
+		}
+
+		boolean exact = true;
+		for (Map.Entry<Integer, List<Integer>> entry : bodies.entrySet()) {
+			int h = entry.getKey();
+			List<Integer> body = entry.getValue();
+			boolean[] inLoop = new boolean[postOrder.size()];
+			inLoop[h] = true;
+			body.add(h);
+
+			Deque<Integer> worklist = new ArrayDeque<>();
+			for (FlowEdge<BasicBlock> e : cfg.getReverseEdges(postOrder.get(h))) {
+				if (isBackEdge(e)) {
+					worklist.push(index.get(e.src()));
+				}
+			}
+			while (!worklist.isEmpty()) {
+				int b = worklist.pop();
+				if (inLoop[b] || !isAncestor(h, b)) {
+					continue;
+				}
+				inLoop[b] = true;
+				body.add(b);
+				for (FlowEdge<BasicBlock> e : cfg.getReverseEdges(postOrder.get(b))) {
+					worklist.push(index.get(e.src()));
+				}
+			}
+
+			GenericBitSet<Local> defs = locals.createBitSet();
+			for (int b : body) {
+				defs.addAll(def[b]);
+				defs.addAll(phiDef[b]);
+				if (b != h) {
+					/* a second entry into the loop (irreducible flow), the header's live-in set
+					 * doesn't account for the paths through it. */
+					for (FlowEdge<BasicBlock> e : cfg.getReverseEdges(postOrder.get(b))) {
+						if (!inLoop[index.get(e.src())]) {
+							exact = false;
+						}
+					}
+				}
+			}
+
+			GenericBitSet<Local> liveLoop = in[h].relativeComplement(phiDef[h]);
+			if (liveLoop.containsAny(defs)) {
+				/* redefined inside the loop, only possible before SSA. */
+				liveLoop.removeAll(defs);
+				exact = false;
+			}
+			for (int b : body) {
+				in[b].addAll(liveLoop);
+				out[b].addAll(liveLoop);
+			}
+		}
+		return exact;
+	}
+
+	private void fixpoint() {
+		int n = postOrder.size();
+		Deque<Integer> queue = new ArrayDeque<>(n);
+		boolean[] queued = new boolean[n];
+		for (int i = 0; i < n; i++) {
+			queue.add(i);
+			queued[i] = true;
+		}
+
+		while (!queue.isEmpty()) {
+			int i = queue.poll();
+			queued[i] = false;
+			BasicBlock b = postOrder.get(i);
+
+			GenericBitSet<Local> curOut = locals.createBitSet();
+			curOut.addAll(phiUse[i]);
+			for (FlowEdge<BasicBlock> e : cfg.getEdges(b)) {
+				int s = index.get(e.dst());
+				curOut.addAll(in[s].relativeComplement(phiDef[s]));
+			}
+			out[i] = curOut;
+
+			GenericBitSet<Local> curIn = curOut.relativeComplement(def[i]);
+			curIn.addAll(use[i]);
+			curIn.addAll(phiDef[i]);
+			if (!curIn.equals(in[i])) {
+				in[i] = curIn;
+				for (FlowEdge<BasicBlock> e : cfg.getReverseEdges(b)) {
+					int p = index.get(e.src());
+					if (!queued[p]) {
+						queued[p] = true;
+						queue.add(p);
+					}
+				}
+			}
+		}
+	}
+
+	public ControlFlowGraph getGraph() {
+		return cfg;
+	}
+}
@@ -0,0 +1,564 @@
+package org.mapleir.ir.cfg.builder;
+
+import org.mapleir.flowgraph.ExceptionRange;
+import org.mapleir.flowgraph.edges.FlowEdge;
+import org.mapleir.ir.cfg.BasicBlock;
+import org.mapleir.ir.cfg.builder.ssaopt.ConstraintUtil;
+import org.mapleir.ir.code.CodeUnit;
+import org.mapleir.ir.code.Expr;
+import org.mapleir.ir.code.Opcode;
+import org.mapleir.ir.code.Stmt;
+import org.mapleir.ir.code.expr.PhiExpr;
+import org.mapleir.ir.code.expr.VarExpr;
+import org.mapleir.ir.code.expr.invoke.InitialisedObjectExpr;
+import org.mapleir.ir.code.expr.invoke.InvocationExpr;
+import org.mapleir.ir.code.stmt.PopStmt;
+import org.mapleir.ir.code.stmt.copy.AbstractCopyStmt;
+import org.mapleir.ir.code.stmt.copy.CopyPhiStmt;
+import org.mapleir.ir.code.stmt.copy.CopyVarStmt;
+import org.mapleir.ir.locals.Local;
+import org.mapleir.ir.locals.LocalsPool;
+import org.mapleir.ir.locals.impl.BasicLocal;
+import org.mapleir.ir.locals.impl.VersionedLocal;
+import org.mapleir.ir.utils.CFGUtils;
+import org.mapleir.stdlib.collections.bitset.GenericBitSet;
+import org.mapleir.stdlib.collections.graph.algorithms.SimpleDfs;
+import org.mapleir.stdlib.collections.map.NullPermeableHashMap;
+import org.objectweb.asm.Type;
+
+import java.util.*;
+
+/**
+ * Alternative to {@link SSAGenPass} which builds minimal, pruned SSA in a single walk over the
+ * naturalised flow graph using the on-the-fly construction described by Braun et al. in
+ * "Simple and Efficient Construction of Static Single Assignment Form" (CC 2013).
+ * <p>
+ * Variables are looked up on demand (local value numbering within a block, recursive lookup
+ * through the predecessors otherwise) so phis are only ever created for values that are read,
+ * and trivial phis are removed as soon as their operands are known. No liveness, dominator tree
+ * or dominance frontiers are computed.
+ * <p>
+ * When optimising, simple copies and constants are propagated while renaming, dead pure
+ * definitions are pruned and constructor calls are folded into their allocations. The heavier
+ * expression propagation performed by {@link SSAGenPass} is not attempted.
+ */
+public class BraunSSAGenPass extends ControlFlowGraphBuilder.BuilderPass {
+
+	private final boolean optimise;
+
+	private final Map<BasicBlock, Map<BasicLocal, VersionedLocal>> currentDefs;
+	private final Map<BasicBlock, Map<BasicLocal, CopyPhiStmt>> incompletePhis;
+	private final NullPermeableHashMap<VersionedLocal, Set<CopyPhiStmt>> phiUsers;
+	private final Map<VersionedLocal, VersionedLocal> replaced;
+	private final Map<BasicLocal, Integer> counters;
+	private final Map<VersionedLocal, Type> types;
+	private final Map<BasicBlock, Integer> unfilledPreds;
+	private final Set<CopyPhiStmt> completing;
+
+	private LocalsPool pool;
+	private GenericBitSet<BasicBlock> sealed;
+	private List<BasicBlock> order;
+
+	public BraunSSAGenPass(ControlFlowGraphBuilder builder) {
+		this(builder, true);
+	}
+
+	public BraunSSAGenPass(ControlFlowGraphBuilder builder, boolean optimise) {
+		super(builder);
+		this.optimise = optimise;
+
+		currentDefs = new HashMap<>();
+		incompletePhis = new HashMap<>();
+		phiUsers = new NullPermeableHashMap<>(HashSet::new);
+		replaced = new HashMap<>();
+		counters = new HashMap<>();
+		types = new HashMap<>();
+		unfilledPreds = new HashMap<>();
+		completing = new HashSet<>();
+	}
+
+	private void splitRanges() {
+		/* A handler observes the value a local had at the exception point, but its phi
+		 * arguments are read at the end of each protected block. SSAGenPass uses
+		 * liveness to find the handler-live locals that need a block boundary before
+		 * they are redefined; here we conservatively split on any local that is read
+		 * somewhere in the method (a local that is never read cannot be live). */
+		Set<Local> read = new HashSet<>();
+		for (BasicBlock b : builder.graph.vertices()) {
+			for (Stmt stmt : b) {
+				for (Expr e : stmt.enumerateOnlyChildren()) {
+					if (e.getOpcode() == Opcode.LOCAL_LOAD) {
+						Local l = ((VarExpr) e).getLocal();
+						if (!l.isStack()) {
+							read.add(l);
+						}
+					}
+				}
+			}
+		}
+
+		Set<BasicBlock> protectedBlocks = new LinkedHashSet<>();
+		for (ExceptionRange<BasicBlock> er : builder.graph.getRanges()) {
+			protectedBlocks.addAll(er.getNodes());
+		}
+
+		List<BasicBlock> order = new ArrayList<>(builder.graph.verticesInOrder());
+		for (BasicBlock b : protectedBlocks) {
+			List<Stmt> stmtsCopy = new ArrayList<>(b);
+			int i = 0;
+			boolean checkSplit = false;
+			for (Stmt stmt : stmtsCopy) {
+				if (checkSplit && stmt.getOpcode() == Opcode.LOCAL_STORE) {
+					CopyVarStmt copy = (CopyVarStmt) stmt;
+					if (read.contains(copy.getVariable().getLocal())) {
+						BasicBlock n = CFGUtils.splitBlock(builder.graph, b, i, true);
+						order.add(order.indexOf(b), n);
+						i = 0;
+						checkSplit = false;
+					}
+				} else if (stmt instanceof CopyVarStmt) {
+					// do not split if we have only seen simple or synthetic copies (catch copy is synthetic)
+					CopyVarStmt copy = (CopyVarStmt) stmt;
+					int opc = copy.getExpression().getOpcode();
+					if (!copy.isSynthetic() && opc != Opcode.LOCAL_LOAD && opc != Opcode.CATCH) {
+						checkSplit = true;
+					}
+				} else {
+					checkSplit = true;
+				}
+				i++;
+			}
+		}
+
+		order.remove(builder.head);
+		order.add(0, builder.head);
+		builder.graph.relabel(order);
+	}
+
+	private VersionedLocal resolve(VersionedLocal vl) {
+		VersionedLocal r = replaced.get(vl);
+		if (r == null) {
+			return vl;
+		}
+		/* path compression, trivial phis may be replaced by other trivial phis. */
+		r = resolve(r);
+		replaced.put(vl, r);
+		return r;
+	}
+
+	private VersionedLocal newVersion(Local l) {
+		BasicLocal bl = pool.asSimpleLocal(l);
+		int subscript = counters.getOrDefault(bl, 0);
+		counters.put(bl, subscript + 1);
+		return pool.get(bl.getIndex(), subscript, bl.isStack());
+	}
+
+	private void writeVariable(BasicLocal l, BasicBlock b, VersionedLocal value) {
+		currentDefs.computeIfAbsent(b, k -> new HashMap<>()).put(l, value);
+	}
+
+	private VersionedLocal readVariable(BasicLocal l, BasicBlock b) {
+		Map<BasicLocal, VersionedLocal> defs = currentDefs.get(b);
+		if (defs != null) {
+			VersionedLocal vl = defs.get(l);
+			if (vl != null) {
+				return resolve(vl);
+			}
+		}
+		return readVariableRecursive(l, b);
+	}
+
+	private VersionedLocal readVariableRecursive(BasicLocal l, BasicBlock b) {
+		VersionedLocal val;
+		Set<FlowEdge<BasicBlock>> preds = builder.graph.getReverseEdges(b);
+		if (!sealed.contains(b)) {
+			/* not all predecessors are known yet, place an operandless phi
+			 * which will be completed once the block is sealed. */
+			CopyPhiStmt phi = newPhi(l, b);
+			incompletePhis.computeIfAbsent(b, k -> new HashMap<>()).put(l, phi);
+			val = (VersionedLocal) phi.getVariable().getLocal();
+		} else if (preds.size() == 1) {
+			val = readVariable(l, preds.iterator().next().src());
+		} else if (preds.isEmpty()) {
+			throw new IllegalStateException("Undefined local " + l + " in " + b.getDisplayName() + " of " + builder.method);
+		} else {
+			/* break potential cycles with an operandless phi first. */
+			CopyPhiStmt phi = newPhi(l, b);
+			writeVariable(l, b, (VersionedLocal) phi.getVariable().getLocal());
+			val = addPhiOperands(l, phi);
+		}
+		/* the value may have been a phi that became trivial while the
+		 * lookup was completing other phis. */
+		val = resolve(val);
+		writeVariable(l, b, val);
+		return val;
+	}
+
+	private CopyPhiStmt newPhi(BasicLocal l, BasicBlock b) {
+		VersionedLocal vl = newVersion(l);
+		PhiExpr phi = new PhiExpr(new HashMap<>());
+		CopyPhiStmt copy = new CopyPhiStmt(new VarExpr(vl, null), phi);
+		b.add(0, copy);
+		pool.defs.put(vl, copy);
+		pool.uses.put(vl, new HashSet<>());
+		return copy;
+	}
+
+	private VersionedLocal addPhiOperands(BasicLocal l, CopyPhiStmt copy) {
+		PhiExpr phi = copy.getExpression();
+		BasicBlock b = copy.getBlock();
+		completing.add(copy);
+		for (FlowEdge<BasicBlock> fe : builder.graph.getReverseEdges(b)) {
+			BasicBlock pred = fe.src();
+			if (phi.getArgument(pred) != null) {
+				continue;
+			}
+			VersionedLocal arg = readVariable(l, pred);
+			VarExpr v = new VarExpr(arg, types.get(arg));
+			phi.setArgument(pred, v);
+			pool.uses.getNonNull(arg).add(v);
+			phiUsers.getNonNull(arg).add(copy);
+		}
+		completing.remove(copy);
+		return tryRemoveTrivialPhi(copy);
+	}
+
+	private VersionedLocal tryRemoveTrivialPhi(CopyPhiStmt copy) {
+		VersionedLocal self = (VersionedLocal) copy.getVariable().getLocal();
+		VersionedLocal same = null;
+		for (Expr e : copy.getExpression().getArguments().values()) {
+			VersionedLocal op = (VersionedLocal) ((VarExpr) e).getLocal();
+			if (op == same || op == self) {
+				continue;
+			}
+			if (same != null) {
+				/* merges at least two values, not trivial. */
+				return self;
+			}
+			same = op;
+		}
+
+		if (same == null) {
+			/* only reachable from itself, which can't happen in a graph without dead blocks. */
+			throw new IllegalStateException("Phi with no operands: " + copy + " in " + builder.method);
+		}
+
+		/* reroute all uses of the phi to the single value it merges. */
+		for (Expr e : copy.getExpression().getArguments().values()) {
+			VarExpr v = (VarExpr) e;
+			VersionedLocal op = (VersionedLocal) v.getLocal();
+			pool.uses.get(op).remove(v);
+			phiUsers.getNonNull(op).remove(copy);
+		}
+		copy.getBlock().remove(copy);
+		pool.defs.remove(self);
+		replaced.put(self, same);
+
+		Set<VarExpr> selfUses = pool.uses.remove(self);
+		Set<VarExpr> sameUses = pool.uses.getNonNull(same);
+		for (VarExpr v : selfUses) {
+			v.setLocal(same);
+			sameUses.add(v);
+		}
+
+		Set<CopyPhiStmt> users = phiUsers.remove(self);
+		if (users != null) {
+			users.remove(copy);
+			phiUsers.getNonNull(same).addAll(users);
+			/* removing this phi may have made its users trivial too. phis that are
+			 * still collecting their operands check themselves once they're done. */
+			for (CopyPhiStmt user : users) {
+				if (user.getBlock() != null && !completing.contains(user)) {
+					tryRemoveTrivialPhi(user);
+				}
+			}
+		}
+		return same;
+	}
+
+	private void sealBlock(BasicBlock b) {
+		Map<BasicLocal, CopyPhiStmt> phis = incompletePhis.remove(b);
+		sealed.add(b);
+		if (phis != null) {
+			for (Map.Entry<BasicLocal, CopyPhiStmt> e : phis.entrySet()) {
+				addPhiOperands(e.getKey(), e.getValue());
+			}
+		}
+	}
+
+	private void fillBlock(BasicBlock b) {
+		for (Stmt stmt : new ArrayList<>(b)) {
+			int opcode = stmt.getOpcode();
+			if (opcode == Opcode.PHI_STORE) {
+				/* placed by a lookup while filling this block, already renamed. */
+				continue;
+			}
+
+			if (opcode == Opcode.POP) {
+				PopStmt pop = (PopStmt) stmt;
+				if (!ConstraintUtil.isUncopyable(pop.getExpression())) {
+					b.remove(pop);
+					continue;
+				}
+			}
+
+			/* rename the uses before the target is defined so that
+			 * x = x; doesn't become x0 = x0. */
+			for (Expr e : stmt.enumerateOnlyChildren()) {
+				if (e.getOpcode() == Opcode.LOCAL_LOAD) {
+					translate((VarExpr) e, b);
+				}
+			}
+
+			if (opcode == Opcode.LOCAL_STORE) {
+				CopyVarStmt copy = (CopyVarStmt) stmt;
+				VarExpr var = copy.getVariable();
+				BasicLocal l = pool.asSimpleLocal(var.getLocal());
+				Expr rhs = copy.getExpression();
+
+				if (optimise && !copy.isSynthetic() && rhs.getOpcode() == Opcode.LOCAL_LOAD) {
+					VersionedLocal src = (VersionedLocal) ((VarExpr) rhs).getLocal();
+					if (shouldPropagate(l, src)) {
+						/* x = y; the current value of x is now simply y. */
+						pool.uses.get(src).remove(rhs);
+						b.remove(copy);
+						writeVariable(l, b, src);
+						continue;
+					}
+				}
+
+				VersionedLocal vl = newVersion(l);
+				var.setLocal(vl);
+				writeVariable(l, b, vl);
+				pool.defs.put(vl, copy);
+				pool.uses.put(vl, new HashSet<>());
+				types.put(vl, rhs.getType());
+			}
+		}
+	}
+
+	private void translate(VarExpr v, BasicBlock b) {
+		BasicLocal l = pool.asSimpleLocal(v.getLocal());
+		VersionedLocal vl = readVariable(l, b);
+
+		if (optimise) {
+			AbstractCopyStmt def = pool.defs.get(vl);
+			if (def != null && def.getOpcode() == Opcode.LOCAL_STORE && !def.isSynthetic()
+					&& def.getExpression().getOpcode() == Opcode.CONST_LOAD) {
+				CodeUnit parent = v.getParent();
+				parent.writeAt(def.getExpression().copy(), parent.indexOf(v));
+				return;
+			}
+		}
+
+		v.setLocal(vl);
+		Type type = types.get(vl);
+		if (type != null) {
+			v.setType(type);
+		}
+		pool.uses.getNonNull(vl).add(v);
+	}
+
+	private boolean shouldPropagate(Local dst, Local src) {
+		/* keep copies from stack vars into real locals so the lvar survives. */
+		return dst.isStack() || !src.isStack();
+	}
+
+	private void construct() {
+		sealed = builder.graph.createBitSet();
+
+		for (BasicBlock b : order) {
+			unfilledPreds.put(b, builder.graph.getReverseEdges(b).size());
+		}
+
+		for (BasicBlock b : order) {
+			if (!sealed.contains(b) && unfilledPreds.get(b) == 0) {
+				sealBlock(b);
+			}
+			fillBlock(b);
+
+			for (FlowEdge<BasicBlock> fe : builder.graph.getEdges(b)) {
+				BasicBlock succ = fe.dst();
+				int remaining = unfilledPreds.get(succ) - 1;
+				unfilledPreds.put(succ, remaining);
+				if (remaining == 0) {
+					sealBlock(succ);
+				}
+			}
+		}
+
+		if (!incompletePhis.isEmpty()) {
+			throw new IllegalStateException("Unsealed blocks: " + incompletePhis.keySet());
+		}
+	}
+
+	private void updateTypes() {
+		/* phi types (and the types of anything copied from a phi) are only known once
+		 * the graph is sealed. Types only ever flow from defs to uses, so this settles
+		 * after a couple of sweeps. */
+		boolean changed;
+		do {
+			changed = false;
+			for (BasicBlock b : order) {
+				for (Stmt stmt : b) {
+					for (Expr e : stmt.enumerateOnlyChildren()) {
+						if (e.getOpcode() == Opcode.LOCAL_LOAD) {
+							VarExpr v = (VarExpr) e;
+							Type t = types.get((VersionedLocal) v.getLocal());
+							if (t != null && !t.equals(v.getType())) {
+								v.setType(t);
+								changed = true;
+							}
+						}
+					}
+
+					if (stmt.getOpcode() == Opcode.PHI_STORE) {
+						CopyPhiStmt copy = (CopyPhiStmt) stmt;
+						PhiExpr phi = copy.getExpression();
+						Type t = null;
+						for (Expr arg : phi.getArguments().values()) {
+							if (arg.getType() != null) {
+								t = arg.getType();
+								break;
+							}
+						}
+						if (t != null && !t.equals(phi.getType())) {
+							phi.setType(t);
+							copy.getVariable().setType(t);
+							changed = true;
+						}
+					}
+
+					if (stmt.getOpcode() == Opcode.LOCAL_STORE || stmt.getOpcode() == Opcode.PHI_STORE) {
+						AbstractCopyStmt copy = (AbstractCopyStmt) stmt;
+						VersionedLocal vl = (VersionedLocal) copy.getVariable().getLocal();
+						Type t = copy.getExpression().getType();
+						if (t != null && !t.equals(types.get(vl))) {
+							types.put(vl, t);
+							changed = true;
+						}
+					}
+				}
+			}
+		} while (changed);
+	}
+
+	private void aggregateInitialisers() {
+		/* x = new Klass; ...; pop(x.<init>(args)) becomes x = new Klass(args), as
+		 * long as nothing reads x in between. Unlike SSAGenPass we only do this
+		 * within a single block. */
+		for (BasicBlock b : order) {
+			for (Stmt stmt : new ArrayList<>(b)) {
+				if (stmt.getOpcode() != Opcode.POP) {
+					continue;
+				}
+				PopStmt pop = (PopStmt) stmt;
+				Expr expr = pop.getExpression();
+				if (expr.getOpcode() != Opcode.INVOKE) {
+					continue;
+				}
+				InvocationExpr invoke = (InvocationExpr) expr;
+				if (invoke.getCallType() != InvocationExpr.CallType.SPECIAL || !invoke.getName().equals("<init>")) {
+					continue;
+				}
+				Expr inst = invoke.getPhysicalReceiver();
+				if (inst.getOpcode() != Opcode.LOCAL_LOAD) {
+					continue;
+				}
+				VarExpr var = (VarExpr) inst;
+				VersionedLocal local = (VersionedLocal) var.getLocal();
+				AbstractCopyStmt def = pool.defs.get(local);
+				if (def == null || def.getBlock() != b || def.getExpression().getOpcode() != Opcode.ALLOC_OBJ
+						|| !isUnusedBetween(local, var, b, b.indexOf(def), b.indexOf(pop))) {
+					continue;
+				}
+
+				Expr[] args = invoke.getParameterExprs();
+				pop.deleteAt(0);
+				for (int i = args.length - 1; i >= 0; i--) {
+					args[i].unlink();
+				}
+				b.remove(def);
+
+				InitialisedObjectExpr newExpr = new InitialisedObjectExpr(invoke.getOwner(), invoke.getDesc(), args);
+				CopyVarStmt newCvs = new CopyVarStmt(var, newExpr);
+				pool.defs.put(local, newCvs);
+				pool.uses.get(local).remove(var);
+				b.add(b.indexOf(pop), newCvs);
+				b.remove(pop);
+			}
+		}
+	}
+
+	private boolean isUnusedBetween(VersionedLocal local, VarExpr receiver, BasicBlock b, int from, int to) {
+		for (int i = from + 1; i <= to; i++) {
+			for (Expr e : b.get(i).enumerateOnlyChildren()) {
+				if (e != receiver && e.getOpcode() == Opcode.LOCAL_LOAD && ((VarExpr) e).getLocal() == local) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private void pruneDefinitions() {
+		/* phis are created on demand so they are pruned by construction, except for
+		 * ones only kept alive by other dead phis. When optimising we also get rid
+		 * of pure copies made dead by propagation. */
+		Deque<VersionedLocal> worklist = new ArrayDeque<>(pool.defs.keySet());
+		while (!worklist.isEmpty()) {
+			VersionedLocal vl = worklist.pop();
+			AbstractCopyStmt def = pool.defs.get(vl);
+			Set<VarExpr> useSet = pool.uses.get(vl);
+			if (def == null || def.getBlock() == null || (useSet != null && !useSet.isEmpty())) {
+				continue;
+			}
+			if (def.getOpcode() != Opcode.PHI_STORE && (!optimise || def.isSynthetic() || !canPrune(def.getExpression()))) {
+				continue;
+			}
+
+			/* a dead phi releases its arguments, which may be the only uses of other phis. */
+			Iterable<Expr> operands = def.getOpcode() == Opcode.PHI_STORE
+					? ((CopyPhiStmt) def).getExpression().getArguments().values()
+					: def.getExpression().enumerateWithSelf();
+			for (Expr e : operands) {
+				if (e.getOpcode() == Opcode.LOCAL_LOAD) {
+					VersionedLocal used = (VersionedLocal) ((VarExpr) e).getLocal();
+					pool.uses.get(used).remove(e);
+					worklist.push(used);
+				}
+			}
+			def.getBlock().remove(def);
+			pool.defs.remove(vl);
+			pool.uses.remove(vl);
+		}
+	}
+
+	private boolean canPrune(Expr e) {
+		if (e.getOpcode() != Opcode.PHI && ConstraintUtil.isUncopyable(e)) {
+			return false;
+		}
+		for (Expr s : e.getChildren()) {
+			if (!canPrune(s)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public void run() {
+		pool = builder.graph.getLocals();
+
+		splitRanges();
+		order = SimpleDfs.topoorder(builder.graph, builder.head);
+
+		construct();
+		updateTypes();
+
+		if (optimise) {
+			aggregateInitialisers();
+		}
+		pruneDefinitions();
+	}
+}
@@ -0,0 +1,35 @@
+package org.mapleir.ir.cfg.builder;
+
+import org.mapleir.asm.MethodNode;
+import org.mapleir.ir.cfg.ControlFlowGraph;
+
+/**
+ * Builder pipeline which replaces {@link SSAGenPass} with {@link BraunSSAGenPass}, constructing
+ * SSA without liveness or dominance frontiers. Pass {@code FastControlFlowGraphBuilder::build}
+ * as the creator of an {@code IRCache} to use it for all of that cache's methods.
+ */
+public class FastControlFlowGraphBuilder extends ControlFlowGraphBuilder {
+
+	public FastControlFlowGraphBuilder(MethodNode method) {
+		super(method);
+	}
+
+	public FastControlFlowGraphBuilder(MethodNode method, boolean optimise) {
+		super(method, optimise);
+	}
+
+	@Override
+	protected BuilderPass[] resolvePasses() {
+		return new BuilderPass[] {
+				new GenerationPass(this),
+				new DeadBlocksPass(this),
+				new NaturalisationPass(this),
+				new BraunSSAGenPass(this, optimise),
+		};
+	}
+
+	public static ControlFlowGraph build(MethodNode method) {
+		FastControlFlowGraphBuilder builder = new FastControlFlowGraphBuilder(method);
+		return builder.buildImpl();
+	}
+}
@@ -73,6 +73,10 @@ public class GenerationPass extends ControlFlowGraphBuilder.BuilderPass {
 	private final Map<LabelNode, BasicBlock> blockLabels;
 	private final Map<BasicBlock, LabelNode> labelMap;
 
+	/* expanded StackMapTable frames by the label they describe, if the method was read with them. */
+	private final Map<LabelNode, FrameNode> frames;
+	private final Set<LabelNode> handlerLabels;
+
 	public GenerationPass(ControlFlowGraphBuilder builder) {
 		super(builder);
 		
@@ -90,6 +94,9 @@ public class GenerationPass extends ControlFlowGraphBuilder.BuilderPass {
 		labelMap = new HashMap<>();
 
 		insns = builder.method.node.instructions;
+		frames = new HashMap<>();
+		handlerLabels = new HashSet<>();
+		findFrames();
 		
 		if(GenerationVerifier.VERIFY) {
 			verifier = new GenerationVerifier(builder);
@@ -98,12 +105,88 @@ public class GenerationPass extends ControlFlowGraphBuilder.BuilderPass {
 		}
 	}
 
+	/* Classes read with ClassReader.EXPAND_FRAMES carry a full frame for every jump target and
+	 * handler. The stack shape at those labels is then known up front and doesn't need to be
+	 * propagated from a predecessor, so those blocks can be lifted in any order. Compressed
+	 * frames are ignored as expanding them would mean simulating the locals anyway. */
+	private void findFrames() {
+		for(TryCatchBlockNode tc : builder.method.node.tryCatchBlocks) {
+			handlerLabels.add(tc.handler);
+		}
+		
+		for(AbstractInsnNode ain = insns.getFirst(); ain != null; ain = ain.getNext()) {
+			if(ain.getType() != FRAME) {
+				continue;
+			}
+			FrameNode frame = (FrameNode) ain;
+			if(frame.type != F_NEW) {
+				frames.clear();
+				return;
+			}
+			AbstractInsnNode prev = frame.getPrevious();
+			while(prev != null && prev.getType() == LINE) {
+				prev = prev.getPrevious();
+			}
+			if(prev instanceof LabelNode) {
+				frames.put((LabelNode) prev, frame);
+			}
+		}
+	}
+	
+	private ExpressionStack frameStack(FrameNode frame) {
+		ExpressionStack stack = new ExpressionStack(16);
+		int height = 0;
+		for(Object o : frame.stack) {
+			Type type = frameType(o);
+			stack.push(load_stack(height, type));
+			height += type.getSize();
+		}
+		return stack;
+	}
+	
+	private Type frameType(Object o) {
+		if(o == INTEGER) {
+			return Type.INT_TYPE;
+		} else if(o == FLOAT) {
+			return Type.FLOAT_TYPE;
+		} else if(o == LONG) {
+			return Type.LONG_TYPE;
+		} else if(o == DOUBLE) {
+			return Type.DOUBLE_TYPE;
+		} else if(o == NULL) {
+			return TypeUtils.OBJECT_TYPE;
+		} else if(o == UNINITIALIZED_THIS) {
+			return Type.getObjectType(builder.method.getOwner());
+		} else if(o instanceof String) {
+			return Type.getObjectType((String) o);
+		} else if(o instanceof LabelNode) {
+			/* uninitialised, the label is that of the NEW which created it. */
+			AbstractInsnNode ain = (AbstractInsnNode) o;
+			while(ain != null && ain.getOpcode() != NEW) {
+				ain = ain.getNext();
+			}
+			if(ain == null) {
+				throw new IllegalStateException("No allocation for uninitialised frame value in " + builder.method);
+			}
+			return Type.getObjectType(((TypeInsnNode) ain).desc);
+		} else {
+			throw new IllegalStateException("Invalid frame stack value " + o + " in " + builder.method);
+		}
+	}
+	
 	protected BasicBlock makeBlock(LabelNode label) {
 		BasicBlock b = new BasicBlock(builder.graph);
 		blockLabels.put(label, b);
 		labelMap.put(b, label);
 		queue(label);
 		builder.graph.addVertex(b);
+		
+		FrameNode frame = frames.get(label);
+		/* handlers define their own input stack with the catch copy. */
+		if(frame != null && !handlerLabels.contains(label)) {
+			setInputStack(b, frameStack(frame));
+			stacks.set(b, true);
+		}
 		return b;
 	}
 	
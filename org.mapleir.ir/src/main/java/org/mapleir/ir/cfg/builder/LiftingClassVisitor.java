@@ -0,0 +1,107 @@
+package org.mapleir.ir.cfg.builder;
+
+import org.mapleir.asm.ClassNode;
+import org.mapleir.asm.FieldNode;
+import org.mapleir.asm.MethodNode;
+import org.mapleir.ir.cfg.ControlFlowGraph;
+import org.mapleir.stdlib.collections.map.KeyedValueCreator;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Front end for read-only analyses which lifts each method as soon as the {@link ClassReader} has
+ * finished visiting it, rather than parsing the whole class into a tree first and building its
+ * flow graphs later.
+ * <p>
+ * {@link GenerationPass} works on an instruction list, so a method's code is still read into a
+ * tree method before it's lifted, but only one method at a time: once the graph has been handed to
+ * the {@link Sink}, the method's instruction list and exception table are dropped, so at most one
+ * method's bytecode is alive next to the IR at any time. Methods that {@link #shouldLift} turns down
+ * aren't buffered at all, as the reader skips their code. The resulting {@link ClassNode} keeps the
+ * class header, fields and method signatures, but its methods have no code and must not be dumped.
+ */
+public class LiftingClassVisitor extends ClassVisitor {
+
+	public interface Sink {
+		void accept(MethodNode method, ControlFlowGraph cfg);
+	}
+
+	private final ClassNode classNode;
+	private final KeyedValueCreator<MethodNode, ControlFlowGraph> creator;
+	private final Sink sink;
+
+	public LiftingClassVisitor(KeyedValueCreator<MethodNode, ControlFlowGraph> creator, Sink sink) {
+		this(new ClassNode(), creator, sink);
+	}
+
+	private LiftingClassVisitor(ClassNode classNode, KeyedValueCreator<MethodNode, ControlFlowGraph> creator, Sink sink) {
+		/* the header and attributes go straight into the tree. */
+		super(Opcodes.ASM7, classNode.node);
+		this.classNode = classNode;
+		this.creator = creator;
+		this.sink = sink;
+	}
+
+	public ClassNode getClassNode() {
+		return classNode;
+	}
+
+	/**
+	 * @return whether to read the code of the method and lift it. The method is added to the class
+	 *         node without its code (or annotations) if not.
+	 */
+	protected boolean shouldLift(int access, String name, String desc) {
+		return true;
+	}
+
+	@Override
+	public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+		org.objectweb.asm.tree.FieldNode fn = new org.objectweb.asm.tree.FieldNode(Opcodes.ASM7, access, name, desc, signature, value);
+		classNode.addField(new FieldNode(fn, classNode));
+		return fn;
+	}
+
+	@Override
+	public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+		if (!shouldLift(access, name, desc)) {
+			org.objectweb.asm.tree.MethodNode mn = new org.objectweb.asm.tree.MethodNode(Opcodes.ASM7, access, name, desc, signature, exceptions);
+			classNode.addMethod(new MethodNode(mn, classNode));
+			return null;
+		}
+		return new org.objectweb.asm.tree.MethodNode(Opcodes.ASM7, access, name, desc, signature, exceptions) {
+			@Override
+			public void visitEnd() {
+				super.visitEnd();
+				MethodNode m = new MethodNode(this, classNode);
+				classNode.addMethod(m);
+				if (instructions.size() > 0) {
+					sink.accept(m, creator.create(m));
+				}
+				instructions.clear();
+				tryCatchBlocks.clear();
+				localVariables = null;
+			}
+		};
+	}
+
+	/**
+	 * Reads the class with this visitor.
+	 *
+	 * @return the class node, with the methods that were lifted but without their code.
+	 */
+	public ClassNode accept(byte[] bytes) {
+		new ClassReader(bytes).accept(this, ClassReader.SKIP_FRAMES | ClassReader.SKIP_DEBUG);
+		return classNode;
+	}
+
+	public static ClassNode lift(byte[] bytes, KeyedValueCreator<MethodNode, ControlFlowGraph> creator, Sink sink) {
+		return new LiftingClassVisitor(creator, sink).accept(bytes);
+	}
+
+	public static ClassNode lift(byte[] bytes, Sink sink) {
+		return lift(bytes, ControlFlowGraphBuilder::build, sink);
+	}
+}
@@ -4,7 +4,7 @@ import org.mapleir.flowgraph.ExceptionRange;
 import org.mapleir.flowgraph.edges.FlowEdge;
 import org.mapleir.flowgraph.edges.FlowEdges;
 import org.mapleir.ir.algorithms.Liveness;
-import org.mapleir.ir.algorithms.SSABlockLivenessAnalyser;
+import org.mapleir.ir.algorithms.LoopNestingLivenessAnalyser;
 import org.mapleir.ir.cfg.BasicBlock;
 import org.mapleir.ir.cfg.builder.ssaopt.Constraint;
 import org.mapleir.ir.cfg.builder.ssaopt.ConstraintUtil;
@@ -1362,7 +1362,7 @@ public class SSAGenPass extends ControlFlowGraphBuilder.BuilderPass {
 	}
 	
 	private void makeLiveness() {
-		SSABlockLivenessAnalyser liveness = new SSABlockLivenessAnalyser(builder.graph);
+		LoopNestingLivenessAnalyser liveness = new LoopNestingLivenessAnalyser(builder.graph);
 		liveness.compute();
 		this.liveness = liveness;
 	}
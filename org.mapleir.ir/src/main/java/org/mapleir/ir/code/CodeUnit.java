@@ -12,6 +12,7 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This is the shared base between the {@link Stmt} and {@link Expr} classes,
@@ -36,13 +37,13 @@ public abstract class CodeUnit implements FastGraphVertex, Opcode {
 	public static final int FLAG_STMT = 0x01;
 
 	/**
-	 * Global unit identifier counter.
+	 * Global unit identifier counter. Methods may be lifted on several threads at once.
 	 */
-	private static int G_ID_COUNTER = 1;
+	private static final AtomicInteger G_ID_COUNTER = new AtomicInteger(1);
 	/**
 	 * Unique global unit identifier.
 	 */
-	protected final int id = G_ID_COUNTER++;
+	protected final int id = G_ID_COUNTER.getAndIncrement();
 	/**
 	 * Opcode to encode the sort of instruction this unit is.
 	 */
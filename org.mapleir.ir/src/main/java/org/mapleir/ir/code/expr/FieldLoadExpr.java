@@ -1,5 +1,6 @@
 package org.mapleir.ir.code.expr;
 
+import org.mapleir.app.service.FieldReference;
 import org.mapleir.ir.code.CodeUnit;
 import org.mapleir.ir.code.Expr;
 import org.mapleir.ir.codegen.BytecodeFrontend;
@@ -8,7 +9,7 @@ import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 
-public class FieldLoadExpr extends Expr implements IUsesJavaDesc {
+public class FieldLoadExpr extends Expr implements IUsesJavaDesc, FieldReference {
 
 	private Expr instanceExpression;
 	private String owner;
@@ -25,6 +26,7 @@ public class FieldLoadExpr extends Expr implements IUsesJavaDesc {
 		setInstanceExpression(instanceExpression);
 	}
 	
+	@Override
 	public boolean isStatic() {
 		return isStatic;
 	}
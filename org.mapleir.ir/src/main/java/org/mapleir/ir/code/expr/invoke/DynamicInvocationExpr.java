@@ -154,12 +154,14 @@ public class DynamicInvocationExpr extends InvocationExpr {
 			switch (boundFunc.getTag()) {
 			case Opcodes.H_INVOKESTATIC:
 				return StaticInvocationExpr.resolveStaticCall(res, boundFunc.getOwner(), boundFunc.getName(), boundFunc.getDesc());
-			case Opcodes.H_INVOKESPECIAL:
+			case Opcodes.H_NEWINVOKESPECIAL:
 				assert(boundFunc.getName().equals("<init>"));
 				return VirtualInvocationExpr.resolveSpecialInvocation(res, boundFunc.getOwner(), boundFunc.getDesc());
+			// private methods, e.g. the bodies of lambdas that capture this; resolved like other invokespecials.
+			case Opcodes.H_INVOKESPECIAL:
 			case Opcodes.H_INVOKEINTERFACE:
 			case Opcodes.H_INVOKEVIRTUAL:
-				return VirtualInvocationExpr.resolveVirtualInvocation(res, boundFunc.getOwner(), boundFunc.getOwner(), boundFunc.getDesc());
+				return VirtualInvocationExpr.resolveVirtualInvocation(res, boundFunc.getOwner(), boundFunc.getName(), boundFunc.getDesc());
 			default:
 				throw new IllegalArgumentException("Unexpected metafactory bootstrap tag?? " + boundFunc.getTag());
 			}
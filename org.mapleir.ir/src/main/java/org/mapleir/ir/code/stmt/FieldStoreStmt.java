@@ -1,5 +1,6 @@
 package org.mapleir.ir.code.stmt;
 
+import org.mapleir.app.service.FieldReference;
 import org.mapleir.ir.TypeUtils;
 import org.mapleir.ir.code.CodeUnit;
 import org.mapleir.ir.code.Expr;
@@ -11,7 +12,7 @@ import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 
-public class FieldStoreStmt extends Stmt implements IUsesJavaDesc {
+public class FieldStoreStmt extends Stmt implements IUsesJavaDesc, FieldReference {
 
 	private Expr instanceExpression;
 	private Expr valueExpression;
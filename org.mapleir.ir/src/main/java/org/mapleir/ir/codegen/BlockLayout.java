@@ -0,0 +1,281 @@
+package org.mapleir.ir.codegen;
+
+import org.mapleir.flowgraph.edges.FlowEdge;
+import org.mapleir.flowgraph.edges.TryCatchEdge;
+import org.mapleir.flowgraph.edges.UnconditionalJumpEdge;
+import org.mapleir.ir.cfg.BasicBlock;
+import org.mapleir.ir.cfg.ControlFlowGraph;
+
+import java.util.*;
+
+/**
+ * Decides the order that the bundles (chains of blocks joined by immediate edges, which have to
+ * stay together) of a method are dumped in.
+ * <p>
+ * A bundle is placed in reverse postorder unless one of the following applies, in order of
+ * precedence:
+ * <ul>
+ * <li>bundles that are protected by the same exception ranges are kept together, in the order
+ * they're given in, so that the ranges don't have to be split up;</li>
+ * <li>once a loop has been entered, the rest of it is placed before anything outside of it, so
+ * that hot loops stay contiguous and exits jump forward out of them;</li>
+ * <li>the target of the goto ending the previous bundle is placed next where possible, so that
+ * the goto can be dropped;</li>
+ * <li>code that can only be reached through an exception handler is assumed to be cold and goes
+ * last.</li>
+ * </ul>
+ * Loops are found from the back edges of a depth first search of the bundles, exceptional edges
+ * left out, with the body of a loop being everything below its header that reaches a back edge
+ * without going through the header.
+ */
+class BlockLayout {
+	private final int size;
+	private final int[] groupOf;
+	private final List<Cursor> groupCursors;
+	private final int[][] succs;
+	private final int[][] preds;
+	private final int[] gotoTargets;
+
+	private final int[] rank;
+	private final int[] pre;
+	private final int[] last;
+	private final boolean[] cold;
+	private final Set<Integer> headers;
+	private final Map<Integer, List<Integer>> latches;
+
+	private final int[] loopOf;
+	private final int[] parentLoop;
+	private final boolean[] placed;
+
+	/**
+	 * @param cfg the graph being dumped.
+	 * @param bundles the bundles of the graph, the first of which holds the entry block.
+	 * @param groups sets of bundles which have to be placed together, each in the order given.
+	 */
+	BlockLayout(ControlFlowGraph cfg, List<? extends List<BasicBlock>> bundles, Collection<List<Integer>> groups) {
+		size = bundles.size();
+		groupOf = new int[size];
+		groupCursors = new ArrayList<>();
+		Arrays.fill(groupOf, -1);
+		for (List<Integer> group : groups) {
+			Cursor cursor = new Cursor();
+			for (int i : group) {
+				groupOf[i] = groupCursors.size();
+				cursor.add(i);
+			}
+			groupCursors.add(cursor);
+		}
+
+		Map<BasicBlock, Integer> owner = new HashMap<>();
+		for (int i = 0; i < size; i++) {
+			for (BasicBlock b : bundles.get(i)) {
+				owner.put(b, i);
+			}
+		}
+
+		succs = new int[size][];
+		gotoTargets = new int[size];
+		List<List<Integer>> predLists = new ArrayList<>();
+		for (int i = 0; i < size; i++) {
+			predLists.add(new ArrayList<>());
+		}
+		for (int i = 0; i < size; i++) {
+			List<BasicBlock> bundle = bundles.get(i);
+			BasicBlock tail = bundle.get(bundle.size() - 1);
+			gotoTargets[i] = -1;
+			Set<Integer> dsts = new LinkedHashSet<>();
+			for (BasicBlock b : bundle) {
+				for (FlowEdge<BasicBlock> e : cfg.getEdges(b)) {
+					Integer dst = owner.get(e.dst());
+					if (dst == null || e instanceof TryCatchEdge) {
+						continue;
+					}
+					if (dst != i) {
+						dsts.add(dst);
+					}
+					if (b == tail && e instanceof UnconditionalJumpEdge && bundles.get(dst).get(0) == e.dst()) {
+						gotoTargets[i] = dst;
+					}
+				}
+			}
+			succs[i] = toArray(dsts);
+			for (int dst : succs[i]) {
+				predLists.get(dst).add(i);
+			}
+		}
+		preds = new int[size][];
+		for (int i = 0; i < size; i++) {
+			preds[i] = toArray(predLists.get(i));
+		}
+
+		rank = new int[size];
+		pre = new int[size];
+		last = new int[size];
+		cold = new boolean[size];
+		headers = new TreeSet<>((a, b) -> Integer.compare(pre[a], pre[b]));
+		latches = new HashMap<>();
+		loopOf = new int[size];
+		parentLoop = new int[size];
+		placed = new boolean[size];
+		Arrays.fill(pre, -1);
+		Arrays.fill(loopOf, -1);
+		Arrays.fill(parentLoop, -1);
+
+		search();
+		findLoops();
+	}
+
+	private static int[] toArray(Collection<Integer> c) {
+		int[] arr = new int[c.size()];
+		int i = 0;
+		for (int x : c) {
+			arr[i++] = x;
+		}
+		return arr;
+	}
+
+	private void search() {
+		// the entry first, then whatever only the handlers lead to
+		int preCount = 0, rankCount = 0;
+		boolean[] onStack = new boolean[size];
+		for (int root = 0; root < size; root++) {
+			if (pre[root] != -1) {
+				continue;
+			}
+			List<Integer> post = new ArrayList<>();
+			Deque<int[]> stack = new ArrayDeque<>();
+			pre[root] = preCount++;
+			onStack[root] = true;
+			cold[root] = root != 0;
+			stack.push(new int[] { root, 0 });
+			while (!stack.isEmpty()) {
+				int[] top = stack.peek();
+				int n = top[0];
+				if (top[1] < succs[n].length) {
+					int s = succs[n][top[1]++];
+					if (pre[s] == -1) {
+						pre[s] = preCount++;
+						onStack[s] = true;
+						cold[s] = root != 0;
+						stack.push(new int[] { s, 0 });
+					} else if (onStack[s]) {
+						headers.add(s);
+						latches.computeIfAbsent(s, k -> new ArrayList<>()).add(n);
+					}
+				} else {
+					stack.pop();
+					onStack[n] = false;
+					last[n] = preCount - 1;
+					post.add(n);
+				}
+			}
+			for (int i = post.size() - 1; i >= 0; i--) {
+				rank[post.get(i)] = rankCount++;
+			}
+		}
+	}
+
+	private void findLoops() {
+		// outer loops have their headers found first, so the inner ones overwrite them in loopOf
+		for (int h : headers) {
+			parentLoop[h] = loopOf[h];
+			Deque<Integer> worklist = new ArrayDeque<>(latches.get(h));
+			Set<Integer> body = new HashSet<>();
+			body.add(h);
+			while (!worklist.isEmpty()) {
+				int b = worklist.pop();
+				// not below the header: a second way into an irreducible loop
+				if (pre[b] < pre[h] || pre[b] > last[h] || !body.add(b)) {
+					continue;
+				}
+				for (int p : preds[b]) {
+					worklist.push(p);
+				}
+			}
+			for (int b : body) {
+				loopOf[b] = h;
+			}
+		}
+	}
+
+	/**
+	 * @return the indices of the bundles in the order they should be dumped in.
+	 */
+	int[] layout() {
+		Map<Integer, Cursor> loops = new HashMap<>();
+		Cursor global = new Cursor();
+		for (int i = 0; i < size; i++) {
+			global.add(i);
+			for (int l = loopOf[i]; l != -1; l = parentLoop[l]) {
+				loops.computeIfAbsent(l, k -> new Cursor()).add(i);
+			}
+		}
+		global.sort();
+		loops.values().forEach(Cursor::sort);
+
+		int[] order = new int[size];
+		int cur = 0;
+		for (int i = 0; i < size; i++) {
+			order[i] = cur;
+			placed[cur] = true;
+			if (i + 1 < size) {
+				cur = next(cur, loops, global);
+				// a group is always started from its first bundle
+				if (groupOf[cur] != -1) {
+					cur = groupCursors.get(groupOf[cur]).next();
+				}
+			}
+		}
+		return order;
+	}
+
+	private int next(int prev, Map<Integer, Cursor> loops, Cursor global) {
+		if (groupOf[prev] != -1 && groupCursors.get(groupOf[prev]).hasNext()) {
+			return groupCursors.get(groupOf[prev]).next();
+		}
+
+		int target = gotoTargets[prev] != -1 && !placed[gotoTargets[prev]] ? gotoTargets[prev] : -1;
+		for (int l = loopOf[prev]; l != -1; l = parentLoop[l]) {
+			Cursor loop = loops.get(l);
+			if (loop.hasNext()) {
+				return target != -1 && inLoop(target, l) ? target : loop.next();
+			}
+		}
+
+		if (target != -1 && (!cold[target] || cold[prev])) {
+			return target;
+		}
+		return global.next();
+	}
+
+	private boolean inLoop(int b, int loop) {
+		for (int l = loopOf[b]; l != -1; l = parentLoop[l]) {
+			if (l == loop) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/* the bundles of a region in reverse postorder, skipping over the ones already placed. */
+	private class Cursor extends ArrayList<Integer> {
+		private static final long serialVersionUID = 1L;
+		private int pos;
+
+		void sort() {
+			sort((a, b) -> Integer.compare(rank[a], rank[b]));
+		}
+
+		boolean hasNext() {
+			while (pos < size() && placed[get(pos)]) {
+				pos++;
+			}
+			return pos < size();
+		}
+
+		int next() {
+			hasNext();
+			return get(pos);
+		}
+	}
+}
@@ -1,39 +1,56 @@
 package org.mapleir.ir.codegen;
 
+import org.mapleir.app.service.ClassTree;
 import org.mapleir.flowgraph.ExceptionRange;
 import org.mapleir.flowgraph.edges.FlowEdge;
 import org.mapleir.flowgraph.edges.FlowEdges;
 import org.mapleir.flowgraph.edges.ImmediateEdge;
+import org.mapleir.flowgraph.edges.TryCatchEdge;
 import org.mapleir.flowgraph.edges.UnconditionalJumpEdge;
 import org.mapleir.ir.TypeUtils;
 import org.mapleir.ir.cfg.BasicBlock;
 import org.mapleir.ir.cfg.ControlFlowGraph;
 import org.mapleir.ir.code.Stmt;
 import org.mapleir.ir.code.stmt.UnconditionalJumpStmt;
-import org.mapleir.stdlib.collections.graph.*;
 import org.mapleir.stdlib.collections.graph.algorithms.SimpleDfs;
-import org.mapleir.stdlib.collections.graph.algorithms.TarjanSCC;
 import org.mapleir.stdlib.collections.list.IndexedList;
 import org.objectweb.asm.Label;
+import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FrameNode;
 import org.objectweb.asm.tree.LabelNode;
 import org.mapleir.asm.MethodNode;
 import org.objectweb.asm.tree.TryCatchBlockNode;
 
+import java.lang.reflect.Modifier;
 import java.util.*;
 
+/**
+ * Lowers a graph that has been taken out of SSA back into the instructions of its method. The max
+ * stack and max locals are always set. If a {@link ClassTree} is given, the StackMapTable frames
+ * are emitted as well (for class versions that use them), worked out from the IR by a
+ * {@link FrameComputer}, so the class can be written without having ASM compute anything. Methods
+ * whose frames can't be worked out are left without any.
+ */
 public class ControlFlowGraphDumper implements BytecodeFrontend {
 	private final ControlFlowGraph cfg;
 	private final MethodNode m;
+	private final ClassTree tree;
 
 	private IndexedList<BasicBlock> order;
 	private LabelNode terminalLabel; // synthetic last label for malformed ranges
 	private Map<BasicBlock, LabelNode> labels;
+	private FrameComputer frames;
 
 	public ControlFlowGraphDumper(ControlFlowGraph cfg, MethodNode m) {
+		this(cfg, m, null);
+	}
+
+	public ControlFlowGraphDumper(ControlFlowGraph cfg, MethodNode m, ClassTree tree) {
 		this.cfg = cfg;
 		this.m = m;
+		this.tree = tree;
 	}
 	
 	public void dump() {
@@ -56,16 +73,42 @@ public class ControlFlowGraphDumper implements BytecodeFrontend {
 		// Sanity check linearization
 		verifyOrdering();
 
+		Set<BasicBlock> handlers = new HashSet<>();
+		for (ExceptionRange<BasicBlock> er : cfg.getRanges()) {
+			handlers.add(er.getHandler());
+		}
+
 		// Dump code
+		int paramSlots = (Type.getArgumentsAndReturnSizes(m.getDesc()) >> 2) - (Modifier.isStatic(m.node.access) ? 1 : 0);
+		MaxsCounter counter = new MaxsCounter(m.node, paramSlots);
+		Set<BasicBlock> emptyBlocks = new HashSet<>();
+		boolean balanced = true;
+		BasicBlock prev = null;
 		for (BasicBlock b : order) {
 			m.node.visitLabel(getLabel(b));
+			if (handlers.contains(b)) {
+				counter.enterBlock(1);
+			} else {
+				counter.enterBlock(prev != null && cfg.getImmediate(prev) == b ? counter.getDepth() : 0);
+			}
+			int start = counter.getInsnCount();
 			for (Stmt stmt : b) {
-				stmt.toCode(m.node, this);
+				stmt.toCode(counter, this);
+			}
+			if (counter.getInsnCount() == start) {
+				emptyBlocks.add(b);
 			}
+			// frames assume nothing is left on the stack between blocks
+			balanced &= counter.getDepth() == 0;
+			prev = b;
 		}
 		terminalLabel = new LabelNode();
 		m.node.visitLabel(terminalLabel.getLabel());
 
+		if (tree != null && balanced && m.owner != null && (m.owner.node.version & 0xFFFF) >= Opcodes.V1_6) {
+			frames = new FrameComputer(cfg, m, tree, counter.getMaxLocals());
+		}
+
 		// Dump ranges
 		for (ExceptionRange<BasicBlock> er : cfg.getRanges()) {
 			dumpRange(er);
@@ -73,55 +116,112 @@ public class ControlFlowGraphDumper implements BytecodeFrontend {
 		
 		// Sanity check
 		verifyRanges();
-		
+
+		if (frames != null && frames.compute()) {
+			dumpFrames(handlers, emptyBlocks);
+		}
+		frames = null;
+
+		m.node.visitMaxs(counter.getMaxStack(), counter.getMaxLocals());
 		m.node.visitEnd();
 	}
+
+	private void dumpFrames(Set<BasicBlock> handlers, Set<BasicBlock> emptyBlocks) {
+		// build them all first, the method is left without frames if any of them can't be placed
+		Map<LabelNode, FrameNode> frameNodes = new LinkedHashMap<>();
+		boolean pending = false;
+		for (int i = 0; i < order.size(); i++) {
+			BasicBlock b = order.get(i);
+			if (!pending && !needsFrame(i, handlers)) {
+				continue;
+			}
+			if (emptyBlocks.contains(b)) {
+				// at the same offset as the block it falls through to, which takes the frame
+				if (handlers.contains(b) || i + 1 == order.size()) {
+					return;
+				}
+				pending = true;
+				continue;
+			}
+			if (pending && handlers.contains(b)) {
+				return;
+			}
+			pending = false;
+
+			List<Object> locals = frames.getFrameLocals(b);
+			String handlerType = frames.getHandlerType(b);
+			Object[] stack = handlerType != null ? new Object[] { handlerType } : new Object[0];
+			// the method node keeps its own LabelNode for each Label it's given
+			frameNodes.put((LabelNode) getLabel(b).info, new FrameNode(Opcodes.F_NEW, locals.size(), locals.toArray(), stack.length, stack));
+		}
+		for (Map.Entry<LabelNode, FrameNode> e : frameNodes.entrySet()) {
+			m.node.instructions.insert(e.getKey(), e.getValue());
+		}
+	}
+
+	private boolean needsFrame(int index, Set<BasicBlock> handlers) {
+		BasicBlock b = order.get(index);
+		if (handlers.contains(b)) {
+			return true;
+		}
+		if (index > 0 && cfg.getImmediate(order.get(index - 1)) != b) {
+			return true;
+		}
+		// jump targets
+		for (FlowEdge<BasicBlock> e : cfg.getReverseEdges(b)) {
+			if (!(e instanceof ImmediateEdge) && !(e instanceof TryCatchEdge)) {
+				return true;
+			}
+		}
+		return false;
+	}
 	
 	private void linearize() {
 		if (cfg.getEntries().size() != 1)
 			throw new IllegalStateException("CFG doesn't have exactly 1 entry");
 		BasicBlock entry = cfg.getEntries().iterator().next();
 		
-		// Build bundle graph
-		Map<BasicBlock, BlockBundle> bundles = new HashMap<>();
-		Map<BlockBundle, List<BlockBundle>> bunches = new HashMap<>();
-		
 		// Build bundles
+		Map<BasicBlock, Integer> bundleIds = new HashMap<>();
+		List<List<BasicBlock>> bundles = new ArrayList<>();
 		List<BasicBlock> topoorder = new SimpleDfs<>(cfg, entry, SimpleDfs.TOPO).getTopoOrder();
 		for (BasicBlock b : topoorder) {
-			if (bundles.containsKey(b)) // Already in a bundle
+			if (bundleIds.containsKey(b)) // Already in a bundle
 				continue;
 			
 			if (b.cfg.getIncomingImmediateEdge(b) != null) // Look for heads of bundles only
 				continue;
 			
-			BlockBundle bundle = new BlockBundle();
+			List<BasicBlock> bundle = new ArrayList<>();
 			while (b != null) {
 				bundle.add(b);
-				bundles.put(b, bundle);
+				bundleIds.put(b, bundles.size());
 				b = b.cfg.getImmediate(b);
 			}
-			
-			List<BlockBundle> bunch = new ArrayList<>();
-			bunch.add(bundle);
-			bunches.put(bundle, bunch);
+			bundles.add(bundle);
 		}
 		
 		// Group bundles by exception ranges
+		Map<Integer, List<Integer>> bunches = new HashMap<>();
+		for (int i = 0; i < bundles.size(); i++) {
+			bunches.put(i, new ArrayList<>(Collections.singletonList(i)));
+		}
 		for (ExceptionRange<BasicBlock> range : cfg.getRanges()) {
-			BlockBundle prevBundle = null;
+			Integer prevBundle = null;
 			for (BasicBlock b : range.getNodes()) {
-				BlockBundle curBundle = bundles.get(b);
+				Integer curBundle = bundleIds.get(b);
+				if (curBundle == null)
+					continue;
 				if (prevBundle == null) {
 					prevBundle = curBundle;
 					continue;
 				}
-				if (curBundle != prevBundle) {
-					List<BlockBundle> bunchA = bunches.get(prevBundle);
-					List<BlockBundle> bunchB = bunches.get(curBundle);
+				if (!curBundle.equals(prevBundle)) {
+					List<Integer> bunchA = bunches.get(prevBundle);
+					List<Integer> bunchB = bunches.get(curBundle);
 					if (bunchA != bunchB) {
 						bunchA.addAll(bunchB);
-						for (BlockBundle bundle : bunchB) {
+						for (int bundle : bunchB) {
 							bunches.put(bundle, bunchA);
 						}
 					}
@@ -129,81 +229,19 @@ public class ControlFlowGraphDumper implements BytecodeFrontend {
 				}
 			}
 		}
-		
-		// Rebuild bundles
-		bundles.clear();
-		for (Map.Entry<BlockBundle, List<BlockBundle>> e : bunches.entrySet()) {
-			BlockBundle bundle = e.getKey();
-			if (bundles.containsKey(bundle.getFirst()))
-				continue;
-			BlockBundle bunch = new BlockBundle();
-			e.getValue().forEach(bunch::addAll);
-			for (BasicBlock b : bunch)
-				bundles.put(b, bunch);
+		Set<List<Integer>> groups = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (List<Integer> bunch : bunches.values()) {
+			if (bunch.size() > 1)
+				groups.add(bunch);
 		}
 		
-		// Connect bundle graph
-		BundleGraph bundleGraph = new BundleGraph();
-		BlockBundle entryBundle = bundles.get(entry);
-		bundleGraph.addVertex(entryBundle);
-		for (BasicBlock b : topoorder) {
-			for (FlowEdge<BasicBlock> e : cfg.getEdges(b)) {
-				if (e instanceof ImmediateEdge)
-					continue;
-				BlockBundle src = bundles.get(b);
-				bundleGraph.addEdge(new FastGraphEdgeImpl<>(src, bundles.get(e.dst())));
-			}
-		}
-		
-		// Linearize & flatten
+		// Lay out & flatten
 		order = new IndexedList<>();
-		Set<BlockBundle> bundlesSet = new HashSet<>(bundles.values()); // for efficiency
-		ControlFlowGraphDumper.linearize(bundlesSet, bundleGraph, entryBundle).forEach(order::addAll);
-	}
-	
-	// Recursively apply Tarjan's SCC algorithm
-	private static List<BlockBundle> linearize(Collection<BlockBundle> bundles, BundleGraph fullGraph, BlockBundle entryBundle) {
-		BundleGraph subgraph = GraphUtils.inducedSubgraph(fullGraph, bundles, BundleGraph::new);
-
-		// Experimental: kill backedges
-		for (FastGraphEdge<BlockBundle> e : new HashSet<>(subgraph.getReverseEdges(entryBundle))) {
-			subgraph.removeEdge(e);
+		for (int i : new BlockLayout(cfg, bundles, groups).layout()) {
+			order.addAll(bundles.get(i));
 		}
-		
-		// Find SCCs
-		TarjanSCC<BlockBundle> sccComputor = new TarjanSCC<>(subgraph);
-		sccComputor.search(entryBundle);
-		for(BlockBundle b : bundles) {
-			if(sccComputor.low(b) == -1) {
-				sccComputor.search(b);
-			}
-		}
-		
-		// Flatten
-		List<BlockBundle> order = new ArrayList<>();
-		List<List<BlockBundle>> components = sccComputor.getComponents();
-		if (components.size() == 1)
-			order.addAll(components.get(0));
-		else for (List<BlockBundle> scc : components) // Recurse
-			order.addAll(linearize(scc, subgraph, chooseEntry(subgraph, scc)));
-		return order;
 	}
 	
-	private static BlockBundle chooseEntry(BundleGraph graph, List<BlockBundle> scc) {
-		Set<BlockBundle> sccSet = new HashSet<>(scc);
-		Set<BlockBundle> candidates = new HashSet<>(scc);
-		candidates.removeIf(bundle -> { // No incoming edges from within the SCC.
-			for (FastGraphEdge<BlockBundle> e : graph.getReverseEdges(bundle)) {
-				if (sccSet.contains(e.src()))
-					return true;
-			}
-			return false;
-		});
-		if (candidates.isEmpty())
-			return scc.get(0);
-		return candidates.iterator().next();
-	}
-
 	private void naturalise() {
 		for (int i = 0; i < order.size(); i++) {
 			BasicBlock b = order.get(i);
@@ -256,8 +294,16 @@ public class ControlFlowGraphDumper implements BytecodeFrontend {
 		Type type;
 		Set<Type> typeSet = er.getTypes();
 		if (typeSet.size() != 1) {
-			// TODO: find base exception
-			type = TypeUtils.THROWABLE;
+			if (tree != null && !typeSet.isEmpty()) {
+				String base = null;
+				for (Type t : typeSet) {
+					base = base == null ? t.getInternalName() : tree.getCommonSuperClass(base, t.getInternalName());
+				}
+				// the fold gives java/lang/Object when a type can't be found, which the verifier rejects
+				type = tree.isSubtype(base, TypeUtils.THROWABLE.getInternalName()) ? Type.getObjectType(base) : TypeUtils.THROWABLE;
+			} else {
+				type = TypeUtils.THROWABLE;
+			}
 		} else {
 			type = typeSet.iterator().next();
 		}
@@ -277,6 +323,10 @@ public class ControlFlowGraphDumper implements BytecodeFrontend {
 			orderIdx = order.indexOf(b);
 			start = getLabel(b);
 		} while (orderIdx == -1);
+
+		if (frames != null) {
+			frames.addRange(er, type);
+		}
 		
 		for (;;) {
 			// check for endpoints
@@ -339,50 +389,4 @@ public class ControlFlowGraphDumper implements BytecodeFrontend {
 	public ControlFlowGraph getGraph() {
 		return cfg;
 	}
-
-	private static class BundleGraph extends FastDirectedGraph<BlockBundle, FastGraphEdge<BlockBundle>> { }
-	@SuppressWarnings("serial")
-	private static class BlockBundle extends ArrayList<BasicBlock> implements FastGraphVertex {
-		private BasicBlock first = null;
-		
-		private BasicBlock getFirst() {
-			if (first == null)
-				first = get(0);
-			return first;
-		}
-		
-		@Override
-		public String getDisplayName() {
-			return getFirst().getDisplayName();
-		}
-		
-		@Override
-		public int getNumericId() {
-			return getFirst().getNumericId();
-		}
-		
-		@Override
-		public String toString() {
-			StringBuilder s = new StringBuilder();
-			for (Iterator<BasicBlock> it = this.iterator(); it.hasNext(); ) {
-				BasicBlock b = it.next();
-				s.append(b.getDisplayName());
-				if (it.hasNext())
-					s.append("->");
-			}
-			return s.toString();
-		}
-		
-		@Override
-		public int hashCode() {
-			return getFirst().hashCode();
-		}
-		
-		@Override
-		public boolean equals(Object o) {
-			if (!(o instanceof BlockBundle))
-				return false;
-			return ((BlockBundle) o).getFirst().equals(getFirst());
-		}
-	}
 }
@@ -0,0 +1,374 @@
+package org.mapleir.ir.codegen;
+
+import java.lang.reflect.Modifier;
+import java.util.*;
+
+import org.mapleir.app.service.ClassTree;
+import org.mapleir.asm.MethodNode;
+import org.mapleir.flowgraph.ExceptionRange;
+import org.mapleir.flowgraph.edges.FlowEdge;
+import org.mapleir.flowgraph.edges.TryCatchEdge;
+import org.mapleir.ir.TypeUtils.ArrayType;
+import org.mapleir.ir.cfg.BasicBlock;
+import org.mapleir.ir.cfg.ControlFlowGraph;
+import org.mapleir.ir.code.Expr;
+import org.mapleir.ir.code.Opcode;
+import org.mapleir.ir.code.Stmt;
+import org.mapleir.ir.code.expr.ArrayLoadExpr;
+import org.mapleir.ir.code.expr.ConstantExpr;
+import org.mapleir.ir.code.expr.VarExpr;
+import org.mapleir.ir.code.expr.invoke.InvocationExpr;
+import org.mapleir.ir.code.stmt.copy.CopyVarStmt;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * Works out the verifier's view of the locals at the start of every block of a graph that has been
+ * taken out of SSA and had its locals allocated, so that the dumper can emit the StackMapTable
+ * frames itself instead of having ASM analyse the bytecode again.
+ * <p>
+ * Statements don't leave anything on the operand stack, so the stack is empty at the start of each
+ * block except for handlers, where it holds the caught exception, and only local stores change the
+ * locals. The type of each stored value is taken from the IR following the verifier's typing rules
+ * (the type of a loaded local is the type it was last stored with, not the declared type of the
+ * variable) and the states are merged at join points, with reference types joined through the
+ * {@link ClassTree}. Types are represented the way ASM expects them in expanded frames.
+ * <p>
+ * Values the IR doesn't type precisely enough, such as objects allocated separately from their
+ * constructor call, make {@link #compute()} give up, in which case the method has to be written
+ * with computed frames.
+ */
+public class FrameComputer {
+
+	private static final String OBJECT = "java/lang/Object";
+
+	private final ControlFlowGraph cfg;
+	private final MethodNode method;
+	private final ClassTree tree;
+	private final int maxLocals;
+
+	/* the handlers protecting each block and the type of the exception each handler receives. */
+	private final Map<BasicBlock, List<BasicBlock>> handlers;
+	private final Map<BasicBlock, String> handlerTypes;
+	private final Map<BasicBlock, Object[]> in;
+	private final Deque<BasicBlock> worklist;
+	private final Set<BasicBlock> queued;
+
+	public FrameComputer(ControlFlowGraph cfg, MethodNode method, ClassTree tree, int maxLocals) {
+		this.cfg = cfg;
+		this.method = method;
+		this.tree = tree;
+		this.maxLocals = maxLocals;
+		handlers = new HashMap<>();
+		handlerTypes = new HashMap<>();
+		in = new HashMap<>();
+		worklist = new ArrayDeque<>();
+		queued = new HashSet<>();
+	}
+
+	/**
+	 * Registers an exception range as it was dumped. Ranges that weren't dumped mustn't be added.
+	 */
+	public void addRange(ExceptionRange<BasicBlock> er, Type type) {
+		BasicBlock handler = er.getHandler();
+		String prev = handlerTypes.get(handler);
+		handlerTypes.put(handler, prev == null ? type.getInternalName() : merge(prev, type.getInternalName()));
+		for (BasicBlock b : er.getNodes()) {
+			List<BasicBlock> list = handlers.computeIfAbsent(b, k -> new ArrayList<>());
+			if (!list.contains(handler)) {
+				list.add(handler);
+			}
+		}
+	}
+
+	/**
+	 * @return whether the states of every block could be computed.
+	 */
+	public boolean compute() {
+		BasicBlock entry = cfg.getEntries().iterator().next();
+		mergeInto(entry, initialState());
+
+		while (!worklist.isEmpty()) {
+			BasicBlock b = worklist.poll();
+			queued.remove(b);
+
+			Object[] state = in.get(b).clone();
+			List<BasicBlock> protectors = handlers.getOrDefault(b, Collections.emptyList());
+			for (Stmt stmt : b) {
+				for (BasicBlock h : protectors) {
+					mergeInto(h, state);
+				}
+				if (!execute(b, stmt, state)) {
+					return false;
+				}
+			}
+			for (BasicBlock h : protectors) {
+				mergeInto(h, state);
+			}
+
+			for (FlowEdge<BasicBlock> e : cfg.getEdges(b)) {
+				if (!(e instanceof TryCatchEdge)) {
+					mergeInto(e.dst(), state);
+				}
+			}
+		}
+
+		return in.size() == cfg.size();
+	}
+
+	/**
+	 * @return the types of the locals at the start of the block, with long and double values taking
+	 *         up two slots, the second of which is {@link Opcodes#TOP}.
+	 */
+	public Object[] getLocals(BasicBlock b) {
+		return in.get(b);
+	}
+
+	/**
+	 * @return the type on the stack at the start of the block if it's a handler, otherwise null.
+	 */
+	public String getHandlerType(BasicBlock b) {
+		return handlerTypes.get(b);
+	}
+
+	/**
+	 * @return the frame locals of the block in the compressed form used by expanded frames, where a
+	 *         long or double is a single element and trailing unused slots are left out.
+	 */
+	public List<Object> getFrameLocals(BasicBlock b) {
+		Object[] state = in.get(b);
+		List<Object> res = new ArrayList<>();
+		int last = 0;
+		for (int i = 0; i < state.length; i++) {
+			Object t = state[i];
+			res.add(t);
+			if (t != Opcodes.TOP) {
+				last = res.size();
+			}
+			if (t == Opcodes.LONG || t == Opcodes.DOUBLE) {
+				i++;
+			}
+		}
+		return res.subList(0, last);
+	}
+
+	private Object[] initialState() {
+		Object[] state = new Object[maxLocals];
+		Arrays.fill(state, Opcodes.TOP);
+		int i = 0;
+		if (!Modifier.isStatic(method.node.access)) {
+			String owner = method.getOwner();
+			boolean uninit = method.getName().equals("<init>") && !owner.equals(OBJECT);
+			state[i++] = uninit ? Opcodes.UNINITIALIZED_THIS : owner;
+		}
+		for (Type arg : Type.getArgumentTypes(method.getDesc())) {
+			state[i] = fromType(arg);
+			i += arg.getSize();
+		}
+		return state;
+	}
+
+	private void mergeInto(BasicBlock b, Object[] state) {
+		Object[] cur = in.get(b);
+		boolean changed = false;
+		if (cur == null) {
+			in.put(b, state.clone());
+			changed = true;
+		} else {
+			for (int i = 0; i < cur.length; i++) {
+				Object t = merge(cur[i], state[i]);
+				if (!t.equals(cur[i])) {
+					cur[i] = t;
+					changed = true;
+				}
+			}
+		}
+		if (changed && queued.add(b)) {
+			worklist.add(b);
+		}
+	}
+
+	private boolean execute(BasicBlock b, Stmt stmt, Object[] state) {
+		int opcode = stmt.getOpcode();
+		if (opcode == Opcode.PHI_STORE) {
+			return false;
+		}
+		boolean init = initialisesThis(b, stmt, state);
+
+		if (opcode == Opcode.LOCAL_STORE) {
+			CopyVarStmt copy = (CopyVarStmt) stmt;
+			VarExpr var = copy.getVariable();
+			Expr e = copy.getExpression();
+			if (!(e instanceof VarExpr && ((VarExpr) e).getLocal() == var.getLocal())) {
+				/* primitives are converted to the type of the variable before they're stored. */
+				Type varType = var.getType();
+				Object t = varType.getSort() <= Type.DOUBLE ? fromType(varType) : typeOf(b, e, state);
+				if (t == null || t == Opcodes.TOP) {
+					return false;
+				}
+				if (init) {
+					initialise(state);
+					if (t == Opcodes.UNINITIALIZED_THIS) {
+						t = method.getOwner();
+					}
+				}
+				store(state, var.getLocal().getCodeIndex(), t);
+				return true;
+			}
+		}
+		if (init) {
+			initialise(state);
+		}
+		return true;
+	}
+
+	private static void store(Object[] state, int index, Object t) {
+		if (index > 0 && (state[index - 1] == Opcodes.LONG || state[index - 1] == Opcodes.DOUBLE)) {
+			state[index - 1] = Opcodes.TOP;
+		}
+		state[index] = t;
+		if (t == Opcodes.LONG || t == Opcodes.DOUBLE) {
+			state[index + 1] = Opcodes.TOP;
+		}
+	}
+
+	private boolean initialisesThis(BasicBlock b, Stmt stmt, Object[] state) {
+		for (Expr e : stmt.enumerateOnlyChildren()) {
+			if (e.getOpcode() == Opcode.INVOKE && e instanceof InvocationExpr) {
+				InvocationExpr invoke = (InvocationExpr) e;
+				if (invoke.getCallType() == InvocationExpr.CallType.SPECIAL && invoke.getName().equals("<init>")
+						&& typeOf(b, invoke.getPhysicalReceiver(), state) == Opcodes.UNINITIALIZED_THIS) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private void initialise(Object[] state) {
+		for (int i = 0; i < state.length; i++) {
+			if (state[i] == Opcodes.UNINITIALIZED_THIS) {
+				state[i] = method.getOwner();
+			}
+		}
+	}
+
+	/* the type the verifier gives the value of an expression, or null if it can't be told. */
+	private Object typeOf(BasicBlock b, Expr e, Object[] state) {
+		switch (e.getOpcode()) {
+			case Opcode.LOCAL_LOAD: {
+				int index = ((VarExpr) e).getLocal().getCodeIndex();
+				return index < state.length ? state[index] : null;
+			}
+			case Opcode.CONST_LOAD: {
+				Object cst = ((ConstantExpr) e).getConstant();
+				if (cst == null) {
+					return Opcodes.NULL;
+				} else if (cst instanceof String) {
+					return "java/lang/String";
+				} else if (cst instanceof Type) {
+					return ((Type) cst).getSort() == Type.METHOD ? "java/lang/invoke/MethodType" : "java/lang/Class";
+				} else if (cst instanceof Handle) {
+					return "java/lang/invoke/MethodHandle";
+				} else {
+					return fromType(e.getType());
+				}
+			}
+			case Opcode.ARRAY_LOAD: {
+				ArrayLoadExpr load = (ArrayLoadExpr) e;
+				if (load.getArrayType() != ArrayType.OBJECT) {
+					return fromType(load.getType());
+				}
+				/* the element type comes from the array reference. */
+				Object array = typeOf(b, load.getArrayExpression(), state);
+				if (array == Opcodes.NULL) {
+					return Opcodes.NULL;
+				} else if (array instanceof String && ((String) array).startsWith("[")) {
+					return fromType(Type.getType(((String) array).substring(1)));
+				} else {
+					return null;
+				}
+			}
+			case Opcode.CATCH:
+				return handlerTypes.get(b);
+			case Opcode.ALLOC_OBJ:
+			case Opcode.PHI:
+			case Opcode.EPHI:
+				return null;
+			default:
+				return fromType(e.getType());
+		}
+	}
+
+	private static Object fromType(Type type) {
+		switch (type.getSort()) {
+			case Type.BOOLEAN:
+			case Type.CHAR:
+			case Type.BYTE:
+			case Type.SHORT:
+			case Type.INT:
+				return Opcodes.INTEGER;
+			case Type.FLOAT:
+				return Opcodes.FLOAT;
+			case Type.LONG:
+				return Opcodes.LONG;
+			case Type.DOUBLE:
+				return Opcodes.DOUBLE;
+			case Type.ARRAY:
+				return type.getDescriptor();
+			case Type.OBJECT:
+				return type.getInternalName();
+			default:
+				return null;
+		}
+	}
+
+	private Object merge(Object t1, Object t2) {
+		if (t1.equals(t2)) {
+			return t1;
+		}
+		boolean ref1 = t1 instanceof String || t1 == Opcodes.NULL;
+		boolean ref2 = t2 instanceof String || t2 == Opcodes.NULL;
+		if (!ref1 || !ref2) {
+			return Opcodes.TOP;
+		} else if (t1 == Opcodes.NULL) {
+			return t2;
+		} else if (t2 == Opcodes.NULL) {
+			return t1;
+		} else {
+			return merge((String) t1, (String) t2);
+		}
+	}
+
+	private String merge(String t1, String t2) {
+		if (t1.equals(t2)) {
+			return t1;
+		}
+		boolean array1 = t1.startsWith("["), array2 = t2.startsWith("[");
+		if (!array1 && !array2) {
+			return tree.getCommonSuperClass(t1, t2);
+		} else if (!array1 || !array2) {
+			return OBJECT;
+		}
+
+		Type type1 = Type.getType(t1), type2 = Type.getType(t2);
+		int dims1 = type1.getDimensions(), dims2 = type2.getDimensions();
+		Type elem1 = type1.getElementType(), elem2 = type2.getElementType();
+		boolean refs1 = elem1.getSort() == Type.OBJECT, refs2 = elem2.getSort() == Type.OBJECT;
+		if (dims1 == dims2 && refs1 && refs2) {
+			return arrayOf(dims1, merge(elem1.getInternalName(), elem2.getInternalName()));
+		}
+		/* otherwise they're both arrays of however many dimensions of objects they have in common. */
+		int dims = Math.min(refs1 ? dims1 : dims1 - 1, refs2 ? dims2 : dims2 - 1);
+		return dims > 0 ? arrayOf(dims, OBJECT) : OBJECT;
+	}
+
+	private static String arrayOf(int dims, String elem) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < dims; i++) {
+			sb.append('[');
+		}
+		return sb.append('L').append(elem).append(';').toString();
+	}
+}
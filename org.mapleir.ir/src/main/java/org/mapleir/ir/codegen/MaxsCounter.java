@@ -0,0 +1,327 @@
+package org.mapleir.ir.codegen;
+
+import org.objectweb.asm.ConstantDynamic;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * Passes code through to another visitor while keeping track of the operand stack depth and the
+ * highest local slot used, so that the max stack and max locals of a method can be worked out as
+ * it's being dumped.
+ * <p>
+ * Depth is only tracked along straight-line code. The dumper sets the depth at the start of every
+ * block with {@link #enterBlock(int)}, which is enough as the IR doesn't keep values on the stack
+ * between statements.
+ */
+public class MaxsCounter extends MethodVisitor implements Opcodes {
+
+	private int depth;
+	private int maxStack;
+	private int maxLocals;
+	private int insnCount;
+
+	public MaxsCounter(MethodVisitor mv, int paramSlots) {
+		super(ASM7, mv);
+		maxLocals = paramSlots;
+	}
+
+	public void enterBlock(int depth) {
+		this.depth = depth;
+		maxStack = Math.max(maxStack, depth);
+	}
+
+	/**
+	 * @return the stack depth after the last instruction visited.
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	public int getMaxStack() {
+		return maxStack;
+	}
+
+	public int getMaxLocals() {
+		return maxLocals;
+	}
+
+	/**
+	 * @return the number of instructions visited so far, not counting labels.
+	 */
+	public int getInsnCount() {
+		return insnCount;
+	}
+
+	private void push(int n) {
+		insnCount++;
+		depth += n;
+		if (depth > maxStack) {
+			maxStack = depth;
+		}
+	}
+
+	private void local(int var, int size) {
+		maxLocals = Math.max(maxLocals, var + size);
+	}
+
+	@Override
+	public void visitInsn(int opcode) {
+		push(insnDelta(opcode));
+		super.visitInsn(opcode);
+	}
+
+	@Override
+	public void visitIntInsn(int opcode, int operand) {
+		push(opcode == NEWARRAY ? 0 : 1);
+		super.visitIntInsn(opcode, operand);
+	}
+
+	@Override
+	public void visitVarInsn(int opcode, int var) {
+		switch (opcode) {
+			case ILOAD:
+			case FLOAD:
+			case ALOAD:
+				push(1);
+				local(var, 1);
+				break;
+			case LLOAD:
+			case DLOAD:
+				push(2);
+				local(var, 2);
+				break;
+			case ISTORE:
+			case FSTORE:
+			case ASTORE:
+				push(-1);
+				local(var, 1);
+				break;
+			case LSTORE:
+			case DSTORE:
+				push(-2);
+				local(var, 2);
+				break;
+			default:
+				push(0);
+				local(var, 1);
+				break;
+		}
+		super.visitVarInsn(opcode, var);
+	}
+
+	@Override
+	public void visitTypeInsn(int opcode, String type) {
+		push(opcode == NEW ? 1 : 0);
+		super.visitTypeInsn(opcode, type);
+	}
+
+	@Override
+	public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+		int size = Type.getType(desc).getSize();
+		switch (opcode) {
+			case GETSTATIC:
+				push(size);
+				break;
+			case PUTSTATIC:
+				push(-size);
+				break;
+			case GETFIELD:
+				push(size - 1);
+				break;
+			default:
+				push(-size - 1);
+				break;
+		}
+		super.visitFieldInsn(opcode, owner, name, desc);
+	}
+
+	@Override
+	public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+		/* argument sizes include the receiver. */
+		int sizes = Type.getArgumentsAndReturnSizes(desc);
+		int args = sizes >> 2;
+		if (opcode == INVOKESTATIC) {
+			args--;
+		}
+		push((sizes & 0x3) - args);
+		super.visitMethodInsn(opcode, owner, name, desc, itf);
+	}
+
+	@Override
+	public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+		int sizes = Type.getArgumentsAndReturnSizes(desc);
+		push((sizes & 0x3) - (sizes >> 2) + 1);
+		super.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
+	}
+
+	@Override
+	public void visitJumpInsn(int opcode, Label label) {
+		switch (opcode) {
+			case GOTO:
+				push(0);
+				break;
+			case JSR:
+				push(1);
+				break;
+			case IF_ICMPEQ:
+			case IF_ICMPNE:
+			case IF_ICMPLT:
+			case IF_ICMPGE:
+			case IF_ICMPGT:
+			case IF_ICMPLE:
+			case IF_ACMPEQ:
+			case IF_ACMPNE:
+				push(-2);
+				break;
+			default:
+				push(-1);
+				break;
+		}
+		super.visitJumpInsn(opcode, label);
+	}
+
+	@Override
+	public void visitLdcInsn(Object value) {
+		if (value instanceof Long || value instanceof Double) {
+			push(2);
+		} else if (value instanceof ConstantDynamic) {
+			push(((ConstantDynamic) value).getSize());
+		} else {
+			push(1);
+		}
+		super.visitLdcInsn(value);
+	}
+
+	@Override
+	public void visitIincInsn(int var, int increment) {
+		push(0);
+		local(var, 1);
+		super.visitIincInsn(var, increment);
+	}
+
+	@Override
+	public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+		push(-1);
+		super.visitTableSwitchInsn(min, max, dflt, labels);
+	}
+
+	@Override
+	public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+		push(-1);
+		super.visitLookupSwitchInsn(dflt, keys, labels);
+	}
+
+	@Override
+	public void visitMultiANewArrayInsn(String desc, int dims) {
+		push(1 - dims);
+		super.visitMultiANewArrayInsn(desc, dims);
+	}
+
+	/* stack effect of the instructions that don't take an operand. */
+	private static int insnDelta(int opcode) {
+		switch (opcode) {
+			case ACONST_NULL:
+			case ICONST_M1:
+			case ICONST_0:
+			case ICONST_1:
+			case ICONST_2:
+			case ICONST_3:
+			case ICONST_4:
+			case ICONST_5:
+			case FCONST_0:
+			case FCONST_1:
+			case FCONST_2:
+			case DUP:
+			case DUP_X1:
+			case DUP_X2:
+			case I2L:
+			case I2D:
+			case F2L:
+			case F2D:
+				return 1;
+			case LCONST_0:
+			case LCONST_1:
+			case DCONST_0:
+			case DCONST_1:
+			case DUP2:
+			case DUP2_X1:
+			case DUP2_X2:
+				return 2;
+			case IALOAD:
+			case FALOAD:
+			case AALOAD:
+			case BALOAD:
+			case CALOAD:
+			case SALOAD:
+			case POP:
+			case IADD:
+			case FADD:
+			case ISUB:
+			case FSUB:
+			case IMUL:
+			case FMUL:
+			case IDIV:
+			case FDIV:
+			case IREM:
+			case FREM:
+			case ISHL:
+			case LSHL:
+			case ISHR:
+			case LSHR:
+			case IUSHR:
+			case LUSHR:
+			case IAND:
+			case IOR:
+			case IXOR:
+			case L2I:
+			case L2F:
+			case D2I:
+			case D2F:
+			case FCMPL:
+			case FCMPG:
+			case IRETURN:
+			case FRETURN:
+			case ARETURN:
+			case ATHROW:
+			case MONITORENTER:
+			case MONITOREXIT:
+				return -1;
+			case POP2:
+			case LADD:
+			case DADD:
+			case LSUB:
+			case DSUB:
+			case LMUL:
+			case DMUL:
+			case LDIV:
+			case DDIV:
+			case LREM:
+			case DREM:
+			case LAND:
+			case LOR:
+			case LXOR:
+			case LRETURN:
+			case DRETURN:
+				return -2;
+			case IASTORE:
+			case FASTORE:
+			case AASTORE:
+			case BASTORE:
+			case CASTORE:
+			case SASTORE:
+			case LCMP:
+			case DCMPL:
+			case DCMPG:
+				return -3;
+			case LASTORE:
+			case DASTORE:
+				return -4;
+			default:
+				/* NOP, LALOAD, DALOAD, SWAP, negations, same size conversions, RETURN and ARRAYLENGTH. */
+				return 0;
+		}
+	}
+}
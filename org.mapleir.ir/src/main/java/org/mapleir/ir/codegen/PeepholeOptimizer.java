@@ -0,0 +1,580 @@
+package org.mapleir.ir.codegen;
+
+import org.mapleir.app.service.ApplicationClassSource;
+import org.mapleir.asm.ClassNode;
+import org.mapleir.asm.MethodNode;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.*;
+
+import java.util.*;
+
+/**
+ * Cleans up the instructions of methods that have been dumped by the {@link ControlFlowGraphDumper}
+ * by applying a table of local rewrite {@link Rule}s until none of them match anymore.
+ * <p>
+ * Every rule keeps the StackMapTable frames emitted by the dumper valid and never makes the stack
+ * any deeper, so the method can still be written without having ASM recompute anything. The number
+ * of rewrites made by each rule and the (estimated) code size before and after are collected across
+ * every method optimised, along with how many methods were brought under HotSpot's default inlining
+ * size limits.
+ */
+public class PeepholeOptimizer implements Opcodes {
+	/* -XX:MaxInlineSize and -XX:FreqInlineSize */
+	public static final int MAX_INLINE_SIZE = 35;
+	public static final int FREQ_INLINE_SIZE = 325;
+
+	public enum Rule {
+		/** goto to the instruction that follows anyway. */
+		GOTO_NEXT,
+		/** jumps and switches to a goto go straight to where the goto does. */
+		JUMP_THREADING,
+		/** goto to a return is replaced by the return. */
+		GOTO_RETURN,
+		/** store then load of a local that isn't used anywhere else leaves the value on the stack. */
+		STORE_LOAD,
+		/** the same local loaded twice in a row is loaded once and duplicated. */
+		LOAD_LOAD,
+		/** load then store of the same local. */
+		SELF_COPY,
+		/** a value that's pushed only to be popped. */
+		PUSH_POP,
+		/** dup followed by pop, possibly with a store in between. */
+		DUP_POP,
+		/** checkcast of a value that's known to have the type already. */
+		CHECKCAST
+	}
+
+	private final ApplicationClassSource app;
+	private final Set<Rule> rules;
+	private final Map<Rule, Integer> rewrites;
+	private int methods;
+	private long sizeBefore;
+	private long sizeAfter;
+	private int newlyUnderMaxInline;
+	private int newlyUnderFreqInline;
+
+	public PeepholeOptimizer(ApplicationClassSource app) {
+		this(app, EnumSet.allOf(Rule.class));
+	}
+
+	/**
+	 * @param app used to find out whether a checkcast to a supertype can go, may be null.
+	 * @param rules the rules to apply.
+	 */
+	public PeepholeOptimizer(ApplicationClassSource app, Set<Rule> rules) {
+		this.app = app;
+		this.rules = EnumSet.copyOf(rules);
+		rewrites = new EnumMap<>(Rule.class);
+	}
+
+	public void optimise(MethodNode m) {
+		InsnList insns = m.node.instructions;
+		if (insns.size() == 0) {
+			return;
+		}
+		int before = codeSize(insns);
+
+		boolean changed;
+		do {
+			changed = false;
+			int[] loads = countLoads(m.node);
+			for (AbstractInsnNode ain = insns.getFirst(); ain != null; ) {
+				AbstractInsnNode prev = ain.getPrevious();
+				boolean applied = false;
+				for (Rule r : rules) {
+					if (apply(r, m.node, ain, loads)) {
+						rewrites.merge(r, 1, Integer::sum);
+						changed = applied = true;
+						break;
+					}
+				}
+				if (applied) {
+					// the rules only ever touch the instruction given and the ones right after it
+					ain = prev != null ? prev.getNext() : insns.getFirst();
+				} else {
+					ain = ain.getNext();
+				}
+			}
+			removeDuplicateFrames(insns);
+		} while (changed);
+
+		int after = codeSize(insns);
+		methods++;
+		sizeBefore += before;
+		sizeAfter += after;
+		if (before > MAX_INLINE_SIZE && after <= MAX_INLINE_SIZE) {
+			newlyUnderMaxInline++;
+		}
+		if (before > FREQ_INLINE_SIZE && after <= FREQ_INLINE_SIZE) {
+			newlyUnderFreqInline++;
+		}
+	}
+
+	private boolean apply(Rule r, org.objectweb.asm.tree.MethodNode m, AbstractInsnNode ain, int[] loads) {
+		InsnList insns = m.instructions;
+		int op = ain.getOpcode();
+		switch (r) {
+			case GOTO_NEXT: {
+				if (op == GOTO && nextInsn(ain) == nextInsn(((JumpInsnNode) ain).label)) {
+					insns.remove(ain);
+					return true;
+				}
+				return false;
+			}
+			case JUMP_THREADING: {
+				boolean changed = false;
+				if (ain instanceof JumpInsnNode) {
+					JumpInsnNode jump = (JumpInsnNode) ain;
+					LabelNode target = threadedTarget(jump.label);
+					if (target != jump.label) {
+						jump.label = target;
+						changed = true;
+					}
+				} else if (ain instanceof TableSwitchInsnNode) {
+					TableSwitchInsnNode sw = (TableSwitchInsnNode) ain;
+					changed = threadTargets(sw.labels);
+					LabelNode dflt = threadedTarget(sw.dflt);
+					changed |= dflt != sw.dflt;
+					sw.dflt = dflt;
+				} else if (ain instanceof LookupSwitchInsnNode) {
+					LookupSwitchInsnNode sw = (LookupSwitchInsnNode) ain;
+					changed = threadTargets(sw.labels);
+					LabelNode dflt = threadedTarget(sw.dflt);
+					changed |= dflt != sw.dflt;
+					sw.dflt = dflt;
+				}
+				return changed;
+			}
+			case GOTO_RETURN: {
+				if (op != GOTO) {
+					return false;
+				}
+				LabelNode target = ((JumpInsnNode) ain).label;
+				AbstractInsnNode ret = nextInsn(target);
+				// return can still throw if the monitors aren't balanced, so the handlers have to match
+				if (ret != null && ret.getOpcode() == RETURN && sameHandlers(m, ain, ret)) {
+					insns.set(ain, new InsnNode(RETURN));
+					return true;
+				}
+				return false;
+			}
+			case STORE_LOAD: {
+				AbstractInsnNode next = nextAdjacent(ain);
+				if (op >= ISTORE && op <= ASTORE && next != null && next.getOpcode() == op - (ISTORE - ILOAD)) {
+					int var = ((VarInsnNode) ain).var;
+					if (((VarInsnNode) next).var == var && var < loads.length && loads[var] == 1) {
+						killLocal(m, var, ain);
+						insns.remove(next);
+						insns.remove(ain);
+						loads[var] = 0;
+						return true;
+					}
+				}
+				return false;
+			}
+			case LOAD_LOAD: {
+				AbstractInsnNode next = nextAdjacent(ain);
+				if (op >= ILOAD && op <= ALOAD && next != null && next.getOpcode() == op) {
+					int var = ((VarInsnNode) ain).var;
+					// the short forms are as small as a dup
+					if (((VarInsnNode) next).var == var && var > 3) {
+						insns.set(next, new InsnNode(op == LLOAD || op == DLOAD ? DUP2 : DUP));
+						loads[var]--;
+						return true;
+					}
+				}
+				return false;
+			}
+			case SELF_COPY: {
+				AbstractInsnNode next = nextAdjacent(ain);
+				if (op >= ILOAD && op <= ALOAD && next != null && next.getOpcode() == op + (ISTORE - ILOAD) && ((VarInsnNode) next).var == ((VarInsnNode) ain).var) {
+					loads[((VarInsnNode) ain).var]--;
+					insns.remove(next);
+					insns.remove(ain);
+					return true;
+				}
+				return false;
+			}
+			case PUSH_POP: {
+				AbstractInsnNode next = nextAdjacent(ain);
+				int size = pushSize(ain);
+				if (size != 0 && next != null && next.getOpcode() == (size == 1 ? POP : POP2)) {
+					if (ain instanceof VarInsnNode) {
+						loads[((VarInsnNode) ain).var]--;
+					}
+					insns.remove(next);
+					insns.remove(ain);
+					return true;
+				}
+				return false;
+			}
+			case DUP_POP: {
+				if (op != DUP && op != DUP2) {
+					return false;
+				}
+				int pop = op == DUP ? POP : POP2;
+				AbstractInsnNode next = nextAdjacent(ain);
+				if (next != null && next.getOpcode() == pop) {
+					insns.remove(next);
+					insns.remove(ain);
+					return true;
+				}
+				if (next != null && isStore(next, op == DUP ? 1 : 2)) {
+					AbstractInsnNode after = nextAdjacent(next);
+					if (after != null && after.getOpcode() == pop) {
+						insns.remove(after);
+						insns.remove(ain);
+						return true;
+					}
+				}
+				return false;
+			}
+			case CHECKCAST: {
+				if (op != Opcodes.CHECKCAST) {
+					return false;
+				}
+				String type = ((TypeInsnNode) ain).desc;
+				AbstractInsnNode prev = prevAdjacent(ain);
+				boolean redundant = type.equals("java/lang/Object");
+				if (!redundant && prev != null) {
+					switch (prev.getOpcode()) {
+						case ACONST_NULL:
+							redundant = true;
+							break;
+						case LDC:
+							redundant = ((LdcInsnNode) prev).cst instanceof String && type.equals("java/lang/String");
+							break;
+						case Opcodes.CHECKCAST:
+							redundant = isSubclass(((TypeInsnNode) prev).desc, type);
+							break;
+						case INVOKESPECIAL:
+							redundant = isNewObject(prev) && isSubclass(((MethodInsnNode) prev).owner, type);
+							break;
+					}
+				}
+				if (redundant) {
+					insns.remove(ain);
+					return true;
+				}
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/* new T; dup; T.<init>()V leaves the new T on the stack. an <init> call on its own leaves whatever
+	 * was under the receiver, e.g. for a super call, and the arguments of one that takes any could
+	 * have been made from anything. */
+	private static boolean isNewObject(AbstractInsnNode invoke) {
+		MethodInsnNode init = (MethodInsnNode) invoke;
+		if (!init.name.equals("<init>") || !init.desc.equals("()V")) {
+			return false;
+		}
+		AbstractInsnNode dup = prevAdjacent(init);
+		if (dup == null || dup.getOpcode() != DUP) {
+			return false;
+		}
+		AbstractInsnNode alloc = prevAdjacent(dup);
+		return alloc != null && alloc.getOpcode() == NEW && ((TypeInsnNode) alloc).desc.equals(init.owner);
+	}
+
+	private static AbstractInsnNode nextInsn(AbstractInsnNode ain) {
+		do {
+			ain = ain.getNext();
+		} while (ain != null && ain.getOpcode() == -1);
+		return ain;
+	}
+
+	/* the next instruction, provided that nothing can jump in between. */
+	private static AbstractInsnNode nextAdjacent(AbstractInsnNode ain) {
+		do {
+			ain = ain.getNext();
+		} while (ain != null && ain.getOpcode() == -1 && !(ain instanceof LabelNode));
+		return ain instanceof LabelNode ? null : ain;
+	}
+
+	private static AbstractInsnNode prevAdjacent(AbstractInsnNode ain) {
+		do {
+			ain = ain.getPrevious();
+		} while (ain != null && ain.getOpcode() == -1 && !(ain instanceof LabelNode));
+		return ain instanceof LabelNode ? null : ain;
+	}
+
+	private static LabelNode threadedTarget(LabelNode label) {
+		Set<LabelNode> seen = new HashSet<>();
+		for (;;) {
+			AbstractInsnNode target = nextInsn(label);
+			if (target == null || target.getOpcode() != GOTO || !seen.add(label)) {
+				return label;
+			}
+			LabelNode next = ((JumpInsnNode) target).label;
+			if (seen.contains(next)) {
+				// an infinite loop of gotos, leave it be
+				return label;
+			}
+			label = next;
+		}
+	}
+
+	private static boolean threadTargets(List<LabelNode> labels) {
+		boolean changed = false;
+		for (ListIterator<LabelNode> it = labels.listIterator(); it.hasNext(); ) {
+			LabelNode label = it.next();
+			LabelNode target = threadedTarget(label);
+			if (target != label) {
+				it.set(target);
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	private static boolean sameHandlers(org.objectweb.asm.tree.MethodNode m, AbstractInsnNode a, AbstractInsnNode b) {
+		if (m.tryCatchBlocks.isEmpty()) {
+			return true;
+		}
+		InsnList insns = m.instructions;
+		int ia = insns.indexOf(a), ib = insns.indexOf(b);
+		for (TryCatchBlockNode tc : m.tryCatchBlocks) {
+			int start = insns.indexOf(tc.start), end = insns.indexOf(tc.end);
+			if ((ia >= start && ia < end) != (ib >= start && ib < end)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int[] countLoads(org.objectweb.asm.tree.MethodNode m) {
+		int[] loads = new int[Math.max(m.maxLocals, 1) + 1];
+		for (AbstractInsnNode ain = m.instructions.getFirst(); ain != null; ain = ain.getNext()) {
+			int var;
+			if (ain instanceof VarInsnNode) {
+				int op = ain.getOpcode();
+				if (op >= ISTORE && op <= ASTORE) {
+					continue;
+				}
+				var = ((VarInsnNode) ain).var;
+			} else if (ain instanceof IincInsnNode) {
+				var = ((IincInsnNode) ain).var;
+			} else {
+				continue;
+			}
+			if (var >= loads.length) {
+				loads = Arrays.copyOf(loads, var + 1);
+			}
+			/* the local doesn't have to be read for its store to be needed,
+			 * e.g. by ret, so count anything that isn't a store. */
+			loads[var]++;
+		}
+		return loads;
+	}
+
+	/* the local is never read again: its other stores become pops and it's made unusable in every frame. */
+	private static void killLocal(org.objectweb.asm.tree.MethodNode m, int var, AbstractInsnNode keep) {
+		InsnList insns = m.instructions;
+		for (AbstractInsnNode ain = insns.getFirst(); ain != null; ) {
+			AbstractInsnNode next = ain.getNext();
+			int op = ain.getOpcode();
+			if (ain != keep && op >= ISTORE && op <= ASTORE && ((VarInsnNode) ain).var == var) {
+				insns.set(ain, new InsnNode(op == LSTORE || op == DSTORE ? POP2 : POP));
+			} else if (ain instanceof FrameNode && ((FrameNode) ain).local != null) {
+				killLocal(((FrameNode) ain).local, var);
+			}
+			ain = next;
+		}
+	}
+
+	private static void killLocal(List<Object> locals, int var) {
+		int slot = 0;
+		for (ListIterator<Object> it = locals.listIterator(); it.hasNext(); ) {
+			Object t = it.next();
+			if (slot == var) {
+				it.set(TOP);
+				if (t == LONG || t == DOUBLE) {
+					it.add(TOP);
+				}
+				return;
+			}
+			slot += t == LONG || t == DOUBLE ? 2 : 1;
+			if (slot > var) {
+				return;
+			}
+		}
+	}
+
+	/* frames that end up at the same offset: the last one is for the block the others fall into. */
+	private static void removeDuplicateFrames(InsnList insns) {
+		FrameNode last = null;
+		for (AbstractInsnNode ain = insns.getFirst(); ain != null; ) {
+			AbstractInsnNode next = ain.getNext();
+			if (ain instanceof FrameNode) {
+				if (last != null) {
+					insns.remove(last);
+				}
+				last = (FrameNode) ain;
+			} else if (ain.getOpcode() != -1) {
+				last = null;
+			}
+			ain = next;
+		}
+	}
+
+	private static int pushSize(AbstractInsnNode ain) {
+		int op = ain.getOpcode();
+		switch (op) {
+			case ACONST_NULL:
+			case ICONST_M1:
+			case ICONST_0:
+			case ICONST_1:
+			case ICONST_2:
+			case ICONST_3:
+			case ICONST_4:
+			case ICONST_5:
+			case FCONST_0:
+			case FCONST_1:
+			case FCONST_2:
+			case BIPUSH:
+			case SIPUSH:
+			case ILOAD:
+			case FLOAD:
+			case ALOAD:
+				return 1;
+			case LCONST_0:
+			case LCONST_1:
+			case DCONST_0:
+			case DCONST_1:
+			case LLOAD:
+			case DLOAD:
+				return 2;
+			case LDC: {
+				// loading the others can fail
+				Object cst = ((LdcInsnNode) ain).cst;
+				if (cst instanceof Long || cst instanceof Double) {
+					return 2;
+				}
+				return cst instanceof String || cst instanceof Integer || cst instanceof Float ? 1 : 0;
+			}
+			default:
+				return 0;
+		}
+	}
+
+	private static boolean isStore(AbstractInsnNode ain, int size) {
+		int op = ain.getOpcode();
+		if (size == 1) {
+			return op == ISTORE || op == FSTORE || op == ASTORE;
+		} else {
+			return op == LSTORE || op == DSTORE;
+		}
+	}
+
+	private boolean isSubclass(String type, String sup) {
+		if (type.equals(sup) || sup.equals("java/lang/Object")) {
+			return true;
+		}
+		if (app == null || type.startsWith("[") || sup.startsWith("[")) {
+			return false;
+		}
+		ClassNode cn = app.findClassNode(type);
+		ClassNode supcn = app.findClassNode(sup);
+		return cn != null && supcn != null && app.getClassTree().isSubtype(cn, supcn);
+	}
+
+	/**
+	 * @param insns the instructions of a method.
+	 * @return the size in bytes of the code, assuming that every constant fits in the short form of
+	 * ldc.
+	 */
+	public static int codeSize(InsnList insns) {
+		int size = 0;
+		for (AbstractInsnNode ain = insns.getFirst(); ain != null; ain = ain.getNext()) {
+			switch (ain.getType()) {
+				case AbstractInsnNode.INSN:
+					size += 1;
+					break;
+				case AbstractInsnNode.INT_INSN:
+					size += ain.getOpcode() == SIPUSH ? 3 : 2;
+					break;
+				case AbstractInsnNode.VAR_INSN: {
+					int var = ((VarInsnNode) ain).var;
+					size += var < 4 && ain.getOpcode() != RET ? 1 : var < 256 ? 2 : 4;
+					break;
+				}
+				case AbstractInsnNode.IINC_INSN: {
+					IincInsnNode iinc = (IincInsnNode) ain;
+					size += iinc.var < 256 && iinc.incr >= Byte.MIN_VALUE && iinc.incr <= Byte.MAX_VALUE ? 3 : 6;
+					break;
+				}
+				case AbstractInsnNode.LDC_INSN: {
+					Object cst = ((LdcInsnNode) ain).cst;
+					size += cst instanceof Long || cst instanceof Double ? 3 : 2;
+					break;
+				}
+				case AbstractInsnNode.TYPE_INSN:
+				case AbstractInsnNode.FIELD_INSN:
+				case AbstractInsnNode.JUMP_INSN:
+					size += 3;
+					break;
+				case AbstractInsnNode.METHOD_INSN:
+					size += ain.getOpcode() == INVOKEINTERFACE ? 5 : 3;
+					break;
+				case AbstractInsnNode.INVOKE_DYNAMIC_INSN:
+					size += 5;
+					break;
+				case AbstractInsnNode.MULTIANEWARRAY_INSN:
+					size += 4;
+					break;
+				case AbstractInsnNode.TABLESWITCH_INSN: {
+					// padded to a multiple of 4 after the opcode
+					size += 1 + (3 - size % 4) + 12 + 4 * ((TableSwitchInsnNode) ain).labels.size();
+					break;
+				}
+				case AbstractInsnNode.LOOKUPSWITCH_INSN: {
+					size += 1 + (3 - size % 4) + 8 + 8 * ((LookupSwitchInsnNode) ain).labels.size();
+					break;
+				}
+				default:
+					break;
+			}
+		}
+		return size;
+	}
+
+	public Map<Rule, Integer> getRewrites() {
+		return Collections.unmodifiableMap(rewrites);
+	}
+
+	public int getMethodCount() {
+		return methods;
+	}
+
+	public long getSizeBefore() {
+		return sizeBefore;
+	}
+
+	public long getSizeAfter() {
+		return sizeAfter;
+	}
+
+	/**
+	 * @return the number of methods whose code was made small enough to be inlined by HotSpot
+	 * regardless of how often they're called.
+	 */
+	public int getNewlyUnderMaxInlineSize() {
+		return newlyUnderMaxInline;
+	}
+
+	/**
+	 * @return the number of methods whose code was made small enough to be inlined by HotSpot at hot
+	 * call sites.
+	 */
+	public int getNewlyUnderFreqInlineSize() {
+		return newlyUnderFreqInline;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d methods, %d -> %d bytes, %d/%d newly inlineable, rewrites: %s", methods, sizeBefore, sizeAfter,
+				newlyUnderMaxInline, newlyUnderFreqInline, rewrites);
+	}
+}
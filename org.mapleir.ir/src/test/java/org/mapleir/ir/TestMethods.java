@@ -0,0 +1,358 @@
+package org.mapleir.ir;
+
+import org.mapleir.asm.ClassNode;
+import org.mapleir.asm.MethodNode;
+import org.mapleir.flowgraph.edges.FlowEdge;
+import org.mapleir.ir.cfg.BasicBlock;
+import org.mapleir.ir.cfg.ControlFlowGraph;
+import org.mapleir.ir.cfg.builder.ControlFlowGraphBuilder;
+import org.mapleir.ir.cfg.builder.DeadBlocksPass;
+import org.mapleir.ir.cfg.builder.GenerationPass;
+import org.mapleir.ir.cfg.builder.NaturalisationPass;
+import org.mapleir.ir.code.Expr;
+import org.mapleir.ir.code.Opcode;
+import org.mapleir.ir.code.Stmt;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.Opcodes;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Small hand assembled methods shared by the flow graph tests. The source each one was written from
+ * is above it.
+ */
+public final class TestMethods {
+
+	private TestMethods() {
+	}
+
+	/* builds the graph without renaming any of the locals. */
+	private static class NonSSABuilder extends ControlFlowGraphBuilder {
+		NonSSABuilder(MethodNode method) {
+			super(method, false);
+		}
+
+		@Override
+		protected BuilderPass[] resolvePasses() {
+			return new BuilderPass[] { new GenerationPass(this), new DeadBlocksPass(this), new NaturalisationPass(this) };
+		}
+	}
+
+	/**
+	 * @return the graph of the method with its blocks naturalised, but without renaming any of the
+	 *         locals.
+	 */
+	public static ControlFlowGraph buildNonSSA(MethodNode m) {
+		return new NonSSABuilder(m).buildImpl();
+	}
+
+	/**
+	 * @return how many of each statement, expression and edge kind the graph has. The names of the
+	 *         blocks and the subscripts of the locals depend on the order the blocks were created in,
+	 *         so two graphs of the same code can't always be compared as text.
+	 */
+	public static Map<String, Integer> shape(ControlFlowGraph cfg) {
+		Map<String, Integer> shape = new TreeMap<>();
+		shape.put("blocks", cfg.size());
+		for (BasicBlock b : cfg.vertices()) {
+			for (Stmt stmt : b) {
+				shape.merge(Opcode.opname(stmt.getOpcode()), 1, Integer::sum);
+				for (Expr e : stmt.enumerateOnlyChildren()) {
+					shape.merge(Opcode.opname(e.getOpcode()), 1, Integer::sum);
+				}
+			}
+			for (FlowEdge<BasicBlock> e : cfg.getEdges(b)) {
+				shape.merge(e.getClass().getSimpleName(), 1, Integer::sum);
+			}
+		}
+		return shape;
+	}
+
+	private static class Loader extends ClassLoader {
+		Loader() {
+			super(TestMethods.class.getClassLoader());
+		}
+
+		Class<?> define(String name, byte[] b) {
+			return defineClass(name, b, 0, b.length);
+		}
+	}
+
+	/**
+	 * Loads the method as the only one in a class file that's old enough to not need stack map
+	 * frames.
+	 *
+	 * @return the loaded method, which takes an int.
+	 */
+	public static Method load(org.objectweb.asm.tree.MethodNode mn) {
+		org.objectweb.asm.tree.ClassNode cn = new org.objectweb.asm.tree.ClassNode();
+		cn.version = Opcodes.V1_5;
+		cn.access = Opcodes.ACC_PUBLIC;
+		cn.name = "Generated";
+		cn.superName = "java/lang/Object";
+		mn.access = Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC;
+		cn.methods.add(mn);
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		cn.accept(cw);
+		try {
+			return new Loader().define(cn.name, cw.toByteArray()).getMethod(mn.name, int.class);
+		} catch (NoSuchMethodException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * @return what the loaded method returns for the argument, or the class of what it throws.
+	 */
+	public static Object invoke(Method method, int arg) {
+		try {
+			return method.invoke(null, arg);
+		} catch (IllegalAccessException e) {
+			throw new AssertionError(e);
+		} catch (InvocationTargetException e) {
+			return e.getCause().getClass();
+		}
+	}
+
+	private static org.objectweb.asm.tree.MethodNode method(String name, String desc) {
+		return new org.objectweb.asm.tree.MethodNode(Opcodes.ACC_STATIC, name, desc, null, null);
+	}
+
+	private static MethodNode wrap(org.objectweb.asm.tree.MethodNode mn) {
+		return new MethodNode(mn, new ClassNode());
+	}
+
+	/* static int f(int n) { int s = 0; for (int i = 0; i < n; i++) for (int j = 0; j < i; j++) s += j; return s; } */
+	public static MethodNode nestedLoops() {
+		org.objectweb.asm.tree.MethodNode mn = method("f", "(I)I");
+		Label outer = new Label(), inner = new Label(), innerEnd = new Label(), end = new Label();
+		mn.visitInsn(Opcodes.ICONST_0);
+		mn.visitVarInsn(Opcodes.ISTORE, 1);
+		mn.visitInsn(Opcodes.ICONST_0);
+		mn.visitVarInsn(Opcodes.ISTORE, 2);
+		mn.visitLabel(outer);
+		mn.visitVarInsn(Opcodes.ILOAD, 2);
+		mn.visitVarInsn(Opcodes.ILOAD, 0);
+		mn.visitJumpInsn(Opcodes.IF_ICMPGE, end);
+		mn.visitInsn(Opcodes.ICONST_0);
+		mn.visitVarInsn(Opcodes.ISTORE, 3);
+		mn.visitLabel(inner);
+		mn.visitVarInsn(Opcodes.ILOAD, 3);
+		mn.visitVarInsn(Opcodes.ILOAD, 2);
+		mn.visitJumpInsn(Opcodes.IF_ICMPGE, innerEnd);
+		mn.visitVarInsn(Opcodes.ILOAD, 1);
+		mn.visitVarInsn(Opcodes.ILOAD, 3);
+		mn.visitInsn(Opcodes.IADD);
+		mn.visitVarInsn(Opcodes.ISTORE, 1);
+		mn.visitIincInsn(3, 1);
+		mn.visitJumpInsn(Opcodes.GOTO, inner);
+		mn.visitLabel(innerEnd);
+		mn.visitIincInsn(2, 1);
+		mn.visitJumpInsn(Opcodes.GOTO, outer);
+		mn.visitLabel(end);
+		mn.visitVarInsn(Opcodes.ILOAD, 1);
+		mn.visitInsn(Opcodes.IRETURN);
+		mn.visitMaxs(2, 4);
+		return wrap(mn);
+	}
+
+	/* static int f(int n) { int s = 0; for (int i = 0; i < n; i++) s += i; int t = 1; for (int j = 0; j < n; j++) t *= 2; return s + t; } */
+	public static MethodNode sequentialLoops() {
+		org.objectweb.asm.tree.MethodNode mn = method("f", "(I)I");
+		Label first = new Label(), firstEnd = new Label(), second = new Label(), secondEnd = new Label();
+		mn.visitInsn(Opcodes.ICONST_0);
+		mn.visitVarInsn(Opcodes.ISTORE, 1);
+		mn.visitInsn(Opcodes.ICONST_0);
+		mn.visitVarInsn(Opcodes.ISTORE, 2);
+		mn.visitLabel(first);
+		mn.visitVarInsn(Opcodes.ILOAD, 2);
+		mn.visitVarInsn(Opcodes.ILOAD, 0);
+		mn.visitJumpInsn(Opcodes.IF_ICMPGE, firstEnd);
+		mn.visitVarInsn(Opcodes.ILOAD, 1);
+		mn.visitVarInsn(Opcodes.ILOAD, 2);
+		mn.visitInsn(Opcodes.IADD);
+		mn.visitVarInsn(Opcodes.ISTORE, 1);
+		mn.visitIincInsn(2, 1);
+		mn.visitJumpInsn(Opcodes.GOTO, first);
+		mn.visitLabel(firstEnd);
+		mn.visitInsn(Opcodes.ICONST_1);
+		mn.visitVarInsn(Opcodes.ISTORE, 3);
+		mn.visitInsn(Opcodes.ICONST_0);
+		mn.visitVarInsn(Opcodes.ISTORE, 4);
+		mn.visitLabel(second);
+		mn.visitVarInsn(Opcodes.ILOAD, 4);
+		mn.visitVarInsn(Opcodes.ILOAD, 0);
+		mn.visitJumpInsn(Opcodes.IF_ICMPGE, secondEnd);
+		mn.visitVarInsn(Opcodes.ILOAD, 3);
+		mn.visitInsn(Opcodes.ICONST_2);
+		mn.visitInsn(Opcodes.IMUL);
+		mn.visitVarInsn(Opcodes.ISTORE, 3);
+		mn.visitIincInsn(4, 1);
+		mn.visitJumpInsn(Opcodes.GOTO, second);
+		mn.visitLabel(secondEnd);
+		mn.visitVarInsn(Opcodes.ILOAD, 1);
+		mn.visitVarInsn(Opcodes.ILOAD, 3);
+		mn.visitInsn(Opcodes.IADD);
+		mn.visitInsn(Opcodes.IRETURN);
+		mn.visitMaxs(2, 5);
+		return wrap(mn);
+	}
+
+	/* static long g(long a, int b) { long c = a * b; return c + b; } */
+	public static MethodNode wideParameter() {
+		org.objectweb.asm.tree.MethodNode mn = method("g", "(JI)J");
+		mn.visitVarInsn(Opcodes.LLOAD, 0);
+		mn.visitVarInsn(Opcodes.ILOAD, 2);
+		mn.visitInsn(Opcodes.I2L);
+		mn.visitInsn(Opcodes.LMUL);
+		mn.visitVarInsn(Opcodes.LSTORE, 3);
+		mn.visitVarInsn(Opcodes.LLOAD, 3);
+		mn.visitVarInsn(Opcodes.ILOAD, 2);
+		mn.visitInsn(Opcodes.I2L);
+		mn.visitInsn(Opcodes.LADD);
+		mn.visitInsn(Opcodes.LRETURN);
+		mn.visitMaxs(4, 5);
+		return wrap(mn);
+	}
+
+	/* static int f(int n) { int p; do { p = n; n /= 2; } while (n < p); return p; } */
+	public static MethodNode halvingLoop() {
+		org.objectweb.asm.tree.MethodNode mn = method("f", "(I)I");
+		Label loop = new Label();
+		mn.visitLabel(loop);
+		mn.visitVarInsn(Opcodes.ILOAD, 0);
+		mn.visitVarInsn(Opcodes.ISTORE, 1);
+		mn.visitVarInsn(Opcodes.ILOAD, 0);
+		mn.visitInsn(Opcodes.ICONST_2);
+		mn.visitInsn(Opcodes.IDIV);
+		mn.visitVarInsn(Opcodes.ISTORE, 0);
+		mn.visitVarInsn(Opcodes.ILOAD, 0);
+		mn.visitVarInsn(Opcodes.ILOAD, 1);
+		mn.visitJumpInsn(Opcodes.IF_ICMPLT, loop);
+		mn.visitVarInsn(Opcodes.ILOAD, 1);
+		mn.visitInsn(Opcodes.IRETURN);
+		mn.visitMaxs(2, 2);
+		return wrap(mn);
+	}
+
+	/* two entries into the loop, at a and at b:
+	 * static int f(int n) { int s = 0; if ((n & 1) != 0) goto b; a: s += n; n--; b: s += 3; n--; if (n > 0) goto a; return s; } */
+	public static MethodNode irreducibleLoop() {
+		org.objectweb.asm.tree.MethodNode mn = method("f", "(I)I");
+		Label a = new Label(), b = new Label();
+		mn.visitInsn(Opcodes.ICONST_0);
+		mn.visitVarInsn(Opcodes.ISTORE, 1);
+		mn.visitVarInsn(Opcodes.ILOAD, 0);
+		mn.visitInsn(Opcodes.ICONST_1);
+		mn.visitInsn(Opcodes.IAND);
+		mn.visitJumpInsn(Opcodes.IFNE, b);
+		mn.visitLabel(a);
+		mn.visitVarInsn(Opcodes.ILOAD, 1);
+		mn.visitVarInsn(Opcodes.ILOAD, 0);
+		mn.visitInsn(Opcodes.IADD);
+		mn.visitVarInsn(Opcodes.ISTORE, 1);
+		mn.visitIincInsn(0, -1);
+		mn.visitLabel(b);
+		mn.visitVarInsn(Opcodes.ILOAD, 1);
+		mn.visitInsn(Opcodes.ICONST_3);
+		mn.visitInsn(Opcodes.IADD);
+		mn.visitVarInsn(Opcodes.ISTORE, 1);
+		mn.visitIincInsn(0, -1);
+		mn.visitVarInsn(Opcodes.ILOAD, 0);
+		mn.visitJumpInsn(Opcodes.IFGT, a);
+		mn.visitVarInsn(Opcodes.ILOAD, 1);
+		mn.visitInsn(Opcodes.IRETURN);
+		mn.visitMaxs(2, 2);
+		return wrap(mn);
+	}
+
+	/* static int f(int n) { int s = 0; for (int i = n; i >= -2; i--) { try { s += 12 / i; } catch (ArithmeticException e) { s -= 7; } } return s; } */
+	public static MethodNode catchInLoop() {
+		org.objectweb.asm.tree.MethodNode mn = method("f", "(I)I");
+		Label loop = new Label(), start = new Label(), end = new Label(), handler = new Label(), next = new Label(), exit = new Label();
+		mn.visitTryCatchBlock(start, end, handler, "java/lang/ArithmeticException");
+		mn.visitInsn(Opcodes.ICONST_0);
+		mn.visitVarInsn(Opcodes.ISTORE, 1);
+		mn.visitVarInsn(Opcodes.ILOAD, 0);
+		mn.visitVarInsn(Opcodes.ISTORE, 2);
+		mn.visitLabel(loop);
+		mn.visitVarInsn(Opcodes.ILOAD, 2);
+		mn.visitIntInsn(Opcodes.BIPUSH, -2);
+		mn.visitJumpInsn(Opcodes.IF_ICMPLT, exit);
+		mn.visitLabel(start);
+		mn.visitVarInsn(Opcodes.ILOAD, 1);
+		mn.visitIntInsn(Opcodes.BIPUSH, 12);
+		mn.visitVarInsn(Opcodes.ILOAD, 2);
+		mn.visitInsn(Opcodes.IDIV);
+		mn.visitInsn(Opcodes.IADD);
+		mn.visitVarInsn(Opcodes.ISTORE, 1);
+		mn.visitLabel(end);
+		mn.visitJumpInsn(Opcodes.GOTO, next);
+		mn.visitLabel(handler);
+		mn.visitVarInsn(Opcodes.ASTORE, 3);
+		mn.visitIincInsn(1, -7);
+		mn.visitLabel(next);
+		mn.visitIincInsn(2, -1);
+		mn.visitJumpInsn(Opcodes.GOTO, loop);
+		mn.visitLabel(exit);
+		mn.visitVarInsn(Opcodes.ILOAD, 1);
+		mn.visitInsn(Opcodes.IRETURN);
+		mn.visitMaxs(3, 4);
+		return wrap(mn);
+	}
+
+	/* static int f(int n) { return (n > 0 ? n : -n) + 1; } */
+	public static MethodNode valueOnStackAtMerge() {
+		org.objectweb.asm.tree.MethodNode mn = method("f", "(I)I");
+		Label negative = new Label(), merge = new Label();
+		mn.visitVarInsn(Opcodes.ILOAD, 0);
+		mn.visitJumpInsn(Opcodes.IFLE, negative);
+		mn.visitVarInsn(Opcodes.ILOAD, 0);
+		mn.visitJumpInsn(Opcodes.GOTO, merge);
+		mn.visitLabel(negative);
+		mn.visitVarInsn(Opcodes.ILOAD, 0);
+		mn.visitInsn(Opcodes.INEG);
+		mn.visitLabel(merge);
+		mn.visitInsn(Opcodes.ICONST_1);
+		mn.visitInsn(Opcodes.IADD);
+		mn.visitInsn(Opcodes.IRETURN);
+		mn.visitMaxs(2, 1);
+		return wrap(mn);
+	}
+
+	/* static int f(int n) { int y; if (n > 0) y = 1; else y = 2; if (n < 0) y = 3; if (n != 1) y = 4; int z = y; return n; } */
+	public static MethodNode deadCopyOfMerges() {
+		org.objectweb.asm.tree.MethodNode mn = method("f", "(I)I");
+		Label two = new Label(), first = new Label(), second = new Label(), third = new Label();
+		mn.visitVarInsn(Opcodes.ILOAD, 0);
+		mn.visitJumpInsn(Opcodes.IFLE, two);
+		mn.visitInsn(Opcodes.ICONST_1);
+		mn.visitVarInsn(Opcodes.ISTORE, 1);
+		mn.visitJumpInsn(Opcodes.GOTO, first);
+		mn.visitLabel(two);
+		mn.visitInsn(Opcodes.ICONST_2);
+		mn.visitVarInsn(Opcodes.ISTORE, 1);
+		mn.visitLabel(first);
+		mn.visitVarInsn(Opcodes.ILOAD, 0);
+		mn.visitJumpInsn(Opcodes.IFGE, second);
+		mn.visitInsn(Opcodes.ICONST_3);
+		mn.visitVarInsn(Opcodes.ISTORE, 1);
+		mn.visitLabel(second);
+		mn.visitVarInsn(Opcodes.ILOAD, 0);
+		mn.visitInsn(Opcodes.ICONST_1);
+		mn.visitJumpInsn(Opcodes.IF_ICMPEQ, third);
+		mn.visitInsn(Opcodes.ICONST_4);
+		mn.visitVarInsn(Opcodes.ISTORE, 1);
+		mn.visitLabel(third);
+		mn.visitVarInsn(Opcodes.ILOAD, 1);
+		mn.visitVarInsn(Opcodes.ISTORE, 2);
+		mn.visitVarInsn(Opcodes.ILOAD, 0);
+		mn.visitInsn(Opcodes.IRETURN);
+		mn.visitMaxs(2, 3);
+		return wrap(mn);
+	}
+}
@@ -0,0 +1,193 @@
+package org.mapleir.ir.algorithms;
+
+import junit.framework.TestCase;
+import org.mapleir.asm.MethodNode;
+import org.mapleir.ir.TestMethods;
+import org.mapleir.ir.cfg.BasicBlock;
+import org.mapleir.ir.cfg.ControlFlowGraph;
+import org.mapleir.ir.cfg.builder.ControlFlowGraphBuilder;
+import org.mapleir.ir.code.Expr;
+import org.mapleir.ir.code.Opcode;
+import org.mapleir.ir.code.Stmt;
+import org.mapleir.ir.code.expr.VarExpr;
+import org.mapleir.ir.code.stmt.copy.CopyVarStmt;
+import org.mapleir.ir.codegen.ControlFlowGraphDumper;
+import org.mapleir.ir.locals.Local;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+
+public class GraphColouringReallocatorTest extends TestCase {
+
+	private static ControlFlowGraph destructed(MethodNode m) {
+		ControlFlowGraph cfg = ControlFlowGraphBuilder.build(m);
+		BoissinotDestructor.leaveSSA(cfg);
+		return cfg;
+	}
+
+	/* a store and the locals that are live right after it. */
+	private static class Def {
+		final VarExpr var;
+		final Local src;
+		final Set<Local> liveAfter;
+
+		Def(VarExpr var, Local src, Set<Local> liveAfter) {
+			this.var = var;
+			this.src = src;
+			this.liveAfter = liveAfter;
+		}
+	}
+
+	/* walks every block back from the live out sets of the loop nesting analyser, which shares no
+	 * code with the colouring, and notes what's live past each store. */
+	private static List<Def> liveAtDefs(ControlFlowGraph cfg, Set<Local> entryLive) {
+		LoopNestingLivenessAnalyser liveness = new LoopNestingLivenessAnalyser(cfg);
+		liveness.compute();
+		for (Local l : liveness.in(cfg.getEntries().iterator().next())) {
+			entryLive.add(l);
+		}
+		List<Def> defs = new ArrayList<>();
+		for (BasicBlock b : cfg.vertices()) {
+			Set<Local> live = new HashSet<>();
+			for (Local l : liveness.out(b)) {
+				live.add(l);
+			}
+			ListIterator<Stmt> it = b.listIterator(b.size());
+			while (it.hasPrevious()) {
+				Stmt stmt = it.previous();
+				if (stmt.getOpcode() == Opcode.LOCAL_STORE) {
+					CopyVarStmt copy = (CopyVarStmt) stmt;
+					Expr e = copy.getExpression();
+					Local src = e.getOpcode() == Opcode.LOCAL_LOAD ? ((VarExpr) e).getLocal() : null;
+					defs.add(new Def(copy.getVariable(), src, new HashSet<>(live)));
+					live.remove(copy.getVariable().getLocal());
+				}
+				for (Expr e : stmt.enumerateOnlyChildren()) {
+					if (e.getOpcode() == Opcode.LOCAL_LOAD) {
+						live.add(((VarExpr) e).getLocal());
+					}
+				}
+			}
+		}
+		return defs;
+	}
+
+	/* colours the graph and checks that no store overwrites the slot of another local that's still
+	 * live, other than the one it copies. */
+	private static int reallocChecked(GraphColouringReallocator reallocator, ControlFlowGraph cfg) {
+		Set<Local> entryLive = new HashSet<>();
+		List<Def> defs = liveAtDefs(cfg, entryLive);
+		Map<VarExpr, Local> before = new IdentityHashMap<>();
+		for (Stmt stmt : cfg.stmts()) {
+			if (stmt.getOpcode() == Opcode.LOCAL_STORE) {
+				VarExpr v = ((CopyVarStmt) stmt).getVariable();
+				before.put(v, v.getLocal());
+			}
+			for (Expr e : stmt.enumerateOnlyChildren()) {
+				if (e.getOpcode() == Opcode.LOCAL_LOAD) {
+					before.put((VarExpr) e, ((VarExpr) e).getLocal());
+				}
+			}
+		}
+
+		int maxLocals = reallocator.realloc(cfg);
+		cfg.verify();
+
+		Map<Local, Integer> slots = new HashMap<>();
+		Map<Local, Integer> sizes = new HashMap<>();
+		for (Map.Entry<VarExpr, Local> e : before.entrySet()) {
+			int slot = e.getKey().getLocal().getIndex();
+			Integer old = slots.put(e.getValue(), slot);
+			assertTrue(old == null || old == slot);
+			int size = e.getKey().getType().getSize();
+			sizes.merge(e.getValue(), size, Math::max);
+			assertTrue(slot + size <= maxLocals);
+		}
+		for (Def d : defs) {
+			Local l = before.get(d.var);
+			for (Local o : d.liveAfter) {
+				if (o != l && o != d.src) {
+					assertDisjoint(slots, sizes, l, o);
+				}
+			}
+		}
+		for (Local a : entryLive) {
+			for (Local b : entryLive) {
+				if (a != b) {
+					assertDisjoint(slots, sizes, a, b);
+				}
+			}
+		}
+		return maxLocals;
+	}
+
+	private static void assertDisjoint(Map<Local, Integer> slots, Map<Local, Integer> sizes, Local a, Local b) {
+		int aStart = slots.get(a), aEnd = aStart + sizes.get(a);
+		int bStart = slots.get(b), bEnd = bStart + sizes.get(b);
+		assertTrue(a + " and " + b + " share a slot", aEnd <= bStart || bEnd <= aStart);
+	}
+
+	public void testUsesFewerSlots() {
+		int separate = LocalsReallocator.realloc(destructed(TestMethods.sequentialLoops()));
+
+		GraphColouringReallocator reallocator = new GraphColouringReallocator();
+		MethodNode m = TestMethods.sequentialLoops();
+		ControlFlowGraph cfg = destructed(m);
+		int coloured = reallocChecked(reallocator, cfg);
+
+		/* n, s and i are live together in the first loop, then n, s, t and j in the second, where j
+		 * and t can take the slots of i and whatever else is dead. */
+		assertEquals(4, coloured);
+		assertTrue(coloured < separate);
+		assertEquals(coloured, reallocator.getMaxLocalsAfter());
+		assertTrue(reallocator.getMaxLocalsBefore() > coloured);
+
+		/* n is only ever read, so it stays where the caller put it. */
+		for (Stmt stmt : cfg.stmts()) {
+			if (stmt.getOpcode() == Opcode.LOCAL_STORE && ((CopyVarStmt) stmt).isSynthetic()) {
+				assertEquals(0, ((CopyVarStmt) stmt).getVariable().getLocal().getIndex());
+			}
+		}
+
+		Method original = TestMethods.load(TestMethods.sequentialLoops().node);
+		new ControlFlowGraphDumper(cfg, m).dump();
+		Method dumped = TestMethods.load(m.node);
+		for (int arg = -1; arg <= 6; arg++) {
+			assertEquals("f(" + arg + ")", TestMethods.invoke(original, arg), TestMethods.invoke(dumped, arg));
+		}
+	}
+
+	public void testParametersKeepTheirSlots() {
+		ControlFlowGraph cfg = destructed(TestMethods.wideParameter());
+		int maxLocals = reallocChecked(new GraphColouringReallocator(), cfg);
+		/* a is dead once c is defined, so c takes its two slots and b keeps slot 2. */
+		assertEquals(3, maxLocals);
+
+		for (BasicBlock b : cfg.vertices()) {
+			for (Stmt stmt : b) {
+				if (stmt.getOpcode() == Opcode.LOCAL_STORE) {
+					CopyVarStmt copy = (CopyVarStmt) stmt;
+					VarExpr v = copy.getVariable();
+					if (copy.isSynthetic()) {
+						assertEquals(v.getType().getSize() == 2 ? 0 : 2, v.getLocal().getIndex());
+					} else if (v.getType().getSize() == 2) {
+						/* c overlapping b, which is still live when it's defined, would clobber it. */
+						assertTrue(v.getLocal().getIndex() + 1 < 2 || v.getLocal().getIndex() > 2);
+					}
+				}
+				for (Expr e : stmt.enumerateOnlyChildren()) {
+					if (e.getOpcode() == Opcode.LOCAL_LOAD) {
+						assertTrue(((VarExpr) e).getLocal().getIndex() < maxLocals);
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package org.mapleir.ir.algorithms;
+
+import junit.framework.TestCase;
+import org.mapleir.asm.MethodNode;
+import org.mapleir.ir.TestMethods;
+import org.mapleir.ir.cfg.BasicBlock;
+import org.mapleir.ir.cfg.ControlFlowGraph;
+import org.mapleir.ir.cfg.builder.ControlFlowGraphBuilder;
+import org.mapleir.ir.code.Opcode;
+import org.mapleir.ir.code.Stmt;
+import org.mapleir.ir.code.stmt.copy.CopyPhiStmt;
+import org.mapleir.ir.locals.Local;
+
+public class LoopNestingLivenessAnalyserTest extends TestCase {
+
+	private static void assertSameLiveness(ControlFlowGraph cfg, Liveness<BasicBlock> expected, Liveness<BasicBlock> actual) {
+		for (BasicBlock b : cfg.vertices()) {
+			assertEquals("in " + b.getDisplayName(), expected.in(b), actual.in(b));
+			assertEquals("out " + b.getDisplayName(), expected.out(b), actual.out(b));
+		}
+	}
+
+	private static void assertSSAMatchesWorklist(MethodNode m) {
+		ControlFlowGraph cfg = ControlFlowGraphBuilder.build(m);
+		LoopNestingLivenessAnalyser liveness = new LoopNestingLivenessAnalyser(cfg);
+		liveness.compute();
+		assertFalse(liveness.isIterated());
+
+		SSABlockLivenessAnalyser worklist = new SSABlockLivenessAnalyser(cfg);
+		worklist.compute();
+		assertSameLiveness(cfg, worklist, liveness);
+	}
+
+	public void testSSAIsNotIterated() {
+		assertSSAMatchesWorklist(TestMethods.nestedLoops());
+	}
+
+	public void testSSAMatchesWorklist() {
+		assertSSAMatchesWorklist(TestMethods.sequentialLoops());
+		assertSSAMatchesWorklist(TestMethods.wideParameter());
+	}
+
+	public void testSelfLoopPhiLiveOut() {
+		ControlFlowGraph cfg = ControlFlowGraphBuilder.build(TestMethods.halvingLoop());
+		LoopNestingLivenessAnalyser liveness = new LoopNestingLivenessAnalyser(cfg);
+		liveness.compute();
+		assertFalse(liveness.isIterated());
+		SSABlockLivenessAnalyser worklist = new SSABlockLivenessAnalyser(cfg);
+		worklist.compute();
+
+		BasicBlock loop = null;
+		Local p = null;
+		for (BasicBlock b : cfg.vertices()) {
+			for (Stmt stmt : b) {
+				if (stmt.getOpcode() == Opcode.PHI_STORE) {
+					loop = b;
+					p = ((CopyPhiStmt) stmt).getVariable().getLocal();
+				}
+			}
+		}
+		assertNotNull(loop);
+		assertTrue(cfg.getSuccessors(loop).anyMatch(loop::equals));
+
+		/* p is returned after the loop, so it's live on the exit edge even though the back edge
+		 * redefines it. the worklist analyser drops it, everything else is the same. */
+		assertTrue(liveness.out(loop).contains(p));
+		assertFalse(worklist.out(loop).contains(p));
+		for (BasicBlock b : cfg.vertices()) {
+			assertEquals("in " + b.getDisplayName(), worklist.in(b), liveness.in(b));
+			if (b != loop) {
+				assertEquals("out " + b.getDisplayName(), worklist.out(b), liveness.out(b));
+			}
+		}
+		liveness.out(loop).remove(p);
+		assertEquals(worklist.out(loop), liveness.out(loop));
+	}
+
+	public void testNonSSAMatchesWorklist() {
+		ControlFlowGraph cfg = TestMethods.buildNonSSA(TestMethods.nestedLoops());
+		LoopNestingLivenessAnalyser liveness = new LoopNestingLivenessAnalyser(cfg);
+		liveness.compute();
+		/* s, i and j are all redefined inside the loops that they're live around. */
+		assertTrue(liveness.isIterated());
+
+		SSABlockLivenessAnalyser worklist = new SSABlockLivenessAnalyser(cfg);
+		worklist.compute();
+		assertSameLiveness(cfg, worklist, liveness);
+	}
+}
@@ -0,0 +1,133 @@
+package org.mapleir.ir.cfg.builder;
+
+import junit.framework.TestCase;
+import org.mapleir.asm.MethodNode;
+import org.mapleir.flowgraph.edges.FlowEdge;
+import org.mapleir.ir.TestMethods;
+import org.mapleir.ir.algorithms.BoissinotDestructor;
+import org.mapleir.ir.algorithms.LocalsReallocator;
+import org.mapleir.ir.cfg.BasicBlock;
+import org.mapleir.ir.cfg.ControlFlowGraph;
+import org.mapleir.ir.code.Expr;
+import org.mapleir.ir.code.Opcode;
+import org.mapleir.ir.code.Stmt;
+import org.mapleir.ir.code.expr.VarExpr;
+import org.mapleir.ir.code.stmt.copy.AbstractCopyStmt;
+import org.mapleir.ir.code.stmt.copy.CopyPhiStmt;
+import org.mapleir.ir.codegen.ControlFlowGraphDumper;
+import org.mapleir.ir.locals.Local;
+
+import java.lang.reflect.Method;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Supplier;
+
+public class BraunSSAGenPassTest extends TestCase {
+
+	private static final int[] INPUTS = { -3, -2, -1, 0, 1, 2, 3, 4, 7, 10 };
+
+	private static Method dump(ControlFlowGraph cfg, MethodNode m) {
+		BoissinotDestructor.leaveSSA(cfg);
+		LocalsReallocator.realloc(cfg);
+		new ControlFlowGraphDumper(cfg, m).dump();
+		return TestMethods.load(m.node);
+	}
+
+	private static int countPhis(ControlFlowGraph cfg) {
+		int phis = 0;
+		for (Stmt stmt : cfg.stmts()) {
+			if (stmt.getOpcode() == Opcode.PHI_STORE) {
+				phis++;
+			}
+		}
+		return phis;
+	}
+
+	/* every local is defined once, every use has a def and every phi has an argument for exactly
+	 * the predecessors of its block. */
+	private static void assertSSA(ControlFlowGraph cfg) {
+		cfg.verify();
+		Set<Local> defs = new HashSet<>();
+		Set<Local> uses = new HashSet<>();
+		for (BasicBlock b : cfg.vertices()) {
+			for (Stmt stmt : b) {
+				if (stmt instanceof AbstractCopyStmt) {
+					Local l = ((AbstractCopyStmt) stmt).getVariable().getLocal();
+					assertTrue("redefined " + l, defs.add(l));
+				}
+				if (stmt.getOpcode() == Opcode.PHI_STORE) {
+					Set<BasicBlock> preds = new HashSet<>();
+					for (FlowEdge<BasicBlock> e : cfg.getReverseEdges(b)) {
+						preds.add(e.src());
+					}
+					assertEquals(stmt.toString(), preds, ((CopyPhiStmt) stmt).getExpression().getArguments().keySet());
+				}
+				for (Expr e : stmt.enumerateOnlyChildren()) {
+					if (e.getOpcode() == Opcode.LOCAL_LOAD) {
+						uses.add(((VarExpr) e).getLocal());
+					}
+				}
+			}
+		}
+		uses.removeAll(defs);
+		assertTrue("undefined " + uses, uses.isEmpty());
+	}
+
+	/* builds the method both ways and checks that the two dumped methods behave like the original. */
+	private static void assertSameAsSSAGenPass(Supplier<MethodNode> fixture, boolean optimise) {
+		Method original = TestMethods.load(fixture.get().node);
+
+		MethodNode classic = fixture.get();
+		ControlFlowGraph classicCfg = new ControlFlowGraphBuilder(classic, optimise).buildImpl();
+		assertSSA(classicCfg);
+
+		MethodNode fast = fixture.get();
+		ControlFlowGraph fastCfg = new FastControlFlowGraphBuilder(fast, optimise).buildImpl();
+		assertSSA(fastCfg);
+		/* both only ever create phis for values that are read */
+		assertTrue(countPhis(fastCfg) > 0);
+		assertTrue(countPhis(fastCfg) <= countPhis(classicCfg));
+
+		Method classicDumped = dump(classicCfg, classic);
+		Method fastDumped = dump(fastCfg, fast);
+		for (int arg : INPUTS) {
+			Object expected = TestMethods.invoke(original, arg);
+			assertEquals("f(" + arg + ")", expected, TestMethods.invoke(classicDumped, arg));
+			assertEquals("f(" + arg + ")", expected, TestMethods.invoke(fastDumped, arg));
+		}
+	}
+
+	private static void assertSameAsSSAGenPass(Supplier<MethodNode> fixture) {
+		assertSameAsSSAGenPass(fixture, false);
+		assertSameAsSSAGenPass(fixture, true);
+	}
+
+	public void testLoops() {
+		assertSameAsSSAGenPass(TestMethods::nestedLoops);
+		assertSameAsSSAGenPass(TestMethods::sequentialLoops);
+		assertSameAsSSAGenPass(TestMethods::halvingLoop);
+	}
+
+	public void testIrreducibleLoop() {
+		assertSameAsSSAGenPass(TestMethods::irreducibleLoop);
+	}
+
+	public void testExceptionEdges() {
+		assertSameAsSSAGenPass(TestMethods::catchInLoop);
+	}
+
+	public void testDeadPhiChain() {
+		Method original = TestMethods.load(TestMethods.deadCopyOfMerges().node);
+		MethodNode m = TestMethods.deadCopyOfMerges();
+		ControlFlowGraph cfg = new FastControlFlowGraphBuilder(m, true).buildImpl();
+		assertSSA(cfg);
+		/* the dead copy is the only reader of the last phi, which is the only reader of the one before. */
+		assertEquals(0, countPhis(cfg));
+		assertEquals(3, countPhis(new FastControlFlowGraphBuilder(TestMethods.deadCopyOfMerges(), false).buildImpl()));
+
+		Method dumped = dump(cfg, m);
+		for (int arg : INPUTS) {
+			assertEquals("f(" + arg + ")", TestMethods.invoke(original, arg), TestMethods.invoke(dumped, arg));
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package org.mapleir.ir.cfg.builder;
+
+import junit.framework.TestCase;
+import org.mapleir.asm.ClassHelper;
+import org.mapleir.asm.MethodNode;
+import org.mapleir.ir.TestMethods;
+import org.mapleir.ir.algorithms.BoissinotDestructor;
+import org.mapleir.ir.algorithms.LocalsReallocator;
+import org.mapleir.ir.cfg.ControlFlowGraph;
+import org.mapleir.ir.codegen.ControlFlowGraphDumper;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FrameNode;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+
+public class GenerationPassFramesTest extends TestCase {
+
+	/* a class file with stack map frames holding the given methods, named m0, m1, ... */
+	private static byte[] framedClass(MethodNode... methods) {
+		org.objectweb.asm.tree.ClassNode cn = new org.objectweb.asm.tree.ClassNode();
+		cn.version = Opcodes.V1_8;
+		cn.access = Opcodes.ACC_PUBLIC;
+		cn.name = "Framed";
+		cn.superName = "java/lang/Object";
+		for (int i = 0; i < methods.length; i++) {
+			org.objectweb.asm.tree.MethodNode mn = methods[i].node;
+			mn.name = "m" + i;
+			cn.methods.add(mn);
+		}
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+		cn.accept(cw);
+		return cw.toByteArray();
+	}
+
+	private static int countExpandedFrames(MethodNode m) {
+		int frames = 0;
+		for (AbstractInsnNode insn : m.node.instructions.toArray()) {
+			if (insn instanceof FrameNode) {
+				assertEquals(Opcodes.F_NEW, ((FrameNode) insn).type);
+				frames++;
+			}
+		}
+		return frames;
+	}
+
+	private static Method dump(ControlFlowGraph cfg, MethodNode m) {
+		BoissinotDestructor.leaveSSA(cfg);
+		LocalsReallocator.realloc(cfg);
+		new ControlFlowGraphDumper(cfg, m).dump();
+		return TestMethods.load(m.node);
+	}
+
+	public void testFramesLiftTheSame() {
+		byte[] bytes = framedClass(TestMethods.valueOnStackAtMerge(), TestMethods.nestedLoops(), TestMethods.catchInLoop(),
+				TestMethods.irreducibleLoop());
+		List<MethodNode> originals = Arrays.asList(TestMethods.valueOnStackAtMerge(), TestMethods.nestedLoops(),
+				TestMethods.catchInLoop(), TestMethods.irreducibleLoop());
+
+		List<MethodNode> framed = ClassHelper.createWithFrames(bytes).getMethods();
+		List<MethodNode> plain = ClassHelper.create(bytes).getMethods();
+		assertEquals(plain.size(), framed.size());
+
+		for (int i = 0; i < framed.size(); i++) {
+			MethodNode f = framed.get(i), p = plain.get(i);
+			assertEquals(p.getName(), f.getName());
+			assertTrue(f.getName(), countExpandedFrames(f) > 0);
+			assertEquals(0, countExpandedFrames(p));
+
+			ControlFlowGraph fromFrames = ControlFlowGraphBuilder.build(f);
+			ControlFlowGraph simulated = ControlFlowGraphBuilder.build(p);
+			fromFrames.verify();
+			/* the blocks are created in a different order when the stacks come from the frames. */
+			assertEquals(f.getName(), TestMethods.shape(simulated), TestMethods.shape(fromFrames));
+
+			Method original = TestMethods.load(originals.get(i).node);
+			Method dumped = dump(fromFrames, f);
+			for (int arg = -3; arg <= 10; arg++) {
+				assertEquals(f.getName() + "(" + arg + ")", TestMethods.invoke(original, arg), TestMethods.invoke(dumped, arg));
+			}
+		}
+	}
+}
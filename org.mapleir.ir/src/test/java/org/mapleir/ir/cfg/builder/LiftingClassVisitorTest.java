@@ -0,0 +1,112 @@
+package org.mapleir.ir.cfg.builder;
+
+import junit.framework.TestCase;
+import org.mapleir.asm.ClassHelper;
+import org.mapleir.asm.ClassNode;
+import org.mapleir.asm.FieldNode;
+import org.mapleir.asm.MethodNode;
+import org.mapleir.ir.TestMethods;
+import org.mapleir.ir.cfg.ControlFlowGraph;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class LiftingClassVisitorTest extends TestCase {
+
+	private static byte[] bytesOf(Class<?> c) throws IOException {
+		try (InputStream in = c.getResourceAsStream(c.getSimpleName() + ".class")) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			for (int n; (n = in.read(buf)) != -1;) {
+				out.write(buf, 0, n);
+			}
+			return out.toByteArray();
+		}
+	}
+
+	private static List<String> signatures(List<MethodNode> methods) {
+		List<String> res = new ArrayList<>();
+		for (MethodNode m : methods) {
+			res.add(m.getName() + m.getDesc());
+		}
+		return res;
+	}
+
+	/* SSAGenPass propagates copies in hash order of the units, which depends on how many were made
+	 * before, so two lifts of the same method can keep a different number of local copies. */
+	private static Map<String, Integer> shape(ControlFlowGraph cfg) {
+		Map<String, Integer> shape = TestMethods.shape(cfg);
+		shape.remove("v_load");
+		shape.remove("v_store");
+		return shape;
+	}
+
+	public void testLiftsLikeTheTree() throws IOException {
+		byte[] bytes = bytesOf(GenerationPass.class);
+		ClassNode tree = ClassHelper.create(bytes);
+
+		Map<String, ControlFlowGraph> lifted = new LinkedHashMap<>();
+		ClassNode streamed = LiftingClassVisitor.lift(bytes, (m, cfg) -> {
+			assertNull(lifted.put(m.getName() + m.getDesc(), cfg));
+		});
+
+		assertEquals(tree.getName(), streamed.getName());
+		assertEquals(tree.node.superName, streamed.node.superName);
+
+		assertFalse(tree.getFields().isEmpty());
+		assertEquals(tree.getFields().size(), streamed.getFields().size());
+		assertEquals(tree.node.fields.size(), streamed.node.fields.size());
+		for (int i = 0; i < tree.getFields().size(); i++) {
+			FieldNode expected = tree.getFields().get(i), actual = streamed.getFields().get(i);
+			assertSame(streamed, actual.owner);
+			assertSame(actual.node, streamed.node.fields.get(i));
+			assertEquals(expected.getName(), actual.getName());
+			assertEquals(expected.getDesc(), actual.getDesc());
+			assertEquals(expected.node.access, actual.node.access);
+		}
+
+		assertEquals(signatures(tree.getMethods()), signatures(streamed.getMethods()));
+		assertEquals(tree.node.methods.size(), streamed.node.methods.size());
+		int withCode = 0;
+		for (MethodNode m : tree.getMethods()) {
+			String sig = m.getName() + m.getDesc();
+			if (m.node.instructions.size() == 0) {
+				assertFalse(sig, lifted.containsKey(sig));
+				continue;
+			}
+			withCode++;
+			ControlFlowGraph cfg = lifted.get(sig);
+			assertNotNull(sig, cfg);
+			cfg.verify();
+			assertEquals(sig, shape(ControlFlowGraphBuilder.build(m)), shape(cfg));
+		}
+		assertEquals(withCode, lifted.size());
+
+		/* the code is dropped once a method is lifted. */
+		for (MethodNode m : streamed.getMethods()) {
+			assertEquals(0, m.node.instructions.size());
+			assertTrue(m.node.tryCatchBlocks.isEmpty());
+		}
+	}
+
+	public void testSkippedMethodsKeepTheirSignatures() throws IOException {
+		byte[] bytes = bytesOf(GenerationPass.class);
+		List<String> lifted = new ArrayList<>();
+		LiftingClassVisitor cv = new LiftingClassVisitor(ControlFlowGraphBuilder::build, (m, cfg) -> lifted.add(m.getName())) {
+			@Override
+			protected boolean shouldLift(int access, String name, String desc) {
+				return !name.equals("<init>");
+			}
+		};
+		ClassNode streamed = cv.accept(bytes);
+
+		assertFalse(lifted.isEmpty());
+		assertFalse(lifted.contains("<init>"));
+		assertEquals(signatures(ClassHelper.create(bytes).getMethods()), signatures(streamed.getMethods()));
+	}
+}
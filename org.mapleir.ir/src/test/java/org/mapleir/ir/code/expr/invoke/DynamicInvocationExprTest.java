@@ -0,0 +1,91 @@
+package org.mapleir.ir.code.expr.invoke;
+
+import junit.framework.TestCase;
+import org.mapleir.app.service.InvocationResolver;
+import org.mapleir.asm.ClassNode;
+import org.mapleir.asm.FieldNode;
+import org.mapleir.asm.MethodNode;
+import org.mapleir.ir.code.Expr;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.util.Collections;
+import java.util.Set;
+
+public class DynamicInvocationExprTest extends TestCase {
+
+	private static final Handle METAFACTORY = new Handle(Opcodes.H_INVOKESTATIC, "java/lang/invoke/LambdaMetafactory", "metafactory",
+			"(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodHandle;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;",
+			false);
+
+	/* answers every lookup with a method named after the lookup that was made. */
+	private static class RecordingResolver implements InvocationResolver {
+		private static MethodNode method(String name) {
+			return new MethodNode(new org.objectweb.asm.tree.MethodNode(Opcodes.ACC_PUBLIC, name, "()V", null, null), null);
+		}
+
+		@Override
+		public MethodNode resolveStaticCall(String owner, String name, String desc) {
+			return method("static " + owner + "." + name + desc);
+		}
+
+		@Override
+		public MethodNode resolveVirtualInitCall(String owner, String desc) {
+			return method("init " + owner + desc);
+		}
+
+		@Override
+		public Set<MethodNode> resolveVirtualCalls(String owner, String name, String desc, boolean strict) {
+			return Collections.singleton(method("virtual " + owner + "." + name + desc));
+		}
+
+		@Override
+		public MethodNode resolve(ClassNode receiver, String name, String desc, boolean strict) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public FieldNode findStaticField(String owner, String name, String desc) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public FieldNode findVirtualField(String owner, String name, String desc) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Set<MethodNode> getHierarchyMethodChain(ClassNode cn, String name, String desc, boolean exact) {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/* the lookup made for a lambda or method reference bound to the given implementation method. */
+	private static String resolve(int tag, String owner, String name, String desc) {
+		Object[] bsmArgs = { Type.getType("()Ljava/lang/Object;"), new Handle(tag, owner, name, desc, tag == Opcodes.H_INVOKEINTERFACE),
+				Type.getType("()Ljava/lang/Object;") };
+		DynamicInvocationExpr expr = new DynamicInvocationExpr(METAFACTORY, bsmArgs, "()Ljava/util/function/Supplier;", new Expr[0], "get");
+		Set<MethodNode> targets = expr.resolveTargets(new RecordingResolver());
+		assertEquals(1, targets.size());
+		return targets.iterator().next().getName();
+	}
+
+	public void testStaticHandle() {
+		assertEquals("static test/A.lambda$0()Ljava/lang/Object;", resolve(Opcodes.H_INVOKESTATIC, "test/A", "lambda$0", "()Ljava/lang/Object;"));
+	}
+
+	public void testVirtualHandlesUseTheMethodName() {
+		assertEquals("virtual test/A.get()Ljava/lang/Object;", resolve(Opcodes.H_INVOKEVIRTUAL, "test/A", "get", "()Ljava/lang/Object;"));
+		assertEquals("virtual test/I.get()Ljava/lang/Object;", resolve(Opcodes.H_INVOKEINTERFACE, "test/I", "get", "()Ljava/lang/Object;"));
+	}
+
+	public void testConstructorReference() {
+		assertEquals("init test/A()V", resolve(Opcodes.H_NEWINVOKESPECIAL, "test/A", "<init>", "()V"));
+	}
+
+	public void testPrivateLambdaBody() {
+		/* a lambda that captures this is bound to a private instance method, not a constructor. */
+		assertEquals("virtual test/A.lambda$1()Ljava/lang/Object;", resolve(Opcodes.H_INVOKESPECIAL, "test/A", "lambda$1", "()Ljava/lang/Object;"));
+	}
+}
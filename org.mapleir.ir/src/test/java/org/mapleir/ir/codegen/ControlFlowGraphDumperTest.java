@@ -0,0 +1,183 @@
+package org.mapleir.ir.codegen;
+
+import junit.framework.TestCase;
+import org.mapleir.app.service.ApplicationClassSource;
+import org.mapleir.app.service.ClassTree;
+import org.mapleir.app.service.CompleteResolvingJarDumper;
+import org.mapleir.app.service.InstalledRuntimeClassSource;
+import org.mapleir.asm.ClassHelper;
+import org.mapleir.asm.ClassNode;
+import org.mapleir.asm.MethodNode;
+import org.mapleir.flowgraph.ExceptionRange;
+import org.mapleir.ir.algorithms.BoissinotDestructor;
+import org.mapleir.ir.algorithms.LocalsReallocator;
+import org.mapleir.ir.cfg.BasicBlock;
+import org.mapleir.ir.cfg.ControlFlowGraph;
+import org.mapleir.ir.cfg.builder.ControlFlowGraphBuilder;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class ControlFlowGraphDumperTest extends TestCase {
+
+	private static final String OWNER = "test/Dumped";
+	private static final String MISSING = "test/MissingException";
+
+	/* defines the classes it's given and leaves everything else to the parent. */
+	private static class BytesClassLoader extends ClassLoader {
+		private final Map<String, byte[]> classes = new HashMap<>();
+
+		BytesClassLoader() {
+			super(ControlFlowGraphDumperTest.class.getClassLoader());
+		}
+
+		@Override
+		protected Class<?> findClass(String name) throws ClassNotFoundException {
+			byte[] bytes = classes.get(name.replace('.', '/'));
+			if (bytes == null) {
+				throw new ClassNotFoundException(name);
+			}
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+
+	private static void throwNew(MethodVisitor mv, String type) {
+		mv.visitTypeInsn(Opcodes.NEW, type);
+		mv.visitInsn(Opcodes.DUP);
+		mv.visitMethodInsn(Opcodes.INVOKESPECIAL, type, "<init>", "()V", false);
+		mv.visitInsn(Opcodes.ATHROW);
+	}
+
+	/* thrower(0) throws the first type, thrower(1) the second and anything else is returned. m
+	 * calls it with one handler for both types, which calls the given method on what it caught. */
+	private static org.objectweb.asm.tree.ClassNode multiCatch(String type1, String type2, String handlerOwner) {
+		org.objectweb.asm.tree.ClassNode cn = new org.objectweb.asm.tree.ClassNode();
+		cn.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, OWNER, null, "java/lang/Object", null);
+
+		MethodVisitor mv = cn.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "thrower", "(I)I", null, null);
+		mv.visitCode();
+		Label second = new Label(), ret = new Label();
+		mv.visitVarInsn(Opcodes.ILOAD, 0);
+		mv.visitJumpInsn(Opcodes.IFNE, second);
+		throwNew(mv, type1);
+		mv.visitLabel(second);
+		mv.visitVarInsn(Opcodes.ILOAD, 0);
+		mv.visitInsn(Opcodes.ICONST_1);
+		mv.visitJumpInsn(Opcodes.IF_ICMPNE, ret);
+		throwNew(mv, type2);
+		mv.visitLabel(ret);
+		mv.visitVarInsn(Opcodes.ILOAD, 0);
+		mv.visitInsn(Opcodes.IRETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		mv = cn.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "m", "(I)I", null, null);
+		mv.visitCode();
+		Label start = new Label(), end = new Label(), handler = new Label();
+		mv.visitTryCatchBlock(start, end, handler, type1);
+		mv.visitTryCatchBlock(start, end, handler, type2);
+		mv.visitLabel(start);
+		mv.visitVarInsn(Opcodes.ILOAD, 0);
+		mv.visitMethodInsn(Opcodes.INVOKESTATIC, OWNER, "thrower", "(I)I", false);
+		mv.visitLabel(end);
+		mv.visitInsn(Opcodes.IRETURN);
+		mv.visitLabel(handler);
+		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, handlerOwner, "hashCode", "()I", false);
+		mv.visitInsn(Opcodes.POP);
+		mv.visitInsn(Opcodes.ICONST_M1);
+		mv.visitInsn(Opcodes.IRETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		cn.visitEnd();
+		return cn;
+	}
+
+	/* lifts and dumps every method of the class against a tree which knows only it and the runtime. */
+	private static ClassNode roundTrip(org.objectweb.asm.tree.ClassNode node) {
+		ClassNode cn = ClassHelper.create(node);
+		ApplicationClassSource app = new ApplicationClassSource("test", Collections.singleton(cn));
+		app.addLibraries(new InstalledRuntimeClassSource(app));
+		ClassTree tree = app.getClassTree();
+
+		for (MethodNode m : cn.getMethods()) {
+			ControlFlowGraph cfg = ControlFlowGraphBuilder.build(m);
+			if (m.getName().equals("m")) {
+				assertEquals(1, cfg.getRanges().size());
+				ExceptionRange<BasicBlock> er = cfg.getRanges().get(0);
+				assertEquals(2, er.getTypes().size());
+			}
+			BoissinotDestructor.leaveSSA(cfg);
+			LocalsReallocator.realloc(cfg);
+			new ControlFlowGraphDumper(cfg, m, tree).dump();
+		}
+		return cn;
+	}
+
+	private static String catchType(ClassNode cn) {
+		for (MethodNode m : cn.getMethods()) {
+			if (m.getName().equals("m")) {
+				String type = null;
+				for (TryCatchBlockNode tcbn : m.node.tryCatchBlocks) {
+					assertTrue(type == null || type.equals(tcbn.type));
+					type = tcbn.type;
+				}
+				return type;
+			}
+		}
+		throw new AssertionError();
+	}
+
+	/* writes the class without letting ASM compute frames or maxs, then loads it and runs m. */
+	private static void assertRuns(ClassNode cn, BytesClassLoader loader) throws ReflectiveOperationException {
+		assertTrue(CompleteResolvingJarDumper.hasFrames(cn));
+		ClassWriter cw = new ClassWriter(0);
+		cn.node.accept(cw);
+		loader.classes.put(OWNER, cw.toByteArray());
+
+		Method m = loader.loadClass(OWNER.replace('/', '.')).getMethod("m", int.class);
+		try {
+			assertEquals(-1, m.invoke(null, 0));
+			assertEquals(-1, m.invoke(null, 1));
+			assertEquals(5, m.invoke(null, 5));
+		} catch (InvocationTargetException e) {
+			throw new AssertionError(e.getCause());
+		}
+	}
+
+	public void testMultiCatchUsesCommonSuperClass() throws ReflectiveOperationException {
+		/* the handler calls a method of Exception, so it fails to verify if the range catches Throwable. */
+		ClassNode cn = roundTrip(multiCatch("java/io/IOException", "java/lang/IllegalArgumentException", "java/lang/Exception"));
+		assertEquals("java/lang/Exception", catchType(cn));
+		assertRuns(cn, new BytesClassLoader());
+	}
+
+	public void testMultiCatchWithUnknownTypeCatchesThrowable() throws ReflectiveOperationException {
+		ClassNode cn = roundTrip(multiCatch("java/io/IOException", MISSING, "java/lang/Throwable"));
+		/* the tree can't find the type, so the fold would give java/lang/Object. */
+		assertEquals("java/lang/Throwable", catchType(cn));
+
+		/* the exception only exists at runtime. */
+		ClassWriter cw = new ClassWriter(0);
+		cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, MISSING, null, "java/lang/RuntimeException", null);
+		MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+		mv.visitCode();
+		mv.visitVarInsn(Opcodes.ALOAD, 0);
+		mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/RuntimeException", "<init>", "()V", false);
+		mv.visitInsn(Opcodes.RETURN);
+		mv.visitMaxs(1, 1);
+		mv.visitEnd();
+		cw.visitEnd();
+		BytesClassLoader loader = new BytesClassLoader();
+		loader.classes.put(MISSING, cw.toByteArray());
+		assertRuns(cn, loader);
+	}
+}
@@ -0,0 +1,67 @@
+package org.mapleir.ir.codegen;
+
+import junit.framework.TestCase;
+import org.mapleir.asm.ClassNode;
+import org.mapleir.asm.MethodNode;
+import org.mapleir.ir.codegen.PeepholeOptimizer.Rule;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+
+import java.util.EnumSet;
+
+public class PeepholeOptimizerTest extends TestCase {
+
+	private static boolean castKept(org.objectweb.asm.tree.MethodNode mn) {
+		new PeepholeOptimizer(null, EnumSet.of(Rule.CHECKCAST)).optimise(new MethodNode(mn, new ClassNode()));
+		for (AbstractInsnNode ain : mn.instructions.toArray()) {
+			if (ain.getOpcode() == Opcodes.CHECKCAST) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public void testCastOfNewObject() {
+		org.objectweb.asm.tree.MethodNode mn = new org.objectweb.asm.tree.MethodNode(Opcodes.ACC_STATIC, "f", "()Ljava/util/ArrayList;", null, null);
+		mn.visitTypeInsn(Opcodes.NEW, "java/util/ArrayList");
+		mn.visitInsn(Opcodes.DUP);
+		mn.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/util/ArrayList", "<init>", "()V", false);
+		mn.visitTypeInsn(Opcodes.CHECKCAST, "java/util/ArrayList");
+		mn.visitInsn(Opcodes.ARETURN);
+		assertFalse(castKept(mn));
+	}
+
+	public void testCastAfterSuperCall() {
+		/* the value under the receiver is an argument, which the cast still has to check. */
+		org.objectweb.asm.tree.MethodNode mn = new org.objectweb.asm.tree.MethodNode(Opcodes.ACC_PUBLIC, "<init>", "(Ljava/lang/Object;)V", null, null);
+		mn.visitVarInsn(Opcodes.ALOAD, 1);
+		mn.visitVarInsn(Opcodes.ALOAD, 0);
+		mn.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/util/ArrayList", "<init>", "()V", false);
+		mn.visitTypeInsn(Opcodes.CHECKCAST, "java/util/ArrayList");
+		mn.visitInsn(Opcodes.POP);
+		mn.visitInsn(Opcodes.RETURN);
+		assertTrue(castKept(mn));
+	}
+
+	public void testCastAfterPrivateCall() {
+		org.objectweb.asm.tree.MethodNode mn = new org.objectweb.asm.tree.MethodNode(0, "f", "(Ljava/lang/Object;)Ljava/lang/Object;", null, null);
+		mn.visitVarInsn(Opcodes.ALOAD, 0);
+		mn.visitVarInsn(Opcodes.ALOAD, 1);
+		mn.visitMethodInsn(Opcodes.INVOKESPECIAL, "test/A", "g", "(Ljava/lang/Object;)Ljava/lang/Object;", false);
+		mn.visitTypeInsn(Opcodes.CHECKCAST, "test/A");
+		mn.visitInsn(Opcodes.ARETURN);
+		assertTrue(castKept(mn));
+	}
+
+	public void testCastOfNewObjectWithArguments() {
+		/* the arguments aren't followed, so this one stays. */
+		org.objectweb.asm.tree.MethodNode mn = new org.objectweb.asm.tree.MethodNode(Opcodes.ACC_STATIC, "f", "(I)Ljava/util/ArrayList;", null, null);
+		mn.visitTypeInsn(Opcodes.NEW, "java/util/ArrayList");
+		mn.visitInsn(Opcodes.DUP);
+		mn.visitVarInsn(Opcodes.ILOAD, 0);
+		mn.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/util/ArrayList", "<init>", "(I)V", false);
+		mn.visitTypeInsn(Opcodes.CHECKCAST, "java/util/ArrayList");
+		mn.visitInsn(Opcodes.ARETURN);
+		assertTrue(castKept(mn));
+	}
+}
@@ -4,7 +4,7 @@ import org.apache.log4j.Logger;
 import org.mapleir.app.client.SimpleApplicationContext;
 import org.mapleir.app.service.ApplicationClassSource;
 import org.mapleir.app.service.CompleteResolvingJarDumper;
-import org.mapleir.app.service.LibraryClassSource;
+import org.mapleir.app.service.IndexedLibraryClassSource;
 import org.mapleir.context.AnalysisContext;
 import org.mapleir.context.BasicAnalysisContext;
 import org.mapleir.context.IRCache;
@@ -16,10 +16,11 @@ import org.mapleir.deob.dataflow.LiveDataFlowAnalysisImpl;
 import org.mapleir.deob.passes.rename.ClassRenamerPass;
 import org.mapleir.deob.util.RenamingHeuristic;
 import org.mapleir.ir.algorithms.BoissinotDestructor;
-import org.mapleir.ir.algorithms.LocalsReallocator;
+import org.mapleir.ir.algorithms.GraphColouringReallocator;
 import org.mapleir.ir.cfg.ControlFlowGraph;
 import org.mapleir.ir.cfg.builder.ControlFlowGraphBuilder;
 import org.mapleir.ir.codegen.ControlFlowGraphDumper;
+import org.mapleir.ir.codegen.PeepholeOptimizer;
 import org.mapleir.asm.ClassNode;
 import org.mapleir.asm.MethodNode;
 import org.topdank.byteengineer.commons.data.JarInfo;
@@ -38,12 +39,9 @@ public class Boot {
 	private static long timer;
 	private static Deque<String> sections;
 
-	private static LibraryClassSource rt(ApplicationClassSource app, File rtjar) throws IOException {
+	private static IndexedLibraryClassSource rt(ApplicationClassSource app, File rtjar) throws IOException {
 		section("Loading " + rtjar.getName() + " from " + rtjar.getAbsolutePath());
-		SingleJarDownloader<ClassNode> dl = new SingleJarDownloader<>(new JarInfo(rtjar));
-		dl.download();
-
-		return new LibraryClassSource(app, dl.getJarContents().getClassContents());
+		return IndexedLibraryClassSource.open(app, rtjar, new File("res/snapshots"));
 	}
 
 	public static void main(String[] args) throws Exception {
@@ -66,14 +64,16 @@ public class Boot {
 
 		File rtjar = new File("res/rt.jar");
 		File androidjar = new File("res/android.jar");
-		app.addLibraries(rt(app, rtjar), rt(app, androidjar));
+		IndexedLibraryClassSource[] libraries = { rt(app, rtjar), rt(app, androidjar) };
+		app.addLibraries(libraries);
 		section("Initialising context.");
 
 
 		IRCache irFactory = new IRCache(ControlFlowGraphBuilder::build);
+		DefaultInvocationResolver resolver = new DefaultInvocationResolver(app);
 		AnalysisContext cxt = new BasicAnalysisContext.BasicContextBuilder()
 				.setApplication(app)
-				.setInvocationResolver(new DefaultInvocationResolver(app))
+				.setInvocationResolver(resolver)
 				.setCache(irFactory)
 				.setApplicationContext(new SimpleApplicationContext(app))
 				.setDataFlowAnalysis(new LiveDataFlowAnalysisImpl(irFactory))
@@ -103,6 +103,7 @@ public class Boot {
 		}
 		run(cxt, masterGroup);
 		section0("...done transforming in %fs.%n", "Preparing to transform.");
+		LOGGER.info(String.format("Virtual calls: %d resolved, %d cache hits", resolver.getVirtualCallCacheMisses(), resolver.getVirtualCallCacheHits()));
 
 
 		for(Entry<MethodNode, ControlFlowGraph> e : cxt.getIRCache().entrySet()) {
@@ -112,6 +113,8 @@ public class Boot {
 		}
 
 		section("Retranslating SSA IR to standard flavour.");
+		GraphColouringReallocator reallocator = new GraphColouringReallocator();
+		PeepholeOptimizer peephole = new PeepholeOptimizer(app);
 		for(Entry<MethodNode, ControlFlowGraph> e : cxt.getIRCache().entrySet()) {
 			MethodNode mn = e.getKey();
 			// if (!mn.getName().equals("openFiles"))
@@ -125,18 +128,29 @@ public class Boot {
 			BoissinotDestructor.leaveSSA(cfg);
 
 			 // CFGUtils.easyDumpCFG(cfg, "pre-reaalloc");
-			LocalsReallocator.realloc(cfg);
+			reallocator.realloc(cfg);
 			 // CFGUtils.easyDumpCFG(cfg, "post-reaalloc");
 			// System.out.println(cfg);
 			cfg.verify();
 			 // System.out.println("Rewriting " + mn.getName());
-			(new ControlFlowGraphDumper(cfg, mn)).dump();
+			(new ControlFlowGraphDumper(cfg, mn, app.getClassTree())).dump();
+			peephole.optimise(mn);
 			 // System.out.println(InsnListUtils.insnListToString(mn.instructions));
 		}
+		LOGGER.info("Locals: " + reallocator);
+		LOGGER.info("Peephole: " + peephole);
 
 		section("Rewriting jar.");
 		dumpJar(app, dl, masterGroup, "out/rewritten.jar");
 
+		// done last as it loads the whole library, which would change what the passes see
+		for(IndexedLibraryClassSource lib : libraries) {
+			if(!lib.getSnapshot().hasVTables()) {
+				section("Saving vtables of " + lib + ".");
+				resolver.saveVTables(lib);
+			}
+		}
+
 		section("Finished.");
 	}
 
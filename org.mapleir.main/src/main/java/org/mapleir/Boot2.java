@@ -4,6 +4,8 @@ import org.apache.log4j.Logger;
 import org.mapleir.app.client.SimpleApplicationContext;
 import org.mapleir.app.service.ApplicationClassSource;
 import org.mapleir.app.service.CompleteResolvingJarDumper;
+import org.mapleir.app.service.IndexedLibraryClassSource;
+import org.mapleir.app.service.JrtClassSource;
 import org.mapleir.app.service.LibraryClassSource;
 import org.mapleir.context.AnalysisContext;
 import org.mapleir.context.BasicAnalysisContext;
@@ -39,10 +41,8 @@ public class Boot2 {
 	public static boolean logging = false;
 
 	private static LibraryClassSource rt(ApplicationClassSource app, File rtjar) throws IOException {
-		SingleJarDownloader<ClassNode> dl = new SingleJarDownloader<>(new JarInfo(rtjar));
-		dl.download();
-
-		return new LibraryClassSource(app, dl.getJarContents().getClassContents());
+		// there's no rt.jar to analyse against for Java 9+, use the runtime's modules instead
+		return rtjar.exists() ? new IndexedLibraryClassSource(app, rtjar) : JrtClassSource.forRuntime(app);
 	}
 
 	public static void main(String[] args) throws Exception {
@@ -115,7 +115,7 @@ public class Boot2 {
 			// System.out.println(cfg);
 			cfg.verify();
 			 // System.out.println("Rewriting " + mn.name);
-			(new ControlFlowGraphDumper(cfg, mn)).dump();
+			(new ControlFlowGraphDumper(cfg, mn, app.getClassTree())).dump();
 			 // System.out.println(InsnListUtils.insnListToString(mn.instructions));
 		}
 		
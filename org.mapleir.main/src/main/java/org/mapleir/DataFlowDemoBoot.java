@@ -3,6 +3,7 @@ package org.mapleir;
 import org.apache.log4j.Logger;
 import org.mapleir.app.client.SimpleApplicationContext;
 import org.mapleir.app.service.ApplicationClassSource;
+import org.mapleir.app.service.IndexedLibraryClassSource;
 import org.mapleir.app.service.LibraryClassSource;
 import org.mapleir.context.AnalysisContext;
 import org.mapleir.context.BasicAnalysisContext;
@@ -39,10 +40,7 @@ public class DataFlowDemoBoot {
 
 	private static LibraryClassSource rt(ApplicationClassSource app, File rtjar) throws IOException {
 		section("Loading " + rtjar.getName() + " from " + rtjar.getAbsolutePath());
-		SingleJarDownloader<ClassNode> dl = new SingleJarDownloader<>(new JarInfo(rtjar));
-		dl.download();
-
-		return new LibraryClassSource(app, dl.getJarContents().getClassContents());
+		return new IndexedLibraryClassSource(app, rtjar);
 	}
 
 	public static void main(String[] args) throws Exception {
@@ -2,16 +2,30 @@ package org.mapleir;
 
 import org.apache.log4j.Logger;
 import org.mapleir.app.service.ApplicationClassSource;
+import org.mapleir.app.service.ClassTree;
+import org.mapleir.app.service.FieldReference;
+import org.mapleir.app.service.IndexedLibraryClassSource;
 import org.mapleir.app.service.InvocationResolver;
+import org.mapleir.app.service.LibrarySnapshot;
+import org.mapleir.app.service.LibrarySnapshot.VTableEntry;
+import org.mapleir.app.service.LocateableClassNode;
 import org.mapleir.stdlib.collections.map.NullPermeableHashMap;
 import org.objectweb.asm.Opcodes;
 import org.mapleir.asm.ClassNode;
 import org.mapleir.asm.FieldNode;
 import org.mapleir.asm.MethodNode;
 
+import java.io.IOException;
 import java.lang.reflect.Modifier;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
 
 public class DefaultInvocationResolver implements InvocationResolver {
 	
@@ -23,36 +37,158 @@ public class DefaultInvocationResolver implements InvocationResolver {
 	private static final boolean disallowMultiMS = false;
 	private static final boolean allowMissingClasses = true;
 	
+	/* classes per task when tables are built in parallel */
+	private static final int CHUNK_SIZE = 64;
+	/* cached result of a field use that doesn't resolve to anything */
+	private static final FieldNode NO_FIELD = new FieldNode(new org.objectweb.asm.tree.FieldNode(0, "", "", null, null), null);
+	
 	private final ApplicationClassSource app;
+	private final int threads;
+	
+	/* each table is only published once it's complete. */
+	private final Map<ClassNode, VTable> vtables = new ConcurrentHashMap<>();
+	/* methods we made up, which have to be made again when tables are loaded from a snapshot */
+	private final Set<MethodNode> mirandas = ConcurrentHashMap.newKeySet();
 	
-	private final Map<ClassNode, Map<Selector, MethodNode>> concreteVTables = new HashMap<>();
-	private final Map<ClassNode, Map<Selector, MethodNode>> abstractVTables = new HashMap<>();
+	/* resolveVirtualCalls is called once per call site, so the same
+	 * selectors come up over and over. neither hits nor misses take the
+	 * resolver's lock, which only guards the tables that are filled in
+	 * lazily, so threads racing on a miss may both compute it. each result
+	 * is kept with the change count of the class tree it was computed
+	 * against, as classes that are loaded later can add receivers to a
+	 * call. */
+	private final Map<VirtualCall, VirtualCallTargets> virtualCalls = new ConcurrentHashMap<>();
+	private final LongAdder virtualCallHits = new LongAdder();
+	private final LongAdder virtualCallMisses = new LongAdder();
+	/* resolved field uses; fields that couldn't be resolved map to NO_FIELD. */
+	private final Map<FieldRef, FieldNode> fields = new ConcurrentHashMap<>();
 	
 	// TODO: migrate to cleaner system
 	private final HierarchyMethods hierarchyMethodsHelper;
+	/* built the first time a method chain is asked for. */
+	private volatile MethodFamilies methodFamilies;
 	
 	public DefaultInvocationResolver(ApplicationClassSource app) {
+		this(app, Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * @param app The application.
+	 * @param threads The number of threads the tables of the classes in the
+	 *        class tree are built on.
+	 */
+	public DefaultInvocationResolver(ApplicationClassSource app, int threads) {
+		if(threads < 1) {
+			throw new IllegalArgumentException(String.valueOf(threads));
+		}
 		this.app = app;
+		this.threads = threads;
 		hierarchyMethodsHelper = new HierarchyMethods(app);
 		
 		computeVTables();
 		
-		LOGGER.info(String.format("built vtables for %s classes", concreteVTables.size()));
+		LOGGER.info(String.format("built vtables for %s classes", vtables.size()));
 	}
 	
 	protected boolean hasVisited(ClassNode c) {
-		return concreteVTables.containsKey(c) && abstractVTables.containsKey(c);
+		return vtables.containsKey(c);
 	}
 	
-	private void computeVTables() {
-		for(ClassNode c : app.getClassTree().vertices()) {
-			if(app.getClassTree().getChildren(c).size() == 0) {
-				// also implies getAllChildren.size() == 0
+	/* computes the table of a class that may not have been built yet, e.g.
+	 * a library class that was loaded after the tables were built. */
+	private void ensureVTable(ClassNode c) {
+		if(!hasVisited(c)) {
+			synchronized (this) {
 				computeVTable(c);
 			}
 		}
 	}
 	
+	/* builds the tables a level at a time: a class's table only depends on
+	 * those of its superclass and interfaces, which are all in earlier
+	 * levels, so the classes in a level can be done in parallel. */
+	private void computeVTables() {
+		List<List<ClassNode>> levels = levels(app.getClassTree());
+		if(threads == 1) {
+			for(List<ClassNode> level : levels) {
+				for(ClassNode c : level) {
+					computeVTable(c);
+				}
+			}
+			return;
+		}
+		
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			for(List<ClassNode> level : levels) {
+				List<Future<?>> futures = new ArrayList<>();
+				for(int i = 0; i < level.size(); i += CHUNK_SIZE) {
+					List<ClassNode> chunk = level.subList(i, Math.min(level.size(), i + CHUNK_SIZE));
+					futures.add(pool.submit(() -> {
+						for(ClassNode c : chunk) {
+							computeVTable(c);
+						}
+					}));
+				}
+				for(Future<?> f : futures) {
+					f.get();
+				}
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if(cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	
+	/* groups the classes in the tree by the length of the longest path from
+	 * them to Object, so that every class comes after its supertypes. */
+	private static List<List<ClassNode>> levels(ClassTree tree) {
+		Map<ClassNode, Integer> depths = new HashMap<>();
+		List<List<ClassNode>> levels = new ArrayList<>();
+		Deque<ClassNode> stack = new ArrayDeque<>();
+		for(ClassNode c : tree.vertices()) {
+			stack.push(c);
+			while(!stack.isEmpty()) {
+				ClassNode n = stack.peek();
+				if(depths.containsKey(n)) {
+					stack.pop();
+					continue;
+				}
+				
+				int depth = 0;
+				boolean ready = true;
+				for(ClassNode p : tree.iterateParents(n)) {
+					Integer d = depths.get(p);
+					if(d == null) {
+						stack.push(p);
+						ready = false;
+					} else {
+						depth = Math.max(depth, d + 1);
+					}
+				}
+				if(ready) {
+					stack.pop();
+					depths.put(n, depth);
+					while(levels.size() <= depth) {
+						levels.add(new ArrayList<>());
+					}
+					levels.get(depth).add(n);
+				}
+			}
+		}
+		return levels;
+	}
+	
 	static class CompFrame {
 		final ClassNode c;
 		final Map<Selector, MethodNode> thisMethodSet;
@@ -82,15 +218,21 @@ public class DefaultInvocationResolver implements InvocationResolver {
 			return;
 		}
 		
+		/* library classes that have their tables saved in a snapshot
+		 * don't need to have their hierarchy walked at all. */
+		if(loadVTable(c)) {
+			return;
+		}
+		
 		/* ensure parents loaded */
 		ClassNode superKlass = null;
 		/* if the super class is null it means we're at object and so
 		 * we don't even have to consider interfaces: as we stop
 		 * here */
 		if(c.node.superName != null) {
-			computeVTable(superKlass = app.findClassNode(c.node.superName));
+			ensureVTable(superKlass = app.findClassNode(c.node.superName));
 			for(String i : c.node.interfaces) {
-				computeVTable(app.findClassNode(i));
+				ensureVTable(app.findClassNode(i));
 			}
 		}
 
@@ -135,15 +277,14 @@ public class DefaultInvocationResolver implements InvocationResolver {
 			print(thisAbstractSet);
 		}
 		
-		/* Store the local results as the global as in the case of
-		 * java/lang/Object we don't have a super class and so the
-		 * ensuing analysis (below) is never executed. It's important
-		 * to note that we shouldn't be looking in the global vtable
-		 * for a given class while processing that class; the local
-		 * maps/vtable values are used but not the field
-		 * references. */
-		concreteVTables.put(c, thisMethodSet);
-		abstractVTables.put(c, thisAbstractSet);
+		/* In the case of java/lang/Object we don't have a super class
+		 * and so the ensuing analysis (below) is never executed and
+		 * the local results are the table. It's important to note
+		 * that we shouldn't be looking in the global vtable for a
+		 * given class while processing that class; the local maps are
+		 * used instead. Interfaces are merged into every implementor
+		 * so their tables are kept flat to be iterated quickly. */
+		VTable table = new VTable(superKlass != null ? vtables.get(superKlass) : null, Modifier.isInterface(c.node.access));
 		
 		/* now we consider the super class which we have previously
 		 * completely resolved. now we have to propagate information
@@ -161,48 +302,22 @@ public class DefaultInvocationResolver implements InvocationResolver {
 		 *    definitions come from default interfaces but we don't deal
 		 *    with that here. */
 		
+		assertIntersection(thisAbstractSet.entrySet(), thisMethodSet.entrySet(), Collections.emptySet());
+		/* (1) and (2): the table inherits every super class method and
+		 * our own declarations replace them, whichever kind they are.
+		 * NOTE: thisAbstractSet and thisMethodSet should intersect to
+		 *       give the null set. */
+		table.putAll(thisMethodSet);
+		table.putAll(thisAbstractSet);
+		
 		if(superKlass != null) {
 			if(!hasVisited(superKlass)) {
 				throw new IllegalStateException(String.format("Parent of %s, %s is not initialised", c, superKlass));
 			}
-
-			Map<Selector, MethodNode> globalCVT = new HashMap<>();
-			Map<Selector, MethodNode> globalAVT = new HashMap<>();
-			/* inherit all super class methods */
-			globalCVT.putAll(concreteVTables.get(superKlass));
-			globalAVT.putAll(abstractVTables.get(superKlass));
-			
-			assertIntersection(thisAbstractSet.entrySet(), thisMethodSet.entrySet(), Collections.emptySet());
-			/* (1) and (2) 
-			 * NOTE: thisAbstractSet and thisMethodSet should
-			 *       intersect to give the null set. */
-			for(Selector s : thisAbstractSet.keySet()) {
-				globalCVT.remove(s);
-			}
-			for(Selector s : thisMethodSet.keySet()) {
-				globalAVT.remove(s);
-			}
-			
-			/* we shouldn't ever get merge errors from considering the
-			 * current class with it's super. (this can happen with
-			 * interfaces, however) */
-			assertIntersection(globalAVT.entrySet(), globalCVT.entrySet(), Collections.emptySet());
-			
-			/* add our own declarations to the tables. this could possibly
-			 * override methods from the super class and we're happy
-			 * about this. */
-			globalCVT.putAll(thisMethodSet);
-			globalAVT.putAll(thisAbstractSet);
-			assertIntersection(globalAVT.entrySet(), globalCVT.entrySet(), Collections.emptySet());
-			
-			concreteVTables.put(c, globalCVT);
-			abstractVTables.put(c, globalAVT);
 			
 			if(debugLevel >= 3) {
-				LOGGER.debug(" globalCVT: ");
-				print(globalCVT);
-				LOGGER.debug(" globalAVT: ");
-				print(globalAVT);
+				LOGGER.debug(" global: ");
+				print(table.asMap());
 			}
 
 			NullPermeableHashMap<Selector, Set<MethodNode>> mergeMap = new NullPermeableHashMap<>(HashSet::new);
@@ -236,8 +351,7 @@ public class DefaultInvocationResolver implements InvocationResolver {
 				 * already has a reaching definition in the parent,
 				 * the subinterface default method takes priority.*/
 				
-				add(concreteVTables.get(interfaceKlass), mergeMap);
-				add(abstractVTables.get(interfaceKlass), mergeMap);
+				add(vtables.get(interfaceKlass), mergeMap);
 			}
 
 			if(debugLevel >= 3) {
@@ -249,6 +363,13 @@ public class DefaultInvocationResolver implements InvocationResolver {
 				Selector selector = e.getKey();
 				Set<MethodNode> conflictingMethods = e.getValue();
 				
+				/* the concrete method in the table so far, i.e. the one
+				 * from our super class or our own declaration. */
+				MethodNode concrete = table.get(selector);
+				if(concrete != null && Modifier.isAbstract(concrete.node.access)) {
+					concrete = null;
+				}
+				
 				MethodNode resolve;
 				
 				if(conflictingMethods.size() > 1) {
@@ -269,8 +390,8 @@ public class DefaultInvocationResolver implements InvocationResolver {
 					 * 05/10/17: globalCVT should contain super defs as well or ours
 					 *           so surely we use this as it doesn't contain any
 					 *           abstracts?*/
-					if(globalCVT.containsKey(selector)) {
-						resolve = globalCVT.get(selector);
+					if(concrete != null) {
+						resolve = concrete;
 						
 						if(debugLevel >= 2) {
 							LOGGER.debug("    (1)resolved to " + resolve);
@@ -360,8 +481,8 @@ public class DefaultInvocationResolver implements InvocationResolver {
 				} else {
 					/* no conflicts, so we can just choose the resolve method as
 					 * the target method from one of the tables. */
-					if(globalCVT.containsKey(selector)) {
-						resolve = globalCVT.get(selector);
+					if(concrete != null) {
+						resolve = concrete;
 					} else if(thisAbstractSet.containsKey(selector)) {
 						/* thisAbstractSet instead of the global one because
 						 * these conflicts would make things confusing if
@@ -375,10 +496,6 @@ public class DefaultInvocationResolver implements InvocationResolver {
 					}
 				}
 				
-				/* delete from both so we can do a clean add after. */
-				globalAVT.remove(selector);
-				globalCVT.remove(selector);
-				
 				if(resolve == null && !Modifier.isAbstract(c.node.access)) {
 					throw new IllegalStateException(String.format("Miranda %s in non abstract class %s", conflictingMethods, c));
 				}
@@ -389,30 +506,138 @@ public class DefaultInvocationResolver implements InvocationResolver {
 				
 				if(resolve == null) {
 					// TODO: sigs?
-					resolve = new MethodNode(new org.objectweb.asm.tree.MethodNode(Opcodes.ACC_PUBLIC | Opcodes.ACC_ABSTRACT, selector.name, selector.desc, null, getExceptionClasses(conflictingMethods)), c);
-					c.addMethod(resolve);
+					resolve = createMiranda(c, selector, getExceptionClasses(conflictingMethods));
 					if(debugLevel >= 2) {
 						LOGGER.debug("  generated miranda " + resolve);
 					}
 				}
 				
-				if(Modifier.isAbstract(resolve.node.access)) {
-					globalAVT.put(selector, resolve);
-				} else {
-					globalCVT.put(selector, resolve);
+				/* replaces whichever kind of method was there. */
+				table.put(selector, resolve);
+			}
+			
+			if(debugLevel >= 2) {
+				LOGGER.debug(" vtable: ");
+				print(table.asMap());
+			}
+		}
+		
+		vtables.put(c, table);
+	}
+	
+	private MethodNode createMiranda(ClassNode c, Selector selector, String[] exceptions) {
+		MethodNode m = new MethodNode(new org.objectweb.asm.tree.MethodNode(Opcodes.ACC_PUBLIC | Opcodes.ACC_ABSTRACT, selector.name, selector.desc, null, exceptions), c);
+		c.addMethod(m);
+		mirandas.add(m);
+		MethodFamilies families = methodFamilies;
+		if(families != null) {
+			families.added(m);
+		}
+		return m;
+	}
+	
+	private static LibrarySnapshot getSnapshot(ApplicationClassSource app, ClassNode c) {
+		LocateableClassNode n = app.findClass(c.getName());
+		if(n != null && n.node == c && n.source instanceof IndexedLibraryClassSource) {
+			return ((IndexedLibraryClassSource) n.source).getSnapshot();
+		} else {
+			return null;
+		}
+	}
+	
+	/* builds the tables of a library class from its snapshot. returns false,
+	 * without changing anything, if there isn't one or it doesn't match the
+	 * classes we have now. */
+	private boolean loadVTable(ClassNode c) {
+		LibrarySnapshot snapshot = getSnapshot(app, c);
+		VTableEntry[] entries = snapshot != null ? snapshot.getVTable(c.getName()) : null;
+		if(entries == null) {
+			return false;
+		}
+		
+		ClassNode[] owners = new ClassNode[entries.length];
+		MethodNode[] targets = new MethodNode[entries.length];
+		for(int i = 0; i < entries.length; i++) {
+			VTableEntry e = entries[i];
+			owners[i] = e.owner.equals(c.getName()) ? c : app.findClassNode(e.owner);
+			if(owners[i] == null) {
+				return false;
+			}
+			targets[i] = findMethod(owners[i], e.name, e.desc);
+			if(targets[i] == null && !e.isMiranda()) {
+				return false;
+			}
+		}
+		
+		VTable table = new VTable(null, true);
+		for(int i = 0; i < entries.length; i++) {
+			VTableEntry e = entries[i];
+			Selector s = new Selector(e.name, e.desc);
+			MethodNode m = targets[i];
+			if(m == null) {
+				/* the same miranda can be inherited by several entries. */
+				m = findMethod(owners[i], e.name, e.desc);
+				if(m == null) {
+					m = createMiranda(owners[i], s, e.mirandaExceptions);
 				}
 			}
+			table.put(s, m);
+		}
+		vtables.put(c, table);
+		return true;
+	}
+	
+	private static MethodNode findMethod(ClassNode c, String name, String desc) {
+		for(MethodNode m : c.getMethods()) {
+			if(m.getName().equals(name) && m.getDesc().equals(desc)) {
+				return m;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Computes the vtables of every class in the library and saves them in
+	 * its snapshot, so that later runs can load them instead. This loads
+	 * every class of the library.
+	 * 
+	 * @param lib The library, which must have been opened with a snapshot.
+	 * @throws IOException If the snapshot can't be saved.
+	 */
+	public void saveVTables(IndexedLibraryClassSource lib) throws IOException {
+		LibrarySnapshot snapshot = lib.getSnapshot();
+		if(snapshot == null) {
+			throw new IllegalArgumentException(String.format("%s has no snapshot", lib));
+		}
+		
+		int saved = 0;
+		for(String name : lib.getClassNames()) {
+			ClassNode c = app.findClassNode(name);
+			if(c == null || getSnapshot(app, c) != snapshot) {
+				/* shadowed by a class with the same name. */
+				continue;
+			}
 			
-			assertIntersection(concreteVTables.get(c).entrySet(), abstractVTables.get(c).entrySet(), Collections.emptySet());
-//			validateTables();
+			try {
+				ensureVTable(c);
+			} catch(RuntimeException e) {
+				LOGGER.warn(String.format("not saving vtable of %s: %s", name, e));
+				continue;
+			}
 			
-			if(debugLevel >= 2) {
-				LOGGER.debug(" cvtable: ");
-				print(concreteVTables.get(c));
-				LOGGER.debug(" avtable: " );
-				print(abstractVTables.get(c));
+			List<VTableEntry> entries = new ArrayList<>();
+			for(Entry<Selector, MethodNode> e : vtables.get(c).asMap().entrySet()) {
+				MethodNode m = e.getValue();
+				boolean isAbstract = Modifier.isAbstract(m.node.access);
+				String[] exceptions = isAbstract && mirandas.contains(m) ? m.node.exceptions.toArray(new String[0]) : null;
+				entries.add(new VTableEntry(e.getKey().name, e.getKey().desc, m.owner.getName(), isAbstract, exceptions));
 			}
+			snapshot.putVTable(name, entries.toArray(new VTableEntry[0]));
+			saved++;
 		}
+		
+		lib.saveSnapshot();
+		LOGGER.info(String.format("saved vtables for %d classes of %s", saved, lib));
 	}
 	
 	private <K, V> void putOrThrow(Map<K, V> map, K k, V v) {
@@ -424,25 +649,13 @@ public class DefaultInvocationResolver implements InvocationResolver {
 	}
 	
 	private void validateTables() {
-		for(Map<Selector, MethodNode> map : concreteVTables.values()) {
-			for(MethodNode m : map.values()) {
-				if(Modifier.isAbstract(m.node.access)) {
-					throw new IllegalStateException();
-				}
-			}
-		}
-
-		for(Entry<ClassNode, Map<Selector, MethodNode>> e : abstractVTables.entrySet()) {
-			Map<Selector, MethodNode> map = e.getValue();
-			if(map.size() > 0) {
-				if(!Modifier.isAbstract(e.getKey().node.access)) {
-					throw new IllegalStateException();
-				}
-			}
-			for(MethodNode m : map.values()) {
-				if(!Modifier.isAbstract(m.node.access)) {
-					throw new IllegalStateException();
-				}
+		for(Entry<ClassNode, VTable> e : vtables.entrySet()) {
+			if(!Modifier.isAbstract(e.getKey().node.access)) {
+				e.getValue().forEach((s, m) -> {
+					if(Modifier.isAbstract(m.node.access)) {
+						throw new IllegalStateException();
+					}
+				});
 			}
 		}
 	}
@@ -526,31 +739,33 @@ public class DefaultInvocationResolver implements InvocationResolver {
 	
 	private boolean isSuperOf(ClassNode subKlass, ClassNode superKlass) {
 		// return true iff n2 is a superclass or interface of n1
-		return app.getClassTree().getAllParents(subKlass).contains(superKlass);
+		return app.getClassTree().isSubtype(subKlass, superKlass);
 	}
 	
-	private void add(Map<Selector, MethodNode> map,
+	private void add(VTable table,
 			NullPermeableHashMap<Selector, Set<MethodNode>> conflicts) {
 		
-		for(Entry<Selector, MethodNode> e : map.entrySet()) {
-			conflicts.getNonNull(e.getKey()).add(e.getValue());
-		}
+		table.forEach((s, m) -> conflicts.getNonNull(s).add(m));
 	}
 	
+	@Override
 	public MethodNode resolve(ClassNode receiver, String name, String desc, boolean strict) {
 		/*if(strict && receiver.isAbstract()) {
 			throw new UnsupportedOperationException(String.format("Tried to call method on abstract receiver: %s.%s %s", receiver, name, desc));
 		}*/
 		Selector selector = new Selector(name, desc);
 		
-		if(!hasVisited(receiver)) {
+		/* library classes can be loaded after the tables were built. */
+		ensureVTable(receiver);
+		
+		VTable table = vtables.get(receiver);
+		if(table == null) {
 			throw new UnsupportedOperationException(String.format("No table for %s", receiver));
 		} else {
-			Map<Selector, MethodNode> cvtable = concreteVTables.get(receiver);
-			Map<Selector, MethodNode> avtable = abstractVTables.get(receiver);
-			
-			MethodNode cm = cvtable.get(selector);
-			MethodNode am = avtable.get(selector);
+			MethodNode m = table.get(selector);
+			boolean isAbstract = m != null && Modifier.isAbstract(m.node.access);
+			MethodNode cm = isAbstract ? null : m;
+			MethodNode am = isAbstract ? m : null;
 			
 			if(cm == null && am == null) {
 				if(strict) {
@@ -607,8 +822,43 @@ public class DefaultInvocationResolver implements InvocationResolver {
 		}
 	}
 
+	/**
+	 * @return an immutable set of the methods the call can dispatch to.
+	 */
 	@Override
 	public Set<MethodNode> resolveVirtualCalls(String owner, String name, String desc, boolean strict) {
+		if(owner == null) {
+			checkNullClass(null, owner);
+			return Collections.emptySet();
+		}
+		
+		/* the receivers are always resolved strictly, so the result doesn't depend on strict. */
+		VirtualCall key = new VirtualCall(owner, new Selector(name, desc));
+		ClassTree tree = app.getClassTree();
+		VirtualCallTargets cached = virtualCalls.get(key);
+		if(cached != null && cached.treeChanges == tree.getChangeCount()) {
+			virtualCallHits.increment();
+			return cached.targets;
+		}
+		
+		/* looking the owner up may load it, which counts as a change. the
+		 * count is read after that, but before the receivers are, so that
+		 * classes loaded while we resolve are seen next time. */
+		app.findClassNode(owner);
+		int changes = tree.getChangeCount();
+		cached = virtualCalls.get(key);
+		if(cached != null && cached.treeChanges == changes) {
+			virtualCallHits.increment();
+			return cached.targets;
+		}
+		
+		virtualCallMisses.increment();
+		VirtualCallTargets computed = new VirtualCallTargets(changes, resolveVirtualCalls0(owner, name, desc));
+		/* keep whichever was computed against the newer tree. */
+		return virtualCalls.merge(key, computed, (a, b) -> a.treeChanges - b.treeChanges >= 0 ? a : b).targets;
+	}
+	
+	private Set<MethodNode> resolveVirtualCalls0(String owner, String name, String desc) {
 		/* find concrete receivers and resolve */
 		ClassNode cn = app.findClassNode(owner);
 		if(!checkNullClass(cn, owner)) {
@@ -630,13 +880,159 @@ public class DefaultInvocationResolver implements InvocationResolver {
 			}
 		}
 		
-		return result;
+		if(result.isEmpty()) {
+			return Collections.emptySet();
+		} else if(result.size() == 1) {
+			return Collections.singleton(result.iterator().next());
+		} else {
+			return Collections.unmodifiableSet(result);
+		}
+	}
+	
+	/**
+	 * Forgets every resolved virtual call, field, method family and every
+	 * vtable, which are recomputed as they're needed again.
+	 */
+	@Override
+	public synchronized void invalidate() {
+		virtualCalls.clear();
+		vtables.clear();
+		fields.clear();
+		methodFamilies = null;
+	}
+	
+	/**
+	 * Forgets the vtables of the given classes and their subtypes, the
+	 * fields resolved against them and the virtual calls whose receivers
+	 * include any of them. The tables of the rest of the hierarchy are
+	 * kept.
+	 */
+	@Override
+	public synchronized void invalidate(Collection<ClassNode> classes) {
+		ClassTree tree = app.getClassTree();
+		/* the classes whose tables or fields may have changed. */
+		Set<ClassNode> changed = new HashSet<>();
+		/* and the owners of the calls that dispatch to any of them. */
+		Set<String> owners = new HashSet<>();
+		for(ClassNode c : classes) {
+			if(!changed.contains(c)) {
+				changed.addAll(tree.getAllChildren(c));
+				changed.add(c);
+			}
+			for(ClassNode p : tree.getAllParents(c)) {
+				owners.add(p.getName());
+			}
+		}
+		for(ClassNode c : changed) {
+			owners.add(c.getName());
+		}
+		
+		vtables.keySet().removeAll(changed);
+		virtualCalls.keySet().removeIf(k -> owners.contains(k.owner));
+		fields.keySet().removeIf(k -> {
+			ClassNode c = app.findClassNode(k.owner);
+			return c == null || changed.contains(c);
+		});
+		methodFamilies = null;
+	}
+	
+	/**
+	 * Forgets every resolved field, but keeps the vtables and resolved
+	 * calls.
+	 */
+	@Override
+	public void invalidateFields() {
+		fields.clear();
+	}
+	
+	public long getVirtualCallCacheHits() {
+		return virtualCallHits.sum();
+	}
+	
+	public long getVirtualCallCacheMisses() {
+		return virtualCallMisses.sum();
+	}
+	
+	public int getVirtualCallCacheSize() {
+		return virtualCalls.size();
+	}
+	
+	public int getFieldCacheSize() {
+		return fields.size();
 	}
 	
-	// FIXME: these are taken directly from the old resolver
-
 	@Override
 	public FieldNode findStaticField(String owner, String name, String desc) {
+		return owner != null ? findField(new FieldRef(owner, name, desc, true)) : null;
+	}
+	
+	@Override
+	public FieldNode findVirtualField(String owner, String name, String desc) {
+		return owner != null ? findField(new FieldRef(owner, name, desc, false)) : null;
+	}
+	
+	/**
+	 * Resolves the batch against the field table. Each distinct use is
+	 * looked up once, and the uses that aren't in the table yet are
+	 * resolved together, walking the hierarchy above each owner once for
+	 * all the fields wanted from it.
+	 */
+	@Override
+	public List<FieldNode> findFields(List<? extends FieldReference> refs) {
+		Map<FieldRef, FieldNode> resolved = new HashMap<>();
+		/* owner and static -> the uses of it that aren't in the table. */
+		Map<FieldRef, Set<FieldRef>> missing = new LinkedHashMap<>();
+		FieldRef[] keys = new FieldRef[refs.size()];
+		for(int i = 0; i < keys.length; i++) {
+			FieldReference ref = refs.get(i);
+			if(ref.getOwner() == null) {
+				continue;
+			}
+			FieldRef key = keys[i] = new FieldRef(ref.getOwner(), ref.getName(), ref.getDesc(), ref.isStatic());
+			if(!resolved.containsKey(key)) {
+				FieldNode f = fields.get(key);
+				resolved.put(key, f);
+				if(f == null) {
+					missing.computeIfAbsent(new FieldRef(key.owner, "", "", key.isStatic), k -> new HashSet<>()).add(key);
+				}
+			}
+		}
+		
+		for(Entry<FieldRef, Set<FieldRef>> e : missing.entrySet()) {
+			FieldRef owner = e.getKey();
+			Map<FieldRef, FieldNode> found = owner.isStatic ? findStaticFields0(owner.owner, e.getValue()) : findVirtualFields0(owner.owner, e.getValue());
+			for(FieldRef key : e.getValue()) {
+				FieldNode f = found.get(key);
+				FieldNode prev = fields.putIfAbsent(key, f != null ? f : NO_FIELD);
+				resolved.put(key, prev != null ? prev : f != null ? f : NO_FIELD);
+			}
+		}
+		
+		List<FieldNode> res = new ArrayList<>(keys.length);
+		for(FieldRef key : keys) {
+			FieldNode f = key != null ? resolved.get(key) : null;
+			res.add(f != NO_FIELD ? f : null);
+		}
+		return res;
+	}
+	
+	/* resolving a field is idempotent, so racing threads may both compute
+	 * it but only the first result is kept. uses that don't resolve are kept as NO_FIELD. */
+	private FieldNode findField(FieldRef key) {
+		FieldNode f = fields.get(key);
+		if(f == null) {
+			f = key.isStatic ? findStaticField0(key.owner, key.name, key.desc) : findVirtualField0(key.owner, key.name, key.desc);
+			FieldNode prev = fields.putIfAbsent(key, f != null ? f : NO_FIELD);
+			if(prev != null) {
+				f = prev;
+			}
+		}
+		return f != NO_FIELD ? f : null;
+	}
+	
+	// FIXME: these are taken directly from the old resolver
+
+	private FieldNode findStaticField0(String owner, String name, String desc) {
 		Set<FieldNode> set = new HashSet<>();
 		
 		ClassNode cn = app.findClassNode(owner);
@@ -700,8 +1096,82 @@ public class DefaultInvocationResolver implements InvocationResolver {
 		}
 	}
 
-	@Override
-	public FieldNode findVirtualField(String owner, String name, String desc) {
+	/* findStaticField0 for several fields of the same owner at once: each
+	 * one is resolved on the first level of supertypes that declares it. */
+	private Map<FieldRef, FieldNode> findStaticFields0(String owner, Set<FieldRef> wanted) {
+		Map<FieldRef, FieldNode> res = new HashMap<>();
+		ClassNode cn = app.findClassNode(owner);
+		if(cn == null) {
+			return res;
+		}
+		
+		Set<FieldRef> pending = new HashSet<>(wanted);
+		Set<ClassNode> lvl = Collections.singleton(cn);
+		while(!lvl.isEmpty() && !pending.isEmpty()) {
+			Map<FieldRef, Set<FieldNode>> lvlSites = new HashMap<>();
+			for(ClassNode c : lvl) {
+				for(FieldNode f : c.getFields()) {
+					if(Modifier.isStatic(f.node.access)) {
+						FieldRef key = new FieldRef(owner, f.getName(), f.getDesc(), true);
+						if(pending.contains(key)) {
+							lvlSites.computeIfAbsent(key, k -> new HashSet<>()).add(f);
+						}
+					}
+				}
+			}
+			
+			for(Entry<FieldRef, Set<FieldNode>> e : lvlSites.entrySet()) {
+				FieldRef key = e.getKey();
+				Set<FieldNode> sites = e.getValue();
+				if(sites.size() > 1) {
+					LOGGER.info(String.format("(warn) resolved %s.%s %s to %s", owner, key.name, key.desc, sites));
+					throw new UnsupportedOperationException(String.format("multi dispatch?: %s.%s %s results:%s", owner, key.name, key.desc, sites));
+				}
+				res.put(key, sites.iterator().next());
+				pending.remove(key);
+			}
+			
+			Set<ClassNode> newLvl = new HashSet<>();
+			for(ClassNode c : lvl) {
+				ClassNode sup = app.findClassNode(c.node.superName);
+				if(sup != null) {
+					newLvl.add(sup);
+				}
+				
+				for(String iface : c.node.interfaces) {
+					ClassNode ifaceN = app.findClassNode(iface);
+					
+					if(ifaceN != null) {
+						newLvl.add(ifaceN);
+					}
+				}
+			}
+			lvl = newLvl;
+		}
+		return res;
+	}
+	
+	/* findVirtualField0 for several fields of the same owner at once. */
+	private Map<FieldRef, FieldNode> findVirtualFields0(String owner, Set<FieldRef> wanted) {
+		Map<FieldRef, FieldNode> res = new HashMap<>();
+		ClassNode cn = app.findClassNode(owner);
+		
+		while(cn != null && res.size() < wanted.size()) {
+			for(FieldNode f : cn.getFields()) {
+				if(!Modifier.isStatic(f.node.access)) {
+					FieldRef key = new FieldRef(owner, f.getName(), f.getDesc(), false);
+					if(wanted.contains(key)) {
+						res.putIfAbsent(key, f);
+					}
+				}
+			}
+			
+			cn = app.findClassNode(cn.node.superName);
+		}
+		return res;
+	}
+
+	private FieldNode findVirtualField0(String owner, String name, String desc) {
 		ClassNode cn = app.findClassNode(owner);
 
 		if (cn != null) {
@@ -721,7 +1191,18 @@ public class DefaultInvocationResolver implements InvocationResolver {
 
 	@Override
 	public Set<MethodNode> getHierarchyMethodChain(ClassNode cn, String name, String desc, boolean exact) {
-		return hierarchyMethodsHelper.getHierarchyMethodChain(cn, name, desc, exact);
+		MethodFamilies families = methodFamilies;
+		if(families == null) {
+			synchronized (this) {
+				if((families = methodFamilies) == null) {
+					methodFamilies = families = new MethodFamilies(app, hierarchyMethodsHelper);
+				}
+			}
+		}
+		
+		Set<MethodNode> methods = families.getHierarchyMethodChain(cn, name, desc, exact);
+		/* classes that aren't in the tree are searched for as before. */
+		return methods != null ? methods : hierarchyMethodsHelper.getHierarchyMethodChain(cn, name, desc, exact);
 	}
 
 	// debug methods
@@ -767,6 +1248,134 @@ public class DefaultInvocationResolver implements InvocationResolver {
 		}
 	}
 	
+	/* the methods a class's instances respond to, abstract and concrete.
+	 * a class's table only holds the entries that differ from its super
+	 * class's, which it shares, so the tables of a hierarchy don't each
+	 * copy every method of Object. lookups walk up the chain, so every
+	 * MAX_DEPTH levels a table is made flat again. */
+	private static final class VTable {
+		static final int MAX_DEPTH = 8;
+		
+		final VTable parent;
+		final Map<Selector, MethodNode> own;
+		final int depth;
+		
+		VTable(VTable parent, boolean flat) {
+			if(parent != null && (flat || parent.depth >= MAX_DEPTH)) {
+				own = parent.asMap();
+				this.parent = null;
+			} else {
+				own = new HashMap<>();
+				this.parent = parent;
+			}
+			depth = this.parent == null ? 0 : this.parent.depth + 1;
+		}
+		
+		MethodNode get(Selector s) {
+			for(VTable t = this; t != null; t = t.parent) {
+				MethodNode m = t.own.get(s);
+				if(m != null) {
+					return m;
+				}
+			}
+			return null;
+		}
+		
+		void put(Selector s, MethodNode m) {
+			if(parent == null || parent.get(s) != m) {
+				own.put(s, m);
+			} else {
+				own.remove(s);
+			}
+		}
+		
+		void putAll(Map<Selector, MethodNode> map) {
+			for(Entry<Selector, MethodNode> e : map.entrySet()) {
+				put(e.getKey(), e.getValue());
+			}
+		}
+		
+		void forEach(BiConsumer<Selector, MethodNode> action) {
+			(parent == null ? own : asMap()).forEach(action);
+		}
+		
+		Map<Selector, MethodNode> asMap() {
+			if(parent == null) {
+				return new HashMap<>(own);
+			}
+			Map<Selector, MethodNode> map = parent.asMap();
+			map.putAll(own);
+			return map;
+		}
+	}
+	
+	/* the key of a resolved virtual call. */
+	private static final class VirtualCall {
+		final String owner;
+		final Selector selector;
+		
+		VirtualCall(String owner, Selector selector) {
+			this.owner = owner;
+			this.selector = selector;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if (o instanceof VirtualCall) {
+				VirtualCall other = (VirtualCall) o;
+				return owner.equals(other.owner) && selector.equals(other.selector);
+			} else {
+				return false;
+			}
+		}
+		
+		@Override
+		public int hashCode() {
+			return 31 * owner.hashCode() + selector.hashCode();
+		}
+	}
+	
+	/* the methods a virtual call can dispatch to, as of a change count of the class tree. */
+	private static final class VirtualCallTargets {
+		final int treeChanges;
+		final Set<MethodNode> targets;
+		
+		VirtualCallTargets(int treeChanges, Set<MethodNode> targets) {
+			this.treeChanges = treeChanges;
+			this.targets = targets;
+		}
+	}
+	
+	/* the key of a resolved field use. */
+	private static final class FieldRef {
+		final String owner;
+		final String name;
+		final String desc;
+		final boolean isStatic;
+		
+		FieldRef(String owner, String name, String desc, boolean isStatic) {
+			this.owner = owner;
+			this.name = name;
+			this.desc = desc;
+			this.isStatic = isStatic;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if (o instanceof FieldRef) {
+				FieldRef other = (FieldRef) o;
+				return isStatic == other.isStatic && owner.equals(other.owner) && name.equals(other.name) && desc.equals(other.desc);
+			} else {
+				return false;
+			}
+		}
+		
+		@Override
+		public int hashCode() {
+			return ((31 * owner.hashCode() + name.hashCode()) * 31 + desc.hashCode()) * 2 + (isStatic ? 1 : 0);
+		}
+	}
+	
 	public static final class Selector {
 
 		public final String name;
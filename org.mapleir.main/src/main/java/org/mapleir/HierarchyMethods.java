@@ -96,7 +96,7 @@ public class HierarchyMethods {
 	 * @param b type B
 	 * @return true if type A and B are congruent
 	 */
-	private boolean areTypesCongruent(Type a, Type b) {
+	boolean areTypesCongruent(Type a, Type b) {
 		if (a.equals(b)) {
 			return true;
 		}
@@ -123,8 +123,7 @@ public class HierarchyMethods {
 		ClassNode cnB = app.findClassNode(b.getInternalName());
 		
 		ClassTree tree = app.getClassTree();
-		return tree.getAllParents(cnB).contains(cnA) ||
-               tree.getAllParents(cnA).contains(cnB);
+		return tree.isSubtype(cnB, cnA) || tree.isSubtype(cnA, cnB);
 	}
 	
 	/**
@@ -0,0 +1,202 @@
+package org.mapleir;
+
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.mapleir.app.service.ApplicationClassSource;
+import org.mapleir.app.service.ClassTree;
+import org.mapleir.asm.ClassNode;
+import org.mapleir.asm.MethodNode;
+import org.objectweb.asm.Type;
+
+/**
+ * Partitions the virtual methods of the classes in the class tree into the families of methods
+ * that can override each other, so that {@link HierarchyMethods#getHierarchyMethodChain} is a
+ * lookup rather than a search of the hierarchy.
+ * <p>
+ * Two classes are related if they're connected by anything but Object, as in
+ * {@link ClassTree#getAllBranches(ClassNode)}. The classes are grouped by union-find, and a family
+ * is the methods of a group and of Object with the same name and argument types. Building the
+ * index is close to linear in the size of the hierarchy, and classes and methods that are added
+ * later are merged in as they're found. Methods are filed under the name and descriptor they had
+ * when they were indexed, so passes that change either have to invalidate the resolver.
+ */
+public class MethodFamilies {
+
+	private final ApplicationClassSource app;
+	private final HierarchyMethods helper;
+
+	/* union-find forest over the classes; roots map to themselves. */
+	private final Map<ClassNode, ClassNode> parents = new HashMap<>();
+	/* sizes of the groups, by root. */
+	private final Map<ClassNode, Integer> sizes = new HashMap<>();
+	/* root -> name and argument types -> the non static methods of the group. */
+	private final Map<ClassNode, Map<String, List<MethodNode>>> families = new HashMap<>();
+	/* the change count of the class tree when we last looked for new classes. */
+	private int treeChanges = -1;
+
+	public MethodFamilies(ApplicationClassSource app, HierarchyMethods helper) {
+		this.app = app;
+		this.helper = helper;
+		update();
+	}
+
+	private static String key(String name, String desc) {
+		return name + desc.substring(0, desc.indexOf(')') + 1);
+	}
+
+	/* indexes the classes that were added to the tree since we last looked. */
+	private void update() {
+		ClassTree tree = app.getClassTree();
+		int changes = tree.getChangeCount();
+		if(changes == treeChanges) {
+			return;
+		}
+		/* read first, so that classes added while we look are seen next time. */
+		treeChanges = changes;
+
+		List<ClassNode> added = new ArrayList<>();
+		int indexed = 0;
+		for(ClassNode c : tree.vertices()) {
+			if(parents.containsKey(c)) {
+				indexed++;
+			} else {
+				added.add(c);
+			}
+		}
+		if(indexed != parents.size()) {
+			/* classes were removed or replaced, which can split groups, so start again. */
+			parents.clear();
+			sizes.clear();
+			families.clear();
+			added.clear();
+			for(ClassNode c : tree.vertices()) {
+				added.add(c);
+			}
+		}
+
+		for(ClassNode c : added) {
+			parents.put(c, c);
+			sizes.put(c, 1);
+			for(MethodNode m : c.getMethods()) {
+				add(c, m);
+			}
+		}
+
+		ClassNode root = tree.getRootNode();
+		for(ClassNode c : added) {
+			if(c == root) {
+				continue;
+			}
+			for(ClassNode p : tree.iterateParents(c)) {
+				if(p != root && parents.containsKey(p)) {
+					union(c, p);
+				}
+			}
+		}
+	}
+
+	private void add(ClassNode root, MethodNode m) {
+		if(!Modifier.isStatic(m.node.access)) {
+			families.computeIfAbsent(root, r -> new HashMap<>())
+				.computeIfAbsent(key(m.getName(), m.getDesc()), k -> new ArrayList<>(1))
+				.add(m);
+		}
+	}
+
+	private ClassNode find(ClassNode c) {
+		ClassNode root = c;
+		for(ClassNode p; (p = parents.get(root)) != root; ) {
+			root = p;
+		}
+		/* path compression */
+		while(c != root) {
+			ClassNode next = parents.get(c);
+			parents.put(c, root);
+			c = next;
+		}
+		return root;
+	}
+
+	private void union(ClassNode a, ClassNode b) {
+		a = find(a);
+		b = find(b);
+		if(a == b) {
+			return;
+		}
+
+		/* the smaller group joins the larger one, methods and all. */
+		if(sizes.get(a) < sizes.get(b)) {
+			ClassNode t = a;
+			a = b;
+			b = t;
+		}
+		parents.put(b, a);
+		sizes.put(a, sizes.get(a) + sizes.remove(b));
+
+		Map<String, List<MethodNode>> from = families.remove(b);
+		if(from != null) {
+			Map<String, List<MethodNode>> to = families.computeIfAbsent(a, r -> new HashMap<>());
+			for(Entry<String, List<MethodNode>> e : from.entrySet()) {
+				List<MethodNode> list = to.get(e.getKey());
+				if(list == null) {
+					to.put(e.getKey(), e.getValue());
+				} else {
+					list.addAll(e.getValue());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds a method that was made after the index was built, e.g. a miranda.
+	 * @param m the new method
+	 */
+	public synchronized void added(MethodNode m) {
+		if(parents.containsKey(m.owner)) {
+			add(find(m.owner), m);
+		}
+	}
+
+	/**
+	 * @return the same methods as {@link HierarchyMethods#getHierarchyMethodChain}, or null if the
+	 *         class isn't in the class tree.
+	 */
+	public synchronized Set<MethodNode> getHierarchyMethodChain(ClassNode cn, String name, String desc, boolean exact) {
+		update();
+		if(cn == null || !parents.containsKey(cn)) {
+			return null;
+		}
+
+		String key = key(name, desc);
+		Set<MethodNode> result = new HashSet<>();
+		addMatches(find(cn), key, desc, exact, result);
+		/* Object is in every group but it doesn't connect them. */
+		ClassNode root = app.getClassTree().getRootNode();
+		if(parents.containsKey(root)) {
+			addMatches(root, key, desc, exact, result);
+		}
+		return result;
+	}
+
+	private void addMatches(ClassNode group, String key, String desc, boolean exact, Set<MethodNode> result) {
+		List<MethodNode> list = families.getOrDefault(group, Collections.emptyMap()).get(key);
+		if(list == null) {
+			return;
+		}
+
+		Type returnType = exact ? null : Type.getReturnType(desc);
+		for(MethodNode m : list) {
+			if(exact ? m.getDesc().equals(desc) : helper.areTypesCongruent(returnType, Type.getReturnType(m.getDesc()))) {
+				result.add(m);
+			}
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package org.mapleir;
+
+import org.apache.log4j.Logger;
+import org.mapleir.asm.ClassNode;
+import org.mapleir.asm.MethodNode;
+import org.mapleir.context.IRCache;
+import org.mapleir.ir.cfg.BasicBlock;
+import org.mapleir.ir.cfg.ControlFlowGraph;
+import org.mapleir.ir.code.Opcode;
+import org.mapleir.ir.code.Stmt;
+import org.topdank.byteengineer.commons.asm.DefaultASMFactory;
+import org.topdank.byteengineer.commons.data.JarInfo;
+import org.topdank.byteio.in.SingleJarDownloader;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Compares the classic SSA construction against the on-the-fly construction
+ * on the same jar. Each mode loads its own copy of the jar as building a cfg
+ * consumes the method's instructions. With {@code frames} as the third
+ * argument the classes are read with their stack map frames, which the
+ * generator seeds the stacks of jump targets from.
+ */
+public class SSAConstructionBenchmark {
+
+	private static final Logger LOGGER = Logger.getLogger(SSAConstructionBenchmark.class);
+
+	public static void main(String[] args) throws IOException {
+		File f = new File(args.length > 0 ? args[0] : "res/rt.jar");
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+		boolean frames = args.length > 2 && args[2].equals("frames");
+
+		for (int i = 0; i < rounds; i++) {
+			run(f, "classic", false, frames);
+			run(f, "on-the-fly", true, frames);
+		}
+	}
+
+	private static void run(File f, String name, boolean onTheFlySSA, boolean frames) throws IOException {
+		SingleJarDownloader<ClassNode> dl = new SingleJarDownloader<>(new DefaultASMFactory(frames), new JarInfo(f));
+		dl.download();
+
+		IRCache cache = new IRCache(onTheFlySSA);
+		int methods = 0, failed = 0, stmts = 0, phis = 0;
+
+		long start = System.nanoTime();
+		for (ClassNode cn : dl.getJarContents().getClassContents()) {
+			for (MethodNode mn : cn.getMethods()) {
+				if (mn.node.instructions.size() == 0) {
+					continue;
+				}
+				methods++;
+				ControlFlowGraph cfg;
+				try {
+					cfg = cache.getFor(mn);
+				} catch (RuntimeException e) {
+					failed++;
+					continue;
+				}
+				for (BasicBlock b : cfg.vertices()) {
+					for (Stmt stmt : b) {
+						stmts++;
+						if (stmt.getOpcode() == Opcode.PHI_STORE) {
+							phis++;
+						}
+					}
+				}
+			}
+		}
+		double elapsed = (double) (System.nanoTime() - start) / 1_000_000_000L;
+
+		LOGGER.info(String.format("%s: %d methods (%d failed) in %fs, %d stmts, %d phis.", name, methods, failed, elapsed, stmts, phis));
+	}
+}
@@ -2,18 +2,26 @@ package org.mapleir.context;
 
 import org.mapleir.ir.cfg.ControlFlowGraph;
 import org.mapleir.ir.cfg.builder.ControlFlowGraphBuilder;
+import org.mapleir.ir.cfg.builder.FastControlFlowGraphBuilder;
 import org.mapleir.ir.code.CodeUnit;
 import org.mapleir.stdlib.collections.map.KeyedValueCreator;
 import org.mapleir.stdlib.collections.map.NullPermeableHashMap;
 import org.mapleir.stdlib.util.JavaDesc;
 import org.mapleir.asm.MethodNode;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.stream.Stream;
 
 public class IRCache extends NullPermeableHashMap<MethodNode, ControlFlowGraph> {
 	private static final long serialVersionUID = 1L;
 	
+	/* methods that are being lifted by getForConcurrently, so each is only lifted once. */
+	private final Map<MethodNode, FutureTask<ControlFlowGraph>> lifting = new HashMap<>();
+	
 	public IRCache(KeyedValueCreator<MethodNode, ControlFlowGraph> creator) {
 		super(creator);
 	}
@@ -21,11 +29,80 @@ public class IRCache extends NullPermeableHashMap<MethodNode, ControlFlowGraph>
 	public IRCache() {
 		this(ControlFlowGraphBuilder::build);
 	}
+
+	/**
+	 * @param onTheFlySSA whether to build SSA with {@link FastControlFlowGraphBuilder}
+	 *        instead of the classic liveness/dominance frontier based construction.
+	 */
+	public IRCache(boolean onTheFlySSA) {
+		this(onTheFlySSA ? FastControlFlowGraphBuilder::build : ControlFlowGraphBuilder::build);
+	}
 	
 	public ControlFlowGraph getFor(MethodNode m) {
 		return getNonNull(m);
 	}
 
+	/**
+	 * Like {@link #getFor}, but safe to call from several threads at once. Methods are lifted
+	 * outside of the lock, so different methods can be lifted at the same time, and a thread that
+	 * asks for a method which another thread is lifting waits for it rather than lifting it again.
+	 * While it's in use, the cache must only be read through this and {@link #getConcurrently}.
+	 */
+	public ControlFlowGraph getForConcurrently(MethodNode m) {
+		FutureTask<ControlFlowGraph> task;
+		boolean lifter = false;
+		synchronized (this) {
+			ControlFlowGraph cfg = get(m);
+			if (cfg != null) {
+				return cfg;
+			}
+			task = lifting.get(m);
+			if (task == null) {
+				task = new FutureTask<>(() -> getCreator().create(m));
+				lifting.put(m, task);
+				lifter = true;
+			}
+		}
+
+		if (lifter) {
+			task.run();
+		}
+		try {
+			ControlFlowGraph cfg = task.get();
+			if (lifter) {
+				synchronized (this) {
+					put(m, cfg);
+				}
+			}
+			return cfg;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		} finally {
+			/* only once it's in the cache, so nobody starts lifting it again in between. */
+			if (lifter) {
+				synchronized (this) {
+					lifting.remove(m);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A {@link #get} that's safe to use alongside {@link #getForConcurrently}.
+	 */
+	public synchronized ControlFlowGraph getConcurrently(MethodNode m) {
+		return get(m);
+	}
+
 	public MethodNode findMethod(JavaDesc jd) {
 		return getActiveMethods().stream().filter(mn -> mn.getJavaDesc().equals(jd)).findFirst().orElseGet(null);
 	}
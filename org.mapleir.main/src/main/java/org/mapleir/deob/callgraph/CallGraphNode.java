@@ -53,6 +53,10 @@ public abstract class CallGraphNode implements FastGraphVertex {
 			this.method = method;
 		}
 
+		public MethodNode getMethod() {
+			return method;
+		}
+
 		@Override
 		public String toString() {
 			return method.toString();
@@ -71,6 +75,14 @@ public abstract class CallGraphNode implements FastGraphVertex {
 			this.invoke = invoke;
 		}
 
+		public MethodNode getSourceMethod() {
+			return sourceMethod;
+		}
+
+		public Expr getInvoke() {
+			return invoke;
+		}
+
 		@Override
 		public String toString() {
 			return sourceMethod.owner + "." + sourceMethod.getName() + "@" + invoke.getBlock().indexOf(invoke.getRootParent()) + ":" + invoke.getParent().indexOf(invoke);
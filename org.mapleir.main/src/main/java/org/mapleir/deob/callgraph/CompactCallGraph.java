@@ -0,0 +1,457 @@
+package org.mapleir.deob.callgraph;
+
+import org.mapleir.app.service.ApplicationClassSource;
+import org.mapleir.asm.ClassNode;
+import org.mapleir.asm.MethodNode;
+import org.mapleir.deob.callgraph.CallGraphEdge.FunctionOwnershipEdge;
+import org.mapleir.deob.callgraph.CallGraphEdge.SiteInvocationEdge;
+import org.mapleir.deob.callgraph.CallGraphNode.CallReceiverNode;
+import org.mapleir.deob.callgraph.CallGraphNode.CallSiteNode;
+import org.mapleir.ir.code.expr.invoke.Invocation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+/**
+ * A read only call graph in flat int arrays, for whole program graphs that would take too much
+ * memory as a {@link CallSiteSensitiveCallGraph}.
+ * <p>
+ * Methods are numbered in order of owner, name and desc, and call sites are numbered so that the
+ * sites in a method are consecutive, in the order the builder found them. The sites of method m are
+ * {@code siteStart[m]} up to {@code siteStart[m + 1]}, and the targets of site s are
+ * {@code targets[targetStart[s]]} up to {@code targets[targetStart[s + 1]]}. The sites that can
+ * call each method are indexed the same way, so queries in either direction are array lookups.
+ * <p>
+ * Methods and the methods the sites invoke are stored by name, so a graph can be saved and
+ * loaded back in a later run. It's only valid for as long as the classes it was built from don't
+ * change.
+ */
+public class CompactCallGraph {
+	private static final int MAGIC = 0x4D495247; // MIRG
+	private static final int VERSION = 1;
+
+	private final String[] strings;
+	/* owner, name and desc of each method, as indices into strings */
+	private final int[] methods;
+	/* owner, name and desc of the method each site invokes */
+	private final int[] siteRefs;
+	/* forward: method -> its sites, site -> the methods it can call */
+	private final int[] siteStart;
+	private final int[] targetStart;
+	private final int[] targets;
+	/* reverse: method -> the sites that can call it. not saved. */
+	private final int[] callerStart;
+	private final int[] callers;
+
+	private CompactCallGraph(String[] strings, int[] methods, int[] siteRefs, int[] siteStart, int[] targetStart, int[] targets) {
+		this.strings = strings;
+		this.methods = methods;
+		this.siteRefs = siteRefs;
+		this.siteStart = siteStart;
+		this.targetStart = targetStart;
+		this.targets = targets;
+
+		int methodCount = getMethodCount();
+		callerStart = new int[methodCount + 1];
+		for (int t : targets) {
+			callerStart[t + 1]++;
+		}
+		for (int m = 0; m < methodCount; m++) {
+			callerStart[m + 1] += callerStart[m];
+		}
+		/* filling by site in order leaves each method's callers sorted. */
+		callers = new int[targets.length];
+		int[] fill = Arrays.copyOf(callerStart, methodCount);
+		for (int s = 0; s < getCallSiteCount(); s++) {
+			for (int i = targetStart[s]; i < targetStart[s + 1]; i++) {
+				callers[fill[targets[i]]++] = s;
+			}
+		}
+	}
+
+	/**
+	 * @param graph A call graph made by one of the builders.
+	 * @return The same graph in compact form.
+	 */
+	public static CompactCallGraph from(CallSiteSensitiveCallGraph graph) {
+		List<CallReceiverNode> receivers = new ArrayList<>();
+		for (CallGraphNode n : graph.vertices()) {
+			if (n instanceof CallReceiverNode) {
+				receivers.add((CallReceiverNode) n);
+			}
+		}
+		receivers.sort(Comparator.comparing((CallReceiverNode n) -> n.getMethod().getOwner())
+				.thenComparing(n -> n.getMethod().getName())
+				.thenComparing(n -> n.getMethod().getDesc()));
+
+		Map<String, Integer> strings = new LinkedHashMap<>();
+		Map<CallGraphNode, Integer> index = new HashMap<>();
+		int[] methods = new int[receivers.size() * 3];
+		for (int m = 0; m < receivers.size(); m++) {
+			MethodNode mn = receivers.get(m).getMethod();
+			methods[m * 3] = index(strings, mn.getOwner());
+			methods[m * 3 + 1] = index(strings, mn.getName());
+			methods[m * 3 + 2] = index(strings, mn.getDesc());
+			index.put(receivers.get(m), m);
+		}
+
+		int[] siteStart = new int[receivers.size() + 1];
+		IntList siteRefs = new IntList();
+		IntList targetStart = new IntList();
+		IntList targets = new IntList();
+		int siteCount = 0;
+		for (int m = 0; m < receivers.size(); m++) {
+			siteStart[m] = siteCount;
+
+			List<CallSiteNode> sites = new ArrayList<>();
+			for (CallGraphEdge e : graph.getEdges(receivers.get(m))) {
+				if (e instanceof FunctionOwnershipEdge) {
+					sites.add((CallSiteNode) e.dst());
+				}
+			}
+			sites.sort(Comparator.comparingInt(CallGraphNode::getNumericId));
+
+			for (CallSiteNode site : sites) {
+				Invocation invoke = (Invocation) site.getInvoke();
+				siteRefs.add(index(strings, invoke.getOwner()));
+				siteRefs.add(index(strings, invoke.getName()));
+				siteRefs.add(index(strings, invoke.getDesc()));
+
+				targetStart.add(targets.size());
+				int first = targets.size();
+				for (CallGraphEdge e : graph.getEdges(site)) {
+					if (e instanceof SiteInvocationEdge) {
+						targets.add(index.get(e.dst()));
+					}
+				}
+				targets.sort(first);
+				siteCount++;
+			}
+		}
+		siteStart[receivers.size()] = siteCount;
+		targetStart.add(targets.size());
+
+		return new CompactCallGraph(strings.keySet().toArray(new String[0]), methods, siteRefs.toArray(), siteStart, targetStart.toArray(), targets.toArray());
+	}
+
+	private static int index(Map<String, Integer> strings, String s) {
+		Integer i = strings.get(s);
+		if (i == null) {
+			strings.put(s, i = strings.size());
+		}
+		return i;
+	}
+
+	public int getMethodCount() {
+		return siteStart.length - 1;
+	}
+
+	public int getCallSiteCount() {
+		return targetStart.length - 1;
+	}
+
+	/**
+	 * @return The number of call site to target edges.
+	 */
+	public int getEdgeCount() {
+		return targets.length;
+	}
+
+	public String getOwner(int method) {
+		return strings[methods[method * 3]];
+	}
+
+	public String getName(int method) {
+		return strings[methods[method * 3 + 1]];
+	}
+
+	public String getDesc(int method) {
+		return strings[methods[method * 3 + 2]];
+	}
+
+	/**
+	 * @return The number of the method, or -1 if it isn't in the graph.
+	 */
+	public int indexOf(String owner, String name, String desc) {
+		int lo = 0, hi = getMethodCount() - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int c = getOwner(mid).compareTo(owner);
+			if (c == 0) {
+				c = getName(mid).compareTo(name);
+			}
+			if (c == 0) {
+				c = getDesc(mid).compareTo(desc);
+			}
+			if (c < 0) {
+				lo = mid + 1;
+			} else if (c > 0) {
+				hi = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	public int indexOf(MethodNode m) {
+		return indexOf(m.getOwner(), m.getName(), m.getDesc());
+	}
+
+	/**
+	 * @return The method in the application or its libraries, or null if it can't be found.
+	 */
+	public MethodNode findMethod(ApplicationClassSource app, int method) {
+		ClassNode cn = app.findClassNode(getOwner(method));
+		if (cn == null) {
+			return null;
+		}
+		for (MethodNode m : cn.getMethods()) {
+			if (m.getName().equals(getName(method)) && m.getDesc().equals(getDesc(method))) {
+				return m;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return The call sites in the method.
+	 */
+	public int[] getCallSites(int method) {
+		return range(siteStart[method], siteStart[method + 1]);
+	}
+
+	/**
+	 * @return The method the call site is in.
+	 */
+	public int getCaller(int site) {
+		int m = Arrays.binarySearch(siteStart, site);
+		if (m < 0) {
+			return -m - 2;
+		}
+		/* skip past the methods without sites, which start where the next one does. */
+		while (siteStart[m + 1] == site) {
+			m++;
+		}
+		return m;
+	}
+
+	/* the method the call site invokes, which its targets are resolved from. */
+	public String getSiteOwner(int site) {
+		return strings[siteRefs[site * 3]];
+	}
+
+	public String getSiteName(int site) {
+		return strings[siteRefs[site * 3 + 1]];
+	}
+
+	public String getSiteDesc(int site) {
+		return strings[siteRefs[site * 3 + 2]];
+	}
+
+	/**
+	 * @return The methods the call site can call.
+	 */
+	public int[] getTargets(int site) {
+		return Arrays.copyOfRange(targets, targetStart[site], targetStart[site + 1]);
+	}
+
+	public void forEachTarget(int site, IntConsumer action) {
+		for (int i = targetStart[site]; i < targetStart[site + 1]; i++) {
+			action.accept(targets[i]);
+		}
+	}
+
+	/**
+	 * @return The call sites that can call the method.
+	 */
+	public int[] getCallers(int method) {
+		return Arrays.copyOfRange(callers, callerStart[method], callerStart[method + 1]);
+	}
+
+	public void forEachCaller(int method, IntConsumer action) {
+		for (int i = callerStart[method]; i < callerStart[method + 1]; i++) {
+			action.accept(callers[i]);
+		}
+	}
+
+	/**
+	 * @return The methods the method can call, without duplicates.
+	 */
+	public int[] getCallees(int method) {
+		IntList result = new IntList();
+		for (int s = siteStart[method]; s < siteStart[method + 1]; s++) {
+			for (int i = targetStart[s]; i < targetStart[s + 1]; i++) {
+				result.add(targets[i]);
+			}
+		}
+		return result.distinct();
+	}
+
+	/**
+	 * @return The methods that can call the method, without duplicates.
+	 */
+	public int[] getCallerMethods(int method) {
+		IntList result = new IntList();
+		for (int i = callerStart[method]; i < callerStart[method + 1]; i++) {
+			result.add(getCaller(callers[i]));
+		}
+		return result.distinct();
+	}
+
+	private static int[] range(int from, int to) {
+		int[] result = new int[to - from];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = from + i;
+		}
+		return result;
+	}
+
+	/**
+	 * Loads a graph.
+	 *
+	 * @param file The file the graph was saved in.
+	 * @return The graph, or null if there isn't one or it's in another version of the format.
+	 * @throws IOException If the file can't be read.
+	 */
+	public static CompactCallGraph read(File file) throws IOException {
+		if (!file.isFile()) {
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				return null;
+			}
+			String[] strings = new String[in.readInt()];
+			for (int i = 0; i < strings.length; i++) {
+				strings[i] = in.readUTF();
+			}
+			int[] methods = readInts(in);
+			int[] siteRefs = readInts(in);
+			int[] siteStart = readInts(in);
+			int[] targetStart = readInts(in);
+			int[] targets = readInts(in);
+			return new CompactCallGraph(strings, methods, siteRefs, siteStart, targetStart, targets);
+		} catch (EOFException e) {
+			// truncated, e.g. by a run that was killed while saving it
+			return null;
+		}
+	}
+
+	/**
+	 * Saves the graph, replacing the file only once it has been written in full. Nothing is left
+	 * behind if it fails.
+	 *
+	 * @param file The file to save the graph in.
+	 * @throws IOException If the file can't be written.
+	 */
+	public void write(File file) throws IOException {
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null && !parent.exists()) {
+			parent.mkdirs();
+		}
+		File tmp = new File(file.getPath() + ".tmp");
+		boolean saved = false;
+		try {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(strings.length);
+				for (String s : strings) {
+					out.writeUTF(s);
+				}
+				writeInts(out, methods);
+				writeInts(out, siteRefs);
+				writeInts(out, siteStart);
+				writeInts(out, targetStart);
+				writeInts(out, targets);
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			saved = true;
+		} finally {
+			if (!saved) {
+				tmp.delete();
+			}
+		}
+	}
+
+	/* arrays are copied through a byte buffer a chunk at a time rather than an int at a time. */
+	private static void writeInts(DataOutputStream out, int[] a) throws IOException {
+		out.writeInt(a.length);
+		ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+		for (int i = 0; i < a.length; ) {
+			int n = Math.min(a.length - i, buf.capacity() / 4);
+			buf.clear();
+			buf.asIntBuffer().put(a, i, n);
+			out.write(buf.array(), 0, n * 4);
+			i += n;
+		}
+	}
+
+	private static int[] readInts(DataInputStream in) throws IOException {
+		int[] a = new int[in.readInt()];
+		byte[] bytes = new byte[1 << 16];
+		for (int i = 0; i < a.length; ) {
+			int n = Math.min(a.length - i, bytes.length / 4);
+			in.readFully(bytes, 0, n * 4);
+			ByteBuffer.wrap(bytes, 0, n * 4).asIntBuffer().get(a, i, n);
+			i += n;
+		}
+		return a;
+	}
+
+	/* a growable int array. */
+	private static class IntList {
+		private int[] data = new int[16];
+		private int size;
+
+		void add(int i) {
+			if (size == data.length) {
+				data = Arrays.copyOf(data, size * 2);
+			}
+			data[size++] = i;
+		}
+
+		int size() {
+			return size;
+		}
+
+		/* sorts the elements from the index onwards. */
+		void sort(int from) {
+			Arrays.sort(data, from, size);
+		}
+
+		int[] toArray() {
+			return Arrays.copyOf(data, size);
+		}
+
+		int[] distinct() {
+			Arrays.sort(data, 0, size);
+			int n = 0;
+			for (int i = 0; i < size; i++) {
+				if (n == 0 || data[n - 1] != data[i]) {
+					data[n++] = data[i];
+				}
+			}
+			return Arrays.copyOf(data, n);
+		}
+	}
+}
@@ -0,0 +1,237 @@
+package org.mapleir.deob.callgraph;
+
+import org.mapleir.app.service.ApplicationClassSource;
+import org.mapleir.app.service.InvocationResolver;
+import org.mapleir.context.AnalysisContext;
+import org.mapleir.context.IRCache;
+import org.mapleir.deob.callgraph.CallGraphEdge.FunctionOwnershipEdge;
+import org.mapleir.deob.callgraph.CallGraphEdge.SiteInvocationEdge;
+import org.mapleir.ir.cfg.ControlFlowGraph;
+import org.mapleir.ir.code.Expr;
+import org.mapleir.ir.code.Stmt;
+import org.mapleir.ir.code.expr.invoke.Invocation;
+import org.mapleir.asm.MethodNode;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Builds a call graph like {@link SensitiveCallGraphBuilder}, with the methods scanned on a pool of
+ * threads. The worklist is processed a round at a time. The methods queued in a round are scanned
+ * in parallel, i.e. their IR is fetched or lifted and their call sites are resolved, and the results
+ * are merged into the graph on the calling thread in the order the methods were queued. Scanning
+ * doesn't look at the graph, so given the same IR every node gets the same id however many threads
+ * there are.
+ * <p>
+ * By default, application methods that aren't in the {@link IRCache} yet are lifted on the workers
+ * and added to it, so the graph is the one the sequential builder would give if every application
+ * method had been lifted beforehand. Builders made with {@code liftMissing} off only use the IR
+ * that's already in the cache and add methods without any to the graph with no call sites, which
+ * gives exactly the graph of the sequential builder. The resolver must be safe to use from several
+ * threads, and nothing else may use the cache while a graph is being built.
+ */
+public class ParallelCallGraphBuilder {
+	/* methods per task */
+	private static final int CHUNK_SIZE = 32;
+
+	private final CallSiteSensitiveCallGraph callGraph;
+	private final AnalysisContext context;
+	private final int threads;
+	private final boolean liftMissing;
+	private final Set<MethodNode> processed;
+
+	public ParallelCallGraphBuilder(AnalysisContext context) {
+		this(context, Runtime.getRuntime().availableProcessors());
+	}
+
+	public ParallelCallGraphBuilder(AnalysisContext context, int threads) {
+		this(context, threads, true);
+	}
+
+	/**
+	 * @param context The analysis context.
+	 * @param threads The number of threads methods are scanned on.
+	 * @param liftMissing Whether to lift the application methods that aren't in the cache, rather
+	 *        than leave them without call sites as {@link SensitiveCallGraphBuilder} does.
+	 */
+	public ParallelCallGraphBuilder(AnalysisContext context, int threads, boolean liftMissing) {
+		if (threads < 1) {
+			throw new IllegalArgumentException(String.valueOf(threads));
+		}
+		callGraph = new CallSiteSensitiveCallGraph();
+		this.context = context;
+		this.threads = threads;
+		this.liftMissing = liftMissing;
+		processed = new HashSet<>();
+	}
+
+	public CallSiteSensitiveCallGraph build(Collection<MethodNode> entries) {
+		List<MethodNode> round = new ArrayList<>(entries);
+		if (threads == 1) {
+			while (!round.isEmpty()) {
+				List<MethodNode> next = new ArrayList<>();
+				for (MethodNode m : round) {
+					if (!processed.contains(m)) {
+						merge(scan(m), next);
+					}
+				}
+				round = next;
+			}
+			return callGraph;
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			while (!round.isEmpty()) {
+				round = processRound(pool, round);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		} finally {
+			pool.shutdownNow();
+		}
+		return callGraph;
+	}
+
+	/* scans the round in chunks and merges each chunk as soon as it's done, while the later ones
+	 * are still being scanned. returns the methods queued for the next round. */
+	private List<MethodNode> processRound(ExecutorService pool, List<MethodNode> round) throws InterruptedException, ExecutionException {
+		/* duplicates and methods done in earlier rounds would be skipped by the merge anyway. */
+		List<MethodNode> todo = new ArrayList<>();
+		for (MethodNode m : new LinkedHashSet<>(round)) {
+			if (!processed.contains(m)) {
+				todo.add(m);
+			}
+		}
+
+		List<Future<List<Scan>>> futures = new ArrayList<>();
+		for (int i = 0; i < todo.size(); i += CHUNK_SIZE) {
+			List<MethodNode> chunk = todo.subList(i, Math.min(todo.size(), i + CHUNK_SIZE));
+			futures.add(pool.submit(() -> {
+				List<Scan> scans = new ArrayList<>(chunk.size());
+				for (MethodNode m : chunk) {
+					scans.add(scan(m));
+				}
+				return scans;
+			}));
+		}
+
+		List<MethodNode> next = new ArrayList<>();
+		for (Future<List<Scan>> f : futures) {
+			for (Scan s : f.get()) {
+				merge(s, next);
+			}
+		}
+		return next;
+	}
+
+	/* runs on the workers: doesn't touch the graph. */
+	private Scan scan(MethodNode m) {
+		IRCache cache = context.getIRCache();
+		ControlFlowGraph cfg;
+		if (!liftMissing) {
+			/* nothing writes to the cache, so it can be read as it is. */
+			cfg = cache.get(m);
+		} else if (canLift(m)) {
+			cfg = cache.getForConcurrently(m);
+		} else {
+			cfg = cache.getConcurrently(m);
+		}
+
+		Scan scan = new Scan(m, cfg);
+		if (cfg != null) {
+			InvocationResolver resolver = context.getInvocationResolver();
+			for (Stmt stmt : cfg.stmts()) {
+				for (Expr e : stmt.enumerateOnlyChildren()) {
+					if (e instanceof Invocation) {
+						Invocation invoke = (Invocation) e;
+						scan.sites.add(invoke);
+						scan.targets.add(invoke.resolveTargets(resolver));
+					}
+				}
+			}
+		}
+		return scan;
+	}
+
+	private boolean canLift(MethodNode m) {
+		ApplicationClassSource app = context.getApplication();
+		return !app.isLibraryClass(m.getOwner()) && m.node.instructions.size() > 0;
+	}
+
+	/* does what SensitiveCallGraphBuilder.process does with the results of the scan. */
+	private void merge(Scan scan, List<MethodNode> next) {
+		MethodNode n = scan.method;
+		if (!processed.add(n)) {
+			return;
+		}
+
+		/* this is not the same as getNode */
+		CallGraphNode.CallReceiverNode currentReceiverNode = createNode(n, false, next);
+
+		if (scan.cfg == null) {
+			return;
+		}
+
+		for (int i = 0; i < scan.sites.size(); i++) {
+			CallGraphNode.CallSiteNode thisCallSiteNode = callGraph.addInvocation(n, scan.sites.get(i));
+
+			/* link the current receiver to this call site. */
+			FunctionOwnershipEdge foe = new FunctionOwnershipEdge(currentReceiverNode, thisCallSiteNode);
+			callGraph.addEdge(foe);
+
+			for (MethodNode target : scan.targets.get(i)) {
+				CallGraphNode.CallReceiverNode targetReceiverNode = createNode(target, true, next);
+
+				/* link each target to the call site. */
+				SiteInvocationEdge sie = new SiteInvocationEdge(thisCallSiteNode, targetReceiverNode);
+				callGraph.addEdge(sie);
+			}
+		}
+	}
+
+	/*
+	 * either get a pre built node or make one and add it to the next round.
+	 */
+	private CallGraphNode.CallReceiverNode createNode(MethodNode m, boolean queue, List<MethodNode> next) {
+		if (callGraph.containsMethod(m)) {
+			return callGraph.getNode(m);
+		} else {
+			CallGraphNode.CallReceiverNode currentReceiverNode = callGraph.addMethod(m);
+			if (queue) {
+				next.add(m);
+			}
+			return currentReceiverNode;
+		}
+	}
+
+	/* the call sites of a method and what they resolve to, in the order they appear. */
+	private static class Scan {
+		final MethodNode method;
+		final ControlFlowGraph cfg;
+		final List<Invocation> sites = new ArrayList<>();
+		final List<Set<MethodNode>> targets = new ArrayList<>();
+
+		Scan(MethodNode method, ControlFlowGraph cfg) {
+			this.method = method;
+			this.cfg = cfg;
+		}
+	}
+}
@@ -0,0 +1,303 @@
+package org.mapleir.deob.callgraph;
+
+import org.apache.log4j.Logger;
+import org.mapleir.app.service.ApplicationClassSource;
+import org.mapleir.app.service.InvocationResolver;
+import org.mapleir.context.AnalysisContext;
+import org.mapleir.deob.callgraph.CallGraphEdge.FunctionOwnershipEdge;
+import org.mapleir.deob.callgraph.CallGraphEdge.SiteInvocationEdge;
+import org.mapleir.ir.cfg.ControlFlowGraph;
+import org.mapleir.ir.code.Expr;
+import org.mapleir.ir.code.Opcode;
+import org.mapleir.ir.code.Stmt;
+import org.mapleir.ir.code.expr.AllocObjectExpr;
+import org.mapleir.ir.code.expr.FieldLoadExpr;
+import org.mapleir.ir.code.expr.invoke.InitialisedObjectExpr;
+import org.mapleir.ir.code.expr.invoke.Invocation;
+import org.mapleir.ir.code.expr.invoke.InvocationExpr.CallType;
+import org.mapleir.ir.code.expr.invoke.VirtualInvocationExpr;
+import org.mapleir.ir.code.stmt.FieldStoreStmt;
+import org.mapleir.stdlib.collections.list.Worklist;
+import org.mapleir.asm.ClassNode;
+import org.mapleir.asm.MethodNode;
+
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Builds a call graph by rapid type analysis. Virtual and interface calls are only resolved
+ * against the classes that are instantiated in the methods reachable from the entry points,
+ * rather than every subclass of the owner as in {@link SensitiveCallGraphBuilder}. When a new
+ * class is found to be instantiated, the calls already seen on its supertypes gain the methods it
+ * dispatches to, and those are queued in turn. Other calls are resolved as before.
+ * <p>
+ * Library code isn't analysed, so every library class is assumed to be instantiated. The static
+ * initialiser of a class is reachable once the class is instantiated, one of its methods is
+ * reachable, or one of its static fields is used.
+ */
+public class RapidTypeCallGraphBuilder implements Worklist.Worker<MethodNode> {
+	private static final Logger LOGGER = Logger.getLogger(RapidTypeCallGraphBuilder.class);
+
+	private final CallSiteSensitiveCallGraph callGraph;
+	private final AnalysisContext context;
+	private final ApplicationClassSource app;
+	private final InvocationResolver resolver;
+	private final Worklist<MethodNode> worklist;
+
+	private final Set<ClassNode> instantiated;
+	private final Set<ClassNode> initialised;
+	/* owner -> name and desc -> the virtual calls on that owner seen so far. */
+	private final Map<ClassNode, Map<String, VirtualCalls>> virtualCalls;
+
+	private int methodCount;
+	private int edgeCount;
+	private int chaEdgeCount;
+
+	public RapidTypeCallGraphBuilder(AnalysisContext context) {
+		callGraph = new CallSiteSensitiveCallGraph();
+		this.context = context;
+		app = context.getApplication();
+		resolver = context.getInvocationResolver();
+		worklist = makeWorklist();
+		instantiated = new HashSet<>();
+		initialised = new HashSet<>();
+		virtualCalls = new HashMap<>();
+	}
+
+	public Worklist<MethodNode> getWorklist() {
+		return worklist;
+	}
+
+	public CallSiteSensitiveCallGraph build() {
+		return build(context.getApplicationContext().getEntryPoints());
+	}
+
+	public CallSiteSensitiveCallGraph build(Collection<MethodNode> entries) {
+		for (MethodNode m : entries) {
+			createNode(m, true);
+		}
+		worklist.processQueue();
+
+		LOGGER.info(String.format("RTA: %d methods, %d instantiated classes, %d call edges (%d by CHA at the same call sites)",
+				methodCount, instantiated.size(), edgeCount, chaEdgeCount));
+		return callGraph;
+	}
+
+	/**
+	 * @return the classes that are instantiated in reachable code.
+	 */
+	public Set<ClassNode> getInstantiatedClasses() {
+		return instantiated;
+	}
+
+	/**
+	 * @return the number of call site to target edges in the graph.
+	 */
+	public int getEdgeCount() {
+		return edgeCount;
+	}
+
+	/**
+	 * @return the number of call site to target edges the call sites in the graph would have if
+	 *         every call was resolved by class hierarchy analysis.
+	 */
+	public int getChaEdgeCount() {
+		return chaEdgeCount;
+	}
+
+	protected Worklist<MethodNode> makeWorklist() {
+		Worklist<MethodNode> worklist = new Worklist<>();
+		worklist.addWorker(this);
+		return worklist;
+	}
+
+	@Override
+	public void process(Worklist<MethodNode> worklist, MethodNode n) {
+		if (worklist != this.worklist) {
+			throw new IllegalStateException();
+		}
+
+		if (worklist.hasProcessed(n)) {
+			throw new UnsupportedOperationException(String.format("Already processed %s", n));
+		}
+
+		CallGraphNode.CallReceiverNode currentReceiverNode = createNode(n, false);
+		methodCount++;
+
+		initialise(n.owner);
+
+		ControlFlowGraph cfg = context.getIRCache().get(n);
+
+		if (cfg == null) {
+			return;
+		}
+
+		for (Stmt stmt : cfg.stmts()) {
+			if (stmt.getOpcode() == Opcode.FIELD_STORE && ((FieldStoreStmt) stmt).isStatic()) {
+				initialise(app.findClassNode(((FieldStoreStmt) stmt).getOwner()));
+			}
+
+			for (Expr e : stmt.enumerateOnlyChildren()) {
+				if (e.getOpcode() == Opcode.ALLOC_OBJ) {
+					instantiate(app.findClassNode(((AllocObjectExpr) e).getType().getInternalName()));
+				} else if (e.getOpcode() == Opcode.FIELD_LOAD && ((FieldLoadExpr) e).isStatic()) {
+					initialise(app.findClassNode(((FieldLoadExpr) e).getOwner()));
+				} else if (e instanceof Invocation) {
+					Invocation invoke = (Invocation) e;
+					if (invoke instanceof InitialisedObjectExpr) {
+						instantiate(app.findClassNode(invoke.getOwner()));
+					}
+
+					CallGraphNode.CallSiteNode thisCallSiteNode = callGraph.addInvocation(n, invoke);
+
+					/* link the current receiver to this call site. */
+					FunctionOwnershipEdge foe = new FunctionOwnershipEdge(currentReceiverNode, thisCallSiteNode);
+					callGraph.addEdge(foe);
+
+					if (isVirtualCall(invoke)) {
+						addVirtualCall(thisCallSiteNode, invoke);
+					} else {
+						Set<MethodNode> targets = invoke.resolveTargets(resolver);
+						chaEdgeCount += targets.size();
+						for (MethodNode target : targets) {
+							link(thisCallSiteNode, target);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private static boolean isVirtualCall(Invocation invoke) {
+		if (invoke instanceof VirtualInvocationExpr) {
+			CallType type = ((VirtualInvocationExpr) invoke).getCallType();
+			return type == CallType.VIRTUAL || type == CallType.INTERFACE;
+		} else {
+			return false;
+		}
+	}
+
+	private void addVirtualCall(CallGraphNode.CallSiteNode site, Invocation invoke) {
+		chaEdgeCount += invoke.resolveTargets(resolver).size();
+
+		ClassNode owner = app.findClassNode(invoke.getOwner());
+		if (owner == null) {
+			LOGGER.error(String.format("can't resolve call to %s.%s %s", invoke.getOwner(), invoke.getName(), invoke.getDesc()));
+			return;
+		}
+
+		Map<String, VirtualCalls> calls = virtualCalls.computeIfAbsent(owner, o -> new HashMap<>());
+		String key = invoke.getName() + invoke.getDesc();
+		VirtualCalls vc = calls.get(key);
+		if (vc == null) {
+			vc = new VirtualCalls(invoke.getName(), invoke.getDesc());
+			calls.put(key, vc);
+
+			List<ClassNode> receivers = new ArrayList<>();
+			app.getClassTree().getSubtypeIndex().forEachDescendant(owner, c -> {
+				if (instantiated.contains(c) || (app.isLibraryClass(c.getName()) && isInstantiable(c))) {
+					receivers.add(c);
+				}
+			});
+			for (ClassNode c : receivers) {
+				dispatch(vc, c);
+			}
+		}
+
+		vc.sites.add(site);
+		for (MethodNode target : vc.targets) {
+			link(site, target);
+		}
+	}
+
+	/* adds the method the calls dispatch to on an instance of the class. */
+	private void dispatch(VirtualCalls vc, ClassNode receiver) {
+		MethodNode target = resolver.resolve(receiver, vc.name, vc.desc, false);
+		if (target == null || Modifier.isAbstract(target.node.access)) {
+			return;
+		}
+
+		if (vc.targets.add(target)) {
+			for (CallGraphNode.CallSiteNode site : vc.sites) {
+				link(site, target);
+			}
+		}
+	}
+
+	private static boolean isInstantiable(ClassNode c) {
+		return !Modifier.isAbstract(c.node.access);
+	}
+
+	private void instantiate(ClassNode c) {
+		if (c == null || !isInstantiable(c) || !instantiated.add(c)) {
+			return;
+		}
+		initialise(c);
+
+		/* the calls already seen on any of its supertypes can now reach it. */
+		List<VirtualCalls> affected = new ArrayList<>();
+		app.getClassTree().getSubtypeIndex().forEachAncestor(c, a -> {
+			Map<String, VirtualCalls> calls = virtualCalls.get(a);
+			if (calls != null) {
+				affected.addAll(calls.values());
+			}
+		});
+		for (VirtualCalls vc : affected) {
+			dispatch(vc, c);
+		}
+	}
+
+	/* makes the static initialisers of the class and its superclasses reachable. */
+	private void initialise(ClassNode c) {
+		for (ClassNode k = c; k != null && !app.isLibraryClass(k.getName()) && initialised.add(k); k = app.findClassNode(k.node.superName)) {
+			for (MethodNode m : k.getMethods()) {
+				if (m.getName().equals("<clinit>")) {
+					createNode(m, true);
+				}
+			}
+		}
+	}
+
+	private void link(CallGraphNode.CallSiteNode site, MethodNode target) {
+		CallGraphNode.CallReceiverNode targetReceiverNode = createNode(target, true);
+
+		/* link each target to the call site. */
+		SiteInvocationEdge sie = new SiteInvocationEdge(site, targetReceiverNode);
+		callGraph.addEdge(sie);
+		edgeCount++;
+	}
+
+	/*
+	 * either get a pre built node or make one and add it to the worklist.
+	 */
+	protected CallGraphNode.CallReceiverNode createNode(MethodNode m, boolean queue) {
+		if (callGraph.containsMethod(m)) {
+			return callGraph.getNode(m);
+		} else {
+			CallGraphNode.CallReceiverNode currentReceiverNode = callGraph.addMethod(m);
+			if (queue) {
+				worklist.queueData(m);
+			}
+			return currentReceiverNode;
+		}
+	}
+
+	/* the virtual calls with the same owner, name and desc, and the methods they can reach. */
+	private static class VirtualCalls {
+		final String name;
+		final String desc;
+		final List<CallGraphNode.CallSiteNode> sites = new ArrayList<>();
+		final Set<MethodNode> targets = new HashSet<>();
+
+		VirtualCalls(String name, String desc) {
+			this.name = name;
+			this.desc = desc;
+		}
+	}
+}
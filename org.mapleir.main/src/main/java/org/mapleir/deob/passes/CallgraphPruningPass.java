@@ -1,5 +1,6 @@
 package org.mapleir.deob.passes;
 
+import java.util.HashSet;
 import java.util.ListIterator;
 import java.util.Set;
 
@@ -19,6 +20,7 @@ public class CallgraphPruningPass implements IPass {
 	@Override
 	public PassResult accept(PassContext cxt) {
 		int delta = 0;
+		Set<ClassNode> changed = new HashSet<>();
 
 		Set<MethodNode> active = cxt.getAnalysis().getIRCache().getActiveMethods();
 		for(ClassNode cn : cxt.getAnalysis().getApplication().iterate()) {
@@ -27,11 +29,15 @@ public class CallgraphPruningPass implements IPass {
 				MethodNode m = lit.next();
 				if(!active.contains(m)) {
 					lit.remove();
+					changed.add(cn);
 					delta++;
 				}
 			}
 		}
 		
+		if(delta > 0) {
+			cxt.getAnalysis().getInvocationResolver().invalidate(changed);
+		}
 		System.out.println("Removed " + delta + " dead methods.");
 		
 		return PassResult.with(cxt, this).finished().make();
@@ -35,6 +35,7 @@ import org.mapleir.ir.locals.LocalsPool;
 import org.mapleir.ir.locals.impl.VersionedLocal;
 import org.mapleir.ir.utils.CFGUtils;
 import org.objectweb.asm.Type;
+import org.mapleir.asm.ClassNode;
 import org.mapleir.asm.MethodNode;
 
 // TODO: Convert to use TaintableSet
@@ -386,6 +387,18 @@ public class ConstantParameterPass implements IPass, Opcode {
 			}
 		}
 		
+		/* the resolver's families are keyed by the old names and descriptors. */
+		Set<ClassNode> changed = new HashSet<>();
+		for(MethodNode m : methodNameRemap.keySet()) {
+			changed.add(m.owner);
+		}
+		for(MethodNode m : visitedMethods) {
+			changed.add(m.owner);
+		}
+		if(!changed.isEmpty()) {
+			resolver.invalidate(changed);
+		}
+		
 		System.out.printf("  removed %d constant parameters.%n", killedTotal);
 		return PassResult.with(pcxt, this).finished(killedTotal).make();
 	}
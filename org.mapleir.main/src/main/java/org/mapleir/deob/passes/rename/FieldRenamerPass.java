@@ -1,5 +1,6 @@
 package org.mapleir.deob.passes.rename;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -51,48 +52,57 @@ public class FieldRenamerPass implements IPass {
 			for(MethodNode m : cn.getMethods()) {
 				ControlFlowGraph cfg = cxt.getIRCache().getFor(m);
 				
+				List<FieldStoreStmt> stores = new ArrayList<>();
+				List<FieldLoadExpr> loads = new ArrayList<>();
 				for(BasicBlock b : cfg.vertices()) {
 					for(Stmt stmt : b) {
-						
 						if(stmt.getOpcode() == Opcode.FIELD_STORE) {
-							FieldStoreStmt fs = (FieldStoreStmt) stmt;
-							
-							FieldNode f = resolver.findField(fs.getOwner(), fs.getName(), fs.getDesc(), fs.getInstanceExpression() == null);
-							
-							if(f != null) {
-								if(remapped.containsKey(f)) {
-									fs.setName(remapped.get(f));
-								} else if(mustMark(source, f.getOwner())) {
-									System.err.println("  no remap for " + f + ", owner: " + f.getOwner());
-								}
-							} else {
-								if(mustMark(source, fs.getOwner())) {
-									System.err.println("  can't resolve field(set): " + fs.getOwner() + "." + fs.getName() + " " + fs.getDesc() + ", " + (fs.getInstanceExpression() == null));
-								}
-							}
+							stores.add((FieldStoreStmt) stmt);
 						}
 						
 						for(Expr e : stmt.enumerateOnlyChildren()) {
 							if(e.getOpcode() == Opcode.FIELD_LOAD) {
-								FieldLoadExpr fl = (FieldLoadExpr) e;
-								
-								FieldNode f = resolver.findField(fl.getOwner(), fl.getName(), fl.getDesc(), fl.getInstanceExpression() == null);
-								
-								if(f != null) {
-									if(remapped.containsKey(f)) {
-										fl.setName(remapped.get(f));
-									} else if(mustMark(source, f.getOwner())) {
-										System.err.println("  no remap for " + f + ", owner: " + f.getOwner());
-									}
-								} else {
-									if(mustMark(source, fl.getOwner())) {
-										System.err.println("  can't resolve field(get): " + fl.getOwner() + "." + fl.getName() + " " + fl.getDesc() + ", " + (fl.getInstanceExpression() == null));
-									}
-								}
+								loads.add((FieldLoadExpr) e);
 							}
 						}
 					}
 				}
+				
+				List<FieldNode> storeFields = resolver.findFields(stores);
+				for(int j = 0; j < stores.size(); j++) {
+					FieldStoreStmt fs = stores.get(j);
+					FieldNode f = storeFields.get(j);
+					
+					if(f != null) {
+						if(remapped.containsKey(f)) {
+							fs.setName(remapped.get(f));
+						} else if(mustMark(source, f.getOwner())) {
+							System.err.println("  no remap for " + f + ", owner: " + f.getOwner());
+						}
+					} else {
+						if(mustMark(source, fs.getOwner())) {
+							System.err.println("  can't resolve field(set): " + fs.getOwner() + "." + fs.getName() + " " + fs.getDesc() + ", " + fs.isStatic());
+						}
+					}
+				}
+				
+				List<FieldNode> loadFields = resolver.findFields(loads);
+				for(int j = 0; j < loads.size(); j++) {
+					FieldLoadExpr fl = loads.get(j);
+					FieldNode f = loadFields.get(j);
+					
+					if(f != null) {
+						if(remapped.containsKey(f)) {
+							fl.setName(remapped.get(f));
+						} else if(mustMark(source, f.getOwner())) {
+							System.err.println("  no remap for " + f + ", owner: " + f.getOwner());
+						}
+					} else {
+						if(mustMark(source, fl.getOwner())) {
+							System.err.println("  can't resolve field(get): " + fl.getOwner() + "." + fl.getName() + " " + fl.getDesc() + ", " + fl.isStatic());
+						}
+					}
+				}
 			}
 		}
 		
@@ -100,6 +110,9 @@ public class FieldRenamerPass implements IPass {
 			e.getKey().node.name = e.getValue();
 		}
 		
+		/* the resolver's fields are keyed by their old names. */
+		resolver.invalidateFields();
+		
 		System.out.printf("  Renamed %d fields.%n", remapped.size());
 
 		return PassResult.with(pcxt, this).finished().make();
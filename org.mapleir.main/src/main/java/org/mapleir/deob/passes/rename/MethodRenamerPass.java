@@ -125,6 +125,11 @@ public class MethodRenamerPass implements IPass {
 		}
 		
 		rename(cxt, remapped, true);
+		Set<ClassNode> owners = new HashSet<>();
+		for(MethodNode m : remapped.keySet()) {
+			owners.add(m.owner);
+		}
+		resolver.invalidate(owners);
 		System.out.printf("  Remapped %d/%d methods.%n", remapped.size(), totalMethods);
 
 		return PassResult.with(pcxt, this).finished().make();
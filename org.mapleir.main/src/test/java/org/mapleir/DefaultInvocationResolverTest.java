@@ -0,0 +1,146 @@
+package org.mapleir;
+
+import junit.framework.TestCase;
+import org.mapleir.app.service.ApplicationClassSource;
+import org.mapleir.app.service.IndexedLibraryClassSource;
+import org.mapleir.app.service.InstalledRuntimeClassSource;
+import org.mapleir.asm.ClassHelper;
+import org.mapleir.asm.ClassNode;
+import org.mapleir.asm.FieldNode;
+import org.mapleir.asm.MethodNode;
+import org.mapleir.ir.code.expr.ConstantExpr;
+import org.mapleir.ir.code.expr.FieldLoadExpr;
+import org.mapleir.ir.code.stmt.FieldStoreStmt;
+import org.mapleir.app.service.FieldReference;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+public class DefaultInvocationResolverTest extends TestCase {
+
+	private File jar;
+	private IndexedLibraryClassSource lib;
+	private ApplicationClassSource app;
+
+	/* a class with a public f()V. */
+	private static void klass(JarOutputStream jos, String name, String superName) throws IOException {
+		ClassWriter cw = new ClassWriter(0);
+		cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, name, null, superName, null);
+		cw.visitMethod(Opcodes.ACC_PUBLIC, "f", "()V", null, null).visitEnd();
+		cw.visitEnd();
+		jos.putNextEntry(new JarEntry(name + ".class"));
+		jos.write(cw.toByteArray());
+	}
+
+	/* B extends A and overrides f, in a library that only loads classes as they're looked up. */
+	@Override
+	protected void setUp() throws IOException {
+		jar = File.createTempFile("resolver", ".jar");
+		try (JarOutputStream jos = new JarOutputStream(new FileOutputStream(jar))) {
+			klass(jos, "test/A", "java/lang/Object");
+			klass(jos, "test/B", "test/A");
+		}
+		app = new ApplicationClassSource("test", Collections.emptyList());
+		lib = new IndexedLibraryClassSource(app, jar);
+		app.addLibraries(lib, new InstalledRuntimeClassSource(app));
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		lib.close();
+		jar.delete();
+	}
+
+	private static Set<String> owners(Set<MethodNode> targets) {
+		Set<String> res = new HashSet<>();
+		for (MethodNode m : targets) {
+			res.add(m.getOwner());
+		}
+		return res;
+	}
+
+	public void testClassesLoadedLaterAddReceivers() {
+		DefaultInvocationResolver resolver = new DefaultInvocationResolver(app, 1);
+		assertEquals(Collections.singleton("test/A"), owners(resolver.resolveVirtualCalls("test/A", "f", "()V", true)));
+		assertEquals(Collections.singleton("test/A"), owners(resolver.resolveVirtualCalls("test/A", "f", "()V", true)));
+		assertEquals(1, resolver.getVirtualCallCacheHits());
+
+		/* loading B puts it in the class tree. */
+		assertNotNull(app.findClassNode("test/B"));
+		Set<String> expected = new HashSet<>();
+		expected.add("test/A");
+		expected.add("test/B");
+		assertEquals(expected, owners(resolver.resolveVirtualCalls("test/A", "f", "()V", true)));
+		assertEquals(2, resolver.getVirtualCallCacheMisses());
+		assertEquals(1, resolver.getVirtualCallCacheSize());
+	}
+
+	private static ClassNode fields(int access, String name, String superName, String[] interfaces, int fieldAccess, String... fields) {
+		org.objectweb.asm.tree.ClassNode cn = new org.objectweb.asm.tree.ClassNode();
+		cn.visit(Opcodes.V1_8, access, name, null, superName, interfaces);
+		for (String f : fields) {
+			cn.visitField(fieldAccess, f, "I", null, null).visitEnd();
+		}
+		cn.visitEnd();
+		return ClassHelper.create(cn);
+	}
+
+	private static String describe(FieldNode f) {
+		return f != null ? f.getOwner() + "." + f.getName() : null;
+	}
+
+	public void testFindFields() {
+		/* I has the constant k, A implements I with x and the static s, and B extends A with y. */
+		List<ClassNode> classes = new ArrayList<>();
+		classes.add(fields(Opcodes.ACC_PUBLIC | Opcodes.ACC_INTERFACE | Opcodes.ACC_ABSTRACT, "test/I", "java/lang/Object", null,
+				Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL, "k"));
+		classes.add(fields(Opcodes.ACC_PUBLIC, "test/A", "java/lang/Object", new String[] { "test/I" }, Opcodes.ACC_PUBLIC, "x"));
+		classes.add(fields(Opcodes.ACC_PUBLIC, "test/S", "java/lang/Object", null, Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "s"));
+		classes.add(fields(Opcodes.ACC_PUBLIC, "test/B", "test/A", null, Opcodes.ACC_PUBLIC, "y"));
+		ApplicationClassSource app = new ApplicationClassSource("test", classes);
+		app.addLibraries(new InstalledRuntimeClassSource(app));
+		DefaultInvocationResolver resolver = new DefaultInvocationResolver(app, 1);
+
+		List<FieldReference> refs = Arrays.asList(
+				new FieldLoadExpr(null, "test/B", "x", "I", false),
+				new FieldLoadExpr(null, "test/B", "y", "I", false),
+				new FieldStoreStmt(null, new ConstantExpr(1), "test/B", "y", "I", false),
+				new FieldLoadExpr(null, "test/B", "k", "I", true),
+				new FieldLoadExpr(null, "test/B", "k", "I", false),
+				new FieldLoadExpr(null, "test/B", "z", "I", false),
+				new FieldStoreStmt(null, new ConstantExpr(1), "test/S", "s", "I", true),
+				new FieldLoadExpr(null, "test/Missing", "x", "I", false));
+		List<String> expected = Arrays.asList("test/A.x", "test/B.y", "test/B.y", "test/I.k", null, null, "test/S.s", null);
+
+		List<String> batch = new ArrayList<>();
+		for (FieldNode f : resolver.findFields(refs)) {
+			batch.add(describe(f));
+		}
+		assertEquals(expected, batch);
+		/* one entry per distinct use, including the ones that didn't resolve. */
+		assertEquals(7, resolver.getFieldCacheSize());
+
+		/* the same as resolving them one at a time, against a fresh table or the filled one. */
+		DefaultInvocationResolver single = new DefaultInvocationResolver(app, 1);
+		for (int i = 0; i < refs.size(); i++) {
+			assertEquals(expected.get(i), describe(single.findField(refs.get(i))));
+			assertEquals(expected.get(i), describe(resolver.findField(refs.get(i))));
+		}
+		assertEquals(7, resolver.getFieldCacheSize());
+
+		List<FieldNode> again = resolver.findFields(refs);
+		assertSame(resolver.findField(refs.get(0)), again.get(0));
+		assertEquals(7, resolver.getFieldCacheSize());
+	}
+}
@@ -0,0 +1,189 @@
+package org.mapleir.deob.callgraph;
+
+import junit.framework.TestCase;
+import org.mapleir.DefaultInvocationResolver;
+import org.mapleir.app.service.ApplicationClassSource;
+import org.mapleir.app.service.InstalledRuntimeClassSource;
+import org.mapleir.asm.ClassHelper;
+import org.mapleir.asm.ClassNode;
+import org.mapleir.asm.MethodNode;
+import org.mapleir.context.AnalysisContext;
+import org.mapleir.context.BasicAnalysisContext.BasicContextBuilder;
+import org.mapleir.context.IRCache;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class CompactCallGraphTest extends TestCase {
+
+	private static final String OWNER = "test/Calls";
+
+	private File dir;
+	private ApplicationClassSource app;
+	private CallSiteSensitiveCallGraph graph;
+
+	private static void callsTo(org.objectweb.asm.tree.ClassNode cn, String name, String... callees) {
+		MethodVisitor mv = cn.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, name, "()V", null, null);
+		mv.visitCode();
+		for (String callee : callees) {
+			mv.visitMethodInsn(Opcodes.INVOKESTATIC, OWNER, callee, "()V", false);
+		}
+		mv.visitInsn(Opcodes.RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+
+	/* a calls b and c, b calls nothing, c calls b twice and d, and d is native. */
+	@Override
+	protected void setUp() throws IOException {
+		org.objectweb.asm.tree.ClassNode node = new org.objectweb.asm.tree.ClassNode();
+		node.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, OWNER, null, "java/lang/Object", null);
+		callsTo(node, "c", "b", "d", "b");
+		callsTo(node, "a", "b", "c");
+		callsTo(node, "b");
+		node.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_NATIVE, "d", "()V", null, null).visitEnd();
+		node.visitEnd();
+		ClassNode cn = ClassHelper.create(node);
+
+		app = new ApplicationClassSource("test", Collections.singleton(cn));
+		app.addLibraries(new InstalledRuntimeClassSource(app));
+		IRCache cache = new IRCache();
+		MethodNode entry = null;
+		for (MethodNode m : cn.getMethods()) {
+			if (m.node.instructions.size() > 0) {
+				cache.getFor(m);
+			}
+			if (m.getName().equals("a")) {
+				entry = m;
+			}
+		}
+		AnalysisContext context = new BasicContextBuilder()
+				.setApplication(app)
+				.setInvocationResolver(new DefaultInvocationResolver(app))
+				.setCache(cache)
+				.build();
+		graph = new SensitiveCallGraphBuilder(context).build(Collections.singleton(entry));
+
+		dir = File.createTempFile("callgraph", "");
+		dir.delete();
+		dir.mkdir();
+	}
+
+	@Override
+	protected void tearDown() {
+		delete(dir);
+	}
+
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File c : children) {
+				delete(c);
+			}
+		}
+		f.delete();
+	}
+
+	private static int method(CompactCallGraph g, String name) {
+		int m = g.indexOf(OWNER, name, "()V");
+		assertTrue(name, m >= 0);
+		return m;
+	}
+
+	private static int[] methods(CompactCallGraph g, String... names) {
+		int[] res = new int[names.length];
+		for (int i = 0; i < names.length; i++) {
+			res[i] = method(g, names[i]);
+		}
+		return res;
+	}
+
+	private static void assertArray(int[] expected, int[] actual) {
+		assertEquals(Arrays.toString(expected), Arrays.toString(actual));
+	}
+
+	private static void assertGraph(CompactCallGraph g) {
+		assertEquals(4, g.getMethodCount());
+		assertEquals(5, g.getCallSiteCount());
+		assertEquals(5, g.getEdgeCount());
+		int a = method(g, "a"), b = method(g, "b"), c = method(g, "c"), d = method(g, "d");
+		assertEquals(-1, g.indexOf(OWNER, "e", "()V"));
+
+		/* b and d have no sites, so their sites start where the next method's do. */
+		assertEquals(0, g.getCallSites(b).length);
+		assertEquals(0, g.getCallSites(d).length);
+		assertEquals(2, g.getCallSites(a).length);
+		int[] cSites = g.getCallSites(c);
+		assertEquals(3, cSites.length);
+		for (int m : methods(g, "a", "c")) {
+			for (int s : g.getCallSites(m)) {
+				assertEquals(m, g.getCaller(s));
+				assertEquals(OWNER, g.getSiteOwner(s));
+				assertEquals("()V", g.getSiteDesc(s));
+				assertArray(new int[] { method(g, g.getSiteName(s)) }, g.getTargets(s));
+			}
+		}
+		/* in the order they're called. */
+		assertEquals("b", g.getSiteName(cSites[0]));
+		assertEquals("d", g.getSiteName(cSites[1]));
+		assertEquals("b", g.getSiteName(cSites[2]));
+
+		assertArray(methods(g, "b", "c"), g.getCallees(a));
+		assertArray(new int[0], g.getCallees(b));
+		assertArray(methods(g, "b", "d"), g.getCallees(c));
+		assertArray(new int[0], g.getCallees(d));
+
+		assertArray(new int[0], g.getCallers(a));
+		assertEquals(3, g.getCallers(b).length);
+		assertArray(methods(g, "a", "c"), g.getCallerMethods(b));
+		assertArray(methods(g, "a"), g.getCallerMethods(c));
+		assertArray(new int[] { cSites[1] }, g.getCallers(d));
+		assertArray(methods(g, "c"), g.getCallerMethods(d));
+	}
+
+	public void testFrom() {
+		CompactCallGraph g = CompactCallGraph.from(graph);
+		assertGraph(g);
+		for (int m = 0; m < g.getMethodCount(); m++) {
+			MethodNode mn = g.findMethod(app, m);
+			assertNotNull(mn);
+			assertEquals(m, g.indexOf(mn));
+			assertTrue(graph.containsMethod(mn));
+		}
+	}
+
+	public void testRoundTrip() throws IOException {
+		CompactCallGraph g = CompactCallGraph.from(graph);
+		File file = new File(dir, "graph.bin");
+		g.write(file);
+		assertFalse(new File(dir, "graph.bin.tmp").exists());
+
+		CompactCallGraph read = CompactCallGraph.read(file);
+		assertNotNull(read);
+		assertGraph(read);
+		for (int m = 0; m < g.getMethodCount(); m++) {
+			assertEquals(g.getOwner(m) + g.getName(m) + g.getDesc(m), read.getOwner(m) + read.getName(m) + read.getDesc(m));
+		}
+	}
+
+	public void testReadMissingFile() throws IOException {
+		assertNull(CompactCallGraph.read(new File(dir, "missing.bin")));
+	}
+
+	public void testFailedWriteRemovesTempFile() throws IOException {
+		/* a directory with something in it can't be replaced by the move. */
+		File file = new File(dir, "graph.bin");
+		file.mkdir();
+		new File(file, "child").createNewFile();
+		try {
+			CompactCallGraph.from(graph).write(file);
+			fail();
+		} catch (IOException e) {
+			assertFalse(new File(dir, "graph.bin.tmp").exists());
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package org.mapleir.deob.callgraph;
+
+import junit.framework.TestCase;
+import org.mapleir.DefaultInvocationResolver;
+import org.mapleir.app.service.ApplicationClassSource;
+import org.mapleir.app.service.InstalledRuntimeClassSource;
+import org.mapleir.asm.ClassHelper;
+import org.mapleir.asm.ClassNode;
+import org.mapleir.asm.MethodNode;
+import org.mapleir.context.AnalysisContext;
+import org.mapleir.context.BasicAnalysisContext.BasicContextBuilder;
+import org.mapleir.context.IRCache;
+import org.mapleir.ir.cfg.builder.ControlFlowGraphBuilder;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ParallelCallGraphBuilderTest extends TestCase {
+
+	private static final String OWNER = "test/Calls";
+	/* more than a chunk, so a round is split between the threads. */
+	private static final int METHODS = 100;
+	/* left out of the cache. */
+	private static final String UNCACHED = "m7";
+
+	private AnalysisContext context;
+	private MethodNode entry;
+
+	/* mi calls m(i + 1) and m(2i), both modulo the number of methods, and hashCode. */
+	private static ClassNode calls() {
+		org.objectweb.asm.tree.ClassNode cn = new org.objectweb.asm.tree.ClassNode();
+		cn.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, OWNER, null, "java/lang/Object", null);
+		for (int i = 0; i < METHODS; i++) {
+			MethodVisitor mv = cn.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "m" + i, "()V", null, null);
+			mv.visitCode();
+			mv.visitMethodInsn(Opcodes.INVOKESTATIC, OWNER, "m" + ((i + 1) % METHODS), "()V", false);
+			mv.visitMethodInsn(Opcodes.INVOKESTATIC, OWNER, "m" + ((i * 2) % METHODS), "()V", false);
+			mv.visitTypeInsn(Opcodes.NEW, "java/lang/Object");
+			mv.visitInsn(Opcodes.DUP);
+			mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+			mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/Object", "hashCode", "()I", false);
+			mv.visitInsn(Opcodes.POP);
+			mv.visitInsn(Opcodes.RETURN);
+			mv.visitMaxs(2, 0);
+			mv.visitEnd();
+		}
+		cn.visitEnd();
+		return ClassHelper.create(cn);
+	}
+
+	@Override
+	protected void setUp() {
+		ClassNode cn = calls();
+		ApplicationClassSource app = new ApplicationClassSource("test", Collections.singleton(cn));
+		app.addLibraries(new InstalledRuntimeClassSource(app));
+
+		IRCache cache = new IRCache();
+		for (MethodNode m : cn.getMethods()) {
+			if (!m.getName().equals(UNCACHED)) {
+				cache.getFor(m);
+			}
+			if (m.getName().equals("m0")) {
+				entry = m;
+			}
+		}
+		context = new BasicContextBuilder()
+				.setApplication(app)
+				.setInvocationResolver(new DefaultInvocationResolver(app))
+				.setCache(cache)
+				.build();
+	}
+
+	/* every node and edge, by id. */
+	private static List<String> describe(CallSiteSensitiveCallGraph graph) {
+		List<String> res = new ArrayList<>();
+		for (CallGraphNode n : graph.vertices()) {
+			res.add(n.getNumericId() + " " + n.getClass().getSimpleName() + " " + n);
+			for (CallGraphEdge e : graph.getEdges(n)) {
+				res.add(e.src().getNumericId() + " -> " + e.dst().getNumericId() + " " + e.getClass().getSimpleName());
+			}
+		}
+		Collections.sort(res);
+		return res;
+	}
+
+	private void assertSameAsSequential(int threads) {
+		List<String> expected = describe(new SensitiveCallGraphBuilder(context).build(Collections.singleton(entry)));
+		List<String> actual = describe(new ParallelCallGraphBuilder(context, threads, false).build(Collections.singleton(entry)));
+		assertEquals(expected, actual);
+	}
+
+	public void testOneThread() {
+		assertSameAsSequential(1);
+	}
+
+	public void testSeveralThreads() {
+		assertSameAsSequential(4);
+	}
+
+	private MethodNode uncached() {
+		for (MethodNode m : context.getApplication().findClassNode(OWNER).getMethods()) {
+			if (m.getName().equals(UNCACHED)) {
+				return m;
+			}
+		}
+		throw new AssertionError();
+	}
+
+	public void testUncachedMethodsHaveNoSites() {
+		CallSiteSensitiveCallGraph graph = new ParallelCallGraphBuilder(context, 4, false).build(Collections.singleton(entry));
+		int size = context.getIRCache().size();
+
+		MethodNode uncached = uncached();
+		assertTrue(graph.containsMethod(uncached));
+		assertTrue(graph.getEdges(graph.getNode(uncached)).isEmpty());
+		assertNull(context.getIRCache().get(uncached));
+		assertEquals(METHODS - 1, size);
+	}
+
+	private void assertLiftsMissingMethods(int threads) {
+		List<String> actual = describe(new ParallelCallGraphBuilder(context, threads).build(Collections.singleton(entry)));
+
+		MethodNode uncached = uncached();
+		assertNotNull(context.getIRCache().get(uncached));
+		assertEquals(METHODS, context.getIRCache().size());
+		/* the sequential builder now sees the lifted method too. */
+		assertEquals(describe(new SensitiveCallGraphBuilder(context).build(Collections.singleton(entry))), actual);
+	}
+
+	public void testLiftsMissingMethodsOnOneThread() {
+		assertLiftsMissingMethods(1);
+	}
+
+	public void testLiftsMissingMethods() {
+		assertLiftsMissingMethods(4);
+		CallSiteSensitiveCallGraph graph = new ParallelCallGraphBuilder(context, 4).build(Collections.singleton(entry));
+		/* m7 calls m8, m14, the constructor of Object and hashCode. */
+		assertEquals(4, graph.getEdges(graph.getNode(uncached())).size());
+	}
+
+	public void testMethodsAreLiftedOnce() {
+		/* every method is called from several others, many of them in the same round. */
+		AtomicInteger lifts = new AtomicInteger();
+		IRCache cache = new IRCache(m -> {
+			lifts.incrementAndGet();
+			return ControlFlowGraphBuilder.build(m);
+		});
+		AnalysisContext context = new BasicContextBuilder()
+				.setApplication(this.context.getApplication())
+				.setInvocationResolver(this.context.getInvocationResolver())
+				.setCache(cache)
+				.build();
+		new ParallelCallGraphBuilder(context, 8).build(Collections.singleton(entry));
+		assertEquals(METHODS, cache.size());
+		assertEquals(METHODS, lifts.get());
+	}
+}
@@ -38,6 +38,14 @@ public class ClassHelper {
 		return create(bytes, ClassReader.SKIP_FRAMES | ClassReader.SKIP_DEBUG);
 	}
 
+	/**
+	 * Parses the class keeping its expanded StackMapTable frames, which lets the IR generator
+	 * take the stack shape at jump targets from the frames instead of simulating into them.
+	 */
+	public static ClassNode createWithFrames(byte[] bytes) {
+		return create(bytes, ClassReader.EXPAND_FRAMES | ClassReader.SKIP_DEBUG);
+	}
+
 	public static ClassNode create(byte[] bytes, int flags) {
 		ClassReader reader = new ClassReader(bytes);
 		org.objectweb.asm.tree.ClassNode node = new org.objectweb.asm.tree.ClassNode();
@@ -3,10 +3,12 @@ package org.mapleir.asm;
 import org.mapleir.stdlib.collections.graph.FastGraphVertex;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ClassNode implements FastGraphVertex {
-    private static int ID_COUNTER = 1;
-   	private final int numericId = ID_COUNTER++;
+    // nodes are created on the jar reader's worker threads
+    private static final AtomicInteger ID_COUNTER = new AtomicInteger(1);
+   	private final int numericId = ID_COUNTER.getAndIncrement();
 
     public final org.objectweb.asm.tree.ClassNode node;
     private final List<MethodNode> methods;
@@ -45,6 +47,11 @@ public class ClassNode implements FastGraphVertex {
         return fields;
     }
 
+    public void addField(FieldNode fn) {
+        fields.add(fn);
+        node.fields.add(fn.node);
+    }
+
     @Override
     public String getDisplayName() {
         return node.name.replace("/", "_");
@@ -3,10 +3,11 @@ package org.mapleir.asm;
 import org.mapleir.stdlib.collections.graph.FastGraphVertex;
 import org.mapleir.stdlib.util.IHasJavaDesc;
 import org.mapleir.stdlib.util.JavaDesc;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MethodNode implements FastGraphVertex, IHasJavaDesc {
-    private static int ID_COUNTER = 1;
-   	private final int numericId = ID_COUNTER++;
+    private static final AtomicInteger ID_COUNTER = new AtomicInteger(1);
+   	private final int numericId = ID_COUNTER.getAndIncrement();
 
    	public final ClassNode owner;
     public final org.objectweb.asm.tree.MethodNode node;
@@ -73,9 +73,7 @@ public class GenericBitSet<N> implements Set<N> {
 	}
 
 	public boolean containsNone(GenericBitSet<N> other) {
-		BitSet temp = (BitSet) bitset.clone();
-		temp.and(other.bitset);
-		return temp.isEmpty();
+		return !bitset.intersects(other.bitset);
 	}
 
 	public boolean containsAny(GenericBitSet<N> other) {
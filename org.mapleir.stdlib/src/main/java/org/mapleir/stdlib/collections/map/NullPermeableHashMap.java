@@ -25,6 +25,10 @@ public class NullPermeableHashMap<K, V> extends HashMap<K, V> {
 		this(new NullCreator<>());
 	}
 	
+	protected KeyedValueCreator<? super K, ? extends V> getCreator() {
+		return creator;
+	}
+	
 	public V getNonNull(K k) {
 		return computeIfAbsent(k, creator::create);
 	}
@@ -5,9 +5,23 @@ import org.mapleir.asm.ClassNode;
 
 public class DefaultASMFactory implements ASMFactory<ClassNode> {
 
+	private final boolean frames;
+
+	public DefaultASMFactory() {
+		this(false);
+	}
+
+	/**
+	 * @param frames whether to keep the expanded stack map frames of the classes, see
+	 *               {@link ClassHelper#createWithFrames(byte[])}.
+	 */
+	public DefaultASMFactory(boolean frames) {
+		this.frames = frames;
+	}
+
 	@Override
 	public ClassNode create(byte[] bytes, String name) {
-		return ClassHelper.create(bytes);
+		return frames ? ClassHelper.createWithFrames(bytes) : ClassHelper.create(bytes);
 	}
 
 	@Override
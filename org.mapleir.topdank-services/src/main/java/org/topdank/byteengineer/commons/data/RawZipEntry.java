@@ -0,0 +1,99 @@
+package org.topdank.byteengineer.commons.data;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * A zip entry along with its data as it's stored in the zip, i.e. still compressed, so that it can
+ * be copied from one zip to another without inflating and deflating it again.
+ */
+public final class RawZipEntry {
+
+	/** DOS timestamp of 1980-01-01 00:00, the earliest one there is, for entries that are new. */
+	public static final int DEFAULT_DOS_TIME = 0x21 << 16;
+
+	private final String name;
+	private final int method;
+	private final int dosTime;
+	private final long crc;
+	private final long size;
+	private final byte[] data;
+
+	public RawZipEntry(String name, int method, int dosTime, long crc, long size, byte[] data) {
+		this.name = name;
+		this.method = method;
+		this.dosTime = dosTime;
+		this.crc = crc;
+		this.size = size;
+		this.data = data;
+	}
+
+	/**
+	 * Deflates the given data into a new entry. Empty entries (e.g. directories) are stored instead.
+	 *
+	 * @param name The name of the entry.
+	 * @param data The uncompressed data.
+	 * @param dosTime The DOS timestamp of the entry.
+	 * @return The entry.
+	 */
+	public static RawZipEntry compress(String name, byte[] data, int dosTime) {
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		if (data.length == 0) {
+			return new RawZipEntry(name, ZipEntry.STORED, dosTime, crc.getValue(), 0, data);
+		}
+
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 2));
+			byte[] buffer = new byte[8192];
+			while (!deflater.finished()) {
+				int len = deflater.deflate(buffer);
+				out.write(buffer, 0, len);
+			}
+			return new RawZipEntry(name, ZipEntry.DEFLATED, dosTime, crc.getValue(), data.length, out.toByteArray());
+		} finally {
+			deflater.end();
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}.
+	 */
+	public int getMethod() {
+		return method;
+	}
+
+	/**
+	 * @return The modification time in DOS format, with the date in the high 16 bits.
+	 */
+	public int getDosTime() {
+		return dosTime;
+	}
+
+	public long getCrc() {
+		return crc;
+	}
+
+	/**
+	 * @return The uncompressed size.
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return The data as it's stored in the zip, or null if only the header was read.
+	 */
+	public byte[] getData() {
+		return data;
+	}
+}
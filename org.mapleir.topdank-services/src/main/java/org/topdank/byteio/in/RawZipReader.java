@@ -0,0 +1,261 @@
+package org.topdank.byteio.in;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+import org.topdank.byteengineer.commons.data.RawZipEntry;
+
+/**
+ * Reads the entries of a zip without inflating them, straight from its central directory. The zip
+ * is memory-mapped where it fits in a single mapping, and the entries can be read from several
+ * threads at once.
+ */
+public class RawZipReader implements Closeable {
+
+	private static final int EOCD_SIG = 0x06054b50;
+	private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+	private static final int ZIP64_EOCD_SIG = 0x06064b50;
+	private static final int CEN_SIG = 0x02014b50;
+	private static final int LOC_SIG = 0x04034b50;
+
+	private final FileChannel channel;
+	/* the whole file, or null if it's too large to map. only ever read through duplicates. */
+	private final MappedByteBuffer map;
+	/* headers (without data) in central directory order, and where their data is. */
+	private final Map<String, RawZipEntry> entries;
+	private final Map<String, long[]> locations;
+	private long base;
+
+	public RawZipReader(File file) throws IOException {
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		entries = new LinkedHashMap<>();
+		locations = new LinkedHashMap<>();
+		try {
+			long size = channel.size();
+			map = size <= Integer.MAX_VALUE ? channel.map(FileChannel.MapMode.READ_ONLY, 0, size) : null;
+			readCentralDirectory();
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private ByteBuffer read(long pos, int len) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(len).order(ByteOrder.LITTLE_ENDIAN);
+		if (map != null) {
+			if (pos < 0 || pos + len > map.capacity()) {
+				throw new EOFException();
+			}
+			ByteBuffer src = map.duplicate();
+			src.position((int) pos);
+			src.get(buf.array(), 0, len);
+			return buf;
+		}
+		while (buf.hasRemaining()) {
+			if (channel.read(buf, pos + buf.position()) < 0) {
+				throw new EOFException();
+			}
+		}
+		buf.flip();
+		return buf;
+	}
+
+	private void readCentralDirectory() throws IOException {
+		long size = channel.size();
+		// the end record is 22 bytes followed by a comment of up to 64k
+		int tail = (int) Math.min(size, 22 + 0xFFFF);
+		ByteBuffer buf = read(size - tail, tail);
+		int eocd = -1;
+		for (int i = tail - 22; i >= 0; i--) {
+			if (buf.getInt(i) == EOCD_SIG) {
+				eocd = i;
+				break;
+			}
+		}
+		if (eocd == -1) {
+			throw new ZipException("no end of central directory record");
+		}
+
+		long count = buf.getShort(eocd + 10) & 0xFFFF;
+		long cenSize = buf.getInt(eocd + 12) & 0xFFFFFFFFL;
+		long cenOffset = buf.getInt(eocd + 16) & 0xFFFFFFFFL;
+		long endPos = size - tail + eocd;
+		if (count == 0xFFFF || cenSize == 0xFFFFFFFFL || cenOffset == 0xFFFFFFFFL) {
+			ByteBuffer loc = read(endPos - 20, 20);
+			if (loc.getInt(0) == ZIP64_LOCATOR_SIG) {
+				// the offset in the locator is off by however much was put in front of the zip, in
+				// which case the record is usually right before the locator
+				long recordPos = loc.getLong(8);
+				if (recordPos < 0 || recordPos + 56 > endPos || read(recordPos, 4).getInt(0) != ZIP64_EOCD_SIG) {
+					recordPos = endPos - 20 - 56;
+				}
+				endPos = recordPos;
+				ByteBuffer end = read(endPos, 56);
+				if (end.getInt(0) != ZIP64_EOCD_SIG) {
+					throw new ZipException("bad zip64 end of central directory record");
+				}
+				count = end.getLong(32);
+				cenSize = end.getLong(40);
+				cenOffset = end.getLong(48);
+			}
+		}
+
+		// offsets are from the start of the zip, which isn't the start of the file if something was
+		// put in front of it (e.g. the header of a jmod)
+		base = endPos - cenSize - cenOffset;
+		if (base < 0) {
+			throw new ZipException("bad central directory offset");
+		}
+		ByteBuffer cen = read(base + cenOffset, (int) cenSize);
+		int pos = 0;
+		for (long i = 0; i < count; i++) {
+			if (cen.getInt(pos) != CEN_SIG) {
+				throw new ZipException("bad central directory entry");
+			}
+			int flags = cen.getShort(pos + 8) & 0xFFFF;
+			int method = cen.getShort(pos + 10) & 0xFFFF;
+			int dosTime = cen.getInt(pos + 12);
+			long crc = cen.getInt(pos + 16) & 0xFFFFFFFFL;
+			long csize = cen.getInt(pos + 20) & 0xFFFFFFFFL;
+			long usize = cen.getInt(pos + 24) & 0xFFFFFFFFL;
+			int nameLen = cen.getShort(pos + 28) & 0xFFFF;
+			int extraLen = cen.getShort(pos + 30) & 0xFFFF;
+			int commentLen = cen.getShort(pos + 32) & 0xFFFF;
+			long local = cen.getInt(pos + 42) & 0xFFFFFFFFL;
+
+			byte[] nameBytes = new byte[nameLen];
+			cen.position(pos + 46);
+			cen.get(nameBytes);
+			String name = new String(nameBytes, StandardCharsets.UTF_8);
+
+			// sizes and offsets that don't fit are in the zip64 extra field, in this order
+			int extra = pos + 46 + nameLen, extraEnd = extra + extraLen;
+			while (extra + 4 <= extraEnd) {
+				int id = cen.getShort(extra) & 0xFFFF;
+				int len = cen.getShort(extra + 2) & 0xFFFF;
+				if (id == 0x0001) {
+					int field = extra + 4;
+					if (usize == 0xFFFFFFFFL) {
+						usize = cen.getLong(field);
+						field += 8;
+					}
+					if (csize == 0xFFFFFFFFL) {
+						csize = cen.getLong(field);
+						field += 8;
+					}
+					if (local == 0xFFFFFFFFL) {
+						local = cen.getLong(field);
+					}
+				}
+				extra += 4 + len;
+			}
+			pos += 46 + nameLen + extraLen + commentLen;
+
+			// encrypted entries, or ones in a method we can't copy into a jar
+			if ((flags & 1) != 0 || (method != 0 && method != 8) || csize > Integer.MAX_VALUE || entries.containsKey(name)) {
+				continue;
+			}
+			entries.put(name, new RawZipEntry(name, method, dosTime, crc, usize, null));
+			locations.put(name, new long[] { base + local, csize });
+		}
+	}
+
+	/**
+	 * @return The headers of the entries that can be copied, without their data.
+	 */
+	public Collection<RawZipEntry> getEntries() {
+		return Collections.unmodifiableCollection(entries.values());
+	}
+
+	/**
+	 * @param name The name of the entry.
+	 * @return The header of the entry, without its data, or null if there isn't one that can be copied.
+	 */
+	public RawZipEntry getEntry(String name) {
+		return entries.get(name);
+	}
+
+	/**
+	 * Reads an entry along with its still compressed data.
+	 *
+	 * @param name The name of the entry.
+	 * @return The entry, or null if there isn't one that can be copied.
+	 * @throws IOException If there is a read error.
+	 */
+	public RawZipEntry read(String name) throws IOException {
+		RawZipEntry e = entries.get(name);
+		if (e == null) {
+			return null;
+		}
+		long[] location = locations.get(name);
+		long local = location[0];
+		ByteBuffer header = read(local, 30);
+		if (header.getInt(0) != LOC_SIG) {
+			throw new ZipException("bad local header for " + name);
+		}
+		long start = local + 30 + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+		ByteBuffer data = read(start, (int) location[1]);
+		return new RawZipEntry(name, e.getMethod(), e.getDosTime(), e.getCrc(), e.getSize(), data.array());
+	}
+
+	/**
+	 * Reads and inflates an entry.
+	 *
+	 * @param name The name of the entry.
+	 * @return The uncompressed data, or null if there isn't an entry that can be read.
+	 * @throws IOException If there is a read error or the data is corrupt.
+	 */
+	public byte[] inflate(String name) throws IOException {
+		RawZipEntry e = read(name);
+		if (e == null) {
+			return null;
+		} else if (e.getMethod() == ZipEntry.STORED) {
+			return e.getData();
+		} else if (e.getSize() > Integer.MAX_VALUE) {
+			throw new ZipException("entry too large: " + name);
+		}
+
+		byte[] out = new byte[(int) e.getSize()];
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(e.getData());
+			int len = 0;
+			while (len < out.length) {
+				int n = inflater.inflate(out, len, out.length - len);
+				if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				len += n;
+			}
+			if (len != out.length) {
+				throw new ZipException("bad size for " + name + ": " + len);
+			}
+			return out;
+		} catch (DataFormatException ex) {
+			throw new ZipException(name + ": " + ex.getMessage());
+		} finally {
+			inflater.end();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -1,26 +1,40 @@
 package org.topdank.byteio.in;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.JarURLConnection;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Enumeration;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import org.mapleir.asm.ClassNode;
 import org.topdank.byteengineer.commons.asm.ASMFactory;
 import org.topdank.byteengineer.commons.data.JarInfo;
 import org.topdank.byteengineer.commons.data.JarResource;
+import org.topdank.byteengineer.commons.data.JarType;
 import org.topdank.byteengineer.commons.data.LocateableJarContents;
+import org.topdank.byteio.util.Debug;
 
 import com.google.common.io.ByteStreams;
 
 public class SingleJarDownloader<C extends ClassNode> extends AbstractJarDownloader<C> {
 
+	/* alternate versions of classes in multi-release jars, which have the same names as the base ones */
+	private static final String VERSIONS_PREFIX = "META-INF/versions/";
+
 	protected final JarInfo jarInfo;
+	private int threads = Runtime.getRuntime().availableProcessors();
 
 	public SingleJarDownloader(JarInfo jarInfo) {
 		super();
@@ -32,38 +46,103 @@ public class SingleJarDownloader<C extends ClassNode> extends AbstractJarDownloa
 		this.jarInfo = jarInfo;
 	}
 
+	/**
+	 * Sets the number of threads entries are inflated and parsed on, which is the number of available
+	 * processors by default.
+	 *
+	 * @param threads The number of threads.
+	 */
+	public void setThreads(int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException(String.valueOf(threads));
+		this.threads = threads;
+	}
+
+	/**
+	 * Reads every entry of the jar on a pool of {@link #setThreads(int) worker threads}. The contents
+	 * are filled in the order the entries are in the jar, regardless of which are parsed first.
+	 *
+	 * @throws IOException If the jar can't be read or a class can't be parsed.
+	 * @throws IllegalStateException If the jar contains the same class twice.
+	 */
 	@Override
 	public void download() throws IOException {
-		URL url = null;
-		JarURLConnection connection = (JarURLConnection) (url = new URL(jarInfo.formattedURL())).openConnection();
-		JarFile jarFile = connection.getJarFile();
-		Enumeration<JarEntry> entries = jarFile.entries();
+		URL url = new URL(jarInfo.formattedURL());
 		contents = new LocateableJarContents<>(url);
-		
-		Map<String, ClassNode> map = new HashMap<>();
-		
-		while (entries.hasMoreElements()) {
-			JarEntry entry = entries.nextElement();
-			byte[] bytes = read(jarFile.getInputStream(entry));
-			if (entry.getName().endsWith(".class")) {
-				C cn = factory.create(bytes, entry.getName());
-				if(!map.containsKey(cn.getName())) {
-					contents.getClassContents().add(cn);
+
+		// ZipFile can be read from several threads at once, and local jars don't need to go
+		// through a JarURLConnection, which also verifies signed jars as they're read.
+		File file = localFile();
+		ZipFile zipFile = file != null ? new ZipFile(file) : ((JarURLConnection) url.openConnection()).getJarFile();
+
+		long start = System.nanoTime();
+		long classBytes = 0;
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			Enumeration<? extends ZipEntry> entries = zipFile.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry entry = entries.nextElement();
+				String name = entry.getName();
+				if (name.endsWith(".class") && !name.startsWith(VERSIONS_PREFIX)) {
+					classBytes += Math.max(0, entry.getSize());
+					futures.add(pool.submit(() -> factory.create(read(zipFile, entry), name)));
+				} else {
+					futures.add(pool.submit(() -> new JarResource(name, read(zipFile, entry))));
+				}
+			}
+
+			Set<String> names = new HashSet<>();
+			for (Future<?> f : futures) {
+				Object o = f.get();
+				if (o instanceof JarResource) {
+					contents.getResourceContents().add((JarResource) o);
 				} else {
-					throw new IllegalStateException("duplicate: " + cn.getName());
+					@SuppressWarnings("unchecked")
+					C cn = (C) o;
+					if (!names.add(cn.getName())) {
+						throw new IllegalStateException("duplicate: " + cn.getName());
+					}
+					contents.getClassContents().add(cn);
 				}
-				
-				//if(cn.name.equals("org/xmlpull/v1/XmlPullParser")) {
-				//	System.out.println("SingleJarDownloader.download() " +entry.getName() + " " + bytes.length);
-				//}
-			} else {
-				JarResource resource = new JarResource(entry.getName(), bytes);
-				contents.getResourceContents().add(resource);
 			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			else if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new IOException(cause);
+		} finally {
+			pool.shutdownNow();
+			if (file != null)
+				zipFile.close();
+		}
+
+		if (!Debug.debugging) {
+			long ms = Math.max(1, (System.nanoTime() - start) / 1000000);
+			int classes = contents.getClassContents().size();
+			System.out.println("Parsed " + classes + " classes (" + (classBytes >> 10) + " KB) from " + jarInfo.getPath()
+					+ " in " + ms + "ms, " + (classes * 1000L / ms) + " classes/s");
 		}
 	}
 
-	private byte[] read(InputStream inputStream) throws IOException {
-		return ByteStreams.toByteArray(inputStream);
+	/* the jar on disk, if it's local. this is the file formattedURL points to. */
+	private File localFile() {
+		if (jarInfo.getType() != JarType.FILE)
+			return null;
+		File file = new File(jarInfo.getPath());
+		if (!file.exists() && !jarInfo.getPath().endsWith(".jar"))
+			file = new File(jarInfo.getPath() + ".jar");
+		return file.isFile() ? file : null;
+	}
+
+	private static byte[] read(ZipFile zipFile, ZipEntry entry) throws IOException {
+		try (InputStream in = zipFile.getInputStream(entry)) {
+			return ByteStreams.toByteArray(in);
+		}
 	}
 }
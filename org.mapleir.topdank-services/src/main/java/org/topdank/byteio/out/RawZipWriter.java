@@ -0,0 +1,148 @@
+package org.topdank.byteio.out;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.ZipException;
+
+import org.topdank.byteengineer.commons.data.RawZipEntry;
+
+/**
+ * Writes {@link RawZipEntry RawZipEntries} into a zip as they are, without compressing anything
+ * itself, so entries can be copied over from another zip or compressed up front on other threads.
+ * Entries are written in the order they're given in.
+ */
+public class RawZipWriter implements Closeable {
+
+	private static final int LOC_SIG = 0x04034b50;
+	private static final int CEN_SIG = 0x02014b50;
+	private static final int EOCD_SIG = 0x06054b50;
+	private static final int ZIP64_EOCD_SIG = 0x06064b50;
+	private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+	/* names are always written as UTF-8 */
+	private static final int FLAGS = 0x0800;
+
+	private final OutputStream out;
+	private final ByteArrayOutputStream cen;
+	private final Set<String> names;
+	private long written;
+	private int count;
+
+	public RawZipWriter(OutputStream out) {
+		this.out = out;
+		cen = new ByteArrayOutputStream();
+		names = new HashSet<>();
+	}
+
+	/**
+	 * @param e The entry, with its data.
+	 * @throws IOException If there is a write error, or an entry with the same name was already written.
+	 */
+	public void write(RawZipEntry e) throws IOException {
+		if (!names.add(e.getName())) {
+			throw new ZipException("duplicate entry: " + e.getName());
+		}
+		byte[] name = e.getName().getBytes(StandardCharsets.UTF_8);
+		byte[] data = e.getData();
+		if (written > 0xFFFFFFFFL || e.getSize() > 0xFFFFFFFFL) {
+			throw new ZipException("entry too large: " + e.getName());
+		}
+
+		ByteArrayOutputStream header = new ByteArrayOutputStream(30 + name.length);
+		writeInt(header, LOC_SIG);
+		writeShort(header, 20);
+		writeHeader(header, e, name.length, data.length);
+		writeShort(header, 0);
+		header.write(name);
+		header.writeTo(out);
+		out.write(data);
+
+		writeInt(cen, CEN_SIG);
+		writeShort(cen, 20);
+		writeShort(cen, 20);
+		writeHeader(cen, e, name.length, data.length);
+		writeShort(cen, 0); // extra
+		writeShort(cen, 0); // comment
+		writeShort(cen, 0); // disk
+		writeShort(cen, 0); // internal attributes
+		writeInt(cen, 0); // external attributes
+		writeInt(cen, (int) written);
+		cen.write(name);
+
+		written += header.size() + data.length;
+		count++;
+	}
+
+	/* the part of the local and central headers that's the same in both. */
+	private static void writeHeader(ByteArrayOutputStream out, RawZipEntry e, int nameLength, int compressedSize) {
+		writeShort(out, FLAGS);
+		writeShort(out, e.getMethod());
+		writeInt(out, e.getDosTime());
+		writeInt(out, (int) e.getCrc());
+		writeInt(out, compressedSize);
+		writeInt(out, (int) e.getSize());
+		writeShort(out, nameLength);
+	}
+
+	/**
+	 * Writes the central directory and closes the underlying stream.
+	 */
+	@Override
+	public void close() throws IOException {
+		long cenOffset = written;
+		cen.writeTo(out);
+		long cenSize = cen.size();
+		ByteArrayOutputStream end = new ByteArrayOutputStream();
+
+		boolean zip64 = count >= 0xFFFF || cenSize >= 0xFFFFFFFFL || cenOffset >= 0xFFFFFFFFL;
+		if (zip64) {
+			long endOffset = cenOffset + cenSize;
+			writeInt(end, ZIP64_EOCD_SIG);
+			writeLong(end, 44);
+			writeShort(end, 45);
+			writeShort(end, 45);
+			writeInt(end, 0);
+			writeInt(end, 0);
+			writeLong(end, count);
+			writeLong(end, count);
+			writeLong(end, cenSize);
+			writeLong(end, cenOffset);
+
+			writeInt(end, ZIP64_LOCATOR_SIG);
+			writeInt(end, 0);
+			writeLong(end, endOffset);
+			writeInt(end, 1);
+		}
+
+		writeInt(end, EOCD_SIG);
+		writeShort(end, 0);
+		writeShort(end, 0);
+		writeShort(end, zip64 ? 0xFFFF : count);
+		writeShort(end, zip64 ? 0xFFFF : count);
+		// with zip64 every field points readers at the zip64 record, as any of them may have overflowed
+		writeInt(end, zip64 ? 0xFFFFFFFF : (int) cenSize);
+		writeInt(end, zip64 ? 0xFFFFFFFF : (int) cenOffset);
+		writeShort(end, 0);
+		end.writeTo(out);
+		out.close();
+	}
+
+	private static void writeShort(ByteArrayOutputStream out, int v) {
+		out.write(v & 0xFF);
+		out.write((v >>> 8) & 0xFF);
+	}
+
+	private static void writeInt(ByteArrayOutputStream out, int v) {
+		writeShort(out, v & 0xFFFF);
+		writeShort(out, v >>> 16);
+	}
+
+	private static void writeLong(ByteArrayOutputStream out, long v) {
+		writeInt(out, (int) v);
+		writeInt(out, (int) (v >>> 32));
+	}
+}
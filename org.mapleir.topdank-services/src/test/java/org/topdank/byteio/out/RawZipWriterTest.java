@@ -0,0 +1,102 @@
+package org.topdank.byteio.out;
+
+import junit.framework.TestCase;
+import org.topdank.byteengineer.commons.data.RawZipEntry;
+import org.topdank.byteio.in.RawZipReader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+public class RawZipWriterTest extends TestCase {
+
+	private File file;
+
+	@Override
+	protected void setUp() throws IOException {
+		file = File.createTempFile("rawzip", ".zip");
+	}
+
+	@Override
+	protected void tearDown() {
+		file.delete();
+	}
+
+	private void write(int entries) throws IOException {
+		try (RawZipWriter writer = new RawZipWriter(new FileOutputStream(file))) {
+			for (int i = 0; i < entries; i++) {
+				byte[] data = ("entry " + i).getBytes(StandardCharsets.UTF_8);
+				writer.write(RawZipEntry.compress("e" + i, data, RawZipEntry.DEFAULT_DOS_TIME));
+			}
+		}
+	}
+
+	/* the classic end of central directory record, which is the last 22 bytes as there's no comment. */
+	private ByteBuffer endRecord() throws IOException {
+		byte[] bytes = Files.readAllBytes(file.toPath());
+		ByteBuffer end = ByteBuffer.wrap(bytes, bytes.length - 22, 22).slice().order(ByteOrder.LITTLE_ENDIAN);
+		assertEquals(0x06054b50, end.getInt(0));
+		return end;
+	}
+
+	private static String read(ZipFile zip, String name) throws IOException {
+		ZipEntry e = zip.getEntry(name);
+		assertNotNull(name, e);
+		try (InputStream in = zip.getInputStream(e)) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[64];
+			int len;
+			while ((len = in.read(buffer)) != -1) {
+				out.write(buffer, 0, len);
+			}
+			return new String(out.toByteArray(), StandardCharsets.UTF_8);
+		}
+	}
+
+	public void testClassicEnd() throws IOException {
+		write(3);
+		ByteBuffer end = endRecord();
+		assertEquals(3, end.getShort(8));
+		assertEquals(3, end.getShort(10));
+		long cenSize = end.getInt(12) & 0xFFFFFFFFL, cenOffset = end.getInt(16) & 0xFFFFFFFFL;
+		assertEquals(file.length() - 22, cenOffset + cenSize);
+
+		try (ZipFile zip = new ZipFile(file)) {
+			assertEquals(3, zip.size());
+			assertEquals("entry 1", read(zip, "e1"));
+		}
+	}
+
+	public void testZip64End() throws IOException {
+		/* the first count the classic record can't hold, as 0xFFFF there means the zip64 record has it. */
+		int entries = 0xFFFF;
+		write(entries);
+		ByteBuffer end = endRecord();
+		assertEquals(0xFFFF, end.getShort(8) & 0xFFFF);
+		assertEquals(0xFFFF, end.getShort(10) & 0xFFFF);
+		assertEquals(0xFFFFFFFF, end.getInt(12));
+		assertEquals(0xFFFFFFFF, end.getInt(16));
+
+		try (ZipFile zip = new ZipFile(file)) {
+			assertEquals(entries, zip.size());
+			assertEquals("entry 0", read(zip, "e0"));
+			assertEquals("entry " + (entries - 1), read(zip, "e" + (entries - 1)));
+		}
+		try (RawZipReader reader = new RawZipReader(file)) {
+			assertEquals(entries, reader.getEntries().size());
+			RawZipEntry expected = RawZipEntry.compress("e12345", "entry 12345".getBytes(StandardCharsets.UTF_8), RawZipEntry.DEFAULT_DOS_TIME);
+			RawZipEntry actual = reader.read("e12345");
+			assertEquals(expected.getCrc(), actual.getCrc());
+			assertEquals(expected.getSize(), actual.getSize());
+			assertEquals(new String(expected.getData(), StandardCharsets.ISO_8859_1), new String(actual.getData(), StandardCharsets.ISO_8859_1));
+		}
+	}
+}